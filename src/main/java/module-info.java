@@ -12,6 +12,8 @@ module org.dam.fcojavier.chatofflinexml {
     requires java.xml.bind;
     requires jbcrypt;
     requires java.desktop;
+    requires java.prefs;
+    requires javafx.swing;
 
     opens org.dam.fcojavier.chatofflinexml to javafx.fxml;
     opens org.dam.fcojavier.chatofflinexml.controllers to javafx.fxml;
@@ -6,12 +6,19 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
+import org.dam.fcojavier.chatofflinexml.dataAccess.ColaEscrituraMensajes;
+import org.dam.fcojavier.chatofflinexml.dataAccess.InformeRendimiento;
+import org.dam.fcojavier.chatofflinexml.utils.GestorDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.PasswordUtilidades;
 
 import java.io.InputStream;
 
 public class ChatOfflineApp extends Application {
     @Override
     public void start(Stage primaryStage) throws Exception {
+        // Calibrar el coste de BCrypt mientras el usuario escribe sus credenciales
+        PasswordUtilidades.calibrarEnSegundoPlano();
+
         // Cargar el archivo FXML de login
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/org/dam/fcojavier/chatofflinexml/login-view.fxml"));
         Parent root = loader.load();
@@ -35,6 +42,17 @@ public class ChatOfflineApp extends Application {
         primaryStage.show();
     }
 
+    /**
+     * Se ejecuta al cerrar la aplicación: guarda los mensajes que queden en la cola de escritura,
+     * fuerza a disco los archivos pendientes de sincronizar y escribe las estadísticas de rendimiento.
+     */
+    @Override
+    public void stop() {
+        ColaEscrituraMensajes.getInstance().cerrar();
+        GestorDurabilidad.sincronizarPendientes();
+        InformeRendimiento.imprimir();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -0,0 +1,95 @@
+package org.dam.fcojavier.chatofflinexml;
+
+import org.dam.fcojavier.chatofflinexml.dataAccess.ConversacionDAO;
+import org.dam.fcojavier.chatofflinexml.dataAccess.MigradorDatos;
+import org.dam.fcojavier.chatofflinexml.utils.CompresionArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.GestorDurabilidad;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Herramienta de línea de comandos (sin interfaz gráfica) para migrar o compactar la carpeta de datos.
+ * Convierte todas las conversaciones al formato indicado, en paralelo, y reescribe el archivo de usuarios
+ * (ver {@link MigradorDatos}). Se debe ejecutar con la aplicación cerrada.
+ * <p>
+ * Por defecto el destino es el formato configurado con las propiedades del sistema
+ * ({@value ConversacionDAO#PROPIEDAD_FORMATO}, {@value ConversacionDAO#PROPIEDAD_SEGMENTACION} y
+ * {@value CompresionArchivos#PROPIEDAD_COMPRESION}), de modo que basta con ejecutarla con las mismas propiedades que
+ * la aplicación. Opciones:
+ * <pre>
+ *   --formato xml|binario                   Formato de destino de las conversaciones.
+ *   --segmentacion ninguna|mensual|tamano   Reparto en segmentos del destino.
+ *   --comprimir / --sin-comprimir           Compresión de los XML de destino.
+ *   --hilos N                               Conversaciones convertidas en paralelo (por defecto, una por núcleo).
+ *   --datos DIRECTORIO                      Carpeta de datos (por defecto, src/main/resources/data).
+ *   --conservar-origen                      No borrar los archivos originales tras convertirlos.
+ * </pre>
+ */
+public class HerramientaMigracion {
+    private static final String DATOS_POR_DEFECTO = "src/main/resources/data";
+
+    public static void main(String[] args) {
+        boolean binario = "binario".equalsIgnoreCase(System.getProperty(ConversacionDAO.PROPIEDAD_FORMATO));
+        String segmentacion = System.getProperty(ConversacionDAO.PROPIEDAD_SEGMENTACION);
+        boolean comprimir = CompresionArchivos.compresionPorDefecto();
+        int hilos = Runtime.getRuntime().availableProcessors();
+        Path datos = Paths.get(DATOS_POR_DEFECTO);
+        boolean conservarOrigen = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--formato" -> binario = "binario".equalsIgnoreCase(args[++i]);
+                    case "--segmentacion" -> segmentacion = args[++i];
+                    case "--comprimir" -> comprimir = true;
+                    case "--sin-comprimir" -> comprimir = false;
+                    case "--hilos" -> hilos = Integer.parseInt(args[++i]);
+                    case "--datos" -> datos = Paths.get(args[++i]);
+                    case "--conservar-origen" -> conservarOrigen = true;
+                    default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException ? "Falta el valor de una opción" : e.getMessage());
+            System.err.println("Uso: HerramientaMigracion [--formato xml|binario] [--segmentacion ninguna|mensual|tamano]"
+                    + " [--comprimir|--sin-comprimir] [--hilos N] [--datos DIRECTORIO] [--conservar-origen]");
+            System.exit(2);
+            return;
+        }
+
+        MigradorDatos migrador = new MigradorDatos(datos.resolve("conversaciones"), binario,
+                ConversacionDAO.getCriterioSegmentacion(segmentacion), comprimir, hilos, conservarOrigen);
+
+        boolean correcto = true;
+        try {
+            Path usuarios = datos.resolve("usuarios.xml");
+            if (Files.exists(usuarios)) {
+                System.out.println("Usuarios reescritos: " + migrador.migrarUsuarios(usuarios));
+            }
+        } catch (IOException e) {
+            correcto = false;
+            System.err.println("Error al migrar los usuarios: " + e.getMessage());
+        }
+
+        try {
+            System.out.println("Migrando conversaciones con " + hilos + " hilos...");
+            MigradorDatos.ResultadoMigracion resultado = migrador.migrarConversaciones();
+            System.out.printf("Conversaciones convertidas: %d (ya migradas antes: %d, con errores: %d)%n",
+                    resultado.convertidas(), resultado.yaMigradas(), resultado.fallidas());
+            System.out.printf("Mensajes: %d. Tamaño: %d -> %d bytes. Tiempo: %d ms%n", resultado.mensajes(),
+                    resultado.bytesOrigen(), resultado.bytesDestino(), resultado.milisegundos());
+            if (resultado.fallidas() > 0) {
+                correcto = false;
+                System.err.println("Vuelve a ejecutar la herramienta para reintentar las conversaciones con errores.");
+            }
+        } catch (IOException e) {
+            correcto = false;
+            System.err.println("Error durante la migración: " + e.getMessage());
+        }
+        GestorDurabilidad.sincronizarPendientes();
+        System.exit(correcto ? 0 : 1);
+    }
+}
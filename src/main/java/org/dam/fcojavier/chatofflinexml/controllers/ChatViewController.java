@@ -1,47 +1,64 @@
 package org.dam.fcojavier.chatofflinexml.controllers;
 
 import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.geometry.Insets;
-import javafx.geometry.Pos;
-import javafx.scene.Node;
+import javafx.geometry.Orientation;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.VBox;
-import javafx.scene.text.Text;
-import javafx.scene.text.TextFlow;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import org.dam.fcojavier.chatofflinexml.dataAccess.BandejaDAO;
+import org.dam.fcojavier.chatofflinexml.dataAccess.ColaEscrituraMensajes;
 import org.dam.fcojavier.chatofflinexml.dataAccess.ConversacionDAO;
+import org.dam.fcojavier.chatofflinexml.dataAccess.ObservadorDatos;
+import org.dam.fcojavier.chatofflinexml.dataAccess.PaginaMensajes;
+import org.dam.fcojavier.chatofflinexml.dataAccess.PrecargaConversaciones;
 import org.dam.fcojavier.chatofflinexml.dataAccess.UsuarioDAO;
 import org.dam.fcojavier.chatofflinexml.model.Adjunto;
-import org.dam.fcojavier.chatofflinexml.model.Conversacion;
+import org.dam.fcojavier.chatofflinexml.model.BandejaEntrada;
+import org.dam.fcojavier.chatofflinexml.model.EntradaBandeja;
 import org.dam.fcojavier.chatofflinexml.model.Mensaje;
 import org.dam.fcojavier.chatofflinexml.model.Usuario;
+import org.dam.fcojavier.chatofflinexml.utils.AnalizadorConversacion;
+import org.dam.fcojavier.chatofflinexml.utils.MensajeListCell;
 import org.dam.fcojavier.chatofflinexml.utils.SesionUsuario;
 import org.dam.fcojavier.chatofflinexml.utils.UsuarioListCell;
 
-import java.awt.Desktop;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -51,14 +68,32 @@ import java.util.zip.ZipOutputStream;
  * la exportación de conversaciones y el acceso a las estadísticas.
  */
 public class ChatViewController {
+    /**
+     * Número de mensajes que se cargan de cada vez al abrir una conversación o al subir hasta arriba del chat.
+     */
+    private static final int TAMANO_PAGINA = PaginaMensajes.TAMANO_PAGINA;
+    /**
+     * Número de mensajes que se entregan a la interfaz en cada {@link Platform#runLater(Runnable)} al cargar una
+     * conversación, para que el hilo de la interfaz nunca tenga que procesarlos todos de golpe.
+     */
+    private static final int MENSAJES_POR_LOTE = 20;
+    /**
+     * Hilos en los que se leen las conversaciones. Se comparten entre ventanas y no impiden cerrar la aplicación.
+     */
+    private static final ExecutorService ejecutorCargas = Executors.newFixedThreadPool(2, runnable -> {
+        Thread hilo = new Thread(runnable, "carga-conversacion");
+        hilo.setDaemon(true);
+        return hilo;
+    });
 
     // --- FXML Fields ---
     @FXML
     private ListView<Usuario> listaUsuarios;
+    /**
+     * Lista virtualizada de mensajes: sólo existen las celdas visibles, que se reutilizan al hacer scroll.
+     */
     @FXML
-    private ScrollPane panelChat;
-    @FXML
-    private VBox contenedorChat;
+    private ListView<Mensaje> listaMensajes;
     @FXML
     private TextField campoMensaje;
     @FXML
@@ -74,38 +109,286 @@ public class ChatViewController {
 
     private UsuarioDAO usuarioDAO;
     private ConversacionDAO conversacionDAO;
+    private BandejaDAO bandejaDAO;
+    /**
+     * Resumen de las conversaciones del usuario logueado, con el que se ordena la lista de usuarios y se muestran
+     * los mensajes no leídos.
+     */
+    private BandejaEntrada bandeja;
     private Usuario usuarioLogueado;
     private String destinatarioActual;
-    private final DateTimeFormatter formatoHora = DateTimeFormatter.ofPattern("HH:mm");
     private final DateTimeFormatter formatoExportacion = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     private File archivoAdjunto;
+    /**
+     * Cursor de la página más antigua mostrada, para poder pedir la anterior al hacer scroll hacia arriba.
+     */
+    private PaginaMensajes primeraPaginaCargada;
+    private boolean cargandoAnteriores;
+    /**
+     * Carga en curso de la conversación abierta, o {@code null} si ya ha terminado.
+     */
+    private CargaConversacion cargaActual;
+    /**
+     * Número de lecturas de la bandeja pedidas y de la última aplicada, para que una lectura que termine después de
+     * otra más reciente no la sustituya.
+     */
+    private int lecturasBandeja;
+    private int lecturaBandejaAplicada;
+    /**
+     * Número de veces que se ha abierto una conversación; las lecturas en segundo plano de una conversación que ya
+     * no está abierta se descartan al comparar con este número.
+     */
+    private int generacionCarga;
+    /**
+     * Indica si han llegado cambios de la conversación abierta mientras se cargaba, para leerlos al terminar.
+     */
+    private boolean cambiosDuranteCarga;
+    /**
+     * Número de mensajes de la conversación abierta ya leídos del almacenamiento; los que se guarden después
+     * (por ejemplo, desde otra instancia de la aplicación) se piden a partir de esta posición.
+     */
+    private int mensajesLeidos;
+    /**
+     * Mensajes enviados desde esta ventana que ya se muestran pero que todavía no se han leído del almacenamiento,
+     * para no mostrarlos dos veces cuando llegue el aviso de que se han guardado.
+     */
+    private final Deque<Mensaje> enviadosSinConfirmar = new ArrayDeque<>();
+    /**
+     * Oyente de {@link ObservadorDatos} que actualiza la ventana cuando cambian los datos en disco.
+     */
+    private Consumer<ObservadorDatos.CambiosDatos> oyenteCambios;
+    /**
+     * Mensajes enviados desde esta ventana que {@link ColaEscrituraMensajes} no ha podido guardar todavía; sus burbujas
+     * se marcan como no enviadas hasta que un reintento los guarde.
+     */
+    private final Set<Mensaje> noEnviados = new HashSet<>();
+    /**
+     * Oyente de {@link ColaEscrituraMensajes} que marca y desmarca los mensajes no enviados.
+     */
+    private Consumer<ColaEscrituraMensajes.ResultadoEscritura> oyenteEscritura;
 
     /**
      * Inicializa el controlador después de que se hayan cargado los elementos FXML.
      * Configura los DAOs, obtiene el usuario logueado, carga la lista de usuarios y configura los listeners de la UI.
+     * También se suscribe a {@link ObservadorDatos} para mostrar los cambios que se hagan en disco.
      */
     public void initialize() {
         this.usuarioDAO = new UsuarioDAO();
         this.conversacionDAO = new ConversacionDAO();
+        this.bandejaDAO = new BandejaDAO();
         this.usuarioLogueado = SesionUsuario.getInstance().getUsuarioActual();
 
         cargarUsuarios();
         configurarListeners();
 
+        oyenteCambios = cambios -> Platform.runLater(() -> aplicarCambios(cambios));
+        ObservadorDatos.getInstance().anadirOyente(oyenteCambios);
+        oyenteEscritura = resultado -> Platform.runLater(() -> aplicarResultadoEscritura(resultado));
+        ColaEscrituraMensajes.getInstance().anadirOyente(oyenteEscritura);
+
         botonEstadisticas.setDisable(true);
         botonExportar.setDisable(true);
     }
 
     /**
      * Carga la lista de usuarios registrados en la `userListView`, excluyendo al usuario logueado.
+     * Los usuarios se ordenan por la fecha del último mensaje intercambiado (los más recientes primero) según la
+     * bandeja de entrada; los usuarios sin conversación van al final, por nombre. La lista se muestra enseguida y la
+     * bandeja se obtiene (o se reconstruye y se pone al día) en segundo plano, tras lo que se reordena.
      */
     private void cargarUsuarios() {
-        listaUsuarios.getItems().setAll(
-                usuarioDAO.getUsuariosLista().getUsuarios().stream()
-                    .filter(usuario -> !usuario.getNombre().equals(usuarioLogueado.getNombre()))
-                    .collect(Collectors.toList())
-        );
+        String usuario = usuarioLogueado.getNombre();
+        List<Usuario> contactos = usuarioDAO.getUsuariosLista().getUsuarios().stream()
+                .filter(contacto -> !contacto.getNombre().equals(usuario))
+                .collect(Collectors.toList());
+        bandeja = new BandejaEntrada(usuario);
+        contactos.sort(ordenContactos());
+        listaUsuarios.getItems().setAll(contactos);
+
+        List<String> nombres = contactos.stream().map(Usuario::getNombre).collect(Collectors.toList());
+        int lectura = ++lecturasBandeja;
+        CompletableFuture.supplyAsync(() -> bandejaDAO.obtenerBandeja(usuario, nombres, conversacionDAO), ejecutorCargas)
+                .whenComplete((obtenida, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        System.err.println("Error al obtener la bandeja de entrada de " + usuario + ": " + error.getMessage());
+                        return;
+                    }
+                    if (lectura < lecturaBandejaAplicada) {
+                        return;
+                    }
+                    lecturaBandejaAplicada = lectura;
+                    bandeja = obtenida;
+                    if (destinatarioActual != null) {
+                        marcarConversacionLeida(destinatarioActual);
+                    }
+                    listaUsuarios.getItems().sort(ordenContactos());
+                    listaUsuarios.refresh();
+                }));
+    }
+
+    /**
+     * Orden de la lista de usuarios: por la fecha del último mensaje según la bandeja (los más recientes primero)
+     * y, después, por nombre.
+     * @return El comparador de los contactos.
+     */
+    private Comparator<Usuario> ordenContactos() {
+        Comparator<Usuario> porActividad = Comparator.comparing((Usuario usuario) -> bandeja.buscarEntrada(usuario.getNombre())
+                        .map(EntradaBandeja::getFechaUltimoMensaje).orElse(null),
+                Comparator.nullsLast(Comparator.reverseOrder()));
+        return porActividad.thenComparing(Usuario::getNombre);
+    }
+
+    /**
+     * Aplica los cambios detectados en la carpeta de datos: sólo se vuelve a leer lo que ha cambiado y la vista
+     * se actualiza de forma incremental (sin volver a pintar el chat ni la lista completos).
+     * @param cambios Los cambios detectados por {@link ObservadorDatos}.
+     */
+    private void aplicarCambios(ObservadorDatos.CambiosDatos cambios) {
+        if (usuarioLogueado == null) {
+            return;
+        }
+        if (cambios.afectaUsuarios()) {
+            actualizarContactos();
+        }
+        if (cambios.afectaBandeja(usuarioLogueado.getNombre())) {
+            actualizarBandeja();
+        }
+        if (destinatarioActual != null && cambios.afectaConversacion(usuarioLogueado.getNombre(), destinatarioActual)) {
+            if (cargaActual != null) {
+                cambiosDuranteCarga = true; // Todavía no se sabe cuántos mensajes se han leído
+            } else {
+                cargarMensajesNuevos();
+            }
+        }
+    }
+
+    /**
+     * Marca como no enviados los mensajes que la cola de escritura no ha podido guardar, o les quita la marca cuando
+     * un reintento los guarda, y vuelve a pintar el chat.
+     * @param resultado El aviso de {@link ColaEscrituraMensajes}.
+     */
+    private void aplicarResultadoEscritura(ColaEscrituraMensajes.ResultadoEscritura resultado) {
+        if (resultado.guardados()) {
+            resultado.mensajes().forEach(noEnviados::remove);
+        } else {
+            noEnviados.addAll(resultado.mensajes());
+        }
+        listaMensajes.refresh();
+    }
+
+    /**
+     * Vuelve a leer los usuarios en segundo plano y añade a la lista los nuevos (y quita los eliminados), sin recrear
+     * el resto.
+     */
+    private void actualizarContactos() {
+        CompletableFuture.supplyAsync(() -> {
+                    usuarioDAO.recargarUsuarios();
+                    return List.copyOf(usuarioDAO.getUsuariosLista().getUsuarios());
+                }, ejecutorCargas)
+                .whenComplete((usuarios, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        System.err.println("Error al recargar los usuarios: " + error.getMessage());
+                        return;
+                    }
+                    Set<String> registrados = usuarios.stream()
+                            .map(Usuario::getNombre)
+                            .collect(Collectors.toSet());
+                    Set<String> mostrados = listaUsuarios.getItems().stream()
+                            .map(Usuario::getNombre)
+                            .collect(Collectors.toSet());
+                    listaUsuarios.getItems().removeIf(usuario -> !registrados.contains(usuario.getNombre()));
+                    List<Usuario> nuevos = usuarios.stream()
+                            .filter(usuario -> !mostrados.contains(usuario.getNombre())
+                                    && !usuario.getNombre().equals(usuarioLogueado.getNombre()))
+                            .collect(Collectors.toList());
+                    if (!nuevos.isEmpty()) {
+                        listaUsuarios.getItems().addAll(nuevos);
+                        listaUsuarios.getItems().sort(ordenContactos());
+                    }
+                }));
+    }
+
+    /**
+     * Vuelve a leer en segundo plano la bandeja de entrada (un archivo pequeño) y reordena la lista de usuarios.
+     * Si llegan mensajes de la conversación abierta, se marcan como leídos.
+     */
+    private void actualizarBandeja() {
+        String usuario = usuarioLogueado.getNombre();
+        int lectura = ++lecturasBandeja;
+        CompletableFuture.supplyAsync(() -> bandejaDAO.cargarBandeja(usuario), ejecutorCargas)
+                .whenComplete((actualizada, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        System.err.println("Error al leer la bandeja de entrada de " + usuario + ": " + error.getMessage());
+                        return;
+                    }
+                    // Una lectura anterior que termine después de otra más reciente ya no vale
+                    if (lectura < lecturaBandejaAplicada || actualizada.isEmpty()) {
+                        return;
+                    }
+                    lecturaBandejaAplicada = lectura;
+                    bandeja = actualizada.get();
+                    if (destinatarioActual != null) {
+                        marcarConversacionLeida(destinatarioActual);
+                    }
+                    listaUsuarios.getItems().sort(ordenContactos());
+                    listaUsuarios.refresh();
+                }));
+    }
+
+    /**
+     * Pide en segundo plano los mensajes de la conversación abierta posteriores a los ya leídos y los añade al final
+     * del chat. Los enviados desde esta ventana ya se muestran, así que no se vuelven a añadir.
+     */
+    private void cargarMensajesNuevos() {
+        String usuario = usuarioLogueado.getNombre();
+        String destinatario = destinatarioActual;
+        int desde = mensajesLeidos;
+        CompletableFuture.supplyAsync(() -> conversacionDAO.buscarMensajesPosteriores(usuario, destinatario, desde, Integer.MAX_VALUE), ejecutorCargas)
+                .thenAccept(pagina -> Platform.runLater(() -> {
+                    // Si mientras tanto se ha cambiado de chat o ya se han añadido algunos, se descartan los ya leídos
+                    int yaLeidos = mensajesLeidos - desde;
+                    if (!destinatario.equals(destinatarioActual) || yaLeidos < 0 || yaLeidos >= pagina.mensajes().size()) {
+                        return;
+                    }
+                    boolean alFinal = estaAlFinal();
+                    List<Mensaje> nuevos = new ArrayList<>();
+                    for (Mensaje mensaje : pagina.mensajes().subList(yaLeidos, pagina.mensajes().size())) {
+                        mensajesLeidos++;
+                        if (!enviadosSinConfirmar.isEmpty() && esMismoMensaje(enviadosSinConfirmar.peekFirst(), mensaje)) {
+                            enviadosSinConfirmar.removeFirst();
+                        } else {
+                            nuevos.add(mensaje);
+                        }
+                    }
+                    listaMensajes.getItems().addAll(nuevos);
+                    if (alFinal) {
+                        desplazarAlFinal();
+                    }
+                }));
+    }
+
+    /**
+     * Compara un mensaje enviado desde esta ventana con uno leído del almacenamiento.
+     * La fecha se compara al segundo, que es la precisión con la que se guarda en XML.
+     * @param enviado El mensaje enviado.
+     * @param leido El mensaje leído.
+     * @return {@code true} si son el mismo mensaje.
+     */
+    private static boolean esMismoMensaje(Mensaje enviado, Mensaje leido) {
+        return Objects.equals(enviado.getRemitente(), leido.getRemitente())
+                && Objects.equals(enviado.getContenido(), leido.getContenido())
+                && enviado.getFechaHora() != null && leido.getFechaHora() != null
+                && enviado.getFechaHora().truncatedTo(ChronoUnit.SECONDS).equals(leido.getFechaHora().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    /**
+     * Obtiene el resumen de la conversación con un contacto en la bandeja de entrada del usuario logueado.
+     * @param contacto El nombre del contacto.
+     * @return La entrada de la bandeja, o {@code null} si no hay conversación con él.
+     */
+    private EntradaBandeja getResumen(String contacto) {
+        return bandeja.buscarEntrada(contacto).orElse(null);
     }
 
     /**
@@ -114,17 +397,33 @@ public class ChatViewController {
      */
     private void configurarListeners() {
         // Asignar la celda personalizada a la ListView
-        listaUsuarios.setCellFactory(listView -> new UsuarioListCell());
+        listaUsuarios.setCellFactory(listView -> new UsuarioListCell(this::getResumen));
+        listaMensajes.setCellFactory(listView -> new MensajeListCell(usuarioLogueado.getNombre(), noEnviados::contains));
+        listaMensajes.setPlaceholder(new Label());
 
         listaUsuarios.getSelectionModel().selectedItemProperty().addListener((obs, oldSelection, newSelection) -> {
             if (newSelection != null) {
                 destinatarioActual = newSelection.getNombre();
                 cargarConversacion(destinatarioActual);
+                marcarConversacionLeida(destinatarioActual);
                 botonEstadisticas.setDisable(false);
                 botonExportar.setDisable(false);
             }
         });
 
+        // Al llegar arriba del todo se cargan los mensajes más antiguos. La barra de scroll la crea la piel de la
+        // lista, así que se busca cuando ya se ha mostrado
+        listaMensajes.skinProperty().addListener((obs, oldSkin, newSkin) -> Platform.runLater(() ->
+                listaMensajes.lookupAll(".scroll-bar").stream()
+                        .filter(nodo -> nodo instanceof ScrollBar barra && barra.getOrientation() == Orientation.VERTICAL)
+                        .map(nodo -> (ScrollBar) nodo)
+                        .findFirst()
+                        .ifPresent(barra -> barra.valueProperty().addListener((o, valorAnterior, valor) -> {
+                            if (valor.doubleValue() <= barra.getMin()) {
+                                cargarMensajesAnteriores();
+                            }
+                        }))));
+
         botonEnviar.setOnAction(event -> enviarMensaje());
         campoMensaje.setOnAction(event -> enviarMensaje());
         botonEstadisticas.setOnAction(event -> abrirVentanaEstadisticas());
@@ -133,6 +432,21 @@ public class ChatViewController {
         botonCerrarSesion.setOnAction(event -> gestionarCerrarSesion());
     }
 
+    /**
+     * Marca como leída la conversación con un contacto en la lista de usuarios y, en segundo plano, en la bandeja
+     * guardada.
+     * @param contacto El nombre del contacto cuya conversación se ha abierto.
+     */
+    private void marcarConversacionLeida(String contacto) {
+        EntradaBandeja resumen = getResumen(contacto);
+        if (resumen != null && resumen.getNoLeidos() > 0) {
+            resumen.setNoLeidos(0);
+            String usuario = usuarioLogueado.getNombre();
+            ejecutorCargas.execute(() -> bandejaDAO.marcarLeida(usuario, contacto));
+            listaUsuarios.refresh();
+        }
+    }
+
     /**
      * Abre un FileChooser para que el usuario seleccione un archivo para adjuntar al mensaje.
      * Las extensiones permitidas se obtienen de la clase {@link Adjunto}.
@@ -163,34 +477,186 @@ public class ChatViewController {
 
     /**
      * Carga y muestra la conversación con el destinatario seleccionado.
-     * Si no hay mensajes, muestra un mensaje de bienvenida.
+     * Sólo se cargan los últimos {@value #TAMANO_PAGINA} mensajes; los anteriores se piden al hacer scroll hacia arriba.
+     * La conversación se lee en segundo plano ({@link CargaConversacion}) y sus mensajes se añaden a la vista por lotes,
+     * de modo que la ventana no se bloquea aunque se pase rápidamente de un contacto a otro: la carga anterior se
+     * cancela y sus resultados se descartan. Si no hay mensajes, muestra un mensaje de bienvenida.
      * @param destinatario El nombre del usuario con el que se carga la conversación.
      */
     private void cargarConversacion(String destinatario) {
-        contenedorChat.getChildren().clear();
-        contenedorChat.setAlignment(Pos.TOP_LEFT); // Restaurar alineación por defecto
-        Optional<Conversacion> convOpt = conversacionDAO.buscarConversacion(usuarioLogueado.getNombre(), destinatario);
-        if (convOpt.isPresent() && !convOpt.get().getMensajes().isEmpty()) {
-            convOpt.get().getMensajes().forEach(this::agregarMensajeAVista);
-        } else {
-            mostrarMensajeBienvenida(destinatario);
+        if (cargaActual != null) {
+            // Sin interrumpir el hilo: interrumpir una lectura cerraría el canal del archivo bloqueado
+            cargaActual.cancel(false);
+        }
+        generacionCarga++;
+        cargandoAnteriores = true; // Evita pedir páginas anteriores mientras se carga la conversación
+        cambiosDuranteCarga = false;
+        primeraPaginaCargada = null;
+        enviadosSinConfirmar.clear();
+        listaMensajes.getItems().clear();
+        listaMensajes.setPlaceholder(new ProgressIndicator());
+
+        CargaConversacion carga = new CargaConversacion(usuarioLogueado.getNombre(), destinatario, generacionCarga);
+        carga.setOnFailed(event -> {
+            if (carga == cargaActual) {
+                cargaActual = null;
+                System.err.println("Error al cargar la conversación con " + destinatario + ": " + carga.getException().getMessage());
+                carga.getException().printStackTrace();
+                listaMensajes.setPlaceholder(new Label("No se pudo cargar la conversación con " + destinatario + "."));
+            }
+        });
+        cargaActual = carga;
+        ejecutorCargas.execute(carga);
+    }
+
+    /**
+     * Añade a la vista un lote de mensajes de la conversación que se está cargando. Se ejecuta en el hilo de la
+     * interfaz; si mientras tanto se ha abierto otra conversación, el lote se descarta.
+     * @param carga La carga que ha leído los mensajes.
+     * @param pagina La página completa leída.
+     * @param desde La posición del lote dentro de la página.
+     * @param lote Los mensajes del lote, en orden cronológico.
+     */
+    private void aplicarLote(CargaConversacion carga, PaginaMensajes pagina, int desde, List<Mensaje> lote) {
+        if (carga != cargaActual || carga.isCancelled()) {
+            return;
+        }
+        if (primeraPaginaCargada == null) {
+            primeraPaginaCargada = pagina;
+            mensajesLeidos = pagina.indiceInicio() + pagina.mensajes().size();
+            descartarEnviadosLeidos(pagina);
+        }
+        // Los mensajes enviados mientras se carga ya están al final de la lista y deben seguir allí
+        listaMensajes.getItems().addAll(desde, lote);
+        desplazarAlFinal();
+
+        if (desde + lote.size() >= pagina.mensajes().size()) {
+            cargaActual = null;
+            mostrarMensajeBienvenida(carga.destinatario); // Sólo se ve mientras la conversación no tiene mensajes
+            Platform.runLater(() -> {
+                if (carga.generacion == generacionCarga) {
+                    cargandoAnteriores = false;
+                }
+            });
+            if (cambiosDuranteCarga) {
+                cambiosDuranteCarga = false;
+                cargarMensajesNuevos();
+            }
+        }
+    }
+
+    /**
+     * Quita de la lista y de {@link #enviadosSinConfirmar} los mensajes enviados mientras se cargaba la conversación
+     * que se guardaron antes de leer la primera página: ya vienen en ella (y {@link #mensajesLeidos} los cuenta), así
+     * que se mostrarían dos veces y no se reconocerían al leer los mensajes nuevos.
+     * Los enviados se guardan en orden, de modo que se buscan en la página uno tras otro y se para en el primero
+     * que no esté.
+     * @param pagina La primera página leída de la conversación.
+     */
+    private void descartarEnviadosLeidos(PaginaMensajes pagina) {
+        List<Mensaje> mensajes = pagina.mensajes();
+        int posicion = 0;
+        while (!enviadosSinConfirmar.isEmpty()) {
+            Mensaje enviado = enviadosSinConfirmar.peekFirst();
+            while (posicion < mensajes.size() && !esMismoMensaje(enviado, mensajes.get(posicion))) {
+                posicion++;
+            }
+            if (posicion == mensajes.size()) {
+                return;
+            }
+            posicion++;
+            enviadosSinConfirmar.removeFirst();
+            listaMensajes.getItems().removeIf(mensaje -> mensaje == enviado);
+        }
+    }
+
+    /**
+     * Carga en segundo plano la página de mensajes anterior a la más antigua mostrada y la inserta al principio
+     * del chat, manteniendo a la vista los mensajes que el usuario estaba leyendo.
+     */
+    private void cargarMensajesAnteriores() {
+        if (cargandoAnteriores || destinatarioActual == null || primeraPaginaCargada == null
+                || !primeraPaginaCargada.hayAnteriores()) {
+            return;
+        }
+        cargandoAnteriores = true;
+
+        String usuario = usuarioLogueado.getNombre();
+        String destinatario = destinatarioActual;
+        int indiceInicio = primeraPaginaCargada.indiceInicio();
+        int generacion = generacionCarga;
+        CompletableFuture.supplyAsync(() -> conversacionDAO.buscarMensajesAnteriores(usuario, destinatario,
+                        indiceInicio, TAMANO_PAGINA), ejecutorCargas)
+                .whenComplete((pagina, error) -> Platform.runLater(() -> {
+                    if (generacion != generacionCarga) {
+                        return; // Se ha abierto otra conversación
+                    }
+                    if (error != null) {
+                        System.err.println("Error al cargar mensajes anteriores: " + error.getMessage());
+                        cargandoAnteriores = false;
+                        return;
+                    }
+                    primeraPaginaCargada = pagina;
+
+                    // Recolocar el scroll para que el primer mensaje que se veía siga arriba del todo
+                    int primeroVisible = getFlujoMensajes().map(flujo -> flujo.getFirstVisibleCell())
+                            .map(celda -> celda.getIndex()).orElse(0);
+                    listaMensajes.getItems().addAll(0, pagina.mensajes());
+                    listaMensajes.scrollTo(primeroVisible + pagina.mensajes().size());
+                    Platform.runLater(() -> {
+                        if (generacion == generacionCarga) {
+                            cargandoAnteriores = false;
+                        }
+                    });
+                }));
+    }
+
+    /**
+     * Lectura en segundo plano de los últimos mensajes de una conversación, que se entregan a la interfaz en lotes
+     * de {@value #MENSAJES_POR_LOTE} (ver {@link #aplicarLote(CargaConversacion, PaginaMensajes, int, List)}).
+     * Se puede cancelar: deja de entregar lotes, y los ya enviados se descartan al aplicarlos.
+     */
+    private final class CargaConversacion extends Task<Void> {
+        private final String usuario;
+        private final String destinatario;
+        private final int generacion;
+
+        private CargaConversacion(String usuario, String destinatario, int generacion) {
+            this.usuario = usuario;
+            this.destinatario = destinatario;
+            this.generacion = generacion;
+        }
+
+        @Override
+        protected Void call() {
+            if (isCancelled()) {
+                return null;
+            }
+            PaginaMensajes pagina = conversacionDAO.buscarUltimosMensajes(usuario, destinatario, TAMANO_PAGINA);
+            List<Mensaje> mensajes = pagina.mensajes();
+            int desde = 0;
+            do {
+                if (isCancelled()) {
+                    return null;
+                }
+                int posicion = desde;
+                List<Mensaje> lote = mensajes.subList(posicion, Math.min(posicion + MENSAJES_POR_LOTE, mensajes.size()));
+                Platform.runLater(() -> aplicarLote(this, pagina, posicion, lote));
+                desde += MENSAJES_POR_LOTE;
+            } while (desde < mensajes.size());
+            return null;
         }
-        Platform.runLater(() -> panelChat.setVvalue(1.0));
     }
 
     /**
      * Procesa y envía un mensaje de texto y/o un archivo adjunto al destinatario actual.
-     * El mensaje se guarda en la persistencia y se añade a la vista del chat.
+     * El mensaje se añade a la vista del chat y se encola en {@link ColaEscrituraMensajes}, que lo guarda
+     * en segundo plano sin bloquear la interfaz.
      */
     private void enviarMensaje() {
         String texto = campoMensaje.getText();
         if ((texto.isBlank() && archivoAdjunto == null) || destinatarioActual == null) return;
 
-        contenedorChat.setAlignment(Pos.TOP_LEFT); // Asegurar alineación correcta al enviar
-        if (contenedorChat.getChildren().size() == 1 && contenedorChat.getChildren().get(0).getStyleClass().contains("welcome-message")) {
-            contenedorChat.getChildren().clear();
-        }
-
         Adjunto adjuntoParaMensaje = null;
         if (archivoAdjunto != null) {
             String nombreArchivo = archivoAdjunto.getName();
@@ -223,175 +689,62 @@ public class ChatViewController {
         }
 
         Mensaje nuevoMensaje = new Mensaje(destinatarioActual, usuarioLogueado.getNombre(), texto, LocalDateTime.now(), adjuntoParaMensaje);
-        boolean guardado = conversacionDAO.guardarMensaje(nuevoMensaje, usuarioLogueado.getNombre(), destinatarioActual);
+        boolean encolado = ColaEscrituraMensajes.getInstance().encolar(nuevoMensaje, usuarioLogueado.getNombre(), destinatarioActual);
 
-        if (guardado) {
-            agregarMensajeAVista(nuevoMensaje);
+        if (encolado) {
+            listaMensajes.getItems().add(nuevoMensaje);
+            enviadosSinConfirmar.addLast(nuevoMensaje);
+            // La bandeja guardada la actualiza ConversacionDAO al escribir el mensaje; aquí sólo se refleja en la lista
+            bandeja.obtenerEntrada(destinatarioActual).registrarMensaje(nuevoMensaje, false);
+            listaUsuarios.refresh();
             campoMensaje.clear();
 
             archivoAdjunto = null;
             botonAdjuntar.setText("Adjuntar");
 
-            Platform.runLater(() -> panelChat.setVvalue(1.0));
+            desplazarAlFinal();
         } else {
             System.err.println("Error al guardar el mensaje.");
+            new Alert(Alert.AlertType.ERROR, "No se pudo enviar el mensaje: hay demasiados mensajes pendientes de guardar. Inténtalo de nuevo.").showAndWait();
         }
     }
 
     /**
-     * Añade un mensaje a la vista del chat, formateándolo como una burbuja de chat.
-     * Muestra el contenido del texto, una previsualización del adjunto (si existe) y la hora del mensaje.
-     * @param mensaje El mensaje a mostrar.
+     * Obtiene el {@link VirtualFlow} de la lista de mensajes, que sabe qué celdas se están mostrando.
+     * @return El flujo de celdas, o vacío si la lista todavía no se ha mostrado.
      */
-    private void agregarMensajeAVista(Mensaje mensaje) {
-        // 1. Crear el contenedor TextFlow y aplicar estilos de burbuja
-        TextFlow textFlow = new TextFlow();
-        textFlow.getStyleClass().add("chat-bubble");
-        if (mensaje.getRemitente().equals(usuarioLogueado.getNombre())) {
-            textFlow.getStyleClass().add("chat-bubble-sent");
-        } else {
-            textFlow.getStyleClass().add("chat-bubble-received");
-        }
-        textFlow.setMaxWidth(350);
-
-        // 2. Añadir el contenido del mensaje si existe
-        if (mensaje.getContenido() != null && !mensaje.getContenido().isBlank()) {
-            Text contentText = new Text(mensaje.getContenido());
-            contentText.getStyleClass().add("chat-content");
-            textFlow.getChildren().add(contentText);
-        }
-
-        // 3. Añadir la previsualización del adjunto si existe
-        if (mensaje.getAdjunto() != null) {
-            // Añadir un salto de línea si ya había texto
-            if (!textFlow.getChildren().isEmpty() && (mensaje.getContenido() != null && !mensaje.getContenido().isBlank())) {
-                textFlow.getChildren().add(new Text("\n"));
-            }
-
-            Adjunto adjunto = mensaje.getAdjunto();
-            Path adjuntoPath = Paths.get(adjunto.getRuta());
-
-            if (Files.exists(adjuntoPath)) {
-                Node previewNode;
-                if (adjunto.esImagen()) {
-                    try {
-                        Image image = new Image(adjuntoPath.toUri().toString(), 200, 0, true, true); // width, height (0=preserve ratio), preserveRatio, smooth
-                        ImageView imageView = new ImageView(image);
-                        previewNode = imageView;
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        Text errorText = new Text("[Error al cargar imagen: " + adjunto.getNombre() + "]");
-                        errorText.getStyleClass().add("chat-content"); // Aplicar estilo de contenido
-                        previewNode = errorText;
-                    }
-                } else {
-                    // Contenedor para el icono y el texto del archivo
-                    HBox filePreviewBox = new HBox(5); // Espacio de 5px entre elementos
-                    filePreviewBox.setAlignment(Pos.CENTER_LEFT);
-
-                    ImageView iconView = obtenerIconoArchivo(adjunto.getExtension());
-                    Text fileNameText = new Text(adjunto.getNombre());
-                    fileNameText.getStyleClass().add("chat-content"); // Aplicar estilo de contenido
-                    fileNameText.setUnderline(true);
-                    fileNameText.setStyle("-fx-cursor: hand;"); // Cursor de mano para indicar que es clickeable
-
-                    filePreviewBox.getChildren().addAll(iconView, fileNameText);
-                    previewNode = filePreviewBox;
-                }
-
-                // Añadir evento de clic para abrir el archivo
-                previewNode.setOnMouseClicked(event -> {
-                    try {
-                        // Usar Desktop para abrir el archivo con la app por defecto del sistema
-                        Desktop.getDesktop().open(adjuntoPath.toFile());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        new Alert(Alert.AlertType.ERROR, "No se pudo abrir el archivo: " + e.getMessage()).showAndWait();
-                    } catch (UnsupportedOperationException e) {
-                        e.printStackTrace();
-                        new Alert(Alert.AlertType.ERROR, "La apertura de archivos no es soportada en este sistema.").showAndWait();
-                    }
-                });
-                textFlow.getChildren().add(previewNode);
-
-            } else {
-                // Si el archivo no existe
-                Text adjuntoFaltanteText = new Text("[Adjunto: " + adjunto.getNombre() + " (FALTA)]");
-                adjuntoFaltanteText.getStyleClass().add("adjunto-faltante");
-                adjuntoFaltanteText.getStyleClass().add("chat-content"); // Aplicar estilo de contenido
-                textFlow.getChildren().add(adjuntoFaltanteText);
-            }
-        }
-
-        // 4. Añadir la hora del mensaje
-        String formattedTime = " [" + mensaje.getFechaHora().format(formatoHora) + "]";
-        Text timeText = new Text(formattedTime);
-        timeText.getStyleClass().add("chat-timestamp"); // Estilo para la hora
-        textFlow.getChildren().add(timeText);
-
-        // 5. Añadir el TextFlow al HBox para alineación
-        HBox hbox = new HBox(textFlow);
-        if (mensaje.getRemitente().equals(usuarioLogueado.getNombre())) {
-            hbox.setAlignment(Pos.CENTER_RIGHT);
-        } else {
-            hbox.setAlignment(Pos.CENTER_LEFT);
-        }
-
-        contenedorChat.getChildren().add(hbox);
-        VBox.setMargin(hbox, new Insets(2, 0, 2, 0));
+    private Optional<VirtualFlow<?>> getFlujoMensajes() {
+        return Optional.ofNullable(listaMensajes.lookup(".virtual-flow"))
+                .filter(nodo -> nodo instanceof VirtualFlow)
+                .map(nodo -> (VirtualFlow<?>) nodo);
     }
 
     /**
-     * Obtiene un icono gráfico para un tipo de archivo basado en su extensión.
-     * @param extension La extensión del archivo (ej. "pdf", "docx").
-     * @return Un {@link ImageView} con el icono correspondiente.
-     */
-    private ImageView obtenerIconoArchivo(String extension) {
-        String iconPath = null;
-        switch (extension.toLowerCase()) {
-            case "pdf":
-                iconPath = "/images/pdf.png";
-                break;
-            case "doc":
-            case "docx":
-                iconPath = "/images/doc.png";
-                break;
-            case "txt":
-                iconPath = "/images/txt.png";
-                break;
-            case "zip":
-            case "rar":
-                iconPath = "/images/comprimir.png";
-                break;
-            default:
-                // Icono genérico para otros tipos de archivo o null si no se quiere mostrar nada
-                iconPath = "/images/doc.png"; // Usar un icono genérico de documento por defecto
-                break;
-        }
+     * Indica si el último mensaje del chat está a la vista, para seguir mostrando los que lleguen después.
+     * @return {@code true} si el chat está desplazado hasta el final o todavía no se ha mostrado.
+     */
+    private boolean estaAlFinal() {
+        IndexedCell<?> ultimaVisible = getFlujoMensajes().map(flujo -> flujo.getLastVisibleCell()).orElse(null);
+        return ultimaVisible == null || ultimaVisible.getIndex() >= listaMensajes.getItems().size() - 1;
+    }
 
-        if (iconPath != null) {
-            try {
-                Image icon = new Image(getClass().getResourceAsStream(iconPath));
-                ImageView iconView = new ImageView(icon);
-                iconView.setFitWidth(24); // Tamaño del icono
-                iconView.setFitHeight(24);
-                return iconView;
-            } catch (Exception e) {
-                System.err.println("Error loading icon: " + iconPath + ", " + e.getMessage());
-            }
+    /**
+     * Desplaza el chat hasta el último mensaje.
+     */
+    private void desplazarAlFinal() {
+        if (!listaMensajes.getItems().isEmpty()) {
+            listaMensajes.scrollTo(listaMensajes.getItems().size() - 1);
         }
-        return new ImageView(); // Retorna un ImageView vacío si no se encuentra el icono
     }
 
     /**
-     * Muestra un mensaje de bienvenida en el área de chat cuando no hay mensajes previos.
+     * Prepara el mensaje de bienvenida que muestra el área de chat cuando no hay mensajes previos.
      * @param destinatario El nombre del destinatario para personalizar el mensaje.
      */
     private void mostrarMensajeBienvenida(String destinatario) {
         Label label = new Label("¡Aún no hay mensajes! Sé el primero en saludar a " + destinatario + ".");
         label.getStyleClass().add("welcome-message");
-        contenedorChat.setAlignment(Pos.CENTER); // Centrar el contenido del VBox
-        contenedorChat.getChildren().add(label);
+        listaMensajes.setPlaceholder(label);
     }
 
     /**
@@ -401,18 +754,49 @@ public class ChatViewController {
     @FXML
     private void abrirVentanaEstadisticas() {
         if (destinatarioActual == null) return;
-        Optional<Conversacion> convOpt = conversacionDAO.buscarConversacion(usuarioLogueado.getNombre(), destinatarioActual);
-        if (convOpt.isEmpty() || convOpt.get().getMensajes().isEmpty()) {
-            new Alert(Alert.AlertType.INFORMATION, "Aún no hay mensajes en esta conversación para analizar.").showAndWait();
-            return;
-        }
+        String usuario = usuarioLogueado.getNombre();
+        String destinatario = destinatarioActual;
+        botonEstadisticas.setDisable(true);
+        // Se recorre la conversación en streaming en segundo plano (dos pasadas), sin cargarla entera en memoria
+        CompletableFuture.supplyAsync(() -> {
+                    Map<String, Long> mensajesPorUsuario;
+                    try (Stream<Mensaje> mensajes = conversacionDAO.streamMensajes(usuario, destinatario)) {
+                        mensajesPorUsuario = AnalizadorConversacion.contarMensajesPorUsuario(mensajes);
+                    }
+                    if (mensajesPorUsuario.isEmpty()) {
+                        return null;
+                    }
+                    try (Stream<Mensaje> mensajes = conversacionDAO.streamMensajes(usuario, destinatario)) {
+                        return new Estadisticas(mensajesPorUsuario, AnalizadorConversacion.encontrarPalabrasMasUsadas(
+                                mensajes, EstadisticasController.NUMERO_PALABRAS));
+                    }
+                }, ejecutorCargas)
+                .whenComplete((estadisticas, error) -> Platform.runLater(() -> {
+                    botonEstadisticas.setDisable(destinatarioActual == null);
+                    if (error != null) {
+                        System.err.println("Error al calcular las estadísticas: " + error.getMessage());
+                        new Alert(Alert.AlertType.ERROR, "No se pudieron calcular las estadísticas.").showAndWait();
+                    } else if (estadisticas == null) {
+                        new Alert(Alert.AlertType.INFORMATION, "Aún no hay mensajes en esta conversación para analizar.").showAndWait();
+                    } else {
+                        mostrarVentanaEstadisticas(destinatario, estadisticas);
+                    }
+                }));
+    }
+
+    /**
+     * Abre la ventana de estadísticas con los datos ya calculados.
+     * @param destinatario El contacto de la conversación analizada.
+     * @param estadisticas Las estadísticas calculadas.
+     */
+    private void mostrarVentanaEstadisticas(String destinatario, Estadisticas estadisticas) {
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/org/dam/fcojavier/chatofflinexml/EstadisticasView.fxml"));
             Parent root = loader.load();
             EstadisticasController controller = loader.getController();
-            controller.initData(convOpt.get());
+            controller.initData(estadisticas.mensajesPorUsuario(), estadisticas.palabrasMasUsadas());
             Stage stage = new Stage();
-            stage.setTitle("Estadísticas de la conversación con " + destinatarioActual);
+            stage.setTitle("Estadísticas de la conversación con " + destinatario);
             stage.setScene(new Scene(root));
             stage.initModality(Modality.WINDOW_MODAL);
             stage.initOwner(botonEstadisticas.getScene().getWindow());
@@ -423,19 +807,53 @@ public class ChatViewController {
         }
     }
 
+    /**
+     * Estadísticas de una conversación calculadas en segundo plano.
+     * @param mensajesPorUsuario El número de mensajes enviados por cada participante.
+     * @param palabrasMasUsadas Las palabras más usadas, en orden.
+     */
+    private record Estadisticas(Map<String, Long> mensajesPorUsuario, Map<String, Long> palabrasMasUsadas) {
+    }
+
+
     /**
      * Maneja la exportación de la conversación actual a diferentes formatos (TXT, CSV, ZIP).
      * Muestra un diálogo para que el usuario elija el formato y luego un FileChooser para guardar el archivo.
+     * Tanto la comprobación de que hay mensajes como la exportación se hacen en segundo plano, leyendo los mensajes en
+     * streaming, de modo que conversaciones muy largas se exportan sin cargarlas en memoria ni bloquear la ventana.
      */
     private void gestionarExportarConversacion() {
         if (destinatarioActual == null) return;
+        String usuario = usuarioLogueado.getNombre();
+        String destinatario = destinatarioActual;
+        botonExportar.setDisable(true);
 
-        Optional<Conversacion> convOpt = conversacionDAO.buscarConversacion(usuarioLogueado.getNombre(), destinatarioActual);
-        if (convOpt.isEmpty() || convOpt.get().getMensajes().isEmpty()) {
-            new Alert(Alert.AlertType.INFORMATION, "No hay nada que exportar.").showAndWait();
-            return;
-        }
+        CompletableFuture.supplyAsync(() -> {
+                    try (Stream<Mensaje> mensajes = conversacionDAO.streamMensajes(usuario, destinatario)) {
+                        return mensajes.findAny().isPresent();
+                    }
+                }, ejecutorCargas)
+                .whenComplete((hayMensajes, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        botonExportar.setDisable(destinatarioActual == null);
+                        System.err.println("Error al leer la conversación: " + error.getMessage());
+                        new Alert(Alert.AlertType.ERROR, "No se pudo leer la conversación.").showAndWait();
+                    } else if (!hayMensajes) {
+                        botonExportar.setDisable(destinatarioActual == null);
+                        new Alert(Alert.AlertType.INFORMATION, "No hay nada que exportar.").showAndWait();
+                    } else {
+                        elegirDestinoExportacion(usuario, destinatario);
+                    }
+                }));
+    }
 
+    /**
+     * Pregunta el formato y el archivo de destino de la exportación y la lanza en segundo plano. Al terminar se
+     * informa del resultado y se vuelve a habilitar el botón de exportar.
+     * @param usuario El nombre del usuario logueado.
+     * @param destinatario El contacto de la conversación a exportar.
+     */
+    private void elegirDestinoExportacion(String usuario, String destinatario) {
         List<String> formatos = Arrays.asList("TXT", "CSV", "ZIP");
         ChoiceDialog<String> dialog = new ChoiceDialog<>("TXT", formatos);
         dialog.setTitle("Exportar Conversación");
@@ -443,105 +861,147 @@ public class ChatViewController {
         dialog.setContentText("Formato:");
 
         Optional<String> formatoElegido = dialog.showAndWait();
-
-        formatoElegido.ifPresent(formato -> {
+        File file = formatoElegido.map(formato -> {
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Guardar Conversación");
-            fileChooser.setInitialFileName("conversacion_" + destinatarioActual + "." + formato.toLowerCase());
+            fileChooser.setInitialFileName("conversacion_" + destinatario + "." + formato.toLowerCase());
             FileChooser.ExtensionFilter extFilter = new FileChooser.ExtensionFilter(formato + " files (*." +
                     formato.toLowerCase() + ")", "*." + formato.toLowerCase());
             fileChooser.getExtensionFilters().add(extFilter);
+            return fileChooser.showSaveDialog(botonExportar.getScene().getWindow());
+        }).orElse(null);
 
-            File file = fileChooser.showSaveDialog(botonExportar.getScene().getWindow());
-
-            if (file != null) {
-                if ("ZIP".equals(formato)) {
-                    try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
-                        Conversacion conversacion = convOpt.get();
-
-                        // 1. Añadir el archivo de texto de la conversación al ZIP
-                        ZipEntry textEntry = new ZipEntry("conversacion_" + destinatarioActual + ".txt");
-                        zos.putNextEntry(textEntry);
-                        PrintWriter zipWriter = new PrintWriter(zos);
-                        conversacion.getMensajes().forEach(msg -> {
-                            String linea = String.format("[%s] %s: %s",
-                                    msg.getFechaHora().format(formatoExportacion),
-                                    msg.getRemitente(),
-                                    msg.getContenido() != null ? msg.getContenido() : ""
-                            );
-                            zipWriter.println(linea);
-                            if (msg.getAdjunto() != null) {
-                                zipWriter.println("    [Adjunto: " + msg.getAdjunto().getNombre() + "]");
-                            }
-                        });
-                        zipWriter.flush();
-                        zos.closeEntry();
+        if (file == null) {
+            botonExportar.setDisable(destinatarioActual == null);
+            return;
+        }
+        String formato = formatoElegido.get();
+        CompletableFuture.runAsync(() -> {
+                    try {
+                        exportarConversacion(usuario, destinatario, formato, file);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, ejecutorCargas)
+                .whenComplete((resultado, error) -> Platform.runLater(() -> {
+                    botonExportar.setDisable(destinatarioActual == null);
+                    if (error == null) {
+                        new Alert(Alert.AlertType.INFORMATION, "ZIP".equals(formato)
+                                ? "Conversación exportada a ZIP con éxito." : "Conversación exportada con éxito.").showAndWait();
+                        return;
+                    }
+                    Throwable causa = error.getCause() != null ? error.getCause() : error;
+                    if (causa instanceof UncheckedIOException && causa.getCause() != null) {
+                        causa = causa.getCause();
+                    }
+                    causa.printStackTrace();
+                    new Alert(Alert.AlertType.ERROR, ("ZIP".equals(formato)
+                            ? "Error al exportar la conversación a ZIP: " : "Error al guardar el fichero: ")
+                            + causa.getMessage()).showAndWait();
+                }));
+    }
 
-                        // 2. Añadir los archivos adjuntos al ZIP
-                        for (Mensaje mensaje : conversacion.getMensajes()) {
-                            if (mensaje.getAdjunto() != null) {
-                                Path adjuntoPath = Paths.get(mensaje.getAdjunto().getRuta());
-                                if (Files.exists(adjuntoPath)) {
-                                    ZipEntry adjuntoEntry = new ZipEntry("media/" + adjuntoPath.getFileName().toString());
-                                    zos.putNextEntry(adjuntoEntry);
-                                    Files.copy(adjuntoPath, zos);
-                                    zos.closeEntry();
-                                } else {
-                                    System.err.println("Advertencia: El adjunto '" + mensaje.getAdjunto().getNombre() +
-                                            "' no se encontró en la ruta esperada: " + adjuntoPath);
-                                }
-                            }
-                        }
-                        new Alert(Alert.AlertType.INFORMATION, "Conversación exportada a ZIP con éxito.").showAndWait();
+    /**
+     * Escribe la conversación en un archivo con el formato elegido. Se ejecuta en segundo plano.
+     * @param usuario El nombre del usuario logueado.
+     * @param destinatario El contacto de la conversación.
+     * @param formato El formato: TXT, CSV o ZIP (el texto de la conversación junto con sus adjuntos).
+     * @param file El archivo de destino.
+     * @throws IOException Si no se puede escribir el archivo.
+     */
+    private void exportarConversacion(String usuario, String destinatario, String formato, File file) throws IOException {
+        if ("ZIP".equals(formato)) {
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+                // 1. Añadir el archivo de texto de la conversación al ZIP, recordando los adjuntos
+                Set<Path> adjuntos = new LinkedHashSet<>();
+                ZipEntry textEntry = new ZipEntry("conversacion_" + destinatario + ".txt");
+                zos.putNextEntry(textEntry);
+                PrintWriter zipWriter = new PrintWriter(zos);
+                conversacionDAO.recorrerMensajes(usuario, destinatario, msg -> {
+                    String linea = String.format("[%s] %s: %s",
+                            msg.getFechaHora().format(formatoExportacion),
+                            msg.getRemitente(),
+                            msg.getContenido() != null ? msg.getContenido() : ""
+                    );
+                    zipWriter.println(linea);
+                    if (msg.getAdjunto() != null) {
+                        zipWriter.println("    [Adjunto: " + msg.getAdjunto().getNombre() + "]");
+                        adjuntos.add(Paths.get(msg.getAdjunto().getRuta()));
+                    }
+                });
+                zipWriter.flush();
+                zos.closeEntry();
 
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        new Alert(Alert.AlertType.ERROR, "Error al exportar la conversación a ZIP: " + e.getMessage()).showAndWait();
+                // 2. Añadir los archivos adjuntos al ZIP
+                for (Path adjuntoPath : adjuntos) {
+                    if (Files.exists(adjuntoPath)) {
+                        ZipEntry adjuntoEntry = new ZipEntry("media/" + adjuntoPath.getFileName().toString());
+                        zos.putNextEntry(adjuntoEntry);
+                        Files.copy(adjuntoPath, zos);
+                        zos.closeEntry();
+                    } else {
+                        System.err.println("Advertencia: El adjunto '" + adjuntoPath.getFileName() +
+                                "' no se encontró en la ruta esperada: " + adjuntoPath);
                     }
-                } else { // Formatos TXT y CSV existentes
-                    try (PrintWriter writer = new PrintWriter(file)) {
-                        Conversacion conversacion = convOpt.get();
-                        if ("CSV".equals(formato)) {
-                            writer.println("Fecha;Remitente;Contenido;Adjunto"); // Cabecera CSV modificada
-                            conversacion.getMensajes().forEach(msg -> {
-                                String adjuntoNombre = (msg.getAdjunto() != null) ? msg.getAdjunto().getNombre() : "";
-                                String linea = String.format("%s;%s;\"%s\";%s",
-                                        msg.getFechaHora().format(formatoExportacion),
-                                        msg.getRemitente(),
-                                        msg.getContenido() != null ? msg.getContenido().replace("\"", "\"\"") : "", // Escapar comillas dobles
-                                        adjuntoNombre
-                                );
-                                writer.println(linea);
-                            });
-                        }
-                        else { // Formato TXT
-                            conversacion.getMensajes().forEach(msg -> {
-                                String linea = String.format("[%s] %s: %s",
-                                        msg.getFechaHora().format(formatoExportacion),
-                                        msg.getRemitente(),
-                                        msg.getContenido() != null ? msg.getContenido() : ""
-                                );
-                                writer.println(linea);
-                                if (msg.getAdjunto() != null) {
-                                    writer.println("    [Adjunto: " + msg.getAdjunto().getNombre() + "]");
-                                }
-                            });
+                }
+            }
+        } else { // Formatos TXT y CSV existentes
+            try (PrintWriter writer = new PrintWriter(file)) {
+                if ("CSV".equals(formato)) {
+                    writer.println("Fecha;Remitente;Contenido;Adjunto"); // Cabecera CSV modificada
+                    conversacionDAO.recorrerMensajes(usuario, destinatario, msg -> {
+                        String adjuntoNombre = (msg.getAdjunto() != null) ? msg.getAdjunto().getNombre() : "";
+                        String linea = String.format("%s;%s;\"%s\";%s",
+                                msg.getFechaHora().format(formatoExportacion),
+                                msg.getRemitente(),
+                                msg.getContenido() != null ? msg.getContenido().replace("\"", "\"\"") : "", // Escapar comillas dobles
+                                adjuntoNombre
+                        );
+                        writer.println(linea);
+                    });
+                }
+                else { // Formato TXT
+                    conversacionDAO.recorrerMensajes(usuario, destinatario, msg -> {
+                        String linea = String.format("[%s] %s: %s",
+                                msg.getFechaHora().format(formatoExportacion),
+                                msg.getRemitente(),
+                                msg.getContenido() != null ? msg.getContenido() : ""
+                        );
+                        writer.println(linea);
+                        if (msg.getAdjunto() != null) {
+                            writer.println("    [Adjunto: " + msg.getAdjunto().getNombre() + "]");
                         }
-                        new Alert(Alert.AlertType.INFORMATION, "Conversación exportada con éxito.").showAndWait();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        new Alert(Alert.AlertType.ERROR, "Error al guardar el fichero: " + e.getMessage()).showAndWait();
-                    }
+                    });
                 }
             }
-        });
+        }
     }
 
     /**
      * Cierra la sesión del usuario actual, cierra la ventana de chat y abre la ventana de inicio de sesión.
+     * Antes espera a que se guarden los mensajes pendientes de la cola de escritura (si alguno no se puede guardar,
+     * pregunta si se quiere cerrar igualmente) y cancela la carga de la conversación abierta y la precarga de
+     * conversaciones.
      */
     @FXML
     private void gestionarCerrarSesion() {
+        try {
+            ColaEscrituraMensajes.getInstance().flush();
+        } catch (IOException e) {
+            System.err.println("Error al guardar los mensajes pendientes: " + e.getMessage());
+            Optional<ButtonType> respuesta = new Alert(Alert.AlertType.CONFIRMATION,
+                    e.getMessage() + ". Si cierras la sesión se seguirá intentando guardarlos mientras la aplicación esté abierta. ¿Cerrar la sesión igualmente?",
+                    ButtonType.OK, ButtonType.CANCEL).showAndWait();
+            if (respuesta.isEmpty() || respuesta.get() != ButtonType.OK) {
+                return;
+            }
+        }
+        ObservadorDatos.getInstance().quitarOyente(oyenteCambios);
+        ColaEscrituraMensajes.getInstance().quitarOyente(oyenteEscritura);
+        if (cargaActual != null) {
+            cargaActual.cancel(false);
+        }
+        PrecargaConversaciones.getInstance().cancelar();
         SesionUsuario.getInstance().cerrarSesion();
 
         try {
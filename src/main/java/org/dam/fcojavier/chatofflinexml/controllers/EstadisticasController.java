@@ -20,6 +20,10 @@ import java.util.stream.Collectors;
  * Muestra información como el número total de mensajes, las palabras más frecuentes y la participación de cada usuario.
  */
 public class EstadisticasController {
+    /**
+     * Número de palabras más usadas que se muestran en la tabla.
+     */
+    public static final int NUMERO_PALABRAS = 10;
 
     // --- FXML Fields ---
     @FXML
@@ -54,30 +58,37 @@ public class EstadisticasController {
         if (conversacion == null) {
             return;
         }
+        initData(AnalizadorConversacion.contarMensajesPorUsuario(conversacion),
+                AnalizadorConversacion.encontrarPalabrasMasUsadas(conversacion, NUMERO_PALABRAS));
+    }
 
-        // 1. Calcular y mostrar el total de mensajes
-        int totalMensajes = AnalizadorConversacion.contarTotalMensajes(conversacion);
+    /**
+     * Inicializa el controlador con las estadísticas ya calculadas (por ejemplo, en segundo plano a partir de los
+     * mensajes leídos en streaming con los métodos de {@link AnalizadorConversacion} que reciben un stream).
+     * @param mensajesPorUsuario El número de mensajes enviados por cada participante.
+     * @param palabrasMasUsadas Las palabras más usadas, ordenadas de mayor a menor frecuencia.
+     */
+    public void initData(Map<String, Long> mensajesPorUsuario, Map<String, Long> palabrasMasUsadas) {
+        // 1. Mostrar el total de mensajes
+        long totalMensajes = mensajesPorUsuario.values().stream().mapToLong(Long::longValue).sum();
         totalMensajesLabel.setText("Total de mensajes: " + totalMensajes);
 
-        // 2. Calcular y mostrar las palabras más usadas
-        configurarTablaPalabras(conversacion);
+        // 2. Mostrar las palabras más usadas
+        configurarTablaPalabras(palabrasMasUsadas);
 
-        // 3. Calcular y mostrar la participación por usuario
-        configurarGraficoParticipacion(conversacion);
+        // 3. Mostrar la participación por usuario
+        configurarGraficoParticipacion(mensajesPorUsuario);
     }
 
     /**
-     * Configura y puebla la TableView con las 10 palabras más usadas en la conversación.
-     * @param conversacion La conversación a analizar.
+     * Configura y puebla la TableView con las palabras más usadas en la conversación.
+     * @param palabrasMasUsadas Las palabras más usadas y su frecuencia, en orden.
      */
-    private void configurarTablaPalabras(Conversacion conversacion) {
+    private void configurarTablaPalabras(Map<String, Long> palabrasMasUsadas) {
         // Configurar las celdas de la tabla para que sean compatibles con el 'record'
         palabraColumn.setCellValueFactory(cellData -> new SimpleStringProperty(cellData.getValue().palabra()));
         frecuenciaColumn.setCellValueFactory(cellData -> new SimpleObjectProperty<>(cellData.getValue().frecuencia()));
 
-        // Obtener los datos del analizador
-        Map<String, Long> palabrasMasUsadas = AnalizadorConversacion.encontrarPalabrasMasUsadas(conversacion, 10);
-
         // Convertir el mapa a una lista observable para la TableView
         ObservableList<PalabraFrecuencia> datosTabla = palabrasMasUsadas.entrySet().stream()
                 .map(entry -> new PalabraFrecuencia(entry.getKey(), entry.getValue()))
@@ -89,11 +100,9 @@ public class EstadisticasController {
     /**
      * Configura y puebla el PieChart con la participación de cada usuario en la conversación.
      * La participación se mide por el número de mensajes enviados por cada usuario.
-     * @param conversacion La conversación a analizar.
+     * @param mensajesPorUsuario El número de mensajes enviados por cada participante.
      */
-    private void configurarGraficoParticipacion(Conversacion conversacion) {
-        Map<String, Long> mensajesPorUsuario = AnalizadorConversacion.contarMensajesPorUsuario(conversacion);
-
+    private void configurarGraficoParticipacion(Map<String, Long> mensajesPorUsuario) {
         ObservableList<PieChart.Data> pieChartData = mensajesPorUsuario.entrySet().stream()
                 .map(entry -> new PieChart.Data(entry.getKey() + " (" + entry.getValue() + ")", entry.getValue()))
                 .collect(Collectors.toCollection(FXCollections::observableArrayList));
@@ -1,14 +1,18 @@
 package org.dam.fcojavier.chatofflinexml.controllers;
 
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.PasswordField;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.TextField;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import org.dam.fcojavier.chatofflinexml.dataAccess.PrecargaConversaciones;
 import org.dam.fcojavier.chatofflinexml.dataAccess.UsuarioDAO;
 import org.dam.fcojavier.chatofflinexml.model.Usuario;
 import org.dam.fcojavier.chatofflinexml.utils.PasswordUtilidades;
@@ -17,6 +21,8 @@ import org.dam.fcojavier.chatofflinexml.utils.Validacion;
 
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Controlador para la ventana de inicio de sesión.
@@ -29,6 +35,25 @@ public class LoginController {
     @FXML
     private PasswordField campoPassword;
 
+    @FXML
+    private Button botonIniciarSesion;
+
+    @FXML
+    private Button botonAbrirRegistro;
+
+    @FXML
+    private ProgressIndicator indicadorOcupado;
+
+    /**
+     * Hilo en el que se guardan los hashes rehechos, para no ocupar con escrituras en disco los hilos de BCrypt,
+     * que se reservan para verificar contraseñas. No impide cerrar la aplicación.
+     */
+    private static final ExecutorService ejecutorGuardado = Executors.newSingleThreadExecutor(runnable -> {
+        Thread hilo = new Thread(runnable, "guardado-hash");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
     private UsuarioDAO usuarioDAO;
     private SesionUsuario gestorSesion;
 
@@ -45,9 +70,14 @@ public class LoginController {
     /**
      * Maneja el evento de inicio de sesión.
      * Valida las credenciales del usuario y, si son correctas, abre la ventana de chat.
+     * La contraseña se comprueba en segundo plano (BCrypt es lento a propósito) mientras se muestra el indicador
+     * de actividad; los intentos repetidos mientras tanto se ignoran.
      */
     @FXML
     private void gestionarInicioSesion() {
+        if (botonIniciarSesion.isDisabled()) {
+            return;
+        }
         String email = campoEmail.getText();
         String password = campoPassword.getText();
 
@@ -74,20 +104,79 @@ public class LoginController {
         if (usuarioOpt.isPresent()) {
             Usuario usuario = usuarioOpt.get();
 
-            // Verificar la contraseña usando BCrypt
-            if (PasswordUtilidades.checkPassword(password, usuario.getPassword())) {
-                gestorSesion.setUsuarioActual(usuario);
-                abrirVentanaChat();
-            } else {
-                mostrarAlerta("Error", "Email o contraseña incorrectos", Alert.AlertType.ERROR);
-            }
+            // Verificar la contraseña usando BCrypt, fuera del hilo de la interfaz
+            setOcupado(true);
+            PasswordUtilidades.checkPasswordAsync(password, usuario.getPassword())
+                    .whenComplete((correcta, error) -> Platform.runLater(() -> {
+                        setOcupado(false);
+                        if (error != null) {
+                            gestionarErrorVerificacion(error);
+                        } else if (correcta) {
+                            gestorSesion.setUsuarioActual(usuario);
+                            abrirVentanaChat();
+                            actualizarHashSiHaceFalta(usuario, password);
+                        } else {
+                            mostrarAlerta("Error", "Email o contraseña incorrectos", Alert.AlertType.ERROR);
+                        }
+                    }));
         } else {
             mostrarAlerta("Error", "Email o contraseña incorrectos", Alert.AlertType.ERROR);
         }
     }
 
+    /**
+     * Rehace en segundo plano el hash de la contraseña del usuario si se guardó con un coste menor que el calibrado
+     * para este equipo (ver {@link PasswordUtilidades#rehashSiHaceFaltaAsync(String, String)}) y lo guarda en otro hilo,
+     * fuera de los de BCrypt.
+     * Si no se puede hacer ahora, se volverá a intentar en el siguiente inicio de sesión.
+     * @param usuario El usuario que acaba de iniciar sesión.
+     * @param password Su contraseña en texto plano, ya verificada.
+     */
+    private void actualizarHashSiHaceFalta(Usuario usuario, String password) {
+        UsuarioDAO dao = usuarioDAO;
+        PasswordUtilidades.rehashSiHaceFaltaAsync(password, usuario.getPassword())
+                .thenAcceptAsync(nuevoHash -> nuevoHash.ifPresent(hash -> dao.actualizarPassword(usuario.getEmail(), hash)),
+                        ejecutorGuardado)
+                .exceptionally(error -> {
+                    if (!PasswordUtilidades.esRechazo(error)) {
+                        System.err.println("Error al actualizar el hash de la contraseña: " + error.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Muestra el error de una verificación de contraseña que no ha terminado.
+     * @param error El error con el que terminó la verificación.
+     */
+    private void gestionarErrorVerificacion(Throwable error) {
+        if (PasswordUtilidades.esRechazo(error)) {
+            mostrarAlerta("Error", "Hay demasiados intentos en curso. Espera un momento y vuelve a intentarlo.",
+                    Alert.AlertType.WARNING);
+        } else {
+            System.err.println("Error al verificar la contraseña: " + error.getMessage());
+            error.printStackTrace();
+            mostrarAlerta("Error", "No se pudo verificar la contraseña.", Alert.AlertType.ERROR);
+        }
+    }
+
+    /**
+     * Activa o desactiva el estado de "ocupado" mientras se verifica la contraseña: muestra el indicador de actividad
+     * y desactiva los botones y los campos para que no se lancen más intentos.
+     * @param ocupado {@code true} al empezar la verificación y {@code false} al terminar.
+     */
+    private void setOcupado(boolean ocupado) {
+        indicadorOcupado.setVisible(ocupado);
+        indicadorOcupado.setManaged(ocupado);
+        botonIniciarSesion.setDisable(ocupado);
+        botonAbrirRegistro.setDisable(ocupado);
+        campoEmail.setDisable(ocupado);
+        campoPassword.setDisable(ocupado);
+    }
+
     /**
      * Carga y muestra la ventana principal del chat y cierra la ventana de login.
+     * Después empieza a precargar en segundo plano las conversaciones más recientes (ver {@link PrecargaConversaciones}).
      */
     private void abrirVentanaChat() {
         try {
@@ -105,6 +194,8 @@ public class LoginController {
             Stage loginStage = (Stage) campoEmail.getScene().getWindow();
             loginStage.close();
 
+            PrecargaConversaciones.getInstance().iniciar(gestorSesion.getUsuarioActual().getNombre(),
+                    PrecargaConversaciones.conversacionesAPrecargar(), null);
         } catch (IOException e) {
             mostrarAlerta("Error", "No se pudo abrir la ventana de chat.", Alert.AlertType.ERROR);
             e.printStackTrace();
@@ -1,11 +1,14 @@
 package org.dam.fcojavier.chatofflinexml.controllers;
 
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.PasswordField;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.TextField;
 import javafx.stage.Stage;
 import org.dam.fcojavier.chatofflinexml.dataAccess.UsuarioDAO;
@@ -37,6 +40,15 @@ public class RegistroController {
     @FXML
     private PasswordField campoConfirmarPassword;
 
+    @FXML
+    private Button botonRegistrar;
+
+    @FXML
+    private Button botonCancelar;
+
+    @FXML
+    private ProgressIndicator indicadorOcupado;
+
     private UsuarioDAO usuarioDAO;
     private SesionUsuario gestorSesion;
 
@@ -55,9 +67,13 @@ public class RegistroController {
      * Recoge los datos de los campos de texto, realiza validaciones (campos vacíos, formato de email, formato de contraseña,
      * coincidencia de contraseñas, email existente) y, si todo es correcto, registra al usuario.
      * Si el registro es exitoso, el usuario inicia sesión y se abre la ventana de chat.
+     * El hash de la contraseña se calcula en segundo plano mientras se muestra el indicador de actividad.
      */
     @FXML
     private void gestionarRegistro() {
+        if (botonRegistrar.isDisabled()) {
+            return;
+        }
         String nombre = campoNombre.getText();
         String apellido = campoApellido.getText();
         String email = campoEmail.getText();
@@ -107,11 +123,35 @@ public class RegistroController {
             return;
         }
 
-        // Hashear la contraseña antes de guardar
-        String passwordHasheada = PasswordUtilidades.hashPassword(password);
+        // Hashear la contraseña antes de guardar, fuera del hilo de la interfaz
+        setOcupado(true);
+        PasswordUtilidades.hashPasswordAsync(password)
+                .whenComplete((passwordHasheada, error) -> Platform.runLater(() -> {
+                    setOcupado(false);
+                    if (error != null) {
+                        gestionarErrorHash(error);
+                    } else {
+                        completarRegistro(nombre.trim(), apellido.trim(), email.trim().toLowerCase(), passwordHasheada);
+                    }
+                }));
+    }
+
+    /**
+     * Registra al usuario una vez calculado el hash de su contraseña y, si se registra, inicia su sesión.
+     * @param nombre El nombre del usuario.
+     * @param apellido El apellido del usuario.
+     * @param email El email del usuario.
+     * @param passwordHasheada El hash de su contraseña.
+     */
+    private void completarRegistro(String nombre, String apellido, String email, String passwordHasheada) {
+        // El email se vuelve a comprobar por si se ha registrado mientras se calculaba el hash
+        if (usuarioDAO.existeEmail(email)) {
+            mostrarAlerta("Error", "Ya existe un usuario con ese email", Alert.AlertType.ERROR);
+            return;
+        }
 
         // Crear y registrar el usuario
-        Usuario nuevoUsuario = new Usuario(nombre.trim(), apellido.trim(), email.trim().toLowerCase(), passwordHasheada);
+        Usuario nuevoUsuario = new Usuario(nombre, apellido, email, passwordHasheada);
         boolean registrado = usuarioDAO.registrarUsuario(nuevoUsuario);
 
         if (registrado) {
@@ -125,6 +165,33 @@ public class RegistroController {
         }
     }
 
+    /**
+     * Muestra el error de un cálculo del hash de la contraseña que no ha terminado.
+     * @param error El error con el que terminó el cálculo.
+     */
+    private void gestionarErrorHash(Throwable error) {
+        if (PasswordUtilidades.esRechazo(error)) {
+            mostrarAlerta("Error", "Hay demasiadas operaciones en curso. Espera un momento y vuelve a intentarlo.",
+                    Alert.AlertType.WARNING);
+        } else {
+            System.err.println("Error al calcular el hash de la contraseña: " + error.getMessage());
+            error.printStackTrace();
+            mostrarAlerta("Error", "Error al registrar el usuario", Alert.AlertType.ERROR);
+        }
+    }
+
+    /**
+     * Activa o desactiva el estado de "ocupado" mientras se calcula el hash de la contraseña: muestra el indicador
+     * de actividad y desactiva los botones para que no se lance otro registro.
+     * @param ocupado {@code true} al empezar el cálculo y {@code false} al terminar.
+     */
+    private void setOcupado(boolean ocupado) {
+        indicadorOcupado.setVisible(ocupado);
+        indicadorOcupado.setManaged(ocupado);
+        botonRegistrar.setDisable(ocupado);
+        botonCancelar.setDisable(ocupado);
+    }
+
     /**
      * Carga y muestra la ventana principal del chat y cierra la ventana de registro actual.
      * En caso de error al cargar la ventana, muestra una alerta.
@@ -0,0 +1,327 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.BandejaEntrada;
+import org.dam.fcojavier.chatofflinexml.model.EntradaBandeja;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+import org.dam.fcojavier.chatofflinexml.utils.BloqueoArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.CompresionArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.XmlManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+
+/**
+ * Clase DAO (Data Access Object) para gestionar las bandejas de entrada de los usuarios.
+ * Cada usuario tiene un XML ({@code data/bandejas/<usuario>.xml}) con el resumen de sus conversaciones
+ * (ver {@link BandejaEntrada}), que {@link ConversacionDAO} actualiza de forma incremental con cada mensaje guardado.
+ * Así la lista de chats se puede ordenar por actividad y mostrar los mensajes no leídos sin leer ninguna conversación.
+ * <p>
+ * Las bandejas se pueden reconstruir a partir de las conversaciones: si un usuario todavía no tiene bandeja
+ * (por ejemplo, con datos de una versión anterior) se crea la primera vez que se pide con
+ * {@link #obtenerBandeja(String, Collection, ConversacionDAO)}. Mientras no exista, los mensajes guardados no la
+ * modifican.
+ * <p>
+ * Las bandejas se actualizan después de escribir en la conversación y sin su bloqueo, así que una actualización puede
+ * llegar tarde o no llegar (por ejemplo, si se guardó un mensaje mientras se reconstruía la bandeja). Por eso el total
+ * de cada entrada indica hasta qué mensaje de la conversación está contado: al registrar mensajes se ignoran los que
+ * ya estaban contados y, si faltan anteriores, se leen de la conversación; y al obtener la bandeja se comprueba cada
+ * entrada con el número de mensajes de su conversación.
+ */
+public class BandejaDAO {
+    /**
+     * Directorio por defecto donde se guardan las bandejas de entrada.
+     */
+    static final String BANDEJAS_DIR = "src/main/resources/data/bandejas/";
+
+    private final Path directorio;
+    private final ModoDurabilidad durabilidad;
+    private final boolean comprimir;
+
+    /**
+     * Constructor por defecto de la clase BandejaDAO.
+     * Usa la durabilidad {@link ModoDurabilidad#SINCRONIZADO_POR_GRUPO}, como las conversaciones: las bandejas
+     * se actualizan con cada mensaje y, si se pierde una, se puede reconstruir.
+     */
+    public BandejaDAO() {
+        this(Paths.get(BANDEJAS_DIR), ModoDurabilidad.SINCRONIZADO_POR_GRUPO);
+    }
+
+    /**
+     * Constructor de la clase BandejaDAO sobre un directorio concreto.
+     * Los archivos se comprimen según la propiedad {@value CompresionArchivos#PROPIEDAD_COMPRESION}.
+     * @param directorio El directorio de las bandejas de entrada.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     */
+    public BandejaDAO(Path directorio, ModoDurabilidad durabilidad) {
+        this.directorio = directorio;
+        this.durabilidad = durabilidad;
+        this.comprimir = CompresionArchivos.compresionPorDefecto();
+    }
+
+    /**
+     * Obtiene la ruta del archivo de la bandeja de un usuario.
+     * @param usuario El nombre del usuario.
+     * @return La ruta de su bandeja de entrada.
+     */
+    private Path getArchivo(String usuario) {
+        return directorio.resolve(usuario + ".xml");
+    }
+
+    /**
+     * Carga la bandeja de entrada de un usuario.
+     * @param usuario El nombre del usuario.
+     * @return Un {@link Optional} con la bandeja, o vacío si el usuario todavía no tiene bandeja o no se puede leer.
+     */
+    @SuppressWarnings("try")
+    public Optional<BandejaEntrada> cargarBandeja(String usuario) {
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(getArchivo(usuario))) {
+            return leer(usuario);
+        }
+    }
+
+    /**
+     * Obtiene la bandeja de entrada de un usuario, reconstruyéndola a partir de sus conversaciones si no existe.
+     * En la reconstrucción se considera que todos los mensajes anteriores ya están leídos.
+     * Después se ponen al día las entradas que cuentan menos mensajes que su conversación.
+     * Sólo se consultan las conversaciones que existen, sin bloquear las demás; aun así hay que llamarlo fuera del
+     * hilo de la interfaz.
+     * @param usuario El nombre del usuario.
+     * @param contactos Los nombres de los posibles contactos del usuario.
+     * @param conversacionDAO El DAO del que se leen las conversaciones al reconstruir.
+     * @return La bandeja de entrada del usuario.
+     */
+    @SuppressWarnings("try")
+    public BandejaEntrada obtenerBandeja(String usuario, Collection<String> contactos, ConversacionDAO conversacionDAO) {
+        Optional<BandejaEntrada> existente = cargarBandeja(usuario);
+        if (existente.isPresent()) {
+            return ponerAlDia(existente.get(), contactos, conversacionDAO);
+        }
+
+        // Se leen las conversaciones sin el bloqueo de la bandeja, porque al guardar un mensaje se adquieren en
+        // el orden contrario (primero la conversación y después la bandeja)
+        BandejaEntrada reconstruida = new BandejaEntrada(usuario);
+        for (String contacto : contactos) {
+            if (!conversacionDAO.existeConversacion(usuario, contacto)) {
+                continue;
+            }
+            PaginaMensajes ultimo = conversacionDAO.buscarUltimosMensajes(usuario, contacto, 1);
+            if (!ultimo.estaVacia()) {
+                EntradaBandeja entrada = reconstruida.obtenerEntrada(contacto);
+                entrada.actualizarUltimoMensaje(ultimo.mensajes().get(0));
+                entrada.setTotal(ultimo.indiceInicio() + 1);
+            }
+        }
+
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(getArchivo(usuario))) {
+            Optional<BandejaEntrada> creadaMientras = leer(usuario);
+            if (creadaMientras.isPresent()) {
+                reconstruida = creadaMientras.get();
+            } else {
+                guardar(reconstruida);
+            }
+        } catch (IOException e) {
+            System.err.println("Error al guardar la bandeja de entrada de " + usuario + ": " + e.getMessage());
+            return reconstruida;
+        }
+        // Los mensajes guardados mientras se reconstruía no se registraron, porque la bandeja todavía no existía
+        return ponerAlDia(reconstruida, contactos, conversacionDAO);
+    }
+
+    /**
+     * Compara cada entrada de una bandeja con el número de mensajes de su conversación y registra los que falten.
+     * Sólo se cuentan los contactos que ya están en la bandeja o cuya conversación existe; las conversaciones que no
+     * se pueden contar sin leerlas se dejan como están.
+     * @param bandeja La bandeja leída.
+     * @param contactos Los nombres de los posibles contactos del usuario.
+     * @param conversacionDAO El DAO del que se leen las conversaciones.
+     * @return La bandeja al día (la misma si no faltaba nada).
+     */
+    private BandejaEntrada ponerAlDia(BandejaEntrada bandeja, Collection<String> contactos, ConversacionDAO conversacionDAO) {
+        String usuario = bandeja.getUsuario();
+        boolean cambiada = false;
+        for (String contacto : contactos) {
+            if (bandeja.buscarEntrada(contacto).isEmpty() && !conversacionDAO.existeConversacion(usuario, contacto)) {
+                continue;
+            }
+            OptionalInt total = conversacionDAO.contarMensajes(usuario, contacto);
+            int contados = bandeja.buscarEntrada(contacto).map(EntradaBandeja::getTotal).orElse(0);
+            if (total.isPresent() && total.getAsInt() > contados) {
+                registrarHasta(usuario, contacto, total.getAsInt(), List.of(), conversacionDAO);
+                cambiada = true;
+            }
+        }
+        return cambiada ? cargarBandeja(usuario).orElse(bandeja) : bandeja;
+    }
+
+    /**
+     * Marca como leídos todos los mensajes de la conversación de un usuario con un contacto.
+     * @param usuario El nombre del usuario que ha leído la conversación.
+     * @param contacto El nombre del contacto.
+     */
+    @SuppressWarnings("try")
+    public void marcarLeida(String usuario, String contacto) {
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(getArchivo(usuario))) {
+            Optional<BandejaEntrada> bandeja = leer(usuario);
+            if (bandeja.isEmpty()) {
+                return;
+            }
+            Optional<EntradaBandeja> entrada = bandeja.get().buscarEntrada(contacto);
+            if (entrada.isPresent() && entrada.get().getNoLeidos() > 0) {
+                entrada.get().setNoLeidos(0);
+                guardar(bandeja.get());
+            }
+        } catch (IOException e) {
+            System.err.println("Error al actualizar la bandeja de entrada de " + usuario + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registra en las bandejas de los dos participantes los mensajes recién guardados en su conversación.
+     * Los mensajes cuentan como no leídos para su destinatario. Se llama sin el bloqueo de la conversación.
+     * @param usuario1 El nombre de uno de los participantes.
+     * @param usuario2 El nombre del otro participante.
+     * @param mensajes Los mensajes guardados, en orden cronológico.
+     * @param total El número de mensajes de la conversación tras guardarlos (los guardados son los últimos), o vacío
+     *              si no se sabe.
+     * @param conversacionDAO El DAO del que se leen los mensajes anteriores que la bandeja no haya contado.
+     */
+    void registrarMensajes(String usuario1, String usuario2, List<Mensaje> mensajes, OptionalInt total,
+                           ConversacionDAO conversacionDAO) {
+        if (mensajes.isEmpty()) {
+            return;
+        }
+        registrarMensajesEnBandeja(usuario1, usuario2, mensajes, total, conversacionDAO);
+        if (!usuario1.equals(usuario2)) {
+            registrarMensajesEnBandeja(usuario2, usuario1, mensajes, total, conversacionDAO);
+        }
+    }
+
+    /**
+     * Registra los mensajes en la bandeja de un usuario, si existe.
+     * @param usuario El propietario de la bandeja.
+     * @param contacto El otro participante de la conversación.
+     * @param mensajes Los mensajes guardados.
+     * @param total El número de mensajes de la conversación tras guardarlos, o vacío si no se sabe.
+     * @param conversacionDAO El DAO del que se leen los mensajes anteriores que la bandeja no haya contado.
+     */
+    @SuppressWarnings("try")
+    private void registrarMensajesEnBandeja(String usuario, String contacto, List<Mensaje> mensajes, OptionalInt total,
+                                            ConversacionDAO conversacionDAO) {
+        if (total.isPresent()) {
+            registrarHasta(usuario, contacto, total.getAsInt(), mensajes, conversacionDAO);
+            return;
+        }
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(getArchivo(usuario))) {
+            Optional<BandejaEntrada> bandeja = leer(usuario);
+            if (bandeja.isEmpty()) {
+                return;
+            }
+            registrar(usuario, bandeja.get().obtenerEntrada(contacto), mensajes);
+            guardar(bandeja.get());
+        } catch (IOException e) {
+            System.err.println("Error al actualizar la bandeja de entrada de " + usuario + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pone al día la entrada de un contacto para que cuente los {@code total} primeros mensajes de la conversación.
+     * De los mensajes recibidos sólo se registran los que la entrada no contaba todavía; si faltan otros anteriores
+     * a ellos, se leen de la conversación sin el bloqueo de la bandeja (al guardar un mensaje se adquieren en el
+     * orden contrario) y se vuelve a intentar. Si no existe la bandeja, no se hace nada.
+     * @param usuario El propietario de la bandeja.
+     * @param contacto El otro participante de la conversación.
+     * @param total El número de mensajes de la conversación que debe contar la entrada.
+     * @param ultimos Los últimos mensajes hasta {@code total}, ya conocidos (puede estar vacía).
+     * @param conversacionDAO El DAO del que se leen los mensajes que falten.
+     */
+    @SuppressWarnings("try")
+    private void registrarHasta(String usuario, String contacto, int total, List<Mensaje> ultimos,
+                                ConversacionDAO conversacionDAO) {
+        List<Mensaje> conocidos = ultimos;
+        for (int intento = 0; intento < 2; intento++) {
+            int primeroConocido = total - conocidos.size();
+            int contados;
+            try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(getArchivo(usuario))) {
+                Optional<BandejaEntrada> bandeja = leer(usuario);
+                if (bandeja.isEmpty()) {
+                    return;
+                }
+                contados = bandeja.get().buscarEntrada(contacto).map(EntradaBandeja::getTotal).orElse(0);
+                if (contados >= total) {
+                    return; // Ya estaban contados (por ejemplo, por una reconstrucción posterior a la escritura)
+                }
+                // En el segundo intento se registra lo que se tenga aunque siga faltando algo
+                if (contados >= primeroConocido || intento == 1) {
+                    EntradaBandeja entrada = bandeja.get().obtenerEntrada(contacto);
+                    registrar(usuario, entrada, conocidos.subList(Math.max(0, contados - primeroConocido), conocidos.size()));
+                    entrada.setTotal(total);
+                    guardar(bandeja.get());
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Error al actualizar la bandeja de entrada de " + usuario + ": " + e.getMessage());
+                return;
+            }
+            PaginaMensajes anteriores = conversacionDAO.buscarMensajesPosteriores(usuario, contacto, contados,
+                    primeroConocido - contados);
+            List<Mensaje> ampliados = new ArrayList<>(anteriores.mensajes());
+            ampliados.addAll(conocidos);
+            conocidos = ampliados;
+        }
+    }
+
+    /**
+     * Cuenta unos mensajes en la entrada de un contacto.
+     * @param usuario El propietario de la bandeja.
+     * @param entrada La entrada del contacto.
+     * @param mensajes Los mensajes a contar, en orden cronológico.
+     */
+    private static void registrar(String usuario, EntradaBandeja entrada, List<Mensaje> mensajes) {
+        for (Mensaje mensaje : mensajes) {
+            entrada.registrarMensaje(mensaje,
+                    usuario.equals(mensaje.getDestinatario()) && !usuario.equals(mensaje.getRemitente()));
+        }
+    }
+
+    /**
+     * Lee la bandeja de un usuario. Debe llamarse con el bloqueo de la bandeja adquirido.
+     * @param usuario El nombre del usuario.
+     * @return La bandeja, o {@link Optional#empty()} si no existe o no se puede leer.
+     */
+    private Optional<BandejaEntrada> leer(String usuario) {
+        Path archivo = getArchivo(usuario);
+        if (!Files.exists(archivo)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.ofNullable(XmlManager.readXML(new BandejaEntrada(usuario), archivo.toString()));
+        } catch (RuntimeException e) {
+            // Una bandeja dañada se trata como inexistente y se vuelve a reconstruir
+            System.err.println("Error al leer la bandeja de entrada de " + usuario + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Guarda la bandeja de un usuario. Debe llamarse con el bloqueo de la bandeja adquirido.
+     * @param bandeja La bandeja a guardar.
+     * @throws IOException Si no se puede escribir el archivo.
+     */
+    private void guardar(BandejaEntrada bandeja) throws IOException {
+        Path archivo = getArchivo(bandeja.getUsuario());
+        Files.createDirectories(directorio);
+        try {
+            XmlManager.writeXML(bandeja, archivo.toString(), durabilidad, comprimir);
+        } catch (RuntimeException e) {
+            throw new IOException("No se pudo guardar " + archivo, e.getCause() != null ? e.getCause() : e);
+        }
+    }
+}
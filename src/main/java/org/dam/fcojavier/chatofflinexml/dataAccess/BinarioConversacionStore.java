@@ -0,0 +1,904 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Adjunto;
+import org.dam.fcojavier.chatofflinexml.model.Conversacion;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+import org.dam.fcojavier.chatofflinexml.utils.GestorDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Almacenamiento de conversaciones en un formato binario compacto ({@code Usuario1_Usuario2.bin}).
+ * <p>
+ * El archivo empieza con la cabecera {@code "CHB"} y la versión del formato, seguida de registros con la forma
+ * {@code [longitud][tipo][datos][longitud]}: la longitud se repite al final para poder comprobar en tiempo constante
+ * si el último registro quedó a medio escribir. Los tipos de registro son:
+ * <ul>
+ *     <li>{@code 'P'} participante: su identificador (un byte) y su nombre. Los dos primeros registros del archivo
+ *     son siempre los participantes 0 y 1 de la conversación.</li>
+ *     <li>{@code 'M'} mensaje: identificadores del remitente y del destinatario, fecha como milisegundos desde la
+ *     época (UTC), contenido y adjunto opcionales.</li>
+ * </ul>
+ * Los textos se guardan en UTF-8 precedidos de su longitud (entero variable). Los mensajes nuevos se añaden siempre
+ * al final, de modo que no hace falta diario ni compactación.
+ * <p>
+ * Junto a cada archivo se mantiene un índice ({@code Usuario1_Usuario2.bin.idx}, ver {@link IndiceMensajes}) con la
+ * posición y la fecha de cada mensaje, que se actualiza en cada escritura y permite contar los mensajes, empezar a
+ * leer en cualquier posición o saltar a una fecha sin recorrer los mensajes anteriores.
+ * <p>
+ * Los archivos grandes se leen proyectándolos en memoria y decodificando cada mensaje cuando se pide, directamente
+ * desde la caché de páginas del sistema operativo (ver {@link LectorMapeado}).
+ */
+public class BinarioConversacionStore implements ConversacionStore {
+    /**
+     * Extensión de los archivos de conversación en formato binario.
+     */
+    public static final String EXTENSION = ".bin";
+    /**
+     * Cabecera del archivo: "CHB" y la versión del formato.
+     */
+    private static final byte[] CABECERA = {'C', 'H', 'B', 1};
+    private static final byte TIPO_PARTICIPANTE = 'P';
+    private static final byte TIPO_MENSAJE = 'M';
+    /**
+     * Identificador que indica que el nombre del usuario va escrito a continuación (no es un participante).
+     */
+    private static final int ID_EN_LINEA = 0xFF;
+    private static final byte CON_CONTENIDO = 1;
+    private static final byte CON_ADJUNTO = 2;
+    private static final long SIN_FECHA = Long.MIN_VALUE;
+    /**
+     * Longitud máxima de un registro; una longitud mayor indica que el archivo está dañado.
+     */
+    private static final int LONGITUD_MAXIMA_REGISTRO = 16 * 1024 * 1024;
+    /**
+     * Bytes que se leen del principio del archivo para obtener los participantes.
+     */
+    private static final int TAMANO_LECTURA_CABECERA = 4096;
+    /**
+     * Tamaño a partir del cual los archivos se leen proyectándolos en memoria en lugar de en streaming.
+     */
+    private static final long UMBRAL_PROYECCION = 1024 * 1024;
+    /**
+     * Entero de 4 bytes en orden big-endian (el de {@link DataOutputStream}), sin exigir alineación.
+     */
+    private static final ValueLayout.OfInt ENTERO = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final Path directorio;
+    private final ModoDurabilidad durabilidad;
+
+    /**
+     * Constructor de la clase BinarioConversacionStore sobre el directorio de conversaciones de la aplicación.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     */
+    public BinarioConversacionStore(ModoDurabilidad durabilidad) {
+        this(Paths.get(XmlConversacionStore.CONVERSACIONES_DIR), durabilidad);
+    }
+
+    /**
+     * Constructor de la clase BinarioConversacionStore sobre un directorio concreto.
+     * @param directorio El directorio de los archivos de conversación.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     */
+    public BinarioConversacionStore(Path directorio, ModoDurabilidad durabilidad) {
+        this.directorio = directorio;
+        this.durabilidad = durabilidad;
+    }
+
+    private Path getConversationPath(String clave) {
+        return directorio.resolve(clave + EXTENSION);
+    }
+
+    @Override
+    public List<Path> getArchivos(String clave) {
+        Path archivo = getConversationPath(clave);
+        return List.of(archivo, IndiceMensajes.getRuta(archivo));
+    }
+
+    @Override
+    public boolean existe(String clave) {
+        return Files.exists(getConversationPath(clave));
+    }
+
+    @Override
+    public Optional<Conversacion> leer(String clave) throws IOException {
+        if (!existe(clave)) {
+            return Optional.empty();
+        }
+        try (LectorRegistros lector = abrirLector(getConversationPath(clave), 0)) {
+            List<Mensaje> mensajes = new ArrayList<>();
+            lector.forEachRemaining(mensajes::add);
+            Conversacion conversacion = new Conversacion(lector.participantes[0], lector.participantes[1]);
+            conversacion.setMensajes(mensajes);
+            return Optional.of(conversacion);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Stream<Mensaje> streamMensajes(String clave) throws IOException {
+        if (!existe(clave)) {
+            return Stream.empty();
+        }
+        LectorRegistros lector = abrirLector(getConversationPath(clave), 0);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lector, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(lector::close);
+    }
+
+    /**
+     * Cuenta los mensajes de la conversación con su índice.
+     * @param clave La clave de la conversación.
+     * @return El número de mensajes (0 si la conversación no existe).
+     * @throws IOException si no se puede leer el índice ni reconstruirlo.
+     */
+    @Override
+    public OptionalInt contarMensajes(String clave) throws IOException {
+        if (!existe(clave)) {
+            return OptionalInt.of(0);
+        }
+        try (IndiceMensajes indice = abrirIndice(getConversationPath(clave))) {
+            return OptionalInt.of(indice.contar());
+        }
+    }
+
+    /**
+     * Abre un stream a partir de una posición: el índice indica dónde empieza el registro de ese mensaje y la lectura
+     * empieza directamente ahí, sin leer los anteriores.
+     * @param clave La clave de la conversación.
+     * @param desde La posición del primer mensaje a devolver.
+     * @return Los mensajes desde esa posición, en orden cronológico.
+     * @throws IOException si no se puede abrir el archivo o su índice.
+     */
+    @Override
+    public Stream<Mensaje> streamMensajesDesde(String clave, int desde) throws IOException {
+        if (desde <= 0 || !existe(clave)) {
+            return streamMensajes(clave);
+        }
+        Path archivo = getConversationPath(clave);
+        long posicion;
+        try (IndiceMensajes indice = abrirIndice(archivo)) {
+            if (desde >= indice.contar()) {
+                return Stream.empty();
+            }
+            posicion = indice.getPosicion(desde);
+        }
+        LectorRegistros lector = abrirLector(archivo, posicion);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lector, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(lector::close);
+    }
+
+    /**
+     * Busca en el índice, mediante búsqueda binaria por fecha, el primer mensaje de una fecha o posterior.
+     * @param clave La clave de la conversación.
+     * @param fecha La fecha buscada.
+     * @return La posición de ese mensaje (el número de mensajes si no hay ninguno).
+     * @throws IOException si no se puede leer el índice ni reconstruirlo.
+     */
+    @Override
+    public OptionalInt buscarPosicionFecha(String clave, LocalDateTime fecha) throws IOException {
+        if (!existe(clave)) {
+            return OptionalInt.of(0);
+        }
+        try (IndiceMensajes indice = abrirIndice(getConversationPath(clave))) {
+            return OptionalInt.of(indice.buscarFecha(aEpoch(fecha)));
+        }
+    }
+
+    /**
+     * Añade los mensajes al final del archivo. Si la conversación no existe, se crea antes con sus participantes;
+     * si el último registro quedó a medio escribir, se descarta. Después se añaden al índice sus posiciones.
+     * @param clave La clave de la conversación.
+     * @param usuario1 El nombre de uno de los participantes.
+     * @param usuario2 El nombre del otro participante.
+     * @param mensajes Los mensajes a añadir.
+     * @throws IOException si no se puede escribir el archivo.
+     */
+    @Override
+    public void anadirMensajes(String clave, String usuario1, String usuario2, List<Mensaje> mensajes) throws IOException {
+        Path archivo = getConversationPath(clave);
+        if (!existe(clave)) {
+            guardar(clave, new Conversacion(usuario1, usuario2));
+        }
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            String[] participantes = leerParticipantes(canal);
+            descartarFinalIncompleto(canal);
+            long inicio = canal.size();
+            canal.position(inicio);
+            OutputStream salida = new BufferedOutputStream(Channels.newOutputStream(canal));
+            EscritorRegistros escritor = new EscritorRegistros(salida, inicio);
+            IndiceMensajes.Entradas entradas = new IndiceMensajes.Entradas();
+            for (Mensaje mensaje : mensajes) {
+                entradas.anadir(escritor.escribirMensaje(mensaje, participantes), aEpoch(mensaje.getFechaHora()));
+            }
+            salida.flush();
+            GestorDurabilidad.despuesDeEscribir(canal, archivo, durabilidad);
+            try {
+                IndiceMensajes.anadir(archivo, inicio, entradas, escritor.posicion, indexador(archivo));
+            } catch (IOException e) {
+                System.err.println("Aviso: no se pudo actualizar el índice de " + archivo + ", se reconstruirá: " + e.getMessage());
+                IndiceMensajes.eliminar(archivo);
+            }
+        }
+    }
+
+    /**
+     * Escribe la conversación completa en un archivo temporal y lo sustituye de forma atómica.
+     * El índice anterior se elimina antes de sustituir el archivo y se escribe uno nuevo después.
+     * @param clave La clave de la conversación.
+     * @param conversacion La conversación a guardar.
+     * @throws IOException si no se puede escribir el archivo.
+     */
+    @Override
+    public void guardar(String clave, Conversacion conversacion) throws IOException {
+        Path destino = getConversationPath(clave);
+        Path temporal = GestorDurabilidad.crearTemporal(destino);
+        IndiceMensajes.Entradas entradas = new IndiceMensajes.Entradas();
+        long fin;
+        try {
+            try (OutputStream salida = new BufferedOutputStream(Files.newOutputStream(temporal))) {
+                String[] participantes = {conversacion.getUsuario1(), conversacion.getUsuario2()};
+                salida.write(CABECERA);
+                EscritorRegistros escritor = new EscritorRegistros(salida, CABECERA.length);
+                escritor.escribirParticipante(0, participantes[0]);
+                escritor.escribirParticipante(1, participantes[1]);
+                for (Mensaje mensaje : conversacion.getMensajes()) {
+                    entradas.anadir(escritor.escribirMensaje(mensaje, participantes), aEpoch(mensaje.getFechaHora()));
+                }
+                fin = escritor.posicion;
+            }
+            // Un índice del archivo anterior nunca debe quedar junto al archivo nuevo
+            IndiceMensajes.eliminar(destino);
+            GestorDurabilidad.reemplazar(temporal, destino, durabilidad);
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+        try {
+            IndiceMensajes.escribir(destino, entradas, fin);
+        } catch (IOException e) {
+            System.err.println("Aviso: no se pudo escribir el índice de " + destino + ", se reconstruirá: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abre el índice de un archivo de conversación, reconstruyéndolo si hace falta.
+     * @param archivo El archivo de conversación.
+     * @return El índice abierto.
+     * @throws IOException si no se puede leer el archivo.
+     */
+    private static IndiceMensajes abrirIndice(Path archivo) throws IOException {
+        return IndiceMensajes.abrir(archivo, indexador(archivo));
+    }
+
+    private static IndiceMensajes.Indexador indexador(Path archivo) {
+        return (desde, hasta, destino) -> indexarRegistros(archivo, desde, hasta, destino);
+    }
+
+    /**
+     * Recorre los registros de un archivo entre dos posiciones, anotando la posición y la fecha de cada mensaje
+     * sin llegar a construirlo. Se detiene en el primer registro incompleto.
+     * @param archivo El archivo de conversación.
+     * @param desde La posición donde empieza un registro, o 0 para empezar por el principio.
+     * @param hasta La posición donde se deja de recorrer.
+     * @param destino Donde se anotan los mensajes.
+     * @return La posición del final del último registro completo.
+     * @throws IOException si no se puede leer el archivo o no tiene un formato válido.
+     */
+    private static long indexarRegistros(Path archivo, long desde, long hasta, IndiceMensajes.Entradas destino) throws IOException {
+        long posicion = Math.max(desde, CABECERA.length);
+        try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(archivo), 64 * 1024))) {
+            byte[] cabecera = new byte[CABECERA.length];
+            entrada.readFully(cabecera);
+            if (!Arrays.equals(cabecera, CABECERA)) {
+                throw new IOException("El archivo no es una conversación en formato binario");
+            }
+            entrada.skipNBytes(posicion - CABECERA.length);
+            byte[] datos = new byte[256];
+            while (posicion < hasta) {
+                int longitud = entrada.readInt();
+                if (longitud <= 0 || longitud > LONGITUD_MAXIMA_REGISTRO) {
+                    break;
+                }
+                if (datos.length < longitud) {
+                    datos = new byte[Math.max(longitud, datos.length * 2)];
+                }
+                entrada.readFully(datos, 0, longitud);
+                if (entrada.readInt() != longitud) {
+                    break;
+                }
+                if (datos[0] == TIPO_MENSAJE) {
+                    destino.anadir(posicion, leerFechaRegistro(datos));
+                }
+                posicion += 8L + longitud;
+            }
+        } catch (EOFException e) {
+            // Fin de los datos (o último registro incompleto)
+        }
+        return posicion;
+    }
+
+    /**
+     * Obtiene la fecha de un registro de mensaje saltándose el remitente y el destinatario.
+     * @param datos Los datos del registro, empezando por su tipo.
+     * @return La fecha en milisegundos desde la época (UTC).
+     */
+    private static long leerFechaRegistro(byte[] datos) {
+        int posicion = 1;
+        for (int usuario = 0; usuario < 2; usuario++) {
+            if ((datos[posicion++] & 0xFF) == ID_EN_LINEA) {
+                int longitud = 0;
+                int desplazamiento = 0;
+                byte b;
+                do {
+                    b = datos[posicion++];
+                    longitud |= (b & 0x7F) << desplazamiento;
+                    desplazamiento += 7;
+                } while ((b & 0x80) != 0);
+                posicion += longitud;
+            }
+        }
+        return ByteBuffer.wrap(datos, posicion, 8).getLong();
+    }
+
+    /**
+     * Lee los registros de participantes del principio del archivo.
+     * @param canal El canal del archivo de conversación.
+     * @return Los nombres de los participantes 0 y 1.
+     * @throws IOException si el archivo no tiene un formato válido.
+     */
+    private static String[] leerParticipantes(FileChannel canal) throws IOException {
+        ByteBuffer inicio = ByteBuffer.allocate((int) Math.min(canal.size(), TAMANO_LECTURA_CABECERA));
+        while (inicio.hasRemaining() && canal.read(inicio, inicio.position()) >= 0) {
+            // Lectura posicional: no mueve la posición del canal
+        }
+        try (LectorBinario lector = new LectorBinario(new ByteArrayInputStream(inicio.array(), 0, inicio.position()), 2)) {
+            lector.hasNext();
+            if (lector.participantes[0] == null || lector.participantes[1] == null) {
+                throw new IOException("El archivo de conversación no contiene sus participantes");
+            }
+            return lector.participantes;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Abre un lector de los registros de un archivo a partir de una posición. Los archivos de al menos
+     * {@value #UMBRAL_PROYECCION} bytes que terminan en un registro completo se proyectan en memoria
+     * ({@link LectorMapeado}); el resto se leen en streaming ({@link LectorBinario}). En ambos casos sólo se lee hasta
+     * el tamaño que tenía el archivo al abrirlo, de modo que los registros que se estén añadiendo mientras tanto no
+     * se ven (ni a medio escribir).
+     * @param archivo El archivo de conversación.
+     * @param desde La posición donde empieza el primer registro a leer, o 0 para leer desde el principio.
+     * @return El lector, que debe cerrarse al terminar.
+     * @throws IOException si no se puede abrir el archivo o no tiene un formato válido.
+     */
+    private static LectorRegistros abrirLector(Path archivo, long desde) throws IOException {
+        FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ);
+        try {
+            long tamano = canal.size();
+            if (tamano >= UMBRAL_PROYECCION && terminaEnRegistroCompleto(canal, tamano)) {
+                try (canal) {
+                    return new LectorMapeado(canal, leerParticipantes(canal), Math.max(desde, CABECERA.length), tamano);
+                }
+            }
+            if (desde <= 0) {
+                return new LectorBinario(new EntradaLimitada(Channels.newInputStream(canal), tamano));
+            }
+            String[] participantes = leerParticipantes(canal);
+            canal.position(desde);
+            return new LectorBinario(new EntradaLimitada(Channels.newInputStream(canal), tamano - desde), participantes);
+        } catch (IOException | RuntimeException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Comprueba en tiempo constante, con la longitud repetida al final del último registro, si el archivo termina
+     * en un registro completo.
+     * @param canal El canal del archivo de conversación.
+     * @param tamano El tamaño del archivo.
+     * @return {@code true} si el último registro está completo (o el archivo sólo tiene la cabecera).
+     * @throws IOException si no se puede leer el archivo.
+     */
+    private static boolean terminaEnRegistroCompleto(FileChannel canal, long tamano) throws IOException {
+        if (tamano >= CABECERA.length + 8) {
+            int longitud = leerEntero(canal, tamano - 4);
+            long inicio = tamano - 8 - longitud;
+            return longitud > 0 && inicio >= CABECERA.length && leerEntero(canal, inicio) == longitud;
+        }
+        return tamano == CABECERA.length;
+    }
+
+    /**
+     * Comprueba que el archivo termina en un registro completo usando la longitud repetida al final de cada registro.
+     * Si no es así (por un cierre inesperado durante la escritura), recorre el archivo y lo recorta hasta el último
+     * registro completo.
+     * @param canal El canal del archivo de conversación.
+     * @throws IOException si no se puede acceder al archivo.
+     */
+    private static void descartarFinalIncompleto(FileChannel canal) throws IOException {
+        long tamano = canal.size();
+        if (terminaEnRegistroCompleto(canal, tamano)) {
+            return;
+        }
+
+        long finValido = CABECERA.length;
+        long posicion = CABECERA.length;
+        while (posicion + 8 <= tamano) {
+            int longitud = leerEntero(canal, posicion);
+            long fin = posicion + 8L + longitud;
+            if (longitud <= 0 || longitud > LONGITUD_MAXIMA_REGISTRO || fin > tamano
+                    || leerEntero(canal, fin - 4) != longitud) {
+                break;
+            }
+            finValido = fin;
+            posicion = fin;
+        }
+        System.err.println("Aviso: la conversación terminaba con un registro incompleto, se descarta");
+        canal.truncate(finValido);
+    }
+
+    private static int leerEntero(FileChannel canal, long posicion) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        while (buffer.hasRemaining()) {
+            if (canal.read(buffer, posicion + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.getInt(0);
+    }
+
+    private static long aEpoch(LocalDateTime fecha) {
+        return fecha == null ? SIN_FECHA : fecha.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime deEpoch(long milis) {
+        if (milis == SIN_FECHA) {
+            return null;
+        }
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(milis, 1000), Math.floorMod(milis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    /**
+     * Escribe registros con el formato {@code [longitud][tipo][datos][longitud]}.
+     * Cada registro se prepara en un buffer reutilizable para conocer su longitud antes de escribirlo.
+     */
+    private static final class EscritorRegistros {
+        private final DataOutputStream salida;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        private final DataOutputStream registro = new DataOutputStream(buffer);
+        /**
+         * Posición en el archivo donde empezará el siguiente registro.
+         */
+        private long posicion;
+
+        private EscritorRegistros(OutputStream salida, long posicion) {
+            this.salida = new DataOutputStream(salida);
+            this.posicion = posicion;
+        }
+
+        private void escribirParticipante(int id, String nombre) throws IOException {
+            buffer.reset();
+            registro.writeByte(TIPO_PARTICIPANTE);
+            registro.writeByte(id);
+            escribirCadena(nombre);
+            volcar();
+        }
+
+        /**
+         * @return La posición en el archivo donde empieza el registro del mensaje.
+         */
+        private long escribirMensaje(Mensaje mensaje, String[] participantes) throws IOException {
+            long inicio = posicion;
+            buffer.reset();
+            registro.writeByte(TIPO_MENSAJE);
+            escribirUsuario(mensaje.getRemitente(), participantes);
+            escribirUsuario(mensaje.getDestinatario(), participantes);
+            registro.writeLong(aEpoch(mensaje.getFechaHora()));
+            Adjunto adjunto = mensaje.getAdjunto();
+            registro.writeByte((mensaje.getContenido() != null ? CON_CONTENIDO : 0) | (adjunto != null ? CON_ADJUNTO : 0));
+            if (mensaje.getContenido() != null) {
+                escribirCadena(mensaje.getContenido());
+            }
+            if (adjunto != null) {
+                escribirCadena(adjunto.getNombre());
+                escribirCadena(adjunto.getTipo());
+                escribirCadena(adjunto.getRuta());
+                registro.writeLong(adjunto.getTamano());
+            }
+            volcar();
+            return inicio;
+        }
+
+        private void escribirUsuario(String nombre, String[] participantes) throws IOException {
+            for (int id = 0; id < participantes.length; id++) {
+                if (participantes[id].equals(nombre)) {
+                    registro.writeByte(id);
+                    return;
+                }
+            }
+            registro.writeByte(ID_EN_LINEA);
+            escribirCadena(nombre);
+        }
+
+        private void escribirCadena(String texto) throws IOException {
+            byte[] bytes = (texto == null ? "" : texto).getBytes(StandardCharsets.UTF_8);
+            int longitud = bytes.length;
+            // Entero variable: 7 bits por byte, el bit alto indica que siguen más bytes
+            while ((longitud & ~0x7F) != 0) {
+                registro.writeByte((longitud & 0x7F) | 0x80);
+                longitud >>>= 7;
+            }
+            registro.writeByte(longitud);
+            registro.write(bytes);
+        }
+
+        private void volcar() throws IOException {
+            salida.writeInt(buffer.size());
+            buffer.writeTo(salida);
+            salida.writeInt(buffer.size());
+            posicion += 8L + buffer.size();
+        }
+    }
+
+    /**
+     * Lector de los mensajes de un archivo binario, registro a registro.
+     * Los registros de participantes se procesan por el camino. Las subclases sólo se ocupan de obtener los datos
+     * de cada registro: leyéndolos de un flujo ({@link LectorBinario}) o de una proyección en memoria del archivo
+     * ({@link LectorMapeado}).
+     */
+    private abstract static class LectorRegistros implements Iterator<Mensaje>, AutoCloseable {
+        final String[] participantes = new String[2];
+        private final int maximoRegistros;
+        private byte[] texto = new byte[256];
+        private int leidos;
+        private boolean terminado;
+        private Mensaje siguiente;
+
+        LectorRegistros(int maximoRegistros) {
+            this.maximoRegistros = maximoRegistros;
+        }
+
+        /**
+         * Obtiene los datos del siguiente registro, empezando por su tipo.
+         * @return Los datos del registro, o {@code null} si no quedan registros completos.
+         * @throws IOException si no se puede leer el archivo.
+         */
+        abstract ByteBuffer siguienteRegistro() throws IOException;
+
+        /**
+         * Libera el archivo (o su proyección en memoria).
+         */
+        @Override
+        public abstract void close();
+
+        @Override
+        public boolean hasNext() {
+            if (siguiente == null) {
+                siguiente = leerSiguiente();
+            }
+            return siguiente != null;
+        }
+
+        @Override
+        public Mensaje next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Mensaje mensaje = siguiente;
+            siguiente = null;
+            return mensaje;
+        }
+
+        private Mensaje leerSiguiente() {
+            try {
+                while (!terminado && leidos < maximoRegistros) {
+                    ByteBuffer registro = siguienteRegistro();
+                    if (registro == null) {
+                        break;
+                    }
+                    leidos++;
+                    byte tipo = registro.get();
+                    if (tipo == TIPO_MENSAJE) {
+                        return leerMensaje(registro);
+                    } else if (tipo == TIPO_PARTICIPANTE) {
+                        int id = registro.get() & 0xFF;
+                        String nombre = leerCadena(registro);
+                        if (id < participantes.length) {
+                            participantes[id] = nombre;
+                        }
+                    }
+                    // Los tipos de registro desconocidos se ignoran (versiones futuras del formato)
+                }
+                terminado = true;
+                return null;
+            } catch (IOException e) {
+                terminado = true;
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Avisa de que el archivo termina con un registro incompleto, que se trata como el final de los datos.
+         * @return {@code null}, para devolverlo como siguiente registro.
+         */
+        ByteBuffer finalIncompleto() {
+            System.err.println("Aviso: la conversación termina con un registro incompleto, se ignora");
+            return null;
+        }
+
+        private Mensaje leerMensaje(ByteBuffer registro) {
+            Mensaje mensaje = new Mensaje();
+            mensaje.setRemitente(leerUsuario(registro));
+            mensaje.setDestinatario(leerUsuario(registro));
+            mensaje.setFechaHora(deEpoch(registro.getLong()));
+            byte banderas = registro.get();
+            if ((banderas & CON_CONTENIDO) != 0) {
+                mensaje.setContenido(leerCadena(registro));
+            }
+            if ((banderas & CON_ADJUNTO) != 0) {
+                String nombre = leerCadena(registro);
+                String tipo = leerCadena(registro);
+                String ruta = leerCadena(registro);
+                mensaje.setAdjunto(new Adjunto(nombre, tipo, ruta, registro.getLong()));
+            }
+            return mensaje;
+        }
+
+        private String leerUsuario(ByteBuffer registro) {
+            int id = registro.get() & 0xFF;
+            return id == ID_EN_LINEA ? leerCadena(registro) : participantes[id];
+        }
+
+        private String leerCadena(ByteBuffer registro) {
+            int longitud = 0;
+            int desplazamiento = 0;
+            byte b;
+            do {
+                b = registro.get();
+                longitud |= (b & 0x7F) << desplazamiento;
+                desplazamiento += 7;
+            } while ((b & 0x80) != 0);
+            if (registro.hasArray()) {
+                int inicio = registro.arrayOffset() + registro.position();
+                registro.position(registro.position() + longitud);
+                return new String(registro.array(), inicio, longitud, StandardCharsets.UTF_8);
+            }
+            if (texto.length < longitud) {
+                texto = new byte[Math.max(longitud, texto.length * 2)];
+            }
+            registro.get(texto, 0, longitud);
+            return new String(texto, 0, longitud, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Lector en streaming de un archivo binario: cada registro se lee del flujo a un buffer reutilizable.
+     * Si el archivo termina con un registro incompleto, se trata como el final de los datos.
+     */
+    private static final class LectorBinario extends LectorRegistros {
+        private final DataInputStream entrada;
+        private byte[] datos = new byte[256];
+
+        private LectorBinario(InputStream entrada) throws IOException {
+            this(entrada, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Crea un lector que empieza en un registro cualquiera del archivo, sin cabecera.
+         * @param entrada El flujo del archivo, situado al principio de un registro; el lector lo cierra en {@link #close()}.
+         * @param participantes Los participantes de la conversación, leídos antes del principio del archivo.
+         */
+        private LectorBinario(InputStream entrada, String[] participantes) {
+            super(Integer.MAX_VALUE);
+            this.entrada = new DataInputStream(new BufferedInputStream(entrada, 64 * 1024));
+            this.participantes[0] = participantes[0];
+            this.participantes[1] = participantes[1];
+        }
+
+        /**
+         * @param entrada El flujo del archivo; el lector lo cierra en {@link #close()}.
+         * @param maximoRegistros Número máximo de registros a leer (para leer sólo la cabecera).
+         * @throws IOException si el archivo no empieza con la cabecera esperada.
+         */
+        private LectorBinario(InputStream entrada, int maximoRegistros) throws IOException {
+            super(maximoRegistros);
+            this.entrada = new DataInputStream(new BufferedInputStream(entrada, 64 * 1024));
+            byte[] cabecera = new byte[CABECERA.length];
+            try {
+                this.entrada.readFully(cabecera);
+            } catch (EOFException e) {
+                this.entrada.close();
+                throw new IOException("Archivo de conversación vacío o truncado", e);
+            }
+            if (!Arrays.equals(cabecera, CABECERA)) {
+                this.entrada.close();
+                throw new IOException("El archivo no es una conversación en formato binario");
+            }
+        }
+
+        @Override
+        ByteBuffer siguienteRegistro() throws IOException {
+            int longitud;
+            try {
+                longitud = entrada.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (longitud <= 0 || longitud > LONGITUD_MAXIMA_REGISTRO) {
+                return finalIncompleto();
+            }
+            if (datos.length < longitud) {
+                datos = new byte[Math.max(longitud, datos.length * 2)];
+            }
+            try {
+                entrada.readFully(datos, 0, longitud);
+                if (entrada.readInt() != longitud) {
+                    return finalIncompleto();
+                }
+            } catch (EOFException e) {
+                return finalIncompleto();
+            }
+            return ByteBuffer.wrap(datos, 0, longitud);
+        }
+
+        @Override
+        public void close() {
+            try {
+                entrada.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Flujo que deja de leer tras un número de bytes, para no leer lo que se añada al archivo después de abrirlo.
+     */
+    private static final class EntradaLimitada extends FilterInputStream {
+        private long restantes;
+
+        /**
+         * @param entrada El flujo del archivo; se cierra al cerrar éste.
+         * @param limite El número máximo de bytes a leer.
+         */
+        private EntradaLimitada(InputStream entrada, long limite) {
+            super(entrada);
+            this.restantes = Math.max(limite, 0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (restantes <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                restantes--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (restantes <= 0) {
+                return -1;
+            }
+            int leidos = super.read(b, off, (int) Math.min(len, restantes));
+            if (leidos > 0) {
+                restantes -= leidos;
+            }
+            return leidos;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long saltados = super.skip(Math.min(n, restantes));
+            restantes -= saltados;
+            return saltados;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), restantes);
+        }
+    }
+
+    /**
+     * Lector de un archivo binario proyectado en memoria ({@link FileChannel#map}): los registros se decodifican
+     * directamente desde las páginas del archivo, sin copiarlos antes a buffers del heap, y las lecturas repetidas
+     * se sirven desde la caché de páginas del sistema operativo.
+     * <p>
+     * Sólo se proyecta hasta el final del último registro completo. Así, recortar un registro final incompleto
+     * ({@link #descartarFinalIncompleto(FileChannel)}) nunca afecta a la zona proyectada, y los registros añadidos
+     * después de abrir el lector no se ven. La proyección se libera al cerrar el lector.
+     */
+    private static final class LectorMapeado extends LectorRegistros {
+        private final Arena arena;
+        private final MemorySegment archivo;
+        private long posicion;
+
+        /**
+         * @param canal El canal del archivo; se puede cerrar en cuanto se crea el lector.
+         * @param participantes Los participantes de la conversación.
+         * @param desde La posición del primer registro a leer.
+         * @param fin El final del último registro completo del archivo.
+         * @throws IOException si no se puede proyectar el archivo.
+         */
+        private LectorMapeado(FileChannel canal, String[] participantes, long desde, long fin) throws IOException {
+            super(Integer.MAX_VALUE);
+            this.arena = Arena.ofShared();
+            try {
+                this.archivo = canal.map(FileChannel.MapMode.READ_ONLY, 0, fin, arena);
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+            this.participantes[0] = participantes[0];
+            this.participantes[1] = participantes[1];
+            this.posicion = desde;
+        }
+
+        @Override
+        ByteBuffer siguienteRegistro() {
+            if (posicion + 8 > archivo.byteSize()) {
+                return null;
+            }
+            int longitud = archivo.get(ENTERO, posicion);
+            long fin = posicion + 8L + longitud;
+            if (longitud <= 0 || longitud > LONGITUD_MAXIMA_REGISTRO || fin > archivo.byteSize()
+                    || archivo.get(ENTERO, fin - 4) != longitud) {
+                return finalIncompleto();
+            }
+            ByteBuffer registro = archivo.asSlice(posicion + 4, longitud).asByteBuffer();
+            posicion = fin;
+            return registro;
+        }
+
+        @Override
+        public void close() {
+            if (arena.scope().isAlive()) {
+                arena.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Adjunto;
+import org.dam.fcojavier.chatofflinexml.model.Conversacion;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Caché LRU en memoria de conversaciones ya leídas del disco.
+ * Cada entrada guarda la "firma" (fecha de modificación y tamaño) de los archivos de los que se leyó; si al
+ * consultarla los archivos han cambiado (por ejemplo, porque otra instancia de la aplicación ha escrito en ellos),
+ * la entrada se descarta. La caché está acotada tanto por número de entradas como por memoria estimada,
+ * y expulsa primero las conversaciones usadas hace más tiempo.
+ * Es compartida por todas las instancias de {@link ConversacionDAO}.
+ */
+public class CacheConversaciones {
+    /**
+     * Número máximo de conversaciones en caché.
+     */
+    private static final int MAXIMO_ENTRADAS = 64;
+    /**
+     * Memoria máxima estimada (en bytes) que pueden ocupar las conversaciones en caché.
+     */
+    private static final long MAXIMO_BYTES = 64L * 1024 * 1024;
+    /**
+     * Coste fijo estimado de cada mensaje en memoria (objetos, fecha y referencias), sin contar los textos.
+     */
+    private static final int BYTES_POR_MENSAJE = 160;
+
+    private static final CacheConversaciones instance = new CacheConversaciones();
+
+    private final LinkedHashMap<String, Entrada> entradas = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytesOcupados;
+    private long aciertos;
+    private long fallos;
+    private long expulsiones;
+    private long invalidaciones;
+
+    /**
+     * Constructor privado, la caché se comparte en toda la aplicación.
+     */
+    private CacheConversaciones() {}
+
+    /**
+     * Obtiene la única instancia de la caché.
+     * @return La caché compartida.
+     */
+    public static CacheConversaciones getInstance() {
+        return instance;
+    }
+
+    /**
+     * Calcula la firma actual de los archivos de una conversación.
+     * @param archivos Los archivos de los que depende la conversación (XML, diario...).
+     * @return La firma de los archivos; un archivo inexistente cuenta como tamaño y fecha -1.
+     * @throws IOException si no se pueden leer los atributos de algún archivo.
+     */
+    static Firma firmar(Path... archivos) throws IOException {
+        long[] valores = new long[archivos.length * 2];
+        for (int i = 0; i < archivos.length; i++) {
+            try {
+                BasicFileAttributes atributos = Files.readAttributes(archivos[i], BasicFileAttributes.class);
+                valores[i * 2] = atributos.lastModifiedTime().toMillis();
+                valores[i * 2 + 1] = atributos.size();
+            } catch (NoSuchFileException e) {
+                valores[i * 2] = -1;
+                valores[i * 2 + 1] = -1;
+            }
+        }
+        return new Firma(valores);
+    }
+
+    /**
+     * Busca una conversación en la caché y comprueba que sigue siendo válida.
+     * @param clave La clave de la conversación (su ruta).
+     * @param firmaActual La firma actual de los archivos de la conversación.
+     * @return Los mensajes de la conversación (una copia de la lista), o vacío si no está o ha caducado.
+     */
+    synchronized Optional<Conversacion> obtener(String clave, Firma firmaActual) {
+        Entrada entrada = entradas.get(clave);
+        if (entrada == null) {
+            fallos++;
+            return Optional.empty();
+        }
+        if (!entrada.firma.equals(firmaActual)) {
+            eliminar(clave);
+            invalidaciones++;
+            fallos++;
+            return Optional.empty();
+        }
+        aciertos++;
+        return Optional.of(copiar(entrada.conversacion));
+    }
+
+    /**
+     * Guarda (o sustituye) una conversación en la caché, expulsando las menos usadas si se superan los límites.
+     * @param clave La clave de la conversación (su ruta).
+     * @param firma La firma de los archivos de los que se leyó.
+     * @param conversacion La conversación leída. Se guarda una copia.
+     */
+    synchronized void guardar(String clave, Firma firma, Conversacion conversacion) {
+        eliminar(clave);
+        Conversacion copia = copiar(conversacion);
+        Entrada entrada = new Entrada(copia, firma, estimarBytes(copia.getMensajes()));
+        entradas.put(clave, entrada);
+        bytesOcupados += entrada.bytes;
+        expulsarSobrantes();
+    }
+
+    /**
+     * Añade mensajes recién escritos a una conversación en caché, si está, y actualiza su firma.
+     * Así la conversación sigue en caché después de cada envío sin tener que volver a leerla del disco.
+     * @param clave La clave de la conversación (su ruta).
+     * @param firmaAnterior La firma que tenían los archivos antes de escribir.
+     * @param firmaNueva La firma de los archivos después de escribir.
+     * @param mensajes Los mensajes añadidos.
+     */
+    synchronized void anadirMensajes(String clave, Firma firmaAnterior, Firma firmaNueva, List<Mensaje> mensajes) {
+        Entrada entrada = entradas.get(clave);
+        if (entrada == null) {
+            return;
+        }
+        if (!entrada.firma.equals(firmaAnterior)) {
+            // Alguien más ha modificado los archivos: no se puede saber qué contiene ahora la conversación
+            eliminar(clave);
+            invalidaciones++;
+            return;
+        }
+        entrada.conversacion.getMensajes().addAll(mensajes);
+        long bytesAnadidos = estimarBytes(mensajes);
+        entrada.bytes += bytesAnadidos;
+        bytesOcupados += bytesAnadidos;
+        entrada.firma = firmaNueva;
+        expulsarSobrantes();
+    }
+
+    /**
+     * Actualiza la firma de una conversación en caché cuyo contenido no ha cambiado (por ejemplo, tras compactarla).
+     * @param clave La clave de la conversación (su ruta).
+     * @param firmaNueva La nueva firma de sus archivos.
+     */
+    synchronized void actualizarFirma(String clave, Firma firmaNueva) {
+        Entrada entrada = entradas.get(clave);
+        if (entrada != null) {
+            entrada.firma = firmaNueva;
+        }
+    }
+
+    /**
+     * Elimina una conversación de la caché.
+     * @param clave La clave de la conversación (su ruta).
+     */
+    synchronized void invalidar(String clave) {
+        if (eliminar(clave)) {
+            invalidaciones++;
+        }
+    }
+
+    /**
+     * Devuelve una instantánea de los contadores de la caché, útil para dimensionarla.
+     * @return Las estadísticas actuales de la caché.
+     */
+    public synchronized EstadisticasCache getEstadisticas() {
+        return new EstadisticasCache(entradas.size(), bytesOcupados, aciertos, fallos, expulsiones, invalidaciones);
+    }
+
+    private boolean eliminar(String clave) {
+        Entrada entrada = entradas.remove(clave);
+        if (entrada != null) {
+            bytesOcupados -= entrada.bytes;
+            return true;
+        }
+        return false;
+    }
+
+    private void expulsarSobrantes() {
+        Iterator<Map.Entry<String, Entrada>> iterador = entradas.entrySet().iterator();
+        while ((entradas.size() > MAXIMO_ENTRADAS || bytesOcupados > MAXIMO_BYTES) && iterador.hasNext()) {
+            Map.Entry<String, Entrada> masAntigua = iterador.next();
+            bytesOcupados -= masAntigua.getValue().bytes;
+            iterador.remove();
+            expulsiones++;
+        }
+    }
+
+    private static Conversacion copiar(Conversacion conversacion) {
+        Conversacion copia = new Conversacion(conversacion.getUsuario1(), conversacion.getUsuario2());
+        copia.setMensajes(new ArrayList<>(conversacion.getMensajes()));
+        return copia;
+    }
+
+    /**
+     * Estima la memoria que ocupan unos mensajes: un coste fijo por mensaje más sus textos (2 bytes por carácter).
+     * @param mensajes Los mensajes a medir.
+     * @return El tamaño estimado en bytes.
+     */
+    private static long estimarBytes(List<Mensaje> mensajes) {
+        long bytes = 0;
+        for (Mensaje mensaje : mensajes) {
+            bytes += BYTES_POR_MENSAJE + 2L * (longitud(mensaje.getContenido())
+                    + longitud(mensaje.getRemitente()) + longitud(mensaje.getDestinatario()));
+            Adjunto adjunto = mensaje.getAdjunto();
+            if (adjunto != null) {
+                bytes += BYTES_POR_MENSAJE + 2L * (longitud(adjunto.getNombre()) + longitud(adjunto.getRuta())
+                        + longitud(adjunto.getTipo()));
+            }
+        }
+        return bytes;
+    }
+
+    private static int longitud(String texto) {
+        return texto == null ? 0 : texto.length();
+    }
+
+    /**
+     * Firma de los archivos de una conversación: fecha de modificación y tamaño de cada uno.
+     * @param valores Pares (fecha de modificación, tamaño) de cada archivo.
+     */
+    record Firma(long[] valores) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Firma otra && Arrays.equals(valores, otra.valores);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(valores);
+        }
+    }
+
+    /**
+     * Contadores de la caché de conversaciones.
+     * @param entradas Número de conversaciones en caché.
+     * @param bytesEstimados Memoria estimada que ocupan.
+     * @param aciertos Consultas servidas desde la caché.
+     * @param fallos Consultas que tuvieron que leer del disco.
+     * @param expulsiones Conversaciones expulsadas por superar los límites.
+     * @param invalidaciones Conversaciones descartadas porque sus archivos cambiaron.
+     */
+    public record EstadisticasCache(int entradas, long bytesEstimados, long aciertos, long fallos,
+                                    long expulsiones, long invalidaciones) {
+    }
+
+    /**
+     * Entrada de la caché.
+     */
+    private static final class Entrada {
+        private final Conversacion conversacion;
+        private Firma firma;
+        private long bytes;
+
+        private Entrada(Conversacion conversacion, Firma firma, long bytes) {
+            this.conversacion = conversacion;
+            this.firma = firma;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Cola de escritura diferida (write-behind) para los mensajes enviados.
+ * Los mensajes se encolan sin tocar el disco y un hilo en segundo plano los agrupa: espera una pequeña ventana
+ * de tiempo a que lleguen más y guarda todos los de una misma conversación con una única escritura.
+ * La cola está acotada: si se llena, quien encola espera un tiempo máximo (contrapresión) y, si sigue llena,
+ * el mensaje se rechaza.
+ * Si una conversación no se puede guardar, sus mensajes no se descartan: se reintentan en los lotes siguientes (y,
+ * aunque no lleguen más, cada {@value #ESPERA_REINTENTO_MS} ms), y los oyentes registrados con
+ * {@link #anadirOyente(Consumer)} reciben aviso para mostrarlos como no enviados.
+ * Implementa el patrón Singleton para que todas las ventanas compartan la misma cola.
+ */
+public class ColaEscrituraMensajes {
+    /**
+     * Número máximo de peticiones pendientes en la cola.
+     */
+    private static final int CAPACIDAD = 10_000;
+    /**
+     * Tiempo que se espera a que lleguen más mensajes antes de escribir un lote.
+     */
+    private static final long VENTANA_AGRUPACION_MS = 20;
+    /**
+     * Número máximo de mensajes que se escriben en un mismo lote.
+     */
+    private static final int TAMANO_MAXIMO_LOTE = 1_000;
+    /**
+     * Tiempo máximo que se bloquea a quien encola cuando la cola está llena.
+     */
+    private static final long ESPERA_MAXIMA_ENCOLAR_MS = 2_000;
+    /**
+     * Tiempo que espera el hilo escritor a que lleguen mensajes antes de reintentar los lotes fallidos.
+     */
+    private static final long ESPERA_REINTENTO_MS = 1_000;
+
+    private static ColaEscrituraMensajes instance;
+
+    private final BlockingQueue<Peticion> cola = new ArrayBlockingQueue<>(CAPACIDAD);
+    private final ConcurrentHashMap<String, AtomicInteger> pendientesPorConversacion = new ConcurrentHashMap<>();
+    private final ConversacionDAO conversacionDAO = new ConversacionDAO();
+    private final Thread escritor;
+    private final AtomicLong mensajesEscritos = new AtomicLong();
+    private final AtomicLong lotesEscritos = new AtomicLong();
+    private final AtomicLong erroresEscritura = new AtomicLong();
+    /**
+     * Mensajes que no se han podido guardar, por conversación y en orden de llegada. Sólo los usa el hilo escritor.
+     */
+    private final Map<String, List<Peticion>> fallidos = new LinkedHashMap<>();
+    /**
+     * Número de mensajes que tenía cada conversación de {@link #fallidos} antes de intentar guardarlos por primera vez,
+     * para que los reintentos no dupliquen los que llegaron a escribirse. Sólo lo usa el hilo escritor.
+     */
+    private final Map<String, Integer> totalesPrevios = new HashMap<>();
+    private final AtomicInteger mensajesSinGuardar = new AtomicInteger();
+    private final List<Consumer<ResultadoEscritura>> oyentes = new CopyOnWriteArrayList<>();
+    private volatile boolean cerrada;
+
+    /**
+     * Constructor privado para implementar el patrón Singleton.
+     * Arranca el hilo escritor y registra un shutdown hook para no perder mensajes al salir.
+     */
+    private ColaEscrituraMensajes() {
+        escritor = new Thread(this::bucleEscritura, "escritor-mensajes");
+        escritor.setDaemon(true);
+        escritor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::cerrar, "cierre-cola-mensajes"));
+    }
+
+    /**
+     * Obtiene la única instancia de la cola de escritura, creándola si no existe.
+     * @return La instancia compartida de la cola.
+     */
+    public static synchronized ColaEscrituraMensajes getInstance() {
+        if (instance == null) {
+            instance = new ColaEscrituraMensajes();
+        }
+        return instance;
+    }
+
+    /**
+     * Obtiene la instancia de la cola sin crearla.
+     * @return La instancia compartida, o {@code null} si todavía no se ha usado.
+     */
+    static synchronized ColaEscrituraMensajes getInstanciaSiExiste() {
+        return instance;
+    }
+
+    /**
+     * Encola un mensaje para guardarlo en segundo plano.
+     * Si la cola está llena, espera hasta {@value #ESPERA_MAXIMA_ENCOLAR_MS} ms a que haya hueco.
+     * @param mensaje El mensaje a guardar.
+     * @param remitente El nombre del remitente del mensaje.
+     * @param destinatario El nombre del destinatario del mensaje.
+     * @return {@code true} si el mensaje se aceptó, {@code false} si la cola estaba llena o cerrada.
+     */
+    public boolean encolar(Mensaje mensaje, String remitente, String destinatario) {
+        if (cerrada) {
+            return false;
+        }
+        String clave = ConversacionDAO.claveConversacion(remitente, destinatario);
+        AtomicInteger pendientes = pendientesPorConversacion.computeIfAbsent(clave, c -> new AtomicInteger());
+        pendientes.incrementAndGet();
+        try {
+            if (cola.offer(new Peticion(mensaje, remitente, destinatario, null), ESPERA_MAXIMA_ENCOLAR_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pendientes.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Espera a que todos los mensajes encolados hasta este momento estén guardados en disco.
+     * Antes de terminar se vuelven a intentar los lotes que habían fallado.
+     * @throws IOException si quedan mensajes que no se han podido guardar.
+     */
+    public void flush() throws IOException {
+        esperarEscritura();
+        int sinGuardar = mensajesSinGuardar.get();
+        if (sinGuardar > 0) {
+            throw new IOException("No se han podido guardar " + sinGuardar + " mensajes");
+        }
+    }
+
+    /**
+     * Espera a que el hilo escritor procese todo lo encolado hasta este momento (reintentando los lotes fallidos),
+     * se haya podido guardar o no.
+     */
+    private void esperarEscritura() {
+        if (!escritor.isAlive() || Thread.currentThread() == escritor) {
+            return;
+        }
+        CountDownLatch escrito = new CountDownLatch(1);
+        try {
+            cola.put(new Peticion(null, null, null, escrito));
+            escrito.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Si la conversación indicada tiene mensajes pendientes de escribir, espera a que se guarden.
+     * Permite que las lecturas vean siempre los mensajes ya enviados.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     */
+    public void esperarConversacion(String usuario1, String usuario2) {
+        AtomicInteger pendientes = pendientesPorConversacion.get(ConversacionDAO.claveConversacion(usuario1, usuario2));
+        if (pendientes != null && pendientes.get() > 0) {
+            esperarEscritura();
+        }
+    }
+
+    /**
+     * Igual que {@link #esperarConversacion(String, String)}, pero sin crear la cola si todavía no se ha usado.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     */
+    static void esperarConversacionSiExiste(String usuario1, String usuario2) {
+        ColaEscrituraMensajes cola = getInstanciaSiExiste();
+        if (cola != null) {
+            cola.esperarConversacion(usuario1, usuario2);
+        }
+    }
+
+    /**
+     * Guarda todos los mensajes pendientes y deja de aceptar mensajes nuevos.
+     * Se llama al salir de la aplicación; si quedan mensajes sin guardar, se avisa por la salida de error.
+     */
+    public void cerrar() {
+        if (cerrada) {
+            return;
+        }
+        cerrada = true;
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar la cola de escritura: " + e.getMessage() + ", se pierden");
+        }
+    }
+
+    /**
+     * Registra un oyente que recibe aviso cuando un grupo de mensajes no se puede guardar y cuando, al reintentarlo,
+     * se guarda por fin. Los avisos llegan en el hilo escritor.
+     * @param oyente El oyente a registrar.
+     */
+    public void anadirOyente(Consumer<ResultadoEscritura> oyente) {
+        oyentes.add(oyente);
+    }
+
+    /**
+     * Deja de enviar avisos a un oyente.
+     * @param oyente El oyente registrado con {@link #anadirOyente(Consumer)}.
+     */
+    public void quitarOyente(Consumer<ResultadoEscritura> oyente) {
+        oyentes.remove(oyente);
+    }
+
+    /**
+     * Devuelve el número de mensajes guardados por la cola desde que se creó.
+     * @return El número de mensajes escritos.
+     */
+    public long getMensajesEscritos() {
+        return mensajesEscritos.get();
+    }
+
+    /**
+     * Devuelve el número de lotes escritos; comparado con {@link #getMensajesEscritos()} indica cuánto se agrupa.
+     * @return El número de lotes escritos.
+     */
+    public long getLotesEscritos() {
+        return lotesEscritos.get();
+    }
+
+    /**
+     * Devuelve el número de escrituras de conversación que han fallado.
+     * @return El número de errores de escritura.
+     */
+    public long getErroresEscritura() {
+        return erroresEscritura.get();
+    }
+
+    /**
+     * Devuelve el número de mensajes que han fallado al guardarse y siguen pendientes de reintento.
+     * @return El número de mensajes sin guardar.
+     */
+    public int getMensajesSinGuardar() {
+        return mensajesSinGuardar.get();
+    }
+
+    /**
+     * Bucle del hilo escritor: toma la primera petición, espera la ventana de agrupación recogiendo más
+     * y escribe el lote. Si hay lotes fallidos y no llega nada, los reintenta cada {@value #ESPERA_REINTENTO_MS} ms.
+     */
+    private void bucleEscritura() {
+        List<Peticion> lote = new ArrayList<>();
+        while (true) {
+            try {
+                Peticion primera = fallidos.isEmpty() ? cola.take() : cola.poll(ESPERA_REINTENTO_MS, TimeUnit.MILLISECONDS);
+                if (primera == null) {
+                    escribirLote(lote); // Sólo los reintentos
+                    continue;
+                }
+                lote.add(primera);
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(VENTANA_AGRUPACION_MS);
+                while (lote.size() < TAMANO_MAXIMO_LOTE && primera.flush() == null) {
+                    long restante = limite - System.nanoTime();
+                    Peticion siguiente = restante > 0 ? cola.poll(restante, TimeUnit.NANOSECONDS) : cola.poll();
+                    if (siguiente == null) {
+                        break;
+                    }
+                    lote.add(siguiente);
+                    if (siguiente.flush() != null) {
+                        break; // Se ha pedido un flush: se escribe ya lo acumulado
+                    }
+                }
+            } catch (InterruptedException e) {
+                // El hilo escritor no se interrumpe nunca: se escribe lo acumulado y se termina
+                escribirLote(lote);
+                return;
+            }
+            escribirLote(lote);
+            lote.clear();
+        }
+    }
+
+    /**
+     * Escribe un lote de peticiones agrupando los mensajes por conversación, de modo que cada conversación
+     * se escribe una sola vez por lote. Los mensajes que fallaron antes van delante de los nuevos de su conversación,
+     * para conservar el orden, y no se vuelven a escribir los que el intento fallido llegó a guardar. Después avisa a quienes esperaban un flush.
+     * @param lote Las peticiones a procesar, en orden de llegada.
+     */
+    private void escribirLote(List<Peticion> lote) {
+        Map<String, List<Peticion>> porConversacion = new LinkedHashMap<>();
+        Map<String, Integer> reintentados = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Peticion>> entrada : fallidos.entrySet()) {
+            porConversacion.put(entrada.getKey(), new ArrayList<>(entrada.getValue()));
+            reintentados.put(entrada.getKey(), entrada.getValue().size());
+        }
+        fallidos.clear();
+        for (Peticion peticion : lote) {
+            if (peticion.mensaje() != null) {
+                porConversacion.computeIfAbsent(ConversacionDAO.claveConversacion(peticion.remitente(), peticion.destinatario()),
+                        clave -> new ArrayList<>()).add(peticion);
+            }
+        }
+
+        for (Map.Entry<String, List<Peticion>> entrada : porConversacion.entrySet()) {
+            List<Peticion> peticiones = entrada.getValue();
+            List<Mensaje> mensajes = peticiones.stream().map(Peticion::mensaje).toList();
+            Peticion primera = peticiones.get(0);
+            int anteriores = reintentados.getOrDefault(entrada.getKey(), 0);
+            ConversacionDAO.EscrituraConversacion escritura = conversacionDAO.guardarMensajesReintentables(mensajes,
+                    primera.remitente(), primera.destinatario(), totalesPrevios.getOrDefault(entrada.getKey(), -1));
+            if (escritura.guardados()) {
+                totalesPrevios.remove(entrada.getKey());
+                mensajesEscritos.addAndGet(mensajes.size());
+                pendientesPorConversacion.get(entrada.getKey()).addAndGet(-mensajes.size());
+                if (anteriores > 0) {
+                    mensajesSinGuardar.addAndGet(-anteriores);
+                    notificar(new ResultadoEscritura(mensajes.subList(0, anteriores), true));
+                }
+            } else {
+                erroresEscritura.incrementAndGet();
+                System.err.println("Error al guardar " + mensajes.size() + " mensajes de la conversación " + entrada.getKey()
+                        + ", se reintentará");
+                fallidos.put(entrada.getKey(), peticiones);
+                totalesPrevios.put(entrada.getKey(), escritura.totalPrevio());
+                if (anteriores < mensajes.size()) {
+                    mensajesSinGuardar.addAndGet(mensajes.size() - anteriores);
+                    notificar(new ResultadoEscritura(mensajes.subList(anteriores, mensajes.size()), false));
+                }
+            }
+        }
+        if (!porConversacion.isEmpty()) {
+            lotesEscritos.incrementAndGet();
+        }
+
+        lote.stream()
+                .filter(peticion -> peticion.flush() != null)
+                .forEach(peticion -> peticion.flush().countDown());
+    }
+
+    /**
+     * Avisa a los oyentes del resultado de escribir unos mensajes.
+     * @param resultado Los mensajes y si se han guardado.
+     */
+    private void notificar(ResultadoEscritura resultado) {
+        for (Consumer<ResultadoEscritura> oyente : oyentes) {
+            try {
+                oyente.accept(resultado);
+            } catch (RuntimeException e) {
+                System.err.println("Error al notificar el resultado de la escritura de mensajes: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Aviso a los oyentes de la cola: unos mensajes no se han podido guardar (y se reintentarán), o se han guardado
+     * por fin tras un fallo anterior.
+     * @param mensajes Los mensajes afectados, en orden de llegada.
+     * @param guardados {@code true} si se han guardado, {@code false} si han fallado.
+     */
+    public record ResultadoEscritura(List<Mensaje> mensajes, boolean guardados) {
+    }
+
+    /**
+     * Petición de la cola: un mensaje a guardar o una marca de flush.
+     * @param mensaje El mensaje a guardar, o {@code null} si es una marca de flush.
+     * @param remitente El nombre del remitente.
+     * @param destinatario El nombre del destinatario.
+     * @param flush El cerrojo a liberar cuando se haya escrito todo lo anterior, o {@code null}.
+     */
+    private record Peticion(Mensaje mensaje, String remitente, String destinatario, CountDownLatch flush) {
+    }
+}
@@ -2,101 +2,731 @@ package org.dam.fcojavier.chatofflinexml.dataAccess;
 
 import org.dam.fcojavier.chatofflinexml.model.Conversacion;
 import org.dam.fcojavier.chatofflinexml.model.Mensaje;
-import org.dam.fcojavier.chatofflinexml.utils.XmlManager;
+import org.dam.fcojavier.chatofflinexml.utils.BloqueoArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.CompresionArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Clase DAO (Data Access Object) para gestionar la persistencia de conversaciones.
- * Se encarga de leer, guardar y actualizar las conversaciones en archivos XML individuales.
+ * Se encarga de leer, guardar y actualizar las conversaciones en archivos individuales.
  * Cada conversación se identifica por los nombres de los dos usuarios participantes.
+ * <p>
+ * El formato de los archivos se delega en un {@link ConversacionStore}: por defecto {@link XmlConversacionStore}
+ * (el XML original, con diario en modo {@link ModoAlmacenamiento#DIARIO}) y, opcionalmente,
+ * {@link BinarioConversacionStore}, y cualquiera de los dos se puede repartir en segmentos con
+ * {@link SegmentadoConversacionStore}. El almacenamiento por defecto se elige con las propiedades del sistema
+ * {@value #PROPIEDAD_FORMATO} ({@code xml} o {@code binario}) y {@value #PROPIEDAD_SEGMENTACION}
+ * ({@code mensual} o {@code tamano}; sin segmentar si no se indica).
+ * <p>
+ * Cada acceso a una conversación se hace con su archivo bloqueado mediante {@link BloqueoArchivos}: los hilos y
+ * las instancias de la aplicación que escriben en la misma conversación esperan su turno (no se pierden mensajes),
+ * mientras que las escrituras en conversaciones distintas avanzan en paralelo.
+ * <p>
+ * Las conversaciones leídas se guardan en {@link CacheConversaciones}, que las descarta automáticamente si sus
+ * archivos cambian en disco. Cada mensaje guardado actualiza además las bandejas de entrada de los dos participantes
+ * (ver {@link BandejaDAO}).
  */
 public class ConversacionDAO {
     /**
-     * Directorio donde se almacenan los archivos XML de las conversaciones.
+     * Propiedad del sistema que elige el formato de almacenamiento por defecto ({@code xml} o {@code binario}).
      */
-    private static final String CONVERSACIONES_DIR = "src/main/resources/data/conversaciones/";
+    public static final String PROPIEDAD_FORMATO = "chatofflinexml.formato";
+    /**
+     * Propiedad del sistema que activa el almacenamiento segmentado ({@code mensual} o {@code tamano}).
+     */
+    public static final String PROPIEDAD_SEGMENTACION = "chatofflinexml.segmentacion";
+
+    /**
+     * Modos de almacenamiento de los mensajes nuevos.
+     */
+    public enum ModoAlmacenamiento {
+        /** Cada mensaje reescribe el XML completo de la conversación. */
+        REESCRITURA_COMPLETA,
+        /** Cada mensaje se añade a un diario que se fusiona con el XML en segundo plano. */
+        DIARIO
+    }
+
+    /**
+     * Conversaciones con una compactación ya programada, para no encolarla dos veces.
+     */
+    private static final Set<String> compactacionesPendientes = ConcurrentHashMap.newKeySet();
+    /**
+     * Hilo de fondo encargado de compactar las conversaciones (por ejemplo, fusionar los diarios con el XML).
+     */
+    private static final ExecutorService compactador = Executors.newSingleThreadExecutor(runnable -> {
+        Thread hilo = new Thread(runnable, "compactador-conversaciones");
+        hilo.setDaemon(true);
+        hilo.setPriority(Thread.MIN_PRIORITY);
+        return hilo;
+    });
+
+    private final ConversacionStore store;
+    private final BandejaDAO bandejaDAO;
+    private final CacheConversaciones cache = CacheConversaciones.getInstance();
 
     /**
      * Constructor por defecto de la clase ConversacionDAO.
+     * Utiliza el almacenamiento indicado por la propiedad {@value #PROPIEDAD_FORMATO}; en XML, el modo
+     * {@link ModoAlmacenamiento#DIARIO}. La durabilidad es {@link ModoDurabilidad#SINCRONIZADO_POR_GRUPO},
+     * que prioriza el rendimiento del tráfico de mensajes.
      */
     public ConversacionDAO() {
+        this(crearStorePorDefecto());
+    }
+
+    /**
+     * Constructor de la clase ConversacionDAO con un modo de almacenamiento concreto (en XML).
+     * @param modo El modo en que se guardarán los mensajes nuevos.
+     */
+    public ConversacionDAO(ModoAlmacenamiento modo) {
+        this(modo, ModoDurabilidad.SINCRONIZADO_POR_GRUPO);
     }
 
     /**
-     * Genera la ruta completa del archivo XML para una conversación específica entre dos usuarios.
-     * Los nombres de los usuarios se ordenan alfabéticamente para asegurar un nombre de archivo consistente
-     * y único para cada par de usuarios, independientemente del orden en que se proporcionen.
-     * @param usuario1 El nombre del primer participante en la conversación.
-     * @param usuario2 El nombre del segundo participante en la conversación.
-     * @return La ruta absoluta al archivo XML donde se guarda o se leerá la conversación.
+     * Constructor de la clase ConversacionDAO con un modo de almacenamiento y de durabilidad concretos (en XML).
+     * @param modo El modo en que se guardarán los mensajes nuevos.
+     * @param durabilidad El modo de durabilidad de las escrituras de conversaciones.
      */
-    private String getConversationPath(String usuario1, String usuario2) {
+    public ConversacionDAO(ModoAlmacenamiento modo, ModoDurabilidad durabilidad) {
+        this(new XmlConversacionStore(modo, durabilidad));
+    }
+
+    /**
+     * Constructor de la clase ConversacionDAO con un almacenamiento concreto.
+     * @param store El almacenamiento de las conversaciones.
+     */
+    public ConversacionDAO(ConversacionStore store) {
+        this(store, new BandejaDAO());
+    }
+
+    /**
+     * Constructor de la clase ConversacionDAO con un almacenamiento y unas bandejas de entrada concretos.
+     * @param store El almacenamiento de las conversaciones.
+     * @param bandejaDAO Las bandejas de entrada que se actualizan con cada mensaje guardado.
+     */
+    public ConversacionDAO(ConversacionStore store, BandejaDAO bandejaDAO) {
+        this.store = store;
+        this.bandejaDAO = bandejaDAO;
+    }
+
+    /**
+     * Crea el almacenamiento por defecto según la propiedad {@value #PROPIEDAD_FORMATO}.
+     * @return El almacenamiento de conversaciones a utilizar.
+     */
+    private static ConversacionStore crearStorePorDefecto() {
+        return crearStore(Paths.get(XmlConversacionStore.CONVERSACIONES_DIR),
+                "binario".equalsIgnoreCase(System.getProperty(PROPIEDAD_FORMATO)),
+                getCriterioSegmentacion(System.getProperty(PROPIEDAD_SEGMENTACION)),
+                ModoDurabilidad.SINCRONIZADO_POR_GRUPO, CompresionArchivos.compresionPorDefecto());
+    }
+
+    /**
+     * Crea un almacenamiento de conversaciones sobre un directorio.
+     * @param directorio El directorio de las conversaciones.
+     * @param binario Si es {@code true} se usa el formato binario; si no, XML en modo {@link ModoAlmacenamiento#DIARIO}.
+     * @param criterio El criterio de segmentación, o {@code null} para no segmentar.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     * @param comprimir Si es {@code true}, los XML de las conversaciones se guardan comprimidos.
+     * @return El almacenamiento configurado.
+     */
+    static ConversacionStore crearStore(Path directorio, boolean binario,
+                                        SegmentadoConversacionStore.CriterioSegmentacion criterio,
+                                        ModoDurabilidad durabilidad, boolean comprimir) {
+        Function<Path, ConversacionStore> fabrica = directorioSegmentos -> binario
+                ? new BinarioConversacionStore(directorioSegmentos, durabilidad)
+                : new XmlConversacionStore(directorioSegmentos, ModoAlmacenamiento.DIARIO, durabilidad, comprimir);
+        if (criterio == null) {
+            return fabrica.apply(directorio);
+        }
+        return new SegmentadoConversacionStore(directorio, fabrica, criterio,
+                SegmentadoConversacionStore.TAMANO_MAXIMO_POR_DEFECTO, durabilidad);
+    }
+
+    /**
+     * Interpreta el valor de la propiedad {@value #PROPIEDAD_SEGMENTACION}.
+     * @param segmentacion {@code mensual}, {@code tamano}, o vacío para no segmentar.
+     * @return El criterio de segmentación, o {@code null} si no se segmenta.
+     */
+    public static SegmentadoConversacionStore.CriterioSegmentacion getCriterioSegmentacion(String segmentacion) {
+        if (segmentacion == null || segmentacion.isBlank() || "ninguna".equalsIgnoreCase(segmentacion)) {
+            return null;
+        }
+        return "mensual".equalsIgnoreCase(segmentacion)
+                ? SegmentadoConversacionStore.CriterioSegmentacion.MENSUAL
+                : SegmentadoConversacionStore.CriterioSegmentacion.POR_TAMANO;
+    }
+
+    /**
+     * Genera la clave única de una conversación a partir de los nombres de sus participantes,
+     * ordenados alfabéticamente (por ejemplo, {@code "Antonio_Fran"}).
+     * Así el nombre de sus archivos es el mismo independientemente del orden en que se proporcionen los usuarios.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @return La clave de la conversación, independiente del orden de los participantes.
+     */
+    static String claveConversacion(String usuario1, String usuario2) {
         String[] usuarios = {usuario1, usuario2};
         Arrays.sort(usuarios);
-        String fileName = usuarios[0] + "_" + usuarios[1] + ".xml";
-        return Paths.get(CONVERSACIONES_DIR, fileName).toString();
+        return usuarios[0] + "_" + usuarios[1];
+    }
+
+    /**
+     * Obtiene la ruta del archivo principal de una conversación, que la identifica en la caché y en los bloqueos.
+     * @param clave La clave de la conversación.
+     * @return La ruta del archivo principal.
+     */
+    private Path getConversationPath(String clave) {
+        return store.getArchivoPrincipal(clave);
     }
 
     /**
-     * Guarda un objeto {@link Conversacion} en su archivo XML correspondiente.
-     * La ruta del archivo se determina usando los nombres de los usuarios de la conversación.
-     * @param conversacion La instancia de {@link Conversacion} que se desea guardar.
-     * @return {@code true} si la conversación se guardó exitosamente, {@code false} en caso contrario.
+     * Bloquea una conversación para leerla o modificarla.
+     * @param clave La clave de la conversación.
+     * @return El bloqueo adquirido, que debe cerrarse al terminar.
      */
-    private boolean guardarConversacion(Conversacion conversacion) {
-        String path = getConversationPath(conversacion.getUsuario1(), conversacion.getUsuario2());
-        return XmlManager.writeXML(conversacion, path);
+    private BloqueoArchivos.Bloqueo bloquear(String clave) {
+        return BloqueoArchivos.bloquear(getConversationPath(clave));
+    }
+
+    /**
+     * Calcula la firma (fecha de modificación y tamaño) de los archivos de una conversación,
+     * que la caché utiliza para saber si sus datos siguen siendo válidos.
+     * @param clave La clave de la conversación.
+     * @return La firma de los archivos, o {@code null} si no se pudo calcular (en ese caso no se usa la caché).
+     */
+    private CacheConversaciones.Firma firmar(String clave) {
+        try {
+            return CacheConversaciones.firmar(store.getArchivos(clave).toArray(new Path[0]));
+        } catch (IOException e) {
+            return null;
+        }
     }
 
     /**
-     * Busca y carga una conversación existente entre dos usuarios desde su archivo XML.
-     * Si no se encuentra el archivo o no se puede leer, devuelve un {@link Optional#empty()}.
+     * Busca y carga una conversación existente entre dos usuarios.
+     * Si no se encuentra o no se puede leer, devuelve un {@link Optional#empty()}.
      * @param usuario1 El nombre del primer participante.
      * @param usuario2 El nombre del segundo participante.
      * @return Un {@link Optional} que contiene la {@link Conversacion} si se encuentra y se puede cargar,
      *         o un {@link Optional#empty()} si la conversación no existe o hay un error de lectura.
      */
+    @SuppressWarnings("try")
     public Optional<Conversacion> buscarConversacion(String usuario1, String usuario2) {
-        String path = getConversationPath(usuario1, usuario2);
-        File file = new File(path);
+        ColaEscrituraMensajes.esperarConversacionSiExiste(usuario1, usuario2);
+        String clave = claveConversacion(usuario1, usuario2);
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            return leerConversacion(clave);
+        }
+    }
+
+    /**
+     * Cuenta los mensajes de una conversación sin leerla, si la conversación está en caché o el almacenamiento lo
+     * sabe hacer (ver {@link ConversacionStore#contarMensajes(String)}).
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @return El número de mensajes (0 si la conversación no existe), o vacío si no se puede saber sin leerla.
+     */
+    @SuppressWarnings("try")
+    OptionalInt contarMensajes(String usuario1, String usuario2) {
+        ColaEscrituraMensajes.esperarConversacionSiExiste(usuario1, usuario2);
+        String clave = claveConversacion(usuario1, usuario2);
+        if (!store.existe(clave)) {
+            // Sin bloquear: no se crea un archivo de bloqueo por cada pareja de usuarios sin conversación
+            return OptionalInt.of(0);
+        }
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            return contar(clave);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error al contar los mensajes de la conversación " + clave + ": " + e.getMessage());
+            return OptionalInt.empty();
+        }
+    }
 
-        if (!file.exists()) {
+    /**
+     * Indica si existe la conversación entre dos usuarios, sin bloquearla (y, por tanto, sin crear su archivo de
+     * bloqueo). Los mensajes que todavía están en la {@link ColaEscrituraMensajes} no cuentan.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @return {@code true} si la conversación tiene archivos guardados.
+     */
+    boolean existeConversacion(String usuario1, String usuario2) {
+        return store.existe(claveConversacion(usuario1, usuario2));
+    }
+
+    /**
+     * Cuenta los mensajes de una conversación con la caché o con el almacenamiento.
+     * Debe llamarse con el bloqueo de la conversación adquirido.
+     * @param clave La clave de la conversación.
+     * @return El número de mensajes, o vacío si no se puede saber sin leer la conversación.
+     * @throws IOException si no se puede acceder a los archivos.
+     */
+    private OptionalInt contar(String clave) throws IOException {
+        if (!store.existe(clave)) {
+            return OptionalInt.of(0);
+        }
+        CacheConversaciones.Firma firma = firmar(clave);
+        Optional<Conversacion> enCache = firma != null
+                ? cache.obtener(getConversationPath(clave).toString(), firma) : Optional.empty();
+        if (enCache.isPresent()) {
+            return OptionalInt.of(enCache.get().getMensajes().size());
+        }
+        return store.contarMensajes(clave);
+    }
+
+    /**
+     * Abre un {@link Stream} con todos los mensajes de una conversación, leídos en streaming uno a uno,
+     * sin cargar la conversación completa en memoria (salvo que ya esté en caché).
+     * El stream debe cerrarse al terminar (por ejemplo con try-with-resources).
+     * Si la conversación tiene mensajes en la {@link ColaEscrituraMensajes}, se espera antes a que se guarden.
+     * <p>
+     * El bloqueo de la conversación sólo se tiene mientras se abre el stream, no mientras se recorre: todos sus archivos
+     * se abren ya (también los segmentos de {@link SegmentadoConversacionStore}), y como las reescrituras y los borrados
+     * sustituyen los archivos en lugar de modificarlos, el stream sigue leyendo los que había al abrirlo. Los mensajes
+     * que se añadan mientras tanto pueden aparecer o no, pero nunca a medio escribir.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @return Un stream perezoso con los mensajes en orden cronológico, vacío si la conversación no existe.
+     */
+    @SuppressWarnings("try")
+    public Stream<Mensaje> streamMensajes(String usuario1, String usuario2) {
+        ColaEscrituraMensajes.esperarConversacionSiExiste(usuario1, usuario2);
+        String clave = claveConversacion(usuario1, usuario2);
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            if (!store.existe(clave)) {
+                return Stream.empty();
+            }
+            CacheConversaciones.Firma firma = firmar(clave);
+            if (firma != null) {
+                Optional<Conversacion> enCache = cache.obtener(getConversationPath(clave).toString(), firma);
+                if (enCache.isPresent()) {
+                    return enCache.get().getMensajes().stream();
+                }
+            }
+            return store.streamMensajes(clave);
+        } catch (IOException e) {
+            System.err.println("Error al abrir la conversación en streaming: " + e.getMessage());
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Recorre todos los mensajes de una conversación en streaming, pasándolos uno a uno al visitante.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @param visitante La acción a ejecutar con cada mensaje, en orden cronológico.
+     */
+    public void recorrerMensajes(String usuario1, String usuario2, Consumer<? super Mensaje> visitante) {
+        try (Stream<Mensaje> mensajes = streamMensajes(usuario1, usuario2)) {
+            mensajes.forEach(visitante);
+        }
+    }
+
+    /**
+     * Obtiene los últimos mensajes de una conversación sin cargar el resto del historial en memoria.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @param cantidad El número máximo de mensajes a devolver.
+     * @return La página con los últimos mensajes (vacía si la conversación no existe).
+     */
+    public PaginaMensajes buscarUltimosMensajes(String usuario1, String usuario2, int cantidad) {
+        return buscarMensajesAnteriores(usuario1, usuario2, Integer.MAX_VALUE, cantidad);
+    }
+
+    /**
+     * Obtiene la página de mensajes inmediatamente anterior a un cursor.
+     * El cursor es el {@link PaginaMensajes#indiceInicio()} de la página ya cargada, de modo que las páginas no
+     * se desplazan aunque lleguen mensajes nuevos (que siempre se añaden al final).
+     * Si la conversación está en caché, o el almacenamiento sabe cuántos mensajes tiene, sólo se leen los de la página;
+     * si no, se recorre la conversación en streaming conservando sólo los últimos mensajes anteriores al cursor.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @param cursor La posición del primer mensaje ya cargado; se devuelven mensajes anteriores a ella.
+     * @param cantidad El número máximo de mensajes a devolver.
+     * @return La página de mensajes anteriores al cursor, en orden cronológico.
+     */
+    @SuppressWarnings("try")
+    public PaginaMensajes buscarMensajesAnteriores(String usuario1, String usuario2, int cursor, int cantidad) {
+        if (cantidad <= 0) {
+            return new PaginaMensajes(List.of(), cursor);
+        }
+        ColaEscrituraMensajes.esperarConversacionSiExiste(usuario1, usuario2);
+        String clave = claveConversacion(usuario1, usuario2);
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            if (!store.existe(clave)) {
+                return new PaginaMensajes(List.of(), 0);
+            }
+            CacheConversaciones.Firma firma = firmar(clave);
+            Optional<Conversacion> enCache = firma != null
+                    ? cache.obtener(getConversationPath(clave).toString(), firma) : Optional.empty();
+            if (enCache.isPresent()) {
+                List<Mensaje> mensajes = enCache.get().getMensajes();
+                int fin = Math.min(cursor, mensajes.size());
+                int inicio = Math.max(0, fin - cantidad);
+                return new PaginaMensajes(new ArrayList<>(mensajes.subList(inicio, fin)), inicio);
+            }
+
+            OptionalInt total = store.contarMensajes(clave);
+            if (total.isPresent()) {
+                int fin = Math.min(cursor, total.getAsInt());
+                int inicio = Math.max(0, fin - cantidad);
+                try (Stream<Mensaje> mensajes = store.streamMensajesDesde(clave, inicio)) {
+                    return new PaginaMensajes(mensajes.limit(fin - inicio).collect(Collectors.toCollection(ArrayList::new)), inicio);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error al leer los mensajes de la conversación " + clave + ": " + e.getMessage());
+            return new PaginaMensajes(List.of(), cursor);
+        }
+
+        Deque<Mensaje> ventana = new ArrayDeque<>(Math.min(cantidad, 1024));
+        int leidos = 0;
+        try (Stream<Mensaje> mensajes = streamMensajes(usuario1, usuario2)) {
+            Iterator<Mensaje> iterador = mensajes.iterator();
+            // Sólo se conservan en memoria los últimos 'cantidad' mensajes anteriores al cursor
+            while (leidos < cursor && iterador.hasNext()) {
+                if (ventana.size() == cantidad) {
+                    ventana.removeFirst();
+                }
+                ventana.addLast(iterador.next());
+                leidos++;
+            }
+        }
+        return new PaginaMensajes(new ArrayList<>(ventana), leidos - ventana.size());
+    }
+
+    /**
+     * Obtiene los mensajes de una conversación a partir de una posición, por ejemplo los que han llegado después del
+     * último mensaje mostrado. Si la conversación está en caché, o el almacenamiento sabe saltar a una posición
+     * (binario, o XML sin comprimir), sólo se leen esos mensajes; si no, se recorre la conversación en streaming.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @param desde La posición del primer mensaje a devolver (el número de mensajes ya conocidos).
+     * @param cantidad El número máximo de mensajes a devolver.
+     * @return La página con los mensajes desde esa posición, en orden cronológico (vacía si no hay ninguno).
+     */
+    @SuppressWarnings("try")
+    public PaginaMensajes buscarMensajesPosteriores(String usuario1, String usuario2, int desde, int cantidad) {
+        ColaEscrituraMensajes.esperarConversacionSiExiste(usuario1, usuario2);
+        String clave = claveConversacion(usuario1, usuario2);
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            if (!store.existe(clave) || cantidad <= 0) {
+                return new PaginaMensajes(List.of(), desde);
+            }
+            CacheConversaciones.Firma firma = firmar(clave);
+            Optional<Conversacion> enCache = firma != null
+                    ? cache.obtener(getConversationPath(clave).toString(), firma) : Optional.empty();
+            if (enCache.isPresent()) {
+                List<Mensaje> mensajes = enCache.get().getMensajes();
+                int inicio = Math.min(desde, mensajes.size());
+                int fin = (int) Math.min(mensajes.size(), (long) inicio + cantidad);
+                return new PaginaMensajes(new ArrayList<>(mensajes.subList(inicio, fin)), inicio);
+            }
+            try (Stream<Mensaje> mensajes = store.streamMensajesDesde(clave, desde)) {
+                return new PaginaMensajes(mensajes.limit(cantidad).collect(Collectors.toCollection(ArrayList::new)), desde);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error al leer los mensajes de la conversación " + clave + ": " + e.getMessage());
+            return new PaginaMensajes(List.of(), desde);
+        }
+    }
+
+    /**
+     * Obtiene una página de mensajes que empieza en el primer mensaje de una fecha o posterior ("saltar a una fecha").
+     * Si el almacenamiento tiene índice (binario, o XML sin comprimir), se busca la posición en el índice y sólo se
+     * leen los mensajes de la página; si no, se recorre la conversación en streaming hasta llegar a la fecha.
+     * El {@link PaginaMensajes#indiceInicio()} devuelto sirve de cursor para {@link #buscarMensajesAnteriores}.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @param fecha La fecha a la que se quiere saltar.
+     * @param cantidad El número máximo de mensajes a devolver.
+     * @return La página con los mensajes desde esa fecha, en orden cronológico (vacía si no hay ninguno).
+     */
+    @SuppressWarnings("try")
+    public PaginaMensajes buscarMensajesDesdeFecha(String usuario1, String usuario2, LocalDateTime fecha, int cantidad) {
+        ColaEscrituraMensajes.esperarConversacionSiExiste(usuario1, usuario2);
+        String clave = claveConversacion(usuario1, usuario2);
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            if (!store.existe(clave)) {
+                return new PaginaMensajes(List.of(), 0);
+            }
+            CacheConversaciones.Firma firma = firmar(clave);
+            Optional<Conversacion> enCache = firma != null
+                    ? cache.obtener(getConversationPath(clave).toString(), firma) : Optional.empty();
+            if (enCache.isPresent()) {
+                List<Mensaje> mensajes = enCache.get().getMensajes();
+                int inicio = 0;
+                while (inicio < mensajes.size() && esAnterior(mensajes.get(inicio), fecha)) {
+                    inicio++;
+                }
+                int fin = (int) Math.min(mensajes.size(), (long) inicio + Math.max(cantidad, 0));
+                return new PaginaMensajes(new ArrayList<>(mensajes.subList(inicio, fin)), inicio);
+            }
+
+            OptionalInt posicion = store.buscarPosicionFecha(clave, fecha);
+            if (posicion.isPresent()) {
+                try (Stream<Mensaje> mensajes = store.streamMensajesDesde(clave, posicion.getAsInt())) {
+                    return new PaginaMensajes(mensajes.limit(Math.max(cantidad, 0))
+                            .collect(Collectors.toCollection(ArrayList::new)), posicion.getAsInt());
+                }
+            }
+
+            try (Stream<Mensaje> mensajes = store.streamMensajes(clave)) {
+                Iterator<Mensaje> iterador = mensajes.iterator();
+                List<Mensaje> pagina = new ArrayList<>();
+                int inicio = 0;
+                while (iterador.hasNext() && pagina.size() < cantidad) {
+                    Mensaje mensaje = iterador.next();
+                    if (pagina.isEmpty() && esAnterior(mensaje, fecha)) {
+                        inicio++;
+                    } else {
+                        pagina.add(mensaje);
+                    }
+                }
+                return new PaginaMensajes(pagina, inicio);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error al buscar los mensajes de la conversación " + clave + ": " + e.getMessage());
+            return new PaginaMensajes(List.of(), 0);
+        }
+    }
+
+    private static boolean esAnterior(Mensaje mensaje, LocalDateTime fecha) {
+        return mensaje.getFechaHora() == null || mensaje.getFechaHora().isBefore(fecha);
+    }
+
+    /**
+     * Aplica una política de retención: elimina los mensajes de una conversación anteriores a una fecha.
+     * Con almacenamiento segmentado se borran segmentos completos, sin reescribir el resto del historial.
+     * @param usuario1 El nombre del primer participante.
+     * @param usuario2 El nombre del segundo participante.
+     * @param limite Los mensajes anteriores a esta fecha se eliminan.
+     * @return El número de mensajes eliminados, o -1 si se produjo un error.
+     */
+    @SuppressWarnings("try")
+    public int eliminarMensajesAnteriores(String usuario1, String usuario2, LocalDateTime limite) {
+        ColaEscrituraMensajes.esperarConversacionSiExiste(usuario1, usuario2);
+        String clave = claveConversacion(usuario1, usuario2);
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            int eliminados = store.eliminarMensajesAnteriores(clave, limite);
+            if (eliminados > 0) {
+                cache.invalidar(getConversationPath(clave).toString());
+            }
+            return eliminados;
+        } catch (IOException e) {
+            System.err.println("Error al aplicar la retención a la conversación " + clave + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Lee una conversación completa.
+     * Si la conversación está en caché y sus archivos no han cambiado, no se accede al contenido del disco.
+     * Debe llamarse con el bloqueo de la conversación adquirido.
+     * @param clave La clave de la conversación.
+     * @return La conversación completa, o {@link Optional#empty()} si no existe o no se puede leer.
+     */
+    private Optional<Conversacion> leerConversacion(String clave) {
+        if (!store.existe(clave)) {
             return Optional.empty();
         }
 
-        Conversacion conversacion = XmlManager.readXML(new Conversacion(), path);
-        return Optional.ofNullable(conversacion);
+        String claveCache = getConversationPath(clave).toString();
+        CacheConversaciones.Firma firma = firmar(clave);
+        if (firma != null) {
+            Optional<Conversacion> enCache = cache.obtener(claveCache, firma);
+            if (enCache.isPresent()) {
+                return enCache;
+            }
+        }
+
+        try {
+            Optional<Conversacion> conversacion = store.leer(clave);
+            if (conversacion.isPresent() && firma != null) {
+                cache.guardar(claveCache, firma, conversacion.get());
+            }
+            return conversacion;
+        } catch (IOException e) {
+            System.err.println("Error al leer la conversación " + clave + ": " + e.getMessage());
+            return Optional.empty();
+        }
     }
 
     /**
      * Guarda un nuevo mensaje en la conversación correspondiente entre el remitente y el destinatario.
-     * Si la conversación no existe previamente, se crea una nueva. El mensaje se añade a la lista de mensajes
-     * de la conversación y luego la conversación (actualizada o nueva) se guarda en su archivo XML.
+     * Si la conversación no existe previamente, se crea una nueva. Cómo se añade el mensaje depende del
+     * almacenamiento (en XML, del {@link ModoAlmacenamiento}).
      * @param mensaje El objeto {@link Mensaje} que se desea guardar.
      * @param remitente El nombre del remitente del mensaje.
      * @param destinatario El nombre del destinatario del mensaje.
      * @return {@code true} si el mensaje se guardó exitosamente dentro de la conversación, {@code false} en caso de error.
      */
     public boolean guardarMensaje(Mensaje mensaje, String remitente, String destinatario) {
-        try {
-            // Busca la conversación o crea una nueva si no existe.
-            Conversacion conversacion = buscarConversacion(remitente, destinatario)
-                    .orElse(new Conversacion(remitente, destinatario));
+        return guardarMensajes(List.of(mensaje), remitente, destinatario);
+    }
+
+    /**
+     * Guarda varios mensajes de una misma conversación con una única escritura.
+     * Si después de escribir el almacenamiento necesita compactarse, se programa en segundo plano.
+     * Una vez guardados (y liberado el bloqueo de la conversación) se actualizan las bandejas de entrada, indicando
+     * cuántos mensajes tiene la conversación tras la escritura para que la bandeja reconozca los que ya contaba.
+     * @param mensajes Los mensajes a guardar, en orden cronológico.
+     * @param remitente El nombre de uno de los participantes (se usa si hay que crear la conversación).
+     * @param destinatario El nombre del otro participante.
+     * @return {@code true} si todos los mensajes se guardaron, {@code false} en caso de error.
+     */
+    public boolean guardarMensajes(List<Mensaje> mensajes, String remitente, String destinatario) {
+        return guardarMensajes(mensajes, remitente, destinatario, false, -1).guardados();
+    }
 
-            // Añade el nuevo mensaje al historial.
-            conversacion.getMensajes().add(mensaje);
+    /**
+     * Igual que {@link #guardarMensajes(List, String, String)}, pero se puede repetir tras un error sin duplicar
+     * mensajes: un error del almacenamiento puede llegar cuando los mensajes ya están escritos (por ejemplo, al forzar
+     * el archivo a disco o al guardar el manifiesto), así que antes del primer intento se cuenta cuántos mensajes
+     * tiene la conversación y en los reintentos se omiten los que ya estén guardados desde entonces.
+     * Lo utiliza {@link ColaEscrituraMensajes}, que es quien reintenta los lotes fallidos.
+     * @param mensajes Los mensajes a guardar, en orden cronológico (los mismos en cada intento).
+     * @param remitente El nombre de uno de los participantes.
+     * @param destinatario El nombre del otro participante.
+     * @param totalPrevio El número de mensajes que tenía la conversación antes del primer intento (devuelto por
+     *                    éste), o {@code -1} en el primer intento.
+     * @return Si se han guardado y el número de mensajes de la conversación antes del primer intento ({@code -1} si
+     *         no se pudo contar, en cuyo caso un reintento vuelve a escribirlos todos).
+     */
+    EscrituraConversacion guardarMensajesReintentables(List<Mensaje> mensajes, String remitente, String destinatario,
+                                                      int totalPrevio) {
+        return guardarMensajes(mensajes, remitente, destinatario, true, totalPrevio);
+    }
 
-            // Guarda la conversación (actualizada o nueva) en su archivo.
-            return guardarConversacion(conversacion);
+    /**
+     * Resultado de un intento de {@link #guardarMensajesReintentables(List, String, String, int)}.
+     * @param guardados {@code true} si todos los mensajes están guardados.
+     * @param totalPrevio El número de mensajes de la conversación antes del primer intento, o {@code -1}.
+     */
+    record EscrituraConversacion(boolean guardados, int totalPrevio) {
+    }
 
+    @SuppressWarnings("try")
+    private EscrituraConversacion guardarMensajes(List<Mensaje> mensajes, String remitente, String destinatario,
+                                                  boolean reintentable, int totalPrevio) {
+        String clave = claveConversacion(remitente, destinatario);
+        String claveCache = getConversationPath(clave).toString();
+        int previo = totalPrevio;
+        OptionalInt total;
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            List<Mensaje> pendientes = mensajes;
+            if (reintentable && previo < 0) {
+                previo = contarTrasEscribir(clave).orElse(-1);
+            } else if (previo >= 0) {
+                // Reintento: los mensajes escritos por un intento anterior ya están al final de la conversación.
+                // Si no se pueden contar, el intento falla en lugar de arriesgarse a duplicarlos.
+                int actual = contar(clave).orElseThrow(() -> new IOException("No se pueden contar los mensajes"));
+                int yaGuardados = Math.max(0, Math.min(mensajes.size(), actual - previo));
+                pendientes = mensajes.subList(yaGuardados, mensajes.size());
+            }
+            if (!pendientes.isEmpty()) {
+                CacheConversaciones.Firma firmaAnterior = firmar(clave);
+                try {
+                    store.anadirMensajes(clave, remitente, destinatario, pendientes);
+                } catch (IOException | RuntimeException e) {
+                    cache.invalidar(claveCache);
+                    throw e;
+                }
+                actualizarTrasEscribir(clave, claveCache, firmaAnterior, pendientes);
+            }
+            total = contarTrasEscribir(clave);
         } catch (Exception e) {
             System.err.println("Error al guardar el mensaje: " + e.getMessage());
             e.printStackTrace();
-            return false;
+            return new EscrituraConversacion(false, previo);
+        }
+        bandejaDAO.registrarMensajes(remitente, destinatario, mensajes, total, this);
+        return new EscrituraConversacion(true, previo);
+    }
+
+    /**
+     * Actualiza la caché y programa la compactación tras escribir unos mensajes. Los mensajes ya están guardados,
+     * así que un error aquí sólo se anota (y se descarta la conversación de la caché): no debe hacer que se
+     * reintente la escritura.
+     * @param clave La clave de la conversación.
+     * @param claveCache La clave de la conversación en la caché.
+     * @param firmaAnterior La firma de los archivos antes de escribir, o {@code null}.
+     * @param mensajes Los mensajes escritos.
+     */
+    private void actualizarTrasEscribir(String clave, String claveCache, CacheConversaciones.Firma firmaAnterior,
+                                        List<Mensaje> mensajes) {
+        try {
+            CacheConversaciones.Firma firmaNueva = firmar(clave);
+            if (firmaAnterior != null && firmaNueva != null) {
+                cache.anadirMensajes(claveCache, firmaAnterior, firmaNueva, mensajes);
+            } else {
+                cache.invalidar(claveCache);
+            }
+            if (store.necesitaCompactacion(clave) && compactacionesPendientes.add(clave)) {
+                compactador.execute(() -> compactar(clave));
+            }
+        } catch (RuntimeException e) {
+            cache.invalidar(claveCache);
+            System.err.println("Aviso: mensajes guardados en " + clave + ", pero no se pudo actualizar la caché: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cuenta los mensajes de una conversación antes o después de escribir en ella. Un error al contarlos no hace
+     * fallar la escritura: la bandeja registra entonces los mensajes sin comprobar si ya los tenía.
+     * @param clave La clave de la conversación, con su bloqueo adquirido.
+     * @return El número de mensajes, o vacío si no se sabe.
+     */
+    private OptionalInt contarTrasEscribir(String clave) {
+        try {
+            return contar(clave);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error al contar los mensajes de la conversación " + clave + ": " + e.getMessage());
+            return OptionalInt.empty();
+        }
+    }
+
+    /**
+     * Compacta los archivos de una conversación. Se ejecuta en el hilo de compactación, en segundo plano.
+     * @param clave La clave de la conversación.
+     */
+    @SuppressWarnings("try")
+    private void compactar(String clave) {
+        compactacionesPendientes.remove(clave);
+        String claveCache = getConversationPath(clave).toString();
+        try (BloqueoArchivos.Bloqueo bloqueo = bloquear(clave)) {
+            store.compactar(clave);
+            // El contenido no cambia, sólo cómo está repartido entre los archivos
+            CacheConversaciones.Firma firma = firmar(clave);
+            if (firma != null) {
+                cache.actualizarFirma(claveCache, firma);
+            } else {
+                cache.invalidar(claveCache);
+            }
+        } catch (Exception e) {
+            cache.invalidar(claveCache);
+            System.err.println("Error al compactar la conversación " + clave + ": " + e.getMessage());
         }
     }
 }
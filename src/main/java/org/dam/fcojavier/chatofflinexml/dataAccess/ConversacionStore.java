@@ -0,0 +1,171 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Conversacion;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.stream.Stream;
+
+/**
+ * Formato de almacenamiento de las conversaciones en disco.
+ * Cada conversación se identifica por su clave (los nombres de los participantes ordenados, por ejemplo
+ * {@code "Antonio_Fran"}, ver {@link ConversacionDAO#claveConversacion(String, String)}).
+ * <p>
+ * Las implementaciones sólo se ocupan del formato: {@link ConversacionDAO} se encarga del bloqueo, la caché y la
+ * compactación en segundo plano, y llama a todos estos métodos con la conversación bloqueada.
+ * Los archivos deben sustituirse de forma atómica y crecer sólo añadiendo al final, de modo que un stream abierto
+ * pueda seguir leyéndose después de liberar el bloqueo.
+ */
+public interface ConversacionStore {
+    /**
+     * Devuelve los archivos que forman una conversación. El primero es el archivo principal: su ruta identifica
+     * la conversación en la caché y en los bloqueos. Los archivos no tienen por qué existir.
+     * @param clave La clave de la conversación.
+     * @return Las rutas de los archivos de la conversación, empezando por el principal.
+     */
+    List<Path> getArchivos(String clave);
+
+    /**
+     * Devuelve el archivo principal de una conversación (el primero de {@link #getArchivos(String)}) sin consultar el
+     * disco, porque se usa para bloquear la conversación antes de leer nada.
+     * @param clave La clave de la conversación.
+     * @return La ruta del archivo principal, exista o no.
+     */
+    default Path getArchivoPrincipal(String clave) {
+        return getArchivos(clave).get(0);
+    }
+
+    /**
+     * Devuelve todos los archivos que existen de una conversación (por ejemplo, para moverla o borrarla entera).
+     * A diferencia de {@link #getArchivos(String)}, incluye también los que ya no cambian al añadir mensajes.
+     * @param clave La clave de la conversación.
+     * @return Las rutas de los archivos existentes de la conversación.
+     * @throws IOException si no se puede consultar.
+     */
+    default List<Path> getTodosLosArchivos(String clave) throws IOException {
+        return getArchivos(clave).stream().filter(Files::exists).toList();
+    }
+
+    /**
+     * Indica si la conversación existe en este almacenamiento.
+     * @param clave La clave de la conversación.
+     * @return {@code true} si la conversación tiene datos guardados.
+     */
+    boolean existe(String clave);
+
+    /**
+     * Lee una conversación completa.
+     * @param clave La clave de la conversación.
+     * @return La conversación, o {@link Optional#empty()} si no existe.
+     * @throws IOException si no se puede leer.
+     */
+    Optional<Conversacion> leer(String clave) throws IOException;
+
+    /**
+     * Abre un stream perezoso con los mensajes de una conversación en orden cronológico.
+     * El stream debe cerrarse al terminar.
+     * @param clave La clave de la conversación.
+     * @return Los mensajes de la conversación, o un stream vacío si no existe.
+     * @throws IOException si no se puede abrir.
+     */
+    Stream<Mensaje> streamMensajes(String clave) throws IOException;
+
+    /**
+     * Cuenta los mensajes de una conversación, si el almacenamiento lo puede saber sin recorrerlos todos.
+     * @param clave La clave de la conversación.
+     * @return El número de mensajes, o vacío si habría que leer la conversación entera para saberlo.
+     * @throws IOException si no se puede consultar.
+     */
+    default OptionalInt contarMensajes(String clave) throws IOException {
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Abre un stream con los mensajes de una conversación a partir de una posición.
+     * Las implementaciones que saben dónde está cada mensaje pueden saltarse los anteriores sin leerlos.
+     * @param clave La clave de la conversación.
+     * @param desde La posición (empezando en 0) del primer mensaje a devolver.
+     * @return Los mensajes desde esa posición, en orden cronológico. El stream debe cerrarse al terminar.
+     * @throws IOException si no se puede abrir.
+     */
+    default Stream<Mensaje> streamMensajesDesde(String clave, int desde) throws IOException {
+        return streamMensajes(clave).skip(desde);
+    }
+
+    /**
+     * Busca la posición del primer mensaje de una fecha o posterior, si el almacenamiento la puede localizar sin
+     * recorrer la conversación. Los mensajes se guardan en orden cronológico.
+     * @param clave La clave de la conversación.
+     * @param fecha La fecha buscada.
+     * @return La posición (empezando en 0) de ese mensaje, que es el número de mensajes si no hay ninguno;
+     *         o vacío si habría que recorrer la conversación para saberlo.
+     * @throws IOException si no se puede consultar.
+     */
+    default OptionalInt buscarPosicionFecha(String clave, LocalDateTime fecha) throws IOException {
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Añade mensajes al final de una conversación, creándola si no existe.
+     * @param clave La clave de la conversación.
+     * @param usuario1 El nombre de uno de los participantes (se usa si hay que crear la conversación).
+     * @param usuario2 El nombre del otro participante.
+     * @param mensajes Los mensajes a añadir, en orden cronológico.
+     * @throws IOException si no se pueden guardar.
+     */
+    void anadirMensajes(String clave, String usuario1, String usuario2, List<Mensaje> mensajes) throws IOException;
+
+    /**
+     * Guarda una conversación completa, sustituyendo la que hubiera.
+     * @param clave La clave de la conversación.
+     * @param conversacion La conversación a guardar.
+     * @throws IOException si no se puede guardar.
+     */
+    void guardar(String clave, Conversacion conversacion) throws IOException;
+
+    /**
+     * Elimina los mensajes anteriores a una fecha (política de retención).
+     * Por defecto se reescribe la conversación sin ellos; los almacenamientos segmentados pueden borrar segmentos
+     * completos, en cuyo caso se conservan los segmentos que contengan algún mensaje posterior a la fecha.
+     * @param clave La clave de la conversación.
+     * @param limite Los mensajes con fecha anterior a ésta se eliminan.
+     * @return El número de mensajes eliminados.
+     * @throws IOException si no se puede reescribir la conversación.
+     */
+    default int eliminarMensajesAnteriores(String clave, LocalDateTime limite) throws IOException {
+        Optional<Conversacion> conversacion = leer(clave);
+        if (conversacion.isEmpty()) {
+            return 0;
+        }
+        List<Mensaje> mensajes = conversacion.get().getMensajes();
+        int total = mensajes.size();
+        mensajes.removeIf(mensaje -> mensaje.getFechaHora() != null && mensaje.getFechaHora().isBefore(limite));
+        if (mensajes.size() != total) {
+            guardar(clave, conversacion.get());
+        }
+        return total - mensajes.size();
+    }
+
+    /**
+     * Indica si conviene reorganizar los archivos de una conversación (por ejemplo, fusionar un diario).
+     * @param clave La clave de la conversación.
+     * @return {@code true} si se debería llamar a {@link #compactar(String)}.
+     */
+    default boolean necesitaCompactacion(String clave) {
+        return false;
+    }
+
+    /**
+     * Reorganiza los archivos de una conversación sin cambiar sus mensajes.
+     * @param clave La clave de la conversación.
+     * @throws IOException si no se puede completar la compactación.
+     */
+    default void compactar(String clave) throws IOException {
+    }
+}
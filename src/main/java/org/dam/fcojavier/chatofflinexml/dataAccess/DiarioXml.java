@@ -0,0 +1,214 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.utils.GestorDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.LectorXmlStream;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.MotorSerializacionXml;
+
+import javax.xml.bind.JAXBException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Diario (journal) de sólo-añadir en formato XML.
+ * Cada elemento se escribe al final del archivo como un fragmento XML independiente, de modo que añadir
+ * un elemento cuesta lo mismo sin importar cuántos haya ya guardados.
+ * Para leerlo, el contenido se envuelve en un elemento raíz ficticio y se recorre con {@link LectorXmlStream}.
+ * <p>
+ * Un diario puede empezar por un comentario {@code <!--base:...-->} que identifica el archivo al que continúa
+ * (ver {@link #leerBase(Path)}): así quien lo fusiona con ese archivo puede reconocer después un diario que ya
+ * está incluido en él.
+ * @param <T> Tipo de los elementos guardados en el diario (debe ser una clase anotada con JAXB).
+ */
+public class DiarioXml<T> {
+    private static final byte[] APERTURA = "<diario>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CIERRE = "</diario>".getBytes(StandardCharsets.UTF_8);
+    private static final String PREFIJO_BASE = "<!--base:";
+    private static final String FIN_BASE = "-->";
+    /**
+     * Longitud máxima de la línea de la base que se lee al principio del diario.
+     */
+    private static final int LONGITUD_MAXIMA_BASE = 128;
+
+    private final Class<T> claseElemento;
+    private final String nombreElemento;
+
+    /**
+     * Constructor de la clase DiarioXml.
+     * @param claseElemento La clase de los elementos que se guardan en el diario.
+     * @param nombreElemento El nombre del elemento XML raíz de cada fragmento (por ejemplo, "mensaje").
+     */
+    public DiarioXml(Class<T> claseElemento, String nombreElemento) {
+        this.claseElemento = claseElemento;
+        this.nombreElemento = nombreElemento;
+    }
+
+    /**
+     * Añade uno o varios elementos al final del diario, creándolo si no existe.
+     * @param diario La ruta del archivo de diario.
+     * @param elementos Los elementos a añadir, en orden.
+     * @param modo El modo de durabilidad con el que se fuerza (o no) la escritura a disco.
+     * @throws IOException si no se puede escribir en el archivo.
+     */
+    public void anadir(Path diario, List<T> elementos, ModoDurabilidad modo) throws IOException {
+        anadir(diario, null, elementos, modo);
+    }
+
+    /**
+     * Añade uno o varios elementos al final del diario. Si el diario no existe (o está vacío), se crea empezando
+     * por la base que continúa.
+     * @param diario La ruta del archivo de diario.
+     * @param base El identificador del archivo al que continúa el diario, o {@code null} para no anotarlo.
+     * @param elementos Los elementos a añadir, en orden.
+     * @param modo El modo de durabilidad con el que se fuerza (o no) la escritura a disco.
+     * @throws IOException si no se puede escribir en el archivo.
+     */
+    public void anadir(Path diario, String base, List<T> elementos, ModoDurabilidad modo) throws IOException {
+        descartarFinalIncompleto(diario);
+        try (FileChannel canal = FileChannel.open(diario, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            OutputStream salida = new BufferedOutputStream(Channels.newOutputStream(canal));
+            if (base != null && canal.size() == 0) {
+                salida.write((PREFIJO_BASE + base + FIN_BASE + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            for (T elemento : elementos) {
+                MotorSerializacionXml.getInstance().escribirFragmento(elemento, salida);
+                salida.write('\n');
+            }
+            salida.flush();
+            GestorDurabilidad.despuesDeEscribir(canal, diario, modo);
+        } catch (JAXBException e) {
+            throw new IOException("Error al serializar un elemento del diario " + diario, e);
+        }
+    }
+
+    /**
+     * Si el diario no termina en salto de línea (el último fragmento quedó a medio escribir), lo recorta hasta
+     * el último fragmento completo para que los elementos que se añadan después se puedan seguir leyendo.
+     * @param diario La ruta del archivo de diario.
+     * @throws IOException si no se puede acceder al archivo.
+     */
+    private void descartarFinalIncompleto(Path diario) throws IOException {
+        if (!Files.exists(diario)) {
+            return;
+        }
+        try (RandomAccessFile archivo = new RandomAccessFile(diario.toFile(), "rw")) {
+            long posicion = archivo.length();
+            if (posicion == 0) {
+                return;
+            }
+            archivo.seek(posicion - 1);
+            if (archivo.read() == '\n') {
+                return;
+            }
+            while (posicion > 0) {
+                archivo.seek(--posicion);
+                if (archivo.read() == '\n') {
+                    archivo.setLength(posicion + 1);
+                    return;
+                }
+            }
+            archivo.setLength(0);
+        }
+    }
+
+    /**
+     * Lee la base que continúa el diario, anotada al crearlo con {@link #anadir(Path, String, List, ModoDurabilidad)}.
+     * @param diario La ruta del archivo de diario.
+     * @return El identificador de la base, o {@code null} si el diario no existe o no la anota.
+     * @throws IOException si no se puede leer el archivo.
+     */
+    public String leerBase(Path diario) throws IOException {
+        if (!Files.exists(diario)) {
+            return null;
+        }
+        byte[] inicio;
+        try (InputStream entrada = Files.newInputStream(diario)) {
+            inicio = entrada.readNBytes(LONGITUD_MAXIMA_BASE);
+        }
+        String linea = new String(inicio, StandardCharsets.UTF_8);
+        int fin = linea.indexOf(FIN_BASE);
+        if (!linea.startsWith(PREFIJO_BASE) || fin < 0) {
+            return null;
+        }
+        return linea.substring(PREFIJO_BASE.length(), fin);
+    }
+
+    /**
+     * Abre un lector en streaming sobre los elementos del diario, en el orden en que se añadieron.
+     * Si el último fragmento quedó incompleto (por ejemplo, por un cierre inesperado durante la escritura),
+     * se descarta. Si el diario no existe, el lector no devuelve ningún elemento.
+     * @param diario La ruta del archivo de diario.
+     * @return Un lector que debe cerrarse al terminar.
+     * @throws IOException si no se puede abrir el archivo.
+     */
+    public LectorXmlStream<T> abrir(Path diario) throws IOException {
+        return abrir(diario, 0);
+    }
+
+    /**
+     * Abre un lector en streaming sobre los elementos del diario a partir de una posición en bytes, sin leer los
+     * anteriores (por ejemplo, la de un elemento anotada en un índice).
+     * @param diario La ruta del archivo de diario.
+     * @param posicion La posición donde empieza un elemento (o el principio del archivo).
+     * @return Un lector que debe cerrarse al terminar.
+     * @throws IOException si no se puede abrir el archivo.
+     */
+    public LectorXmlStream<T> abrir(Path diario, long posicion) throws IOException {
+        InputStream contenido = Files.exists(diario) ? Files.newInputStream(diario) : InputStream.nullInputStream();
+        try {
+            contenido.skipNBytes(posicion);
+        } catch (IOException e) {
+            contenido.close();
+            throw e;
+        }
+        InputStream entrada = new SequenceInputStream(Collections.enumeration(List.of(
+                new ByteArrayInputStream(APERTURA), contenido, new ByteArrayInputStream(CIERRE))));
+        return new LectorXmlStream<>(entrada, claseElemento, nombreElemento).toleraFinalIncompleto();
+    }
+
+    /**
+     * Lee todos los elementos del diario en el orden en que se añadieron.
+     * @param diario La ruta del archivo de diario.
+     * @return La lista de elementos, vacía si el diario no existe.
+     * @throws IOException si no se puede leer el archivo.
+     */
+    public List<T> leer(Path diario) throws IOException {
+        if (!Files.exists(diario)) {
+            return Collections.emptyList();
+        }
+
+        List<T> elementos = new ArrayList<>();
+        try (LectorXmlStream<T> lector = abrir(diario)) {
+            lector.forEachRemaining(elementos::add);
+        }
+        return elementos;
+    }
+
+    /**
+     * Devuelve el tamaño en bytes del diario.
+     * @param diario La ruta del archivo de diario.
+     * @return El tamaño del archivo, o 0 si no existe.
+     */
+    public long tamano(Path diario) {
+        try {
+            return Files.exists(diario) ? Files.size(diario) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
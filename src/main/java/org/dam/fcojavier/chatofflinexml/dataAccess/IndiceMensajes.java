@@ -0,0 +1,345 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.utils.GestorDurabilidad;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Índice auxiliar de un archivo de conversación ({@code <archivo>.idx}) que guarda, para cada mensaje, la posición
+ * de su registro (o de su elemento {@code <mensaje>}, en XML) en el archivo de datos y su fecha. Permite llegar al mensaje número N, o al primer mensaje de una
+ * fecha, sin leer los anteriores.
+ * <p>
+ * Formato: la cabecera {@code "CHI"} y la versión, el número de entradas (entero), el número de bytes del archivo de
+ * datos que cubre el índice (long) y, a continuación, una entrada de 16 bytes por mensaje: posición (long) y fecha en
+ * milisegundos desde la época, UTC (long).
+ * <p>
+ * El índice se puede reconstruir en cualquier momento a partir del archivo de datos, así que no se fuerza a disco:
+ * si falta, está dañado o cubre más bytes de los que tiene el archivo de datos, se reconstruye; si cubre menos
+ * (porque la aplicación se cerró entre la escritura de los datos y la del índice), se completa con los registros que
+ * faltan.
+ */
+final class IndiceMensajes implements AutoCloseable {
+    /**
+     * Extensión de los archivos de índice.
+     */
+    static final String EXTENSION = ".idx";
+    private static final byte[] CABECERA = {'C', 'H', 'I', 1};
+    private static final int TAMANO_CABECERA = 16;
+    private static final int TAMANO_ENTRADA = 16;
+
+    /**
+     * Recorre los registros de un archivo de datos y anota la posición y la fecha de cada mensaje.
+     */
+    @FunctionalInterface
+    interface Indexador {
+        /**
+         * @param desde La posición del archivo de datos donde empieza un registro, o 0 para empezar por el principio.
+         * @param hasta La posición donde se deja de recorrer (los registros que empiezan ahí o después no se anotan).
+         * @param destino Donde se anotan los mensajes encontrados.
+         * @return La posición del final del último registro completo.
+         * @throws IOException si no se puede leer el archivo de datos.
+         */
+        long indexar(long desde, long hasta, Entradas destino) throws IOException;
+    }
+
+    private final FileChannel canal;
+    private final int enArchivo;
+    private final Entradas pendientes;
+
+    private IndiceMensajes(FileChannel canal, int enArchivo, Entradas pendientes) {
+        this.canal = canal;
+        this.enArchivo = enArchivo;
+        this.pendientes = pendientes;
+    }
+
+    /**
+     * Convierte la fecha de un mensaje al valor que se guarda en el índice.
+     * @param fecha La fecha del mensaje, o {@code null} si no tiene.
+     * @return Los milisegundos desde la época (UTC), o {@link Long#MIN_VALUE} si no tiene fecha, que cuenta como
+     *         anterior a cualquier otra.
+     */
+    static long aEpoch(LocalDateTime fecha) {
+        return fecha == null ? Long.MIN_VALUE : fecha.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * Obtiene la ruta del índice de un archivo de datos.
+     * @param datos El archivo de datos de la conversación.
+     * @return La ruta de su índice.
+     */
+    static Path getRuta(Path datos) {
+        return datos.resolveSibling(datos.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Abre el índice de un archivo de datos para consultarlo. Si le faltan los últimos mensajes se completa en memoria,
+     * sin modificar el archivo; si no es válido se reconstruye y se sustituye de forma atómica.
+     * @param datos El archivo de datos de la conversación.
+     * @param indexador El recorrido de los registros del archivo de datos.
+     * @return El índice, que debe cerrarse al terminar.
+     * @throws IOException si no se puede leer el archivo de datos.
+     */
+    static IndiceMensajes abrir(Path datos, Indexador indexador) throws IOException {
+        long tamanoDatos = Files.size(datos);
+        FileChannel canal = abrirCanal(getRuta(datos), StandardOpenOption.READ);
+        try {
+            long[] cabecera = canal != null ? leerCabecera(canal, tamanoDatos) : null;
+            if (cabecera == null) {
+                cerrar(canal);
+                canal = null;
+                Entradas todas = new Entradas();
+                long fin = indexador.indexar(0, tamanoDatos, todas);
+                escribir(datos, todas, fin);
+                return new IndiceMensajes(null, 0, todas);
+            }
+            Entradas pendientes = new Entradas();
+            if (cabecera[1] < tamanoDatos) {
+                indexador.indexar(cabecera[1], tamanoDatos, pendientes);
+            }
+            return new IndiceMensajes(canal, (int) cabecera[0], pendientes);
+        } catch (IOException | RuntimeException e) {
+            cerrar(canal);
+            throw e;
+        }
+    }
+
+    /**
+     * Añade al índice los mensajes recién escritos al final del archivo de datos. Si el índice no cubría exactamente
+     * los datos anteriores a ellos, antes se completa con los que faltan o, si no es válido, se reconstruye entero.
+     * @param datos El archivo de datos de la conversación.
+     * @param finAnterior El tamaño del archivo de datos antes de escribir los mensajes.
+     * @param nuevas Las posiciones y fechas de los mensajes escritos.
+     * @param fin El tamaño del archivo de datos después de escribirlos.
+     * @param indexador El recorrido de los registros del archivo de datos.
+     * @throws IOException si no se puede escribir el índice.
+     */
+    static void anadir(Path datos, long finAnterior, Entradas nuevas, long fin, Indexador indexador) throws IOException {
+        Path ruta = getRuta(datos);
+        try (FileChannel canal = abrirCanal(ruta, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long[] cabecera = canal != null ? leerCabecera(canal, finAnterior) : null;
+            if (cabecera != null) {
+                Entradas entradas = new Entradas();
+                if (cabecera[1] < finAnterior) {
+                    indexador.indexar(cabecera[1], finAnterior, entradas);
+                }
+                entradas.anadirTodas(nuevas);
+                // Primero las entradas y después la cabecera, para que un lector nunca vea entradas sin escribir
+                escribirCompleto(canal, entradas.aBuffer(), TAMANO_CABECERA + cabecera[0] * TAMANO_ENTRADA);
+                escribirCompleto(canal, cabeceraABuffer((int) cabecera[0] + entradas.tamano(), fin), 0);
+                return;
+            }
+        }
+        Entradas todas = new Entradas();
+        long indexado = indexador.indexar(0, fin, todas);
+        escribir(datos, todas, indexado);
+    }
+
+    /**
+     * Escribe el índice completo de un archivo de datos en un archivo temporal y lo sustituye de forma atómica.
+     * @param datos El archivo de datos de la conversación.
+     * @param entradas Las posiciones y fechas de todos sus mensajes.
+     * @param bytes El tamaño del archivo de datos que cubre el índice.
+     * @throws IOException si no se puede escribir el índice.
+     */
+    static void escribir(Path datos, Entradas entradas, long bytes) throws IOException {
+        Path ruta = getRuta(datos);
+        Path temporal = GestorDurabilidad.crearTemporal(ruta);
+        try {
+            try (DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+                salida.write(cabeceraABuffer(entradas.tamano(), bytes).array());
+                for (int i = 0; i < entradas.tamano(); i++) {
+                    salida.writeLong(entradas.posiciones[i]);
+                    salida.writeLong(entradas.fechas[i]);
+                }
+            }
+            Files.move(temporal, ruta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    /**
+     * Elimina el índice de un archivo de datos (por ejemplo, antes de sustituir el archivo de datos).
+     * @param datos El archivo de datos de la conversación.
+     * @throws IOException si no se puede borrar.
+     */
+    static void eliminar(Path datos) throws IOException {
+        Files.deleteIfExists(getRuta(datos));
+    }
+
+    /**
+     * Devuelve el número de mensajes indexados.
+     * @return El número de mensajes del archivo de datos.
+     */
+    int contar() {
+        return enArchivo + pendientes.tamano();
+    }
+
+    /**
+     * Devuelve la posición del registro de un mensaje en el archivo de datos.
+     * @param ordinal La posición del mensaje en la conversación (empezando en 0).
+     * @return La posición de su registro en el archivo de datos.
+     * @throws IOException si no se puede leer el índice.
+     */
+    long getPosicion(int ordinal) throws IOException {
+        if (ordinal >= enArchivo) {
+            return pendientes.posiciones[ordinal - enArchivo];
+        }
+        return leerEntrada(ordinal).getLong(0);
+    }
+
+    /**
+     * Busca el primer mensaje con fecha igual o posterior a la indicada mediante búsqueda binaria, suponiendo que
+     * los mensajes están en orden cronológico. Los mensajes sin fecha cuentan como anteriores a cualquier fecha.
+     * @param fecha La fecha buscada, en milisegundos desde la época (UTC).
+     * @return La posición del primer mensaje de esa fecha o posterior, o {@link #contar()} si no hay ninguno.
+     * @throws IOException si no se puede leer el índice.
+     */
+    int buscarFecha(long fecha) throws IOException {
+        int inicio = 0;
+        int fin = contar();
+        while (inicio < fin) {
+            int medio = (inicio + fin) >>> 1;
+            if (getFecha(medio) < fecha) {
+                inicio = medio + 1;
+            } else {
+                fin = medio;
+            }
+        }
+        return inicio;
+    }
+
+    private long getFecha(int ordinal) throws IOException {
+        if (ordinal >= enArchivo) {
+            return pendientes.fechas[ordinal - enArchivo];
+        }
+        return leerEntrada(ordinal).getLong(8);
+    }
+
+    private ByteBuffer leerEntrada(int ordinal) throws IOException {
+        ByteBuffer entrada = ByteBuffer.allocate(TAMANO_ENTRADA);
+        leerCompleto(canal, entrada, TAMANO_CABECERA + (long) ordinal * TAMANO_ENTRADA);
+        return entrada;
+    }
+
+    @Override
+    public void close() {
+        cerrar(canal);
+    }
+
+    /**
+     * Lee y valida la cabecera del índice.
+     * @param canal El canal del índice.
+     * @param tamanoDatos El tamaño actual del archivo de datos.
+     * @return El número de entradas y los bytes cubiertos, o {@code null} si el índice no es válido.
+     * @throws IOException si no se puede leer el índice.
+     */
+    private static long[] leerCabecera(FileChannel canal, long tamanoDatos) throws IOException {
+        if (canal.size() < TAMANO_CABECERA) {
+            return null;
+        }
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+        leerCompleto(canal, cabecera, 0);
+        byte[] firma = new byte[CABECERA.length];
+        cabecera.get(0, firma);
+        int entradas = cabecera.getInt(CABECERA.length);
+        long bytes = cabecera.getLong(CABECERA.length + 4);
+        if (!Arrays.equals(firma, CABECERA) || entradas < 0 || bytes > tamanoDatos
+                || canal.size() < TAMANO_CABECERA + (long) entradas * TAMANO_ENTRADA) {
+            return null;
+        }
+        return new long[]{entradas, bytes};
+    }
+
+    private static ByteBuffer cabeceraABuffer(int entradas, long bytes) {
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+        cabecera.put(CABECERA).putInt(entradas).putLong(bytes).flip();
+        return cabecera;
+    }
+
+    private static void leerCompleto(FileChannel canal, ByteBuffer buffer, long posicion) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (canal.read(buffer, posicion + buffer.position()) < 0) {
+                throw new IOException("El índice de la conversación está truncado");
+            }
+        }
+    }
+
+    private static void escribirCompleto(FileChannel canal, ByteBuffer buffer, long posicion) throws IOException {
+        while (buffer.hasRemaining()) {
+            canal.write(buffer, posicion + buffer.position());
+        }
+    }
+
+    private static FileChannel abrirCanal(Path ruta, StandardOpenOption... opciones) throws IOException {
+        try {
+            return FileChannel.open(ruta, opciones);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void cerrar(FileChannel canal) {
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // Se ignora: el índice sólo se ha leído
+            }
+        }
+    }
+
+    /**
+     * Lista creciente de entradas del índice (posición y fecha de cada mensaje).
+     */
+    static final class Entradas {
+        private long[] posiciones = new long[64];
+        private long[] fechas = new long[64];
+        private int tamano;
+
+        /**
+         * Anota un mensaje.
+         * @param posicion La posición de su registro en el archivo de datos.
+         * @param fecha Su fecha en milisegundos desde la época (UTC).
+         */
+        void anadir(long posicion, long fecha) {
+            if (tamano == posiciones.length) {
+                posiciones = Arrays.copyOf(posiciones, tamano * 2);
+                fechas = Arrays.copyOf(fechas, tamano * 2);
+            }
+            posiciones[tamano] = posicion;
+            fechas[tamano] = fecha;
+            tamano++;
+        }
+
+        private void anadirTodas(Entradas otras) {
+            for (int i = 0; i < otras.tamano; i++) {
+                anadir(otras.posiciones[i], otras.fechas[i]);
+            }
+        }
+
+        int tamano() {
+            return tamano;
+        }
+
+        private ByteBuffer aBuffer() {
+            ByteBuffer buffer = ByteBuffer.allocate(tamano * TAMANO_ENTRADA);
+            for (int i = 0; i < tamano; i++) {
+                buffer.putLong(posiciones[i]).putLong(fechas[i]);
+            }
+            return buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.utils.GestorDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.MotorSerializacionXml;
+
+import java.util.Map;
+
+/**
+ * Informe con las estadísticas de rendimiento que llevan los distintos componentes de acceso a datos: las
+ * escrituras y fsync de {@link GestorDurabilidad}, la serialización de {@link MotorSerializacionXml}, los aciertos
+ * de {@link CacheConversaciones}, los lotes de {@link ColaEscrituraMensajes} y las lecturas de
+ * {@link PrecargaConversaciones}.
+ * La aplicación lo escribe en la salida estándar al cerrarse; sirve para dimensionar las cachés y elegir los modos
+ * de durabilidad con datos reales.
+ */
+public final class InformeRendimiento {
+
+    /**
+     * Constructor privado: clase de utilidad con métodos estáticos.
+     */
+    private InformeRendimiento() {}
+
+    /**
+     * Genera el informe con las estadísticas acumuladas hasta ahora. Los componentes que no se han usado no aparecen.
+     * @return El texto del informe, una línea por componente (o por modo y clase).
+     */
+    public static String generar() {
+        StringBuilder informe = new StringBuilder("Estadísticas de rendimiento:");
+
+        for (Map.Entry<ModoDurabilidad, GestorDurabilidad.EstadisticasDurabilidad> entrada : GestorDurabilidad.getEstadisticas().entrySet()) {
+            GestorDurabilidad.EstadisticasDurabilidad e = entrada.getValue();
+            if (e.escrituras() > 0 || e.sincronizaciones() > 0) {
+                informe.append(String.format("%n  Durabilidad %s: %d escrituras, %d fsync (%d ms)", entrada.getKey(),
+                        e.escrituras(), e.sincronizaciones(), e.nanosSincronizacion() / 1_000_000));
+            }
+        }
+
+        for (Map.Entry<Class<?>, MotorSerializacionXml.EstadisticasClase> entrada : MotorSerializacionXml.getInstance().getEstadisticas().entrySet()) {
+            MotorSerializacionXml.EstadisticasClase e = entrada.getValue();
+            informe.append(String.format("%n  XML %s: contexto %d ms, %d escrituras (%d ms), %d lecturas (%d ms)",
+                    entrada.getKey().getSimpleName(), e.nanosCreacionContexto() / 1_000_000, e.escrituras(),
+                    e.nanosEscritura() / 1_000_000, e.lecturas(), e.nanosLectura() / 1_000_000));
+        }
+
+        CacheConversaciones.EstadisticasCache cache = CacheConversaciones.getInstance().getEstadisticas();
+        informe.append(String.format("%n  Caché de conversaciones: %d entradas (~%d KB), %d aciertos, %d fallos, %d expulsiones, %d invalidaciones",
+                cache.entradas(), cache.bytesEstimados() / 1024, cache.aciertos(), cache.fallos(), cache.expulsiones(),
+                cache.invalidaciones()));
+
+        ColaEscrituraMensajes cola = ColaEscrituraMensajes.getInstanciaSiExiste();
+        if (cola != null) {
+            informe.append(String.format("%n  Cola de escritura: %d mensajes en %d lotes, %d errores, %d sin guardar",
+                    cola.getMensajesEscritos(), cola.getLotesEscritos(), cola.getErroresEscritura(), cola.getMensajesSinGuardar()));
+        }
+
+        PrecargaConversaciones precarga = PrecargaConversaciones.getInstanciaSiExiste();
+        if (precarga != null) {
+            PrecargaConversaciones.EstadisticasPrecarga e = precarga.getEstadisticas();
+            informe.append(String.format("%n  Precarga: %d conversaciones, %d mensajes (%d ms), %d errores, %d canceladas",
+                    e.conversaciones(), e.mensajes(), e.nanos() / 1_000_000, e.errores(), e.canceladas()));
+        }
+        return informe.toString();
+    }
+
+    /**
+     * Escribe el informe en la salida estándar.
+     */
+    public static void imprimir() {
+        System.out.println(generar());
+    }
+}
@@ -0,0 +1,507 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Adjunto;
+import org.dam.fcojavier.chatofflinexml.model.Conversacion;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+import org.dam.fcojavier.chatofflinexml.model.Usuario;
+import org.dam.fcojavier.chatofflinexml.model.UsuariosLista;
+import org.dam.fcojavier.chatofflinexml.utils.BloqueoArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Migración y compactación sin conexión de la carpeta de datos.
+ * Convierte todas las conversaciones de la carpeta de conversaciones al formato de destino (XML o binario, segmentado
+ * o no, comprimido o no) repartiendo el trabajo entre varios hilos, y reescribe el archivo de usuarios.
+ * Si una conversación ya está en el formato de destino se reescribe igualmente, lo que la compacta (fusiona su diario,
+ * la recomprime o la vuelve a segmentar).
+ * <p>
+ * Cada conversación convertida se vuelve a leer y se compara con la original (número de mensajes y suma CRC32 de su
+ * contenido) antes de borrar los archivos originales. Las conversaciones terminadas se anotan en un archivo de
+ * progreso ({@value #ARCHIVO_PROGRESO}), de modo que si la migración se interrumpe, al repetirla se continúa donde se
+ * quedó. Los archivos temporales, diarios, índices y bloqueos de la carpeta se ignoran; al terminar se eliminan los
+ * archivos de bloqueo que ya no protegen ningún archivo.
+ * <p>
+ * Está pensada para ejecutarse con la aplicación cerrada (ver {@code HerramientaMigracion}).
+ */
+public class MigradorDatos {
+    /**
+     * Nombre del archivo de progreso, dentro de la carpeta de conversaciones.
+     */
+    public static final String ARCHIVO_PROGRESO = "migracion.progreso";
+    /**
+     * Cada cuántas conversaciones se informa del progreso por la salida estándar.
+     */
+    private static final int INTERVALO_INFORME = 1000;
+
+    /**
+     * Formatos en los que puede estar guardada una conversación.
+     */
+    public enum FormatoConversacion {
+        XML(false, false),
+        BINARIO(true, false),
+        SEGMENTADO_XML(false, true),
+        SEGMENTADO_BINARIO(true, true);
+
+        private final boolean binario;
+        private final boolean segmentado;
+
+        FormatoConversacion(boolean binario, boolean segmentado) {
+            this.binario = binario;
+            this.segmentado = segmentado;
+        }
+
+        /**
+         * Obtiene el formato que corresponde a una configuración de almacenamiento.
+         * @param binario Si las conversaciones (o sus segmentos) se guardan en binario.
+         * @param segmentado Si las conversaciones se reparten en segmentos.
+         * @return El formato correspondiente.
+         */
+        public static FormatoConversacion de(boolean binario, boolean segmentado) {
+            for (FormatoConversacion formato : values()) {
+                if (formato.binario == binario && formato.segmentado == segmentado) {
+                    return formato;
+                }
+            }
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Resumen de una migración.
+     * @param convertidas Conversaciones convertidas y verificadas.
+     * @param yaMigradas Conversaciones que ya constaban como migradas en el archivo de progreso.
+     * @param fallidas Conversaciones que no se pudieron convertir (se conservan sus archivos originales).
+     * @param mensajes Total de mensajes convertidos.
+     * @param bytesOrigen Tamaño de los archivos originales de las conversaciones convertidas.
+     * @param bytesDestino Tamaño de los archivos convertidos.
+     * @param milisegundos Duración de la migración.
+     */
+    public record ResultadoMigracion(int convertidas, int yaMigradas, int fallidas, long mensajes,
+                                     long bytesOrigen, long bytesDestino, long milisegundos) {
+    }
+
+    private final Path directorioConversaciones;
+    private final FormatoConversacion formatoDestino;
+    private final SegmentadoConversacionStore.CriterioSegmentacion criterio;
+    private final boolean comprimir;
+    private final int hilos;
+    private final boolean conservarOrigen;
+    private final Map<FormatoConversacion, ConversacionStore> stores = new EnumMap<>(FormatoConversacion.class);
+
+    /**
+     * Constructor de la clase MigradorDatos.
+     * @param directorioConversaciones La carpeta de las conversaciones.
+     * @param binario Si las conversaciones se convierten al formato binario (si no, a XML).
+     * @param criterio El criterio de segmentación del destino, o {@code null} para no segmentar.
+     * @param comprimir Si los XML de destino se guardan comprimidos.
+     * @param hilos El número de conversaciones que se convierten en paralelo.
+     * @param conservarOrigen Si es {@code true}, no se borran los archivos originales al convertir a otro formato.
+     */
+    public MigradorDatos(Path directorioConversaciones, boolean binario,
+                         SegmentadoConversacionStore.CriterioSegmentacion criterio, boolean comprimir,
+                         int hilos, boolean conservarOrigen) {
+        this.directorioConversaciones = directorioConversaciones;
+        this.formatoDestino = FormatoConversacion.de(binario, criterio != null);
+        this.criterio = criterio != null ? criterio : SegmentadoConversacionStore.CriterioSegmentacion.MENSUAL;
+        this.comprimir = comprimir;
+        this.hilos = Math.max(1, hilos);
+        this.conservarOrigen = conservarOrigen;
+        for (FormatoConversacion formato : FormatoConversacion.values()) {
+            // Las escrituras son SEGURO: los originales sólo se borran cuando la copia está en disco
+            stores.put(formato, ConversacionDAO.crearStore(directorioConversaciones, formato.binario,
+                    formato.segmentado ? this.criterio : null, ModoDurabilidad.SEGURO, comprimir));
+        }
+    }
+
+    /**
+     * Describe el destino de la migración; se guarda en el archivo de progreso para no continuar una migración
+     * con un destino distinto.
+     * @return La descripción del formato de destino.
+     */
+    private String describirDestino() {
+        return "destino=" + formatoDestino + (formatoDestino.segmentado ? "," + criterio : "") + ",comprimir=" + comprimir;
+    }
+
+    /**
+     * Convierte todas las conversaciones de la carpeta al formato de destino.
+     * @return El resumen de la migración.
+     * @throws IOException si no se puede recorrer la carpeta o escribir el archivo de progreso.
+     */
+    public ResultadoMigracion migrarConversaciones() throws IOException {
+        long inicio = System.currentTimeMillis();
+        Files.createDirectories(directorioConversaciones);
+        Map<String, Set<FormatoConversacion>> conversaciones = buscarConversaciones();
+        Set<String> completadas = leerProgreso();
+
+        AtomicInteger convertidas = new AtomicInteger();
+        AtomicInteger fallidas = new AtomicInteger();
+        AtomicLong mensajes = new AtomicLong();
+        AtomicLong bytesOrigen = new AtomicLong();
+        AtomicLong bytesDestino = new AtomicLong();
+        int yaMigradas = 0;
+
+        AtomicInteger numeroHilo = new AtomicInteger();
+        ExecutorService trabajadores = Executors.newFixedThreadPool(hilos,
+                tarea -> new Thread(tarea, "migracion-" + numeroHilo.incrementAndGet()));
+        try (FileChannel progreso = FileChannel.open(directorioConversaciones.resolve(ARCHIVO_PROGRESO),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (progreso.size() == 0) {
+                anotar(progreso, describirDestino());
+            }
+            List<Future<?>> tareas = new ArrayList<>();
+            for (Map.Entry<String, Set<FormatoConversacion>> conversacion : conversaciones.entrySet()) {
+                String clave = conversacion.getKey();
+                if (completadas.contains(clave)) {
+                    yaMigradas++;
+                    continue;
+                }
+                tareas.add(trabajadores.submit(() -> {
+                    try {
+                        long[] resultado = migrarConversacion(clave, conversacion.getValue());
+                        mensajes.addAndGet(resultado[0]);
+                        bytesOrigen.addAndGet(resultado[1]);
+                        bytesDestino.addAndGet(resultado[2]);
+                        anotar(progreso, clave);
+                        int total = convertidas.incrementAndGet();
+                        if (total % INTERVALO_INFORME == 0) {
+                            System.out.println("Conversaciones convertidas: " + total + " de " + conversaciones.size());
+                        }
+                    } catch (IOException | UncheckedIOException | IllegalStateException e) {
+                        fallidas.incrementAndGet();
+                        System.err.println("Error al migrar la conversación " + clave + ": " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> tarea : tareas) {
+                tarea.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Migración interrumpida", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error inesperado durante la migración", e.getCause());
+        } finally {
+            trabajadores.shutdownNow();
+        }
+
+        if (fallidas.get() == 0) {
+            // Migración completa: la próxima empezará desde cero
+            Files.deleteIfExists(directorioConversaciones.resolve(ARCHIVO_PROGRESO));
+        }
+        BloqueoArchivos.eliminarBloqueosHuerfanos(directorioConversaciones);
+        return new ResultadoMigracion(convertidas.get(), yaMigradas, fallidas.get(), mensajes.get(),
+                bytesOrigen.get(), bytesDestino.get(), System.currentTimeMillis() - inicio);
+    }
+
+    /**
+     * Convierte una conversación: la lee en su formato de origen, la guarda en el de destino, comprueba que la copia
+     * coincide con el original y borra los archivos originales que ya no se usan.
+     * Si la conversación está en dos formatos (por una migración interrumpida después de escribir la copia), el
+     * original es el que no es el de destino: la copia se vuelve a escribir desde él.
+     * @param clave La clave de la conversación.
+     * @param formatos Los formatos en que se ha encontrado la conversación.
+     * @return El número de mensajes, los bytes de origen y los bytes de destino.
+     * @throws IOException si no se puede convertir o la copia no coincide con el original.
+     */
+    @SuppressWarnings("try")
+    private long[] migrarConversacion(String clave, Set<FormatoConversacion> formatos) throws IOException {
+        Set<FormatoConversacion> origenes = EnumSet.copyOf(formatos);
+        if (origenes.size() > 1) {
+            origenes.remove(formatoDestino);
+        }
+        if (origenes.size() > 1) {
+            throw new IOException("la conversación está guardada en varios formatos " + origenes + ", no se migra");
+        }
+        ConversacionStore origen = stores.get(origenes.iterator().next());
+        ConversacionStore destino = stores.get(formatoDestino);
+        Path principal = origen.getArchivoPrincipal(clave);
+
+        long[] resultado;
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(principal)) {
+            List<Path> archivosOrigen = origen.getTodosLosArchivos(clave);
+            long bytesOrigen = sumarTamanos(archivosOrigen);
+            Optional<Conversacion> leida = origen.leer(clave);
+            if (leida.isEmpty() && origen instanceof XmlConversacionStore xml) {
+                leida = xml.leerDiarioHuerfano(clave);
+            }
+            Conversacion conversacion = leida.orElseThrow(() -> new IOException("no se pudo leer la conversación"));
+            SumaMensajes esperada = new SumaMensajes();
+            conversacion.getMensajes().forEach(esperada::anadir);
+
+            destino.guardar(clave, conversacion);
+
+            SumaMensajes obtenida = new SumaMensajes();
+            try (Stream<Mensaje> mensajes = destino.streamMensajes(clave)) {
+                mensajes.forEach(obtenida::anadir);
+            }
+            if (!esperada.equals(obtenida)) {
+                throw new IOException("la copia no coincide con el original (" + esperada + " / " + obtenida + ")");
+            }
+
+            List<Path> archivosDestino = destino.getTodosLosArchivos(clave);
+            if (!conservarOrigen) {
+                Set<Path> nuevos = new HashSet<>(archivosDestino);
+                for (Path archivo : archivosOrigen) {
+                    if (!nuevos.contains(archivo)) {
+                        Files.deleteIfExists(archivo);
+                    }
+                }
+            }
+            resultado = new long[]{esperada.mensajes, bytesOrigen, sumarTamanos(archivosDestino)};
+        }
+        if (!conservarOrigen && !Files.exists(principal)) {
+            // El archivo de bloqueo del original ya no protege nada
+            Files.deleteIfExists(principal.resolveSibling(principal.getFileName() + BloqueoArchivos.EXTENSION_BLOQUEO));
+            borrarDirectorioVacio(directorioConversaciones.resolve(clave));
+        }
+        return resultado;
+    }
+
+    /**
+     * Reescribe el archivo de usuarios (por ejemplo, para comprimirlo) y comprueba que no se ha perdido ninguno.
+     * @param archivo El archivo de usuarios.
+     * @return El número de usuarios reescritos.
+     * @throws IOException si no se puede leer o escribir, o la copia no coincide con el original.
+     */
+    @SuppressWarnings("try")
+    public int migrarUsuarios(Path archivo) throws IOException {
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(archivo)) {
+            UsuarioStore store = new XmlUsuarioStore(archivo, ModoDurabilidad.SEGURO, comprimir);
+            UsuariosLista usuarios = store.cargar();
+            long esperada = sumarUsuarios(usuarios);
+            store.guardar(usuarios);
+            UsuariosLista guardados = store.cargar();
+            if (guardados.getUsuarios().size() != usuarios.getUsuarios().size() || sumarUsuarios(guardados) != esperada) {
+                throw new IOException("la copia del archivo de usuarios no coincide con el original");
+            }
+            return guardados.getUsuarios().size();
+        }
+    }
+
+    /**
+     * Suma las CRC32 de los datos de cada usuario; la suma no depende del orden, que en el conjunto no está fijado.
+     * @param usuarios La lista de usuarios.
+     * @return La suma de comprobación de la lista.
+     */
+    private static long sumarUsuarios(UsuariosLista usuarios) {
+        long suma = 0;
+        for (Usuario usuario : usuarios.getUsuarios()) {
+            CRC32 crc = new CRC32();
+            for (String campo : new String[]{usuario.getNombre(), usuario.getApellido(), usuario.getEmail(), usuario.getPassword()}) {
+                crc.update((campo == null ? "" : campo).getBytes(StandardCharsets.UTF_8));
+                crc.update(0);
+            }
+            suma += crc.getValue();
+        }
+        return suma;
+    }
+
+    /**
+     * Recorre la carpeta de conversaciones y detecta en qué formatos está guardada cada una.
+     * @return Las claves de las conversaciones (ordenadas) con sus formatos.
+     * @throws IOException si no se puede recorrer la carpeta.
+     */
+    private Map<String, Set<FormatoConversacion>> buscarConversaciones() throws IOException {
+        Map<String, Set<FormatoConversacion>> conversaciones = new TreeMap<>();
+        Set<String> diarios = new HashSet<>();
+        try (DirectoryStream<Path> entradas = Files.newDirectoryStream(directorioConversaciones)) {
+            for (Path entrada : entradas) {
+                String nombre = entrada.getFileName().toString();
+                FormatoConversacion formato = null;
+                String clave = null;
+                if (Files.isDirectory(entrada)) {
+                    formato = detectarFormatoSegmentado(entrada);
+                    clave = nombre;
+                } else if (nombre.endsWith(".xml")) {
+                    formato = FormatoConversacion.XML;
+                    clave = nombre.substring(0, nombre.length() - ".xml".length());
+                } else if (nombre.endsWith(BinarioConversacionStore.EXTENSION)) {
+                    formato = FormatoConversacion.BINARIO;
+                    clave = nombre.substring(0, nombre.length() - BinarioConversacionStore.EXTENSION.length());
+                } else if (nombre.endsWith(XmlConversacionStore.EXTENSION_DIARIO)) {
+                    diarios.add(nombre.substring(0, nombre.length() - XmlConversacionStore.EXTENSION_DIARIO.length()));
+                }
+                // Temporales (.tmp), índices (.idx), bloqueos (.lock) y el progreso se ignoran
+                if (formato != null && clave.contains("_")) {
+                    conversaciones.computeIfAbsent(clave, c -> EnumSet.noneOf(FormatoConversacion.class)).add(formato);
+                }
+            }
+        }
+        // Un diario sin XML ni otro formato es lo único que queda de la conversación: se migra como XML. Si la
+        // conversación está en otro formato, el diario es un resto de una migración anterior ya copiada
+        for (String clave : diarios) {
+            if (clave.contains("_") && !conversaciones.containsKey(clave)) {
+                conversaciones.put(clave, EnumSet.of(FormatoConversacion.XML));
+            }
+        }
+        return conversaciones;
+    }
+
+    /**
+     * Detecta si un directorio es una conversación segmentada y en qué formato están sus segmentos.
+     * @param directorio El directorio de la conversación.
+     * @return El formato segmentado, o {@code null} si el directorio no tiene manifiesto.
+     * @throws IOException si no se puede recorrer el directorio.
+     */
+    private static FormatoConversacion detectarFormatoSegmentado(Path directorio) throws IOException {
+        if (!Files.exists(directorio.resolve("manifiesto.xml"))) {
+            return null;
+        }
+        try (DirectoryStream<Path> segmentos = Files.newDirectoryStream(directorio, "*" + BinarioConversacionStore.EXTENSION)) {
+            return segmentos.iterator().hasNext() ? FormatoConversacion.SEGMENTADO_BINARIO : FormatoConversacion.SEGMENTADO_XML;
+        }
+    }
+
+    /**
+     * Lee las conversaciones ya migradas del archivo de progreso. Si el progreso corresponde a un destino distinto,
+     * se descarta y se empieza de nuevo.
+     * @return Las claves de las conversaciones ya migradas.
+     * @throws IOException si no se puede leer el archivo.
+     */
+    private Set<String> leerProgreso() throws IOException {
+        Path archivo = directorioConversaciones.resolve(ARCHIVO_PROGRESO);
+        if (!Files.exists(archivo)) {
+            return Set.of();
+        }
+        List<String> lineas = Files.readAllLines(archivo, StandardCharsets.UTF_8);
+        if (lineas.isEmpty() || !lineas.get(0).equals(describirDestino())) {
+            System.err.println("Aviso: el progreso guardado es de una migración con otro destino, se empieza de nuevo");
+            Files.delete(archivo);
+            return Set.of();
+        }
+        Set<String> completadas = ConcurrentHashMap.newKeySet();
+        completadas.addAll(lineas.subList(1, lineas.size()));
+        completadas.remove("");
+        System.out.println("Continuando una migración interrumpida: " + completadas.size() + " conversaciones ya migradas");
+        return completadas;
+    }
+
+    /**
+     * Añade una línea al archivo de progreso y la fuerza a disco.
+     * @param progreso El canal del archivo de progreso.
+     * @param linea La línea a añadir.
+     * @throws IOException si no se puede escribir.
+     */
+    private static void anotar(FileChannel progreso, String linea) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((linea + "\n").getBytes(StandardCharsets.UTF_8));
+        synchronized (progreso) {
+            while (buffer.hasRemaining()) {
+                progreso.write(buffer);
+            }
+            progreso.force(false);
+        }
+    }
+
+    private static long sumarTamanos(List<Path> archivos) throws IOException {
+        long total = 0;
+        for (Path archivo : archivos) {
+            if (Files.exists(archivo)) {
+                total += Files.size(archivo);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Borra el directorio de una conversación segmentada si ya sólo quedan en él archivos de bloqueo.
+     * @param directorio El directorio de la conversación.
+     */
+    private static void borrarDirectorioVacio(Path directorio) {
+        if (!Files.isDirectory(directorio)) {
+            return;
+        }
+        try {
+            List<Path> restantes;
+            try (Stream<Path> archivos = Files.list(directorio)) {
+                restantes = archivos.toList();
+            }
+            if (restantes.stream().allMatch(archivo -> archivo.getFileName().toString().endsWith(BloqueoArchivos.EXTENSION_BLOQUEO))) {
+                for (Path archivo : restantes) {
+                    Files.deleteIfExists(archivo);
+                }
+                Files.deleteIfExists(directorio);
+            }
+        } catch (IOException e) {
+            System.err.println("Aviso: no se pudo borrar el directorio " + directorio + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Número de mensajes y suma CRC32 de su contenido, para comparar una conversación con su copia.
+     * Las fechas se comparan al segundo (la precisión del formato XML) y los textos nulos como vacíos.
+     */
+    private static final class SumaMensajes {
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer fecha = ByteBuffer.allocate(Long.BYTES);
+        private long mensajes;
+
+        private void anadir(Mensaje mensaje) {
+            mensajes++;
+            anadirTexto(mensaje.getRemitente());
+            anadirTexto(mensaje.getDestinatario());
+            LocalDateTime fechaHora = mensaje.getFechaHora();
+            fecha.clear();
+            fecha.putLong(fechaHora == null ? Long.MIN_VALUE : fechaHora.toEpochSecond(ZoneOffset.UTC));
+            crc.update(fecha.array());
+            anadirTexto(mensaje.getContenido());
+            Adjunto adjunto = mensaje.getAdjunto();
+            crc.update(adjunto == null ? 0 : 1);
+            if (adjunto != null) {
+                anadirTexto(adjunto.getNombre());
+                anadirTexto(adjunto.getTipo());
+                anadirTexto(adjunto.getRuta());
+                anadirTexto(Long.toString(adjunto.getTamano()));
+            }
+        }
+
+        private void anadirTexto(String texto) {
+            crc.update((texto == null ? "" : texto).getBytes(StandardCharsets.UTF_8));
+            crc.update(0);
+        }
+
+        @Override
+        public boolean equals(Object otro) {
+            return otro instanceof SumaMensajes suma && suma.mensajes == mensajes && suma.crc.getValue() == crc.getValue();
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(crc.getValue());
+        }
+
+        @Override
+        public String toString() {
+            return mensajes + " mensajes, CRC32 " + Long.toHexString(crc.getValue());
+        }
+    }
+}
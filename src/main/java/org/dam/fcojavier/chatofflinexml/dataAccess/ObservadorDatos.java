@@ -0,0 +1,395 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.utils.BloqueoArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.RegistroEscrituras;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Observa la carpeta de datos con un {@link WatchService} y avisa de qué archivos de usuarios, conversaciones y
+ * bandejas de entrada han cambiado, para que las ventanas abiertas se actualicen sin consultar el disco periódicamente
+ * (por ejemplo, cuando otra instancia de la aplicación escribe en la misma carpeta de datos).
+ * <p>
+ * Los cambios se agrupan: cada escritura genera varios eventos (temporal, renombrado, diario...) y una conversación
+ * puede recibir muchos mensajes seguidos, así que se espera a que pase {@value #ESPERA_AGRUPACION_MS} ms sin cambios
+ * (como mucho {@value #ESPERA_MAXIMA_MS} ms) y se notifica una sola vez cada usuario o conversación afectados.
+ * Los cambios que ha hecho este mismo proceso (anotados en {@link RegistroEscrituras}) no se notifican: la ventana
+ * que los hizo ya los muestra. Los oyentes reciben los avisos en el hilo del observador.
+ * Implementa el patrón Singleton para que todas las ventanas compartan el mismo observador.
+ */
+public class ObservadorDatos {
+    /**
+     * Tiempo sin cambios que se espera antes de notificar los cambios acumulados.
+     */
+    private static final long ESPERA_AGRUPACION_MS = 150;
+    /**
+     * Tiempo máximo que se retrasa una notificación aunque sigan llegando cambios.
+     */
+    private static final long ESPERA_MAXIMA_MS = 1_000;
+    /**
+     * Extensiones de los archivos de una conversación, de la más larga a la más corta, para obtener su clave
+     * (los nombres de usuario pueden contener puntos).
+     */
+    private static final List<String> EXTENSIONES_CONVERSACION = List.of(
+            BinarioConversacionStore.EXTENSION + IndiceMensajes.EXTENSION,
+            XmlConversacionStore.EXTENSION_DIARIO + IndiceMensajes.EXTENSION, ".xml" + IndiceMensajes.EXTENSION,
+            BinarioConversacionStore.EXTENSION, XmlConversacionStore.EXTENSION_DIARIO, ".xml");
+
+    private static ObservadorDatos instance;
+
+    private final Path directorioConversaciones;
+    private final Path directorioBandejas;
+    private final Path directorioDatos;
+    private final Set<String> archivosUsuarios;
+    private final List<Consumer<CambiosDatos>> oyentes = new CopyOnWriteArrayList<>();
+    private final Map<WatchKey, Path> directoriosObservados = new HashMap<>();
+    private final ScheduledExecutorService notificador = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread hilo = new Thread(runnable, "notificador-cambios-datos");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    // Cambios acumulados pendientes de notificar (protegidos por 'this')
+    private boolean desbordado;
+    private final Set<Path> archivosPendientes = new HashSet<>();
+    private long primerCambioPendiente;
+    private long ultimoCambio;
+    private boolean notificacionProgramada;
+
+    private WatchService watchService;
+    private Thread observador;
+
+    /**
+     * Constructor privado para implementar el patrón Singleton.
+     * Observa las carpetas de datos por defecto de la aplicación.
+     */
+    private ObservadorDatos() {
+        Path usuarios = Paths.get(XmlUsuarioStore.USUARIOS_XML).toAbsolutePath();
+        this.directorioDatos = usuarios.getParent();
+        this.directorioConversaciones = Paths.get(XmlConversacionStore.CONVERSACIONES_DIR).toAbsolutePath();
+        this.directorioBandejas = Paths.get(BandejaDAO.BANDEJAS_DIR).toAbsolutePath();
+        this.archivosUsuarios = Set.of(usuarios.getFileName().toString(),
+                XmlUsuarioStore.getRutaDiario(usuarios).getFileName().toString());
+    }
+
+    /**
+     * Obtiene la única instancia del observador, creándola si no existe.
+     * @return La instancia compartida del observador.
+     */
+    public static synchronized ObservadorDatos getInstance() {
+        if (instance == null) {
+            instance = new ObservadorDatos();
+        }
+        return instance;
+    }
+
+    /**
+     * Registra un oyente de cambios. El observador empieza a vigilar la carpeta de datos con el primer oyente.
+     * @param oyente La acción que recibe cada grupo de cambios (en el hilo del observador).
+     */
+    public synchronized void anadirOyente(Consumer<CambiosDatos> oyente) {
+        oyentes.add(oyente);
+        if (observador == null) {
+            iniciar();
+        }
+    }
+
+    /**
+     * Elimina un oyente de cambios. Cuando no queda ninguno, el observador deja de vigilar la carpeta de datos.
+     * @param oyente El oyente registrado con {@link #anadirOyente(Consumer)}.
+     */
+    public synchronized void quitarOyente(Consumer<CambiosDatos> oyente) {
+        oyentes.remove(oyente);
+        if (oyentes.isEmpty()) {
+            detener();
+        }
+    }
+
+    /**
+     * Abre el {@link WatchService}, registra las carpetas de datos y arranca el hilo que recibe los eventos.
+     */
+    private void iniciar() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Files.createDirectories(directorioConversaciones);
+            Files.createDirectories(directorioBandejas);
+            registrar(directorioDatos);
+            registrar(directorioBandejas);
+            registrarArbol(directorioConversaciones);
+        } catch (IOException e) {
+            System.err.println("No se pueden observar los cambios en la carpeta de datos: " + e.getMessage());
+            detener();
+            return;
+        }
+        WatchService servicio = watchService;
+        observador = new Thread(() -> bucleEventos(servicio), "observador-datos");
+        observador.setDaemon(true);
+        observador.start();
+    }
+
+    /**
+     * Cierra el {@link WatchService}, lo que termina el hilo que recibe los eventos.
+     */
+    private void detener() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                System.err.println("Error al cerrar el observador de la carpeta de datos: " + e.getMessage());
+            }
+        }
+        watchService = null;
+        observador = null;
+        directoriosObservados.clear();
+    }
+
+    /**
+     * Registra una carpeta en el {@link WatchService}.
+     * @param directorio La carpeta a observar.
+     * @throws IOException si no se puede registrar.
+     */
+    private void registrar(Path directorio) throws IOException {
+        WatchKey clave = directorio.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        directoriosObservados.put(clave, directorio);
+    }
+
+    /**
+     * Registra una carpeta y todas sus subcarpetas (las conversaciones segmentadas son carpetas).
+     * @param directorio La carpeta raíz.
+     * @throws IOException si no se puede recorrer o registrar.
+     */
+    private void registrarArbol(Path directorio) throws IOException {
+        try (Stream<Path> carpetas = Files.walk(directorio)) {
+            for (Path carpeta : (Iterable<Path>) carpetas.filter(Files::isDirectory)::iterator) {
+                registrar(carpeta);
+            }
+        }
+    }
+
+    /**
+     * Bucle del hilo observador: recibe los eventos del {@link WatchService} hasta que se cierra.
+     * @param servicio El servicio del que se leen los eventos.
+     */
+    private void bucleEventos(WatchService servicio) {
+        while (true) {
+            WatchKey clave;
+            try {
+                clave = servicio.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (this) {
+                Path directorio = directoriosObservados.get(clave);
+                for (WatchEvent<?> evento : clave.pollEvents()) {
+                    if (evento.kind() == StandardWatchEventKinds.OVERFLOW || directorio == null) {
+                        desbordado = true;
+                    } else {
+                        registrarCambio(directorio.resolve((Path) evento.context()), evento.kind());
+                    }
+                }
+                if (!clave.reset()) {
+                    directoriosObservados.remove(clave);
+                }
+                programarNotificacion();
+            }
+        }
+    }
+
+    /**
+     * Anota un archivo modificado para clasificarlo al notificar, cuando ya se puede saber si el cambio es propio.
+     * Se ignoran los archivos temporales, de bloqueo y los índices (se regeneran a partir de los datos, que ya
+     * avisan de sus propios cambios). Las carpetas de conversación nuevas se empiezan a observar en el momento.
+     * @param archivo El archivo creado, modificado o eliminado.
+     * @param tipo El tipo de evento.
+     */
+    private void registrarCambio(Path archivo, WatchEvent.Kind<?> tipo) {
+        String nombre = archivo.getFileName().toString();
+        if (nombre.endsWith(".tmp") || nombre.endsWith(BloqueoArchivos.EXTENSION_BLOQUEO)
+                || nombre.endsWith(IndiceMensajes.EXTENSION)) {
+            return;
+        }
+        if (tipo == StandardWatchEventKinds.ENTRY_CREATE && archivo.getParent().equals(directorioConversaciones)
+                && Files.isDirectory(archivo)) {
+            try {
+                registrarArbol(archivo);
+            } catch (IOException e) {
+                desbordado = true;
+            }
+        }
+        archivosPendientes.add(archivo);
+    }
+
+    /**
+     * Clasifica los archivos modificados en usuarios, conversaciones y bandejas, descartando los que siguen tal como
+     * los dejó este proceso.
+     * @param archivos Los archivos modificados.
+     * @param perdidos Si se han perdido eventos.
+     * @return Los cambios a notificar, o {@code null} si todos eran propios.
+     */
+    private CambiosDatos clasificar(Set<Path> archivos, boolean perdidos) {
+        boolean usuarios = false;
+        Set<String> conversaciones = new HashSet<>();
+        Set<String> bandejas = new HashSet<>();
+        for (Path archivo : archivos) {
+            if (RegistroEscrituras.esPropio(archivo)) {
+                continue;
+            }
+            String nombre = archivo.getFileName().toString();
+            Path carpeta = archivo.getParent();
+            if (carpeta.equals(directorioDatos)) {
+                usuarios |= archivosUsuarios.contains(nombre);
+            } else if (carpeta.equals(directorioBandejas)) {
+                if (nombre.endsWith(".xml")) {
+                    bandejas.add(nombre.substring(0, nombre.length() - ".xml".length()));
+                }
+            } else if (archivo.startsWith(directorioConversaciones)) {
+                Path relativa = directorioConversaciones.relativize(archivo);
+                if (relativa.getNameCount() > 1 || Files.isDirectory(archivo)) {
+                    // La carpeta de una conversación segmentada, o un archivo dentro de ella
+                    conversaciones.add(relativa.getName(0).toString());
+                } else {
+                    conversaciones.add(claveDeArchivo(nombre));
+                }
+            }
+        }
+        if (!perdidos && !usuarios && conversaciones.isEmpty() && bandejas.isEmpty()) {
+            return null;
+        }
+        return new CambiosDatos(usuarios, Set.copyOf(conversaciones), Set.copyOf(bandejas), perdidos);
+    }
+
+    /**
+     * Obtiene la clave de la conversación a la que pertenece un archivo (por ejemplo, {@code Antonio_Fran.diario}
+     * o {@code Antonio_Fran.bin.idx} pertenecen a {@code Antonio_Fran}). Sólo se quitan las extensiones conocidas,
+     * porque los nombres de usuario pueden contener puntos ({@code ana.lopez_Fran.xml}).
+     * @param nombre El nombre del archivo.
+     * @return La clave de la conversación.
+     */
+    private static String claveDeArchivo(String nombre) {
+        for (String extension : EXTENSIONES_CONVERSACION) {
+            if (nombre.endsWith(extension) && nombre.length() > extension.length()) {
+                return nombre.substring(0, nombre.length() - extension.length());
+            }
+        }
+        return nombre;
+    }
+
+    /**
+     * Programa la notificación de los cambios acumulados, si no lo está ya. Debe llamarse con el monitor adquirido.
+     */
+    private void programarNotificacion() {
+        long ahora = System.currentTimeMillis();
+        if (!hayCambiosPendientes()) {
+            return;
+        }
+        if (primerCambioPendiente == 0) {
+            primerCambioPendiente = ahora;
+        }
+        ultimoCambio = ahora;
+        if (!notificacionProgramada) {
+            notificacionProgramada = true;
+            notificador.schedule(this::notificarSiHaTerminado, ESPERA_AGRUPACION_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Indica si se ha acumulado algún cambio. Debe llamarse con el monitor adquirido.
+     * @return {@code true} si hay cambios pendientes de notificar.
+     */
+    private boolean hayCambiosPendientes() {
+        return desbordado || !archivosPendientes.isEmpty();
+    }
+
+    /**
+     * Notifica los cambios acumulados si ya ha pasado el tiempo de agrupación sin cambios nuevos (o el tiempo máximo);
+     * si no, vuelve a esperar.
+     */
+    private void notificarSiHaTerminado() {
+        Set<Path> archivos;
+        boolean perdidos;
+        synchronized (this) {
+            long ahora = System.currentTimeMillis();
+            long espera = Math.min(ultimoCambio + ESPERA_AGRUPACION_MS, primerCambioPendiente + ESPERA_MAXIMA_MS) - ahora;
+            if (espera > 0) {
+                notificador.schedule(this::notificarSiHaTerminado, espera, TimeUnit.MILLISECONDS);
+                return;
+            }
+            archivos = Set.copyOf(archivosPendientes);
+            perdidos = desbordado;
+            desbordado = false;
+            archivosPendientes.clear();
+            primerCambioPendiente = 0;
+            notificacionProgramada = false;
+        }
+        CambiosDatos cambios = clasificar(archivos, perdidos);
+        if (cambios == null) {
+            return;
+        }
+        for (Consumer<CambiosDatos> oyente : oyentes) {
+            try {
+                oyente.accept(cambios);
+            } catch (RuntimeException e) {
+                System.err.println("Error al notificar los cambios de la carpeta de datos: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Grupo de cambios detectados en la carpeta de datos.
+     * @param usuarios {@code true} si ha cambiado el archivo de usuarios.
+     * @param conversaciones Las claves de las conversaciones cuyos archivos han cambiado.
+     * @param bandejas Los nombres de los usuarios cuya bandeja de entrada ha cambiado.
+     * @param desbordado {@code true} si se han perdido eventos (el sistema no pudo entregarlos todos), en cuyo
+     *                   caso hay que suponer que cualquier archivo puede haber cambiado.
+     */
+    public record CambiosDatos(boolean usuarios, Set<String> conversaciones, Set<String> bandejas, boolean desbordado) {
+        /**
+         * Indica si puede haber cambiado la conversación entre dos usuarios.
+         * @param usuario1 El nombre del primer participante.
+         * @param usuario2 El nombre del segundo participante.
+         * @return {@code true} si sus archivos han cambiado (o se han perdido eventos).
+         */
+        public boolean afectaConversacion(String usuario1, String usuario2) {
+            return desbordado || conversaciones.contains(ConversacionDAO.claveConversacion(usuario1, usuario2));
+        }
+
+        /**
+         * Indica si puede haber cambiado la bandeja de entrada de un usuario.
+         * @param usuario El nombre del usuario.
+         * @return {@code true} si su bandeja ha cambiado (o se han perdido eventos).
+         */
+        public boolean afectaBandeja(String usuario) {
+            return desbordado || bandejas.contains(usuario);
+        }
+
+        /**
+         * Indica si puede haber cambiado la lista de usuarios.
+         * @return {@code true} si el archivo de usuarios ha cambiado (o se han perdido eventos).
+         */
+        public boolean afectaUsuarios() {
+            return desbordado || usuarios;
+        }
+    }
+}
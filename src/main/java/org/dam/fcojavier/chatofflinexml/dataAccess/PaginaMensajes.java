@@ -0,0 +1,34 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+
+import java.util.List;
+
+/**
+ * Página de mensajes consecutivos de una conversación, devuelta por las consultas paginadas de {@link ConversacionDAO}.
+ * @param mensajes Los mensajes de la página, en orden cronológico.
+ * @param indiceInicio Posición (empezando en 0) del primer mensaje de la página dentro de la conversación.
+ *                     Sirve como cursor para pedir la página anterior.
+ */
+public record PaginaMensajes(List<Mensaje> mensajes, int indiceInicio) {
+    /**
+     * Número de mensajes que muestra el chat al abrir una conversación y que carga cada vez que se sube hasta arriba.
+     */
+    public static final int TAMANO_PAGINA = 50;
+
+    /**
+     * Indica si existen mensajes más antiguos que los de esta página.
+     * @return {@code true} si hay mensajes anteriores al primero de la página.
+     */
+    public boolean hayAnteriores() {
+        return indiceInicio > 0;
+    }
+
+    /**
+     * Indica si la página no contiene mensajes.
+     * @return {@code true} si la página está vacía.
+     */
+    public boolean estaVacia() {
+        return mensajes.isEmpty();
+    }
+}
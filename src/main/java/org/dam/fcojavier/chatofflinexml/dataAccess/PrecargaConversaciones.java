@@ -0,0 +1,242 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.BandejaEntrada;
+import org.dam.fcojavier.chatofflinexml.model.EntradaBandeja;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Precarga ("calentamiento") de las conversaciones más recientes del usuario tras iniciar sesión.
+ * Las conversaciones se eligen por la fecha de su último mensaje según la bandeja de entrada ({@link BandejaDAO}) y
+ * de cada una se lee en segundo plano sólo la última página ({@value PaginaMensajes#TAMANO_PAGINA} mensajes), que es
+ * lo que pide el chat al abrirla: así quedan construidos sus índices y sus archivos en la caché del sistema operativo
+ * sin cargar historiales completos en memoria ni desplazar de {@link CacheConversaciones} las conversaciones en uso.
+ * <p>
+ * La precarga usa un grupo acotado de hilos de baja prioridad y se puede cancelar (al cerrar sesión). Su progreso
+ * se puede seguir con un oyente y lleva contadores acumulados ({@link #getEstadisticas()}) que se muestran en
+ * {@link InformeRendimiento}. El número de conversaciones a precargar se ajusta con la propiedad del sistema
+ * {@value #PROPIEDAD_PRECARGA} ({@code 0} la desactiva).
+ * Implementa el patrón Singleton para que sólo haya una precarga en marcha.
+ */
+public class PrecargaConversaciones {
+    /**
+     * Propiedad del sistema con el número de conversaciones recientes que se precargan.
+     */
+    public static final String PROPIEDAD_PRECARGA = "chatofflinexml.precarga";
+    /**
+     * Número de conversaciones que se precargan si no se indica la propiedad.
+     */
+    private static final int CONVERSACIONES_POR_DEFECTO = 8;
+    /**
+     * Número de hilos que leen conversaciones a la vez, para no competir con la interfaz por el disco.
+     */
+    private static final int HILOS = 2;
+
+    private static PrecargaConversaciones instance;
+
+    private final ExecutorService ejecutor = Executors.newFixedThreadPool(HILOS, runnable -> {
+        Thread hilo = new Thread(runnable, "precarga-conversaciones");
+        hilo.setDaemon(true);
+        hilo.setPriority(Thread.MIN_PRIORITY);
+        return hilo;
+    });
+    private final BandejaDAO bandejaDAO = new BandejaDAO();
+    private final ConversacionDAO conversacionDAO = new ConversacionDAO();
+    private Ejecucion ejecucionActual;
+
+    // Contadores acumulados de todas las precargas
+    private final LongAdder conversacionesPrecargadas = new LongAdder();
+    private final LongAdder mensajesPrecargados = new LongAdder();
+    private final LongAdder nanosPrecarga = new LongAdder();
+    private final LongAdder errores = new LongAdder();
+    private final LongAdder canceladas = new LongAdder();
+
+    /**
+     * Constructor privado para implementar el patrón Singleton.
+     */
+    private PrecargaConversaciones() {
+    }
+
+    /**
+     * Obtiene la única instancia de la precarga, creándola si no existe.
+     * @return La instancia compartida de la precarga.
+     */
+    public static synchronized PrecargaConversaciones getInstance() {
+        if (instance == null) {
+            instance = new PrecargaConversaciones();
+        }
+        return instance;
+    }
+
+    /**
+     * Obtiene la instancia de la precarga sin crearla.
+     * @return La instancia compartida, o {@code null} si todavía no se ha usado.
+     */
+    static synchronized PrecargaConversaciones getInstanciaSiExiste() {
+        return instance;
+    }
+
+    /**
+     * Obtiene el número de conversaciones a precargar según la propiedad {@value #PROPIEDAD_PRECARGA}.
+     * @return El número de conversaciones a precargar.
+     */
+    public static int conversacionesAPrecargar() {
+        try {
+            return Math.max(0, Integer.parseInt(System.getProperty(PROPIEDAD_PRECARGA,
+                    String.valueOf(CONVERSACIONES_POR_DEFECTO)).trim()));
+        } catch (NumberFormatException e) {
+            return CONVERSACIONES_POR_DEFECTO;
+        }
+    }
+
+    /**
+     * Inicia la precarga de las conversaciones más recientes de un usuario, cancelando la anterior si la hubiera.
+     * Vuelve enseguida: las conversaciones se leen en segundo plano.
+     * @param usuario El nombre del usuario que ha iniciado sesión.
+     * @param cantidad El número máximo de conversaciones a precargar.
+     * @param progreso Acción que recibe el progreso tras cada conversación precargada (se ejecuta en el hilo de
+     *                 la precarga), o {@code null} si basta con los contadores de {@link #getEstadisticas()}.
+     */
+    public synchronized void iniciar(String usuario, int cantidad, Consumer<ProgresoPrecarga> progreso) {
+        cancelar();
+        if (cantidad <= 0) {
+            return;
+        }
+        Ejecucion ejecucion = new Ejecucion(usuario, progreso);
+        ejecucionActual = ejecucion;
+        // La bandeja también se lee en segundo plano: el inicio de sesión no espera a nada
+        ejecutor.execute(() -> ejecucion.planificar(cantidad));
+    }
+
+    /**
+     * Cancela la precarga en marcha, si la hay. Las conversaciones que se estén leyendo terminan de leerse
+     * (interrumpir una lectura cerraría los canales de los archivos bloqueados), pero no se empieza ninguna más.
+     */
+    public synchronized void cancelar() {
+        if (ejecucionActual != null) {
+            ejecucionActual.cancelada = true;
+            if (ejecucionActual.completadas.get() < ejecucionActual.total) {
+                canceladas.increment();
+            }
+            ejecucionActual = null;
+        }
+    }
+
+    /**
+     * Devuelve los contadores acumulados de todas las precargas.
+     * @return Una instantánea de las estadísticas.
+     */
+    public EstadisticasPrecarga getEstadisticas() {
+        return new EstadisticasPrecarga(conversacionesPrecargadas.sum(), mensajesPrecargados.sum(),
+                nanosPrecarga.sum(), errores.sum(), canceladas.sum());
+    }
+
+    /**
+     * Estadísticas acumuladas de las precargas.
+     * @param conversaciones Número de conversaciones precargadas.
+     * @param mensajes Número de mensajes leídos (como mucho una página por conversación).
+     * @param nanos Tiempo total dedicado a leerlas (sumando los hilos).
+     * @param errores Número de conversaciones que no se pudieron leer.
+     * @param canceladas Número de precargas canceladas antes de terminar.
+     */
+    public record EstadisticasPrecarga(long conversaciones, long mensajes, long nanos, long errores, long canceladas) {
+    }
+
+    /**
+     * Progreso de una precarga.
+     * @param usuario El usuario cuyas conversaciones se precargan.
+     * @param completadas El número de conversaciones ya precargadas.
+     * @param total El número de conversaciones que se van a precargar.
+     * @param mensajes El número de mensajes leídos hasta el momento.
+     * @param milisegundos El tiempo transcurrido desde el inicio de la precarga.
+     */
+    public record ProgresoPrecarga(String usuario, int completadas, int total, long mensajes, long milisegundos) {
+        /**
+         * Indica si ya se han precargado todas las conversaciones.
+         * @return {@code true} si la precarga ha terminado.
+         */
+        public boolean terminada() {
+            return completadas >= total;
+        }
+    }
+
+    /**
+     * Una precarga concreta, que se puede cancelar sin afectar a la siguiente.
+     */
+    private final class Ejecucion {
+        private final String usuario;
+        private final Consumer<ProgresoPrecarga> progreso;
+        private final long inicio = System.nanoTime();
+        private final AtomicInteger completadas = new AtomicInteger();
+        private final AtomicLong mensajes = new AtomicLong();
+        private volatile boolean cancelada;
+        private volatile int total;
+
+        private Ejecucion(String usuario, Consumer<ProgresoPrecarga> progreso) {
+            this.usuario = usuario;
+            this.progreso = progreso;
+        }
+
+        /**
+         * Elige las conversaciones más recientes según la bandeja de entrada y reparte su lectura entre los hilos.
+         * @param cantidad El número máximo de conversaciones a precargar.
+         */
+        private void planificar(int cantidad) {
+            if (cancelada) {
+                return;
+            }
+            Optional<BandejaEntrada> bandeja = bandejaDAO.cargarBandeja(usuario);
+            List<String> contactos = bandeja.map(b -> b.getConversaciones().stream()
+                            .filter(entrada -> entrada.getFechaUltimoMensaje() != null)
+                            .sorted(Comparator.comparing(EntradaBandeja::getFechaUltimoMensaje).reversed())
+                            .limit(cantidad)
+                            .map(EntradaBandeja::getContacto)
+                            .filter(Objects::nonNull)
+                            .collect(Collectors.toList()))
+                    .orElse(List.of());
+            total = contactos.size();
+            for (String contacto : contactos) {
+                ejecutor.execute(() -> precargar(contacto));
+            }
+        }
+
+        /**
+         * Lee la última página de una conversación, la que el chat pedirá al abrirla.
+         * @param contacto El otro participante de la conversación.
+         */
+        private void precargar(String contacto) {
+            if (cancelada) {
+                return;
+            }
+            long inicioConversacion = System.nanoTime();
+            int leidos = 0;
+            try {
+                leidos = conversacionDAO.buscarUltimosMensajes(usuario, contacto, PaginaMensajes.TAMANO_PAGINA).mensajes().size();
+            } catch (RuntimeException e) {
+                errores.increment();
+                System.err.println("Error al precargar la conversación con " + contacto + ": " + e.getMessage());
+            }
+            conversacionesPrecargadas.increment();
+            mensajesPrecargados.add(leidos);
+            nanosPrecarga.add(System.nanoTime() - inicioConversacion);
+            if (cancelada) {
+                return;
+            }
+            ProgresoPrecarga estado = new ProgresoPrecarga(usuario, completadas.incrementAndGet(), total,
+                    mensajes.addAndGet(leidos), (System.nanoTime() - inicio) / 1_000_000);
+            if (progreso != null) {
+                progreso.accept(estado);
+            }
+        }
+    }
+}
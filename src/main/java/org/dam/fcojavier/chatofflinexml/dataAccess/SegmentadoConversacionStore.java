@@ -0,0 +1,603 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Conversacion;
+import org.dam.fcojavier.chatofflinexml.model.ManifiestoConversacion;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+import org.dam.fcojavier.chatofflinexml.model.SegmentoConversacion;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.RegistroEscrituras;
+import org.dam.fcojavier.chatofflinexml.utils.XmlManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Almacenamiento segmentado de conversaciones.
+ * Cada conversación se guarda en su propio directorio ({@code Usuario1_Usuario2/}) repartida en segmentos
+ * ({@code segmento-00001}, {@code segmento-00002}...) que se escriben con otro {@link ConversacionStore}
+ * (XML o binario). Un manifiesto ({@code manifiesto.xml}, ver {@link ManifiestoConversacion}) lista los segmentos
+ * en orden con su número de mensajes, su rango de fechas y su tamaño.
+ * <p>
+ * Los mensajes nuevos se añaden siempre al último segmento, y se empieza uno nuevo cuando cambia el mes
+ * ({@link CriterioSegmentacion#MENSUAL}) o cuando el último supera el tamaño máximo. Así las escrituras, la lectura de
+ * los mensajes recientes y la retención sólo tocan los segmentos implicados, no el historial completo.
+ * <p>
+ * Los mensajes se escriben en el segmento antes de guardar el manifiesto, así que al leer el manifiesto del disco se
+ * comprueba el último segmento por si tiene mensajes que el manifiesto no cuenta (ver {@link #leerManifiesto(String)}).
+ */
+public class SegmentadoConversacionStore implements ConversacionStore {
+    /**
+     * Criterios para empezar un segmento nuevo.
+     */
+    public enum CriterioSegmentacion {
+        /** Un segmento por mes natural (y otro más si el del mes supera el tamaño máximo). */
+        MENSUAL,
+        /** Un segmento nuevo cada vez que el último supera el tamaño máximo. */
+        POR_TAMANO
+    }
+
+    /**
+     * Tamaño máximo por defecto de un segmento, en bytes.
+     */
+    public static final long TAMANO_MAXIMO_POR_DEFECTO = 1024 * 1024;
+    /**
+     * Nombre del archivo de manifiesto dentro del directorio de la conversación.
+     */
+    private static final String MANIFIESTO = "manifiesto.xml";
+    /**
+     * Número de mensajes que se escriben de una vez al reescribir una conversación completa,
+     * para poder comprobar el tamaño del segmento entre tramos.
+     */
+    private static final int TAMANO_TRAMO_REESCRITURA = 500;
+
+    private final Path directorio;
+    private final Function<Path, ConversacionStore> fabricaSegmentos;
+    private final CriterioSegmentacion criterio;
+    private final long tamanoMaximoSegmento;
+    private final ModoDurabilidad durabilidad;
+    /**
+     * Últimos manifiestos leídos o escritos, para no volver a leerlos del disco mientras no cambien.
+     */
+    private final ConcurrentHashMap<Path, ManifiestoLeido> manifiestos = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor de la clase SegmentadoConversacionStore.
+     * @param directorio El directorio donde se crean los directorios de las conversaciones.
+     * @param fabricaSegmentos Crea el almacenamiento de los segmentos a partir del directorio de una conversación.
+     * @param criterio El criterio para empezar segmentos nuevos.
+     * @param tamanoMaximoSegmento El tamaño (en bytes) a partir del cual se empieza un segmento nuevo.
+     * @param durabilidad El modo de durabilidad de las escrituras del manifiesto.
+     */
+    public SegmentadoConversacionStore(Path directorio, Function<Path, ConversacionStore> fabricaSegmentos,
+                                       CriterioSegmentacion criterio, long tamanoMaximoSegmento, ModoDurabilidad durabilidad) {
+        this.directorio = directorio;
+        this.fabricaSegmentos = fabricaSegmentos;
+        this.criterio = criterio;
+        this.tamanoMaximoSegmento = tamanoMaximoSegmento;
+        this.durabilidad = durabilidad;
+    }
+
+    private Path getDirectorio(String clave) {
+        return directorio.resolve(clave);
+    }
+
+    /**
+     * Crea la carpeta de una conversación si todavía no existe.
+     * @param clave La clave de la conversación.
+     * @throws IOException si no se puede crear.
+     */
+    private void crearDirectorio(String clave) throws IOException {
+        Path carpeta = getDirectorio(clave);
+        if (!Files.isDirectory(carpeta)) {
+            Files.createDirectories(carpeta);
+            RegistroEscrituras.registrar(carpeta);
+        }
+    }
+
+    private Path getManifiestoPath(String clave) {
+        return getDirectorio(clave).resolve(MANIFIESTO);
+    }
+
+    private ConversacionStore getSegmentos(String clave) {
+        return fabricaSegmentos.apply(getDirectorio(clave));
+    }
+
+    /**
+     * Devuelve el manifiesto, que identifica la conversación, sin leerlo.
+     * @param clave La clave de la conversación.
+     * @return La ruta del manifiesto.
+     */
+    @Override
+    public Path getArchivoPrincipal(String clave) {
+        return getManifiestoPath(clave);
+    }
+
+    /**
+     * Devuelve el manifiesto (el archivo principal) y los archivos del último segmento, que son los únicos que
+     * cambian al añadir mensajes.
+     * @param clave La clave de la conversación.
+     * @return La ruta del manifiesto seguida de las del último segmento.
+     */
+    @Override
+    public List<Path> getArchivos(String clave) {
+        List<Path> archivos = new ArrayList<>();
+        archivos.add(getManifiestoPath(clave));
+        try {
+            leerManifiesto(clave).map(this::getUltimo)
+                    .ifPresent(ultimo -> archivos.addAll(getSegmentos(clave).getArchivos(ultimo.getNombre())));
+        } catch (IOException e) {
+            // Sin manifiesto legible sólo se devuelve su ruta
+        }
+        return archivos;
+    }
+
+    /**
+     * Devuelve el manifiesto y los archivos de todos los segmentos de la conversación.
+     * @param clave La clave de la conversación.
+     * @return Las rutas de los archivos existentes de la conversación.
+     * @throws IOException si no se puede leer el manifiesto.
+     */
+    @Override
+    public List<Path> getTodosLosArchivos(String clave) throws IOException {
+        Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+        if (manifiesto.isEmpty()) {
+            return List.of();
+        }
+        List<Path> archivos = new ArrayList<>();
+        archivos.add(getManifiestoPath(clave));
+        ConversacionStore segmentos = getSegmentos(clave);
+        for (SegmentoConversacion segmento : manifiesto.get().getSegmentos()) {
+            archivos.addAll(segmentos.getTodosLosArchivos(segmento.getNombre()));
+        }
+        return archivos;
+    }
+
+    @Override
+    public boolean existe(String clave) {
+        return Files.exists(getManifiestoPath(clave));
+    }
+
+    /**
+     * Lee el manifiesto de una conversación, reutilizando el último leído si el archivo no ha cambiado.
+     * Al leerlo del disco se pone al día el último segmento con los mensajes que tenga y el manifiesto no cuente
+     * (por ejemplo, si la aplicación se cerró después de escribirlos y antes de guardar el manifiesto); la corrección
+     * se guarda con la siguiente escritura.
+     * @param clave La clave de la conversación.
+     * @return El manifiesto, o vacío si la conversación no existe.
+     * @throws IOException si no se puede leer.
+     */
+    public Optional<ManifiestoConversacion> leerManifiesto(String clave) throws IOException {
+        Path ruta = getManifiestoPath(clave);
+        if (!Files.exists(ruta)) {
+            manifiestos.remove(ruta);
+            return Optional.empty();
+        }
+        CacheConversaciones.Firma firma = CacheConversaciones.firmar(ruta);
+        ManifiestoLeido leido = manifiestos.get(ruta);
+        if (leido != null && leido.firma().equals(firma)) {
+            return Optional.of(leido.manifiesto());
+        }
+        try {
+            ManifiestoConversacion manifiesto = XmlManager.readXML(new ManifiestoConversacion(), ruta.toString());
+            if (manifiesto != null) {
+                reconciliarUltimoSegmento(clave, manifiesto);
+                manifiestos.put(ruta, new ManifiestoLeido(firma, manifiesto));
+            }
+            return Optional.ofNullable(manifiesto);
+        } catch (UncheckedIOException e) {
+            throw new IOException("No se pudo leer el manifiesto " + ruta, e.getCause());
+        } catch (RuntimeException e) {
+            throw new IOException("No se pudo leer el manifiesto " + ruta, e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    /**
+     * Compara el número de mensajes del último segmento con el que indica el manifiesto y corrige el manifiesto (en
+     * memoria): si el segmento tiene más, se cuentan los que faltan y se amplía su rango de fechas; si tiene menos, se
+     * deja el número real.
+     * @param clave La clave de la conversación.
+     * @param manifiesto El manifiesto recién leído.
+     * @throws IOException si no se puede leer el segmento.
+     */
+    private void reconciliarUltimoSegmento(String clave, ManifiestoConversacion manifiesto) throws IOException {
+        SegmentoConversacion ultimo = getUltimo(manifiesto);
+        if (ultimo == null) {
+            return;
+        }
+        ConversacionStore segmentos = getSegmentos(clave);
+        OptionalInt reales = segmentos.contarMensajes(ultimo.getNombre());
+        if (reales.isPresent() && reales.getAsInt() == ultimo.getMensajes()) {
+            return;
+        }
+        if (reales.isPresent() && reales.getAsInt() < ultimo.getMensajes()) {
+            System.err.println("Aviso: el segmento " + ultimo.getNombre() + " de " + clave + " tiene " + reales.getAsInt()
+                    + " mensajes y el manifiesto indica " + ultimo.getMensajes());
+            ultimo.setMensajes(reales.getAsInt());
+        } else {
+            // Sin contador en el segmento (o con más mensajes): se leen los que sigan a los contados
+            List<Mensaje> sinContar;
+            try (Stream<Mensaje> mensajes = segmentos.streamMensajesDesde(ultimo.getNombre(), ultimo.getMensajes())) {
+                sinContar = mensajes.toList();
+            }
+            if (sinContar.isEmpty()) {
+                return;
+            }
+            actualizarSegmento(ultimo, sinContar);
+        }
+        ultimo.setBytes(calcularBytes(segmentos, ultimo.getNombre()));
+    }
+
+    /**
+     * Guarda el manifiesto de una conversación y lo deja en la caché de manifiestos. Si falla, el manifiesto se quita
+     * de la caché, porque quien lo guardaba ya lo había modificado y no coincide con el del disco.
+     * @param clave La clave de la conversación.
+     * @param manifiesto El manifiesto a guardar.
+     * @throws IOException si no se puede guardar.
+     */
+    private void guardarManifiesto(String clave, ManifiestoConversacion manifiesto) throws IOException {
+        Path ruta = getManifiestoPath(clave);
+        try {
+            XmlManager.writeXML(manifiesto, ruta.toString(), durabilidad);
+            manifiestos.put(ruta, new ManifiestoLeido(CacheConversaciones.firmar(ruta), manifiesto));
+        } catch (IOException e) {
+            manifiestos.remove(ruta);
+            throw e;
+        } catch (RuntimeException e) {
+            manifiestos.remove(ruta);
+            throw new IOException("No se pudo guardar el manifiesto " + ruta, e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    /**
+     * Quita de la caché el manifiesto de una conversación, por ejemplo tras una escritura fallida que lo dejó
+     * modificado en memoria, para que la siguiente lectura lo vuelva a leer del disco.
+     * @param clave La clave de la conversación.
+     */
+    private void olvidarManifiesto(String clave) {
+        manifiestos.remove(getManifiestoPath(clave));
+    }
+
+    @Override
+    public Optional<Conversacion> leer(String clave) throws IOException {
+        Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+        if (manifiesto.isEmpty()) {
+            return Optional.empty();
+        }
+        ConversacionStore segmentos = getSegmentos(clave);
+        Conversacion conversacion = new Conversacion(manifiesto.get().getUsuario1(), manifiesto.get().getUsuario2());
+        for (SegmentoConversacion segmento : manifiesto.get().getSegmentos()) {
+            segmentos.leer(segmento.getNombre())
+                    .ifPresent(leido -> conversacion.getMensajes().addAll(leido.getMensajes()));
+        }
+        return Optional.of(conversacion);
+    }
+
+    @Override
+    public Stream<Mensaje> streamMensajes(String clave) throws IOException {
+        return streamMensajesDesde(clave, 0);
+    }
+
+    @Override
+    public OptionalInt contarMensajes(String clave) throws IOException {
+        Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+        return manifiesto.map(m -> OptionalInt.of(m.totalMensajes())).orElse(OptionalInt.of(0));
+    }
+
+    /**
+     * Abre un stream a partir de una posición saltándose, gracias a los contadores del manifiesto,
+     * los segmentos completos anteriores sin abrirlos. Los segmentos necesarios se abren todos ya, mientras quien
+     * llama tiene el bloqueo de la conversación: así, si después se borran o se sustituyen (al eliminar mensajes
+     * antiguos o reescribir la conversación), el stream sigue leyendo los archivos que había al abrirlo.
+     * @param clave La clave de la conversación.
+     * @param desde La posición del primer mensaje a devolver.
+     * @return Los mensajes desde esa posición, en orden cronológico.
+     * @throws IOException si no se puede leer el manifiesto o abrir algún segmento.
+     */
+    @Override
+    public Stream<Mensaje> streamMensajesDesde(String clave, int desde) throws IOException {
+        Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+        if (manifiesto.isEmpty()) {
+            return Stream.empty();
+        }
+        ConversacionStore segmentos = getSegmentos(clave);
+        List<Stream<Mensaje>> partes = new ArrayList<>();
+        int restantes = Math.max(desde, 0);
+        try {
+            for (SegmentoConversacion segmento : manifiesto.get().getSegmentos()) {
+                if (restantes >= segmento.getMensajes()) {
+                    restantes -= segmento.getMensajes();
+                    continue;
+                }
+                partes.add(segmentos.streamMensajesDesde(segmento.getNombre(), restantes));
+                restantes = 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            partes.forEach(Stream::close);
+            throw e;
+        }
+        // flatMap cierra cada segmento al terminar de recorrerlo; onClose cierra los que no se hayan llegado a recorrer
+        return partes.stream().flatMap(Function.identity()).onClose(() -> partes.forEach(Stream::close));
+    }
+
+    /**
+     * Busca el primer mensaje de una fecha o posterior: con los rangos de fechas del manifiesto se localiza el segmento
+     * que lo contiene y sólo se busca dentro de él, con el índice del segmento si lo tiene o recorriéndolo si no.
+     * @param clave La clave de la conversación.
+     * @param fecha La fecha buscada.
+     * @return La posición de ese mensaje en la conversación (el número de mensajes si no hay ninguno).
+     * @throws IOException si no se puede leer el manifiesto o el segmento.
+     */
+    @Override
+    public OptionalInt buscarPosicionFecha(String clave, LocalDateTime fecha) throws IOException {
+        Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+        if (manifiesto.isEmpty()) {
+            return OptionalInt.of(0);
+        }
+        ConversacionStore segmentos = getSegmentos(clave);
+        int anteriores = 0;
+        for (SegmentoConversacion segmento : manifiesto.get().getSegmentos()) {
+            if (segmento.getFechaFin() == null || segmento.getFechaFin().isBefore(fecha)) {
+                anteriores += segmento.getMensajes();
+                continue;
+            }
+            OptionalInt posicion = segmentos.buscarPosicionFecha(segmento.getNombre(), fecha);
+            if (posicion.isPresent()) {
+                return OptionalInt.of(anteriores + posicion.getAsInt());
+            }
+            try (Stream<Mensaje> mensajes = segmentos.streamMensajes(segmento.getNombre())) {
+                long previos = mensajes.takeWhile(mensaje -> mensaje.getFechaHora() == null
+                        || mensaje.getFechaHora().isBefore(fecha)).count();
+                return OptionalInt.of(anteriores + (int) previos);
+            }
+        }
+        return OptionalInt.of(anteriores);
+    }
+
+    /**
+     * Añade los mensajes al último segmento, empezando segmentos nuevos cuando corresponde, y actualiza el manifiesto.
+     * Un segmento nuevo se registra en el manifiesto antes de escribir en él, de modo que sus mensajes nunca quedan
+     * fuera del manifiesto aunque la escritura se interrumpa.
+     * @param clave La clave de la conversación.
+     * @param usuario1 El nombre de uno de los participantes.
+     * @param usuario2 El nombre del otro participante.
+     * @param mensajes Los mensajes a añadir.
+     * @throws IOException si no se pueden guardar.
+     */
+    @Override
+    public void anadirMensajes(String clave, String usuario1, String usuario2, List<Mensaje> mensajes) throws IOException {
+        ManifiestoConversacion manifiesto = leerManifiesto(clave).orElse(new ManifiestoConversacion(usuario1, usuario2));
+        crearDirectorio(clave);
+        try {
+            escribirEnSegmentos(clave, manifiesto, List.of(), mensajes, mensajes.size(), true);
+            guardarManifiesto(clave, manifiesto);
+        } catch (IOException | RuntimeException e) {
+            olvidarManifiesto(clave);
+            throw e;
+        }
+    }
+
+    /**
+     * Reescribe la conversación completa en segmentos nuevos, cambia el manifiesto y borra los segmentos anteriores.
+     * @param clave La clave de la conversación.
+     * @param conversacion La conversación a guardar.
+     * @throws IOException si no se puede guardar.
+     */
+    @Override
+    public void guardar(String clave, Conversacion conversacion) throws IOException {
+        Optional<ManifiestoConversacion> anterior = leerManifiesto(clave);
+        List<SegmentoConversacion> segmentosAnteriores = anterior.map(ManifiestoConversacion::getSegmentos).orElse(List.of());
+
+        ManifiestoConversacion nuevo = new ManifiestoConversacion(conversacion.getUsuario1(), conversacion.getUsuario2());
+        crearDirectorio(clave);
+        // Los segmentos nuevos no se registran hasta el final: si la escritura se interrumpe, sigue valiendo el
+        // manifiesto anterior
+        escribirEnSegmentos(clave, nuevo, segmentosAnteriores, conversacion.getMensajes(), TAMANO_TRAMO_REESCRITURA, false);
+        guardarManifiesto(clave, nuevo);
+        borrarSegmentos(clave, segmentosAnteriores);
+    }
+
+    /**
+     * Elimina los segmentos completos cuyos mensajes son todos anteriores a la fecha límite.
+     * Primero se guarda el manifiesto sin ellos y después se borran sus archivos.
+     * @param clave La clave de la conversación.
+     * @param limite Los segmentos que terminan antes de esta fecha se eliminan.
+     * @return El número de mensajes eliminados.
+     * @throws IOException si no se puede actualizar el manifiesto.
+     */
+    @Override
+    public int eliminarMensajesAnteriores(String clave, LocalDateTime limite) throws IOException {
+        Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+        if (manifiesto.isEmpty()) {
+            return 0;
+        }
+        List<SegmentoConversacion> eliminados = new ArrayList<>();
+        for (SegmentoConversacion segmento : manifiesto.get().getSegmentos()) {
+            if (segmento.getFechaFin() == null || !segmento.getFechaFin().isBefore(limite)) {
+                break;
+            }
+            eliminados.add(segmento);
+        }
+        // Se conserva siempre el último segmento, que es donde se siguen añadiendo los mensajes
+        if (eliminados.size() == manifiesto.get().getSegmentos().size()) {
+            eliminados.remove(eliminados.size() - 1);
+        }
+        if (eliminados.isEmpty()) {
+            return 0;
+        }
+        manifiesto.get().getSegmentos().removeAll(eliminados);
+        guardarManifiesto(clave, manifiesto.get()); // Si falla, se olvida el manifiesto modificado
+        borrarSegmentos(clave, eliminados);
+        return eliminados.stream().mapToInt(SegmentoConversacion::getMensajes).sum();
+    }
+
+    @Override
+    public boolean necesitaCompactacion(String clave) {
+        try {
+            Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+            SegmentoConversacion ultimo = manifiesto.map(this::getUltimo).orElse(null);
+            return ultimo != null && getSegmentos(clave).necesitaCompactacion(ultimo.getNombre());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compacta el último segmento (el único que recibe escrituras) y actualiza su tamaño en el manifiesto.
+     * @param clave La clave de la conversación.
+     * @throws IOException si no se puede compactar.
+     */
+    @Override
+    public void compactar(String clave) throws IOException {
+        Optional<ManifiestoConversacion> manifiesto = leerManifiesto(clave);
+        SegmentoConversacion ultimo = manifiesto.map(this::getUltimo).orElse(null);
+        if (ultimo == null) {
+            return;
+        }
+        ConversacionStore segmentos = getSegmentos(clave);
+        try {
+            segmentos.compactar(ultimo.getNombre());
+            ultimo.setBytes(calcularBytes(segmentos, ultimo.getNombre()));
+            guardarManifiesto(clave, manifiesto.get());
+        } catch (IOException | RuntimeException e) {
+            olvidarManifiesto(clave);
+            throw e;
+        }
+    }
+
+    /**
+     * Reparte los mensajes entre el último segmento del manifiesto y los segmentos nuevos que hagan falta.
+     * @param clave La clave de la conversación.
+     * @param manifiesto El manifiesto que se actualiza (no se guarda al terminar).
+     * @param otrosSegmentos Segmentos que siguen en disco aunque no estén en el manifiesto, para no repetir sus nombres.
+     * @param mensajes Los mensajes a escribir.
+     * @param tamanoTramo Número máximo de mensajes que se escriben antes de volver a comprobar el tamaño.
+     * @param registrarAntes Si es {@code true}, cada segmento nuevo se guarda en el manifiesto antes de escribir en él.
+     * @throws IOException si no se pueden escribir.
+     */
+    private void escribirEnSegmentos(String clave, ManifiestoConversacion manifiesto, List<SegmentoConversacion> otrosSegmentos,
+                                     List<Mensaje> mensajes, int tamanoTramo, boolean registrarAntes) throws IOException {
+        ConversacionStore segmentos = getSegmentos(clave);
+        int i = 0;
+        while (i < mensajes.size()) {
+            SegmentoConversacion actual = getUltimo(manifiesto);
+            if (actual == null || debeEmpezarSegmento(actual, mensajes.get(i))) {
+                if (actual != null) {
+                    // El segmento que se cierra ya no recibirá más mensajes: se deja compactado
+                    segmentos.compactar(actual.getNombre());
+                    actual.setBytes(calcularBytes(segmentos, actual.getNombre()));
+                }
+                actual = new SegmentoConversacion(String.format("segmento-%05d", siguienteNumero(otrosSegmentos, manifiesto)));
+                // Restos de una escritura interrumpida con el mismo nombre
+                borrarSegmentos(clave, List.of(actual));
+                manifiesto.getSegmentos().add(actual);
+                if (registrarAntes) {
+                    guardarManifiesto(clave, manifiesto);
+                }
+            }
+            int fin = i + 1;
+            while (fin < mensajes.size() && fin - i < tamanoTramo && mismoMes(mensajes.get(i), mensajes.get(fin))) {
+                fin++;
+            }
+            List<Mensaje> tramo = mensajes.subList(i, fin);
+            segmentos.anadirMensajes(actual.getNombre(), manifiesto.getUsuario1(), manifiesto.getUsuario2(), tramo);
+            actualizarSegmento(actual, tramo);
+            actual.setBytes(calcularBytes(segmentos, actual.getNombre()));
+            i = fin;
+        }
+    }
+
+    private static int siguienteNumero(List<SegmentoConversacion> otrosSegmentos, ManifiestoConversacion manifiesto) {
+        int maximo = 0;
+        for (List<SegmentoConversacion> lista : List.of(otrosSegmentos, manifiesto.getSegmentos())) {
+            for (SegmentoConversacion segmento : lista) {
+                String nombre = segmento.getNombre();
+                try {
+                    maximo = Math.max(maximo, Integer.parseInt(nombre.substring(nombre.lastIndexOf('-') + 1)));
+                } catch (NumberFormatException e) {
+                    // Nombre sin número: no afecta a la numeración
+                }
+            }
+        }
+        return maximo + 1;
+    }
+
+    private boolean debeEmpezarSegmento(SegmentoConversacion actual, Mensaje mensaje) {
+        if (actual.getMensajes() == 0) {
+            return false;
+        }
+        if (actual.getBytes() >= tamanoMaximoSegmento) {
+            return true;
+        }
+        return criterio == CriterioSegmentacion.MENSUAL && actual.getFechaFin() != null && mensaje.getFechaHora() != null
+                && !YearMonth.from(actual.getFechaFin()).equals(YearMonth.from(mensaje.getFechaHora()));
+    }
+
+    private boolean mismoMes(Mensaje primero, Mensaje otro) {
+        if (criterio != CriterioSegmentacion.MENSUAL || primero.getFechaHora() == null || otro.getFechaHora() == null) {
+            return true;
+        }
+        return YearMonth.from(primero.getFechaHora()).equals(YearMonth.from(otro.getFechaHora()));
+    }
+
+    private static void actualizarSegmento(SegmentoConversacion segmento, List<Mensaje> tramo) {
+        segmento.setMensajes(segmento.getMensajes() + tramo.size());
+        for (Mensaje mensaje : tramo) {
+            LocalDateTime fecha = mensaje.getFechaHora();
+            if (fecha == null) {
+                continue;
+            }
+            if (segmento.getFechaInicio() == null || fecha.isBefore(segmento.getFechaInicio())) {
+                segmento.setFechaInicio(fecha);
+            }
+            if (segmento.getFechaFin() == null || fecha.isAfter(segmento.getFechaFin())) {
+                segmento.setFechaFin(fecha);
+            }
+        }
+    }
+
+    private static long calcularBytes(ConversacionStore segmentos, String nombre) throws IOException {
+        long bytes = 0;
+        for (Path archivo : segmentos.getArchivos(nombre)) {
+            if (Files.exists(archivo)) {
+                bytes += Files.size(archivo);
+            }
+        }
+        return bytes;
+    }
+
+    private void borrarSegmentos(String clave, List<SegmentoConversacion> eliminados) {
+        ConversacionStore segmentos = getSegmentos(clave);
+        for (SegmentoConversacion segmento : eliminados) {
+            try {
+                for (Path archivo : segmentos.getTodosLosArchivos(segmento.getNombre())) {
+                    Files.deleteIfExists(archivo);
+                    RegistroEscrituras.registrar(archivo);
+                }
+            } catch (IOException e) {
+                System.err.println("Aviso: no se pudo borrar el segmento " + segmento.getNombre() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private SegmentoConversacion getUltimo(ManifiestoConversacion manifiesto) {
+        List<SegmentoConversacion> lista = manifiesto.getSegmentos();
+        return lista.isEmpty() ? null : lista.get(lista.size() - 1);
+    }
+
+    /**
+     * Manifiesto leído junto con la firma del archivo del que se leyó.
+     */
+    private record ManifiestoLeido(CacheConversaciones.Firma firma, ManifiestoConversacion manifiesto) {
+    }
+}
@@ -2,66 +2,238 @@ package org.dam.fcojavier.chatofflinexml.dataAccess;
 
 import org.dam.fcojavier.chatofflinexml.model.Usuario;
 import org.dam.fcojavier.chatofflinexml.model.UsuariosLista;
-import org.dam.fcojavier.chatofflinexml.utils.XmlManager;
+import org.dam.fcojavier.chatofflinexml.utils.BloqueoArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 
 /**
  * Clase DAO (Data Access Object) para gestionar las operaciones de persistencia de usuarios.
  * Se encarga de leer y escribir la lista de usuarios desde y hacia un archivo XML.
+ * El formato concreto se delega en un {@link UsuarioStore} ({@link XmlUsuarioStore} por defecto).
+ * <p>
+ * Junto a la lista se mantienen dos índices hash, por correo electrónico normalizado y por nombre, de modo que
+ * las búsquedas tardan lo mismo con diez usuarios que con decenas de miles. Los índices se reconstruyen cada vez que
+ * se carga la lista, así que los cambios en la lista deben hacerse a través de este DAO.
+ * <p>
+ * Los registros sólo añaden los usuarios nuevos al almacenamiento ({@link UsuarioStore#anadir}) y no vuelven a leer
+ * la lista si sus archivos no han cambiado desde la última lectura o escritura, de modo que registrar usuarios, uno a
+ * uno o en lote con {@link #registrarUsuarios(Collection)}, tiene un coste constante por usuario.
  */
 public class UsuarioDAO {
+    private UsuariosLista usuariosLista;
+    private final UsuarioStore store;
     /**
-     * Ruta del archivo XML donde se almacenan los usuarios.
+     * Usuarios indexados por su correo electrónico normalizado (ver {@link #normalizarEmail(String)}).
      */
-    private static final String USUARIOS_XML = "src/main/resources/data/usuarios.xml";
-
-    private UsuariosLista usuariosLista;
+    private Map<String, Usuario> indicePorEmail = new HashMap<>();
+    /**
+     * Usuarios indexados por su nombre, que es el que identifica sus conversaciones.
+     */
+    private Map<String, Usuario> indicePorNombre = new HashMap<>();
+    /**
+     * Firma de los archivos del almacenamiento cuando se leyeron o escribieron por última vez, o {@code null}
+     * si hay que volver a leerlos.
+     */
+    private CacheConversaciones.Firma firmaCargada;
 
     /**
      * Constructor de la clase UsuarioDAO.
      * Al instanciar un objeto UsuarioDAO, se intenta cargar la lista de usuarios desde el archivo XML.
      * Si el archivo no existe o está vacío, se inicializa una nueva lista de usuarios.
+     * Las escrituras usan el modo {@link ModoDurabilidad#SEGURO}: perder un registro es peor que tardar unos milisegundos más.
      */
     public UsuarioDAO() {
+        this(ModoDurabilidad.SEGURO);
+    }
+
+    /**
+     * Constructor de la clase UsuarioDAO con un modo de durabilidad concreto.
+     * @param durabilidad El modo de durabilidad de las escrituras de {@code usuarios.xml}.
+     */
+    public UsuarioDAO(ModoDurabilidad durabilidad) {
+        this(new XmlUsuarioStore(durabilidad));
+    }
+
+    /**
+     * Constructor de la clase UsuarioDAO con un almacenamiento concreto.
+     * @param store El almacenamiento del que se leen y en el que se guardan los usuarios.
+     */
+    public UsuarioDAO(UsuarioStore store) {
+        this.store = store;
         cargarUsuarios();
     }
 
     /**
-     * Carga la lista de usuarios desde el archivo XML especificado por {@code USUARIOS_XML}.
-     * Si ocurre un error durante la lectura o el archivo está vacío, se inicializa una nueva {@link UsuariosLista}.
+     * Carga la lista de usuarios desde el almacenamiento y reconstruye los índices.
+     * Si el archivo no existe o está vacío, se inicializa una nueva {@link UsuariosLista}.
      */
     private void cargarUsuarios() {
-        usuariosLista = XmlManager.readXML(new UsuariosLista(), USUARIOS_XML);
-        if (usuariosLista == null) {
-            usuariosLista = new UsuariosLista();
+        CacheConversaciones.Firma firma = firmar();
+        try {
+            usuariosLista = store.cargar();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        reconstruirIndices();
+        firmaCargada = firma;
+    }
+
+    /**
+     * Vuelve a cargar la lista de usuarios sólo si sus archivos han cambiado desde la última lectura o escritura
+     * (por ejemplo, porque otra instancia de la aplicación ha registrado usuarios).
+     */
+    private void cargarUsuariosSiHanCambiado() {
+        CacheConversaciones.Firma firma = firmar();
+        if (firma == null || !firma.equals(firmaCargada)) {
+            cargarUsuarios();
+        }
+    }
+
+    /**
+     * Calcula la firma (fecha de modificación y tamaño) de los archivos del almacenamiento.
+     * @return La firma de los archivos, o {@code null} si no se pudo calcular.
+     */
+    private CacheConversaciones.Firma firmar() {
+        try {
+            return CacheConversaciones.firmar(store.getArchivos().toArray(new Path[0]));
+        } catch (IOException e) {
+            return null;
         }
     }
 
     /**
-     * Guarda la lista actual de usuarios en el archivo XML especificado por {@code USUARIOS_XML}.
+     * Reconstruye los índices por correo electrónico y por nombre a partir de la lista de usuarios.
+     * Los índices nuevos se preparan aparte y se sustituyen al final, para no dejar nunca uno a medias.
+     */
+    private void reconstruirIndices() {
+        int capacidad = (int) (usuariosLista.getUsuarios().size() / 0.75f) + 1;
+        Map<String, Usuario> porEmail = new HashMap<>(capacidad);
+        Map<String, Usuario> porNombre = new HashMap<>(capacidad);
+        for (Usuario usuario : usuariosLista.getUsuarios()) {
+            indexar(usuario, porEmail, porNombre);
+        }
+        indicePorEmail = porEmail;
+        indicePorNombre = porNombre;
+    }
+
+    /**
+     * Añade un usuario a los índices.
+     * @param usuario El usuario a indexar.
+     * @param porEmail El índice por correo electrónico normalizado.
+     * @param porNombre El índice por nombre.
+     */
+    private static void indexar(Usuario usuario, Map<String, Usuario> porEmail, Map<String, Usuario> porNombre) {
+        if (usuario.getEmail() != null) {
+            porEmail.putIfAbsent(normalizarEmail(usuario.getEmail()), usuario);
+        }
+        if (usuario.getNombre() != null) {
+            porNombre.putIfAbsent(usuario.getNombre(), usuario);
+        }
+    }
+
+    /**
+     * Normaliza un correo electrónico para compararlo sin distinguir mayúsculas de minúsculas
+     * ni tener en cuenta los espacios de los extremos.
+     * @param email El correo electrónico.
+     * @return El correo electrónico normalizado.
+     */
+    private static String normalizarEmail(String email) {
+        return email.strip().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Guarda en el almacenamiento los usuarios recién añadidos a la lista.
+     * Si falla, la lista en memoria se descarta para volver a leerla en la siguiente operación.
+     * @param nuevos Los usuarios añadidos.
      * @return {@code true} si la operación de guardado fue exitosa, {@code false} en caso contrario.
      */
-    private boolean guardarUsuarios() {
-        return XmlManager.writeXML(usuariosLista, USUARIOS_XML);
+    private boolean guardarUsuarios(List<Usuario> nuevos) {
+        try {
+            store.anadir(usuariosLista, nuevos);
+            firmaCargada = firmar();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error al guardar los usuarios: " + e.getMessage());
+            e.printStackTrace();
+            firmaCargada = null;
+            return false;
+        }
     }
 
     /**
      * Registra un nuevo usuario en el sistema.
      * Antes de agregar el usuario, verifica si ya existe un usuario con el mismo correo electrónico.
-     * Si el usuario se agrega exitosamente, la lista se guarda en el archivo XML.
+     * Si el usuario se agrega exitosamente, se añade al almacenamiento sin reescribir el resto de usuarios.
+     * Toda la operación se hace con el archivo bloqueado y partiendo de su contenido actual, para no perder
+     * los usuarios registrados a la vez desde otro hilo u otra instancia de la aplicación.
      * @param usuario El objeto {@link Usuario} a registrar.
      * @return {@code true} si el usuario fue registrado exitosamente, {@code false} si ya existe un usuario con el mismo correo electrónico.
      */
     public boolean registrarUsuario(Usuario usuario) {
-        if (existeEmail(usuario.getEmail())) {
-            return false;
+        return registrarUsuarios(List.of(usuario)) == 1;
+    }
+
+    /**
+     * Registra varios usuarios con una única escritura (por ejemplo, en una carga masiva de cuentas).
+     * Se omiten los usuarios cuyo correo electrónico ya está registrado o se repite dentro del lote.
+     * @param usuarios Los usuarios a registrar.
+     * @return El número de usuarios registrados, o 0 si no se pudieron guardar.
+     */
+    @SuppressWarnings("try")
+    public int registrarUsuarios(Collection<Usuario> usuarios) {
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(store.getArchivo())) {
+            cargarUsuariosSiHanCambiado();
+            List<Usuario> nuevos = new ArrayList<>(usuarios.size());
+            for (Usuario usuario : usuarios) {
+                if (!existeEmail(usuario.getEmail()) && usuariosLista.addUsuario(usuario)) {
+                    indexar(usuario, indicePorEmail, indicePorNombre);
+                    nuevos.add(usuario);
+                }
+            }
+            if (nuevos.isEmpty()) {
+                return 0;
+            }
+            return guardarUsuarios(nuevos) ? nuevos.size() : 0;
         }
-        boolean agregado = usuariosLista.addUsuario(usuario);
-        if (agregado) {
-            guardarUsuarios();
+    }
+
+    /**
+     * Cambia el hash de la contraseña de un usuario (por ejemplo, al rehacerlo con más coste tras iniciar sesión).
+     * Con el archivo bloqueado, se anota sólo el usuario modificado (ver {@link UsuarioStore#actualizar}), sin
+     * reescribir la lista completa.
+     * @param email El correo electrónico del usuario.
+     * @param passwordHasheada El nuevo hash de su contraseña.
+     * @return {@code true} si se actualizó la contraseña, {@code false} si no existe el usuario o no se pudo guardar.
+     */
+    @SuppressWarnings("try")
+    public boolean actualizarPassword(String email, String passwordHasheada) {
+        try (BloqueoArchivos.Bloqueo bloqueo = BloqueoArchivos.bloquear(store.getArchivo())) {
+            cargarUsuariosSiHanCambiado();
+            Optional<Usuario> usuario = buscarPorEmail(email);
+            if (usuario.isEmpty()) {
+                return false;
+            }
+            usuario.get().setPassword(passwordHasheada);
+            try {
+                store.actualizar(usuariosLista, List.of(usuario.get()));
+                firmaCargada = firmar();
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error al guardar los usuarios: " + e.getMessage());
+                e.printStackTrace();
+                firmaCargada = null;
+                return false;
+            }
         }
-        return agregado;
     }
 
     /**
@@ -71,8 +243,7 @@ public class UsuarioDAO {
      * @return {@code true} si existe un usuario con el correo electrónico dado, {@code false} en caso contrario.
      */
     public boolean existeEmail(String email) {
-        return usuariosLista.getUsuarios().stream()
-                .anyMatch(u -> u.getEmail().equalsIgnoreCase(email));
+        return email != null && indicePorEmail.containsKey(normalizarEmail(email));
     }
 
     /**
@@ -82,9 +253,17 @@ public class UsuarioDAO {
      * @return Un {@link Optional} que contiene el objeto {@link Usuario} si se encuentra, o un {@link Optional#empty()} si no existe ningún usuario con ese correo electrónico.
      */
     public Optional<Usuario> buscarPorEmail(String email) {
-        return usuariosLista.getUsuarios().stream()
-                .filter(u -> u.getEmail().equalsIgnoreCase(email))
-                .findFirst();
+        return email == null ? Optional.empty() : Optional.ofNullable(indicePorEmail.get(normalizarEmail(email)));
+    }
+
+    /**
+     * Busca un usuario por su nombre, que es el que identifica sus conversaciones.
+     * La búsqueda distingue entre mayúsculas y minúsculas, igual que las claves de las conversaciones.
+     * @param nombre El nombre del usuario a buscar.
+     * @return Un {@link Optional} que contiene el objeto {@link Usuario} si se encuentra, o un {@link Optional#empty()} si no existe ningún usuario con ese nombre.
+     */
+    public Optional<Usuario> buscarPorNombre(String nombre) {
+        return nombre == null ? Optional.empty() : Optional.ofNullable(indicePorNombre.get(nombre));
     }
 
     /**
@@ -96,7 +275,7 @@ public class UsuarioDAO {
     }
 
     /**
-     * Recarga la lista de usuarios desde el archivo XML.
+     * Recarga la lista de usuarios desde el archivo XML y reconstruye los índices.
      * Esto es útil para actualizar la lista si el archivo XML ha sido modificado externamente.
      */
     public void recargarUsuarios() {
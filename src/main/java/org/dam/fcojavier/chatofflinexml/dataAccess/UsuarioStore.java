@@ -0,0 +1,66 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Usuario;
+import org.dam.fcojavier.chatofflinexml.model.UsuariosLista;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Formato de almacenamiento de la lista de usuarios en disco.
+ * Las implementaciones sólo se ocupan del formato: {@link UsuarioDAO} se encarga del bloqueo del archivo.
+ */
+public interface UsuarioStore {
+    /**
+     * Devuelve el archivo principal del almacenamiento, que se usa para bloquearlo.
+     * @return La ruta del archivo de usuarios.
+     */
+    Path getArchivo();
+
+    /**
+     * Devuelve todos los archivos que forman el almacenamiento (por ejemplo, el XML y su diario).
+     * {@link UsuarioDAO} los usa para saber si han cambiado desde la última vez que los leyó.
+     * @return La lista de archivos, empezando por el principal.
+     */
+    default List<Path> getArchivos() {
+        return List.of(getArchivo());
+    }
+
+    /**
+     * Carga la lista de usuarios.
+     * @return La lista de usuarios, vacía si todavía no hay ninguno guardado.
+     * @throws IOException si no se puede leer.
+     */
+    UsuariosLista cargar() throws IOException;
+
+    /**
+     * Guarda la lista completa de usuarios, sustituyendo la anterior.
+     * @param usuariosLista La lista a guardar.
+     * @throws IOException si no se puede escribir.
+     */
+    void guardar(UsuariosLista usuariosLista) throws IOException;
+
+    /**
+     * Guarda usuarios nuevos. Por defecto se guarda la lista completa; los formatos que lo permiten sólo
+     * añaden los usuarios nuevos, con un coste que no depende de cuántos usuarios haya ya registrados.
+     * @param usuariosLista La lista completa de usuarios, que ya incluye los nuevos.
+     * @param nuevos Los usuarios recién añadidos a la lista.
+     * @throws IOException si no se puede escribir.
+     */
+    default void anadir(UsuariosLista usuariosLista, List<Usuario> nuevos) throws IOException {
+        guardar(usuariosLista);
+    }
+
+    /**
+     * Guarda los cambios de usuarios ya registrados (por ejemplo, un nuevo hash de su contraseña). Por defecto se
+     * guarda la lista completa; los formatos que lo permiten sólo añaden los usuarios modificados, que al cargar
+     * sustituyen a los guardados antes con el mismo correo electrónico.
+     * @param usuariosLista La lista completa de usuarios, que ya incluye los cambios.
+     * @param modificados Los usuarios modificados.
+     * @throws IOException si no se puede escribir.
+     */
+    default void actualizar(UsuariosLista usuariosLista, List<Usuario> modificados) throws IOException {
+        guardar(usuariosLista);
+    }
+}
@@ -0,0 +1,641 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Conversacion;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+import org.dam.fcojavier.chatofflinexml.utils.AdaptadorLocalDateTimeXml;
+import org.dam.fcojavier.chatofflinexml.utils.CompresionArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.LectorXmlStream;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.RegistroEscrituras;
+import org.dam.fcojavier.chatofflinexml.utils.XmlManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Almacenamiento de conversaciones en XML (el formato original de la aplicación).
+ * Cada conversación se guarda en {@code Usuario1_Usuario2.xml}. En modo {@link ConversacionDAO.ModoAlmacenamiento#DIARIO}
+ * los mensajes nuevos no reescriben el XML: se añaden a un diario ({@code Usuario1_Usuario2.diario}) que se fusiona
+ * con el XML (el "checkpoint") cuando crece demasiado.
+ * <p>
+ * Cada vez que se reescribe el XML recibe una generación nueva (ver {@link Conversacion#getGeneracion()}), y el diario
+ * anota al crearse la generación del XML al que continúa. Así, si la aplicación se cierra después de fusionar el
+ * diario pero antes de borrarlo, el diario que queda ya no corresponde al XML y se ignora en lugar de duplicar sus
+ * mensajes.
+ * <p>
+ * El XML se puede guardar comprimido con gzip (ver {@link CompresionArchivos}); el diario no se comprime, porque
+ * se escribe añadiendo al final y su tamaño está acotado por la compactación.
+ * <p>
+ * Si el XML no está comprimido, junto a él y junto al diario se mantiene un índice ({@code .xml.idx} y
+ * {@code .diario.idx}, ver {@link IndiceMensajes}) con la posición en bytes de cada elemento {@code <mensaje>} y su
+ * fecha. El del XML se genera al reescribirlo y el del diario se amplía con cada mensaje añadido; si falta alguno se
+ * reconstruye recorriendo las etiquetas del archivo, sin deserializar los mensajes.
+ */
+public class XmlConversacionStore implements ConversacionStore {
+    /**
+     * Directorio por defecto donde se almacenan los archivos XML de las conversaciones.
+     */
+    static final String CONVERSACIONES_DIR = "src/main/resources/data/conversaciones/";
+    /**
+     * Extensión de los archivos de diario de mensajes pendientes de fusionar.
+     */
+    static final String EXTENSION_DIARIO = ".diario";
+    /**
+     * Tamaño del diario (en bytes) a partir del cual se fusiona con el XML de la conversación.
+     */
+    private static final long UMBRAL_COMPACTACION = 256 * 1024;
+    /**
+     * Elementos que envuelven los mensajes del XML, para leerlo a partir de uno de ellos.
+     */
+    private static final byte[] APERTURA_MENSAJES = "<conversacion><mensajes>".getBytes(StandardCharsets.UTF_8);
+
+    private final Path directorio;
+    private final ConversacionDAO.ModoAlmacenamiento modo;
+    private final ModoDurabilidad durabilidad;
+    private final boolean comprimir;
+    private final DiarioXml<Mensaje> diarioMensajes = new DiarioXml<>(Mensaje.class, "mensaje");
+
+    /**
+     * Constructor de la clase XmlConversacionStore sobre el directorio de conversaciones de la aplicación.
+     * @param modo El modo en que se guardarán los mensajes nuevos.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     */
+    public XmlConversacionStore(ConversacionDAO.ModoAlmacenamiento modo, ModoDurabilidad durabilidad) {
+        this(Paths.get(CONVERSACIONES_DIR), modo, durabilidad);
+    }
+
+    /**
+     * Constructor de la clase XmlConversacionStore sobre un directorio concreto.
+     * Los archivos se comprimen según la propiedad {@value CompresionArchivos#PROPIEDAD_COMPRESION}.
+     * @param directorio El directorio de los archivos de conversación.
+     * @param modo El modo en que se guardarán los mensajes nuevos.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     */
+    public XmlConversacionStore(Path directorio, ConversacionDAO.ModoAlmacenamiento modo, ModoDurabilidad durabilidad) {
+        this(directorio, modo, durabilidad, CompresionArchivos.compresionPorDefecto());
+    }
+
+    /**
+     * Constructor de la clase XmlConversacionStore sobre un directorio concreto, indicando si se comprime.
+     * Los archivos ya guardados se leen igual estén comprimidos o no.
+     * @param directorio El directorio de los archivos de conversación.
+     * @param modo El modo en que se guardarán los mensajes nuevos.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     * @param comprimir Si es {@code true}, los XML se guardan comprimidos con gzip.
+     */
+    public XmlConversacionStore(Path directorio, ConversacionDAO.ModoAlmacenamiento modo, ModoDurabilidad durabilidad,
+                                boolean comprimir) {
+        this.directorio = directorio;
+        this.modo = modo;
+        this.durabilidad = durabilidad;
+        this.comprimir = comprimir;
+    }
+
+    /**
+     * Genera la ruta del archivo XML de una conversación.
+     * @param clave La clave de la conversación.
+     * @return La ruta del archivo XML donde se guarda o se leerá la conversación.
+     */
+    private Path getConversationPath(String clave) {
+        return directorio.resolve(clave + ".xml");
+    }
+
+    /**
+     * Obtiene la ruta del diario de una conversación.
+     * @param clave La clave de la conversación.
+     * @return La ruta del archivo de diario.
+     */
+    private Path getDiarioPath(String clave) {
+        return directorio.resolve(clave + EXTENSION_DIARIO);
+    }
+
+    @Override
+    public List<Path> getArchivos(String clave) {
+        return List.of(getConversationPath(clave), getDiarioPath(clave));
+    }
+
+    /**
+     * Devuelve los archivos existentes de la conversación, incluidos los índices del XML y del diario.
+     * @param clave La clave de la conversación.
+     * @return Las rutas de los archivos existentes.
+     */
+    @Override
+    public List<Path> getTodosLosArchivos(String clave) {
+        List<Path> archivos = new ArrayList<>();
+        for (Path archivo : getArchivos(clave)) {
+            archivos.add(archivo);
+            archivos.add(IndiceMensajes.getRuta(archivo));
+        }
+        archivos.removeIf(archivo -> !Files.exists(archivo));
+        return archivos;
+    }
+
+    @Override
+    public boolean existe(String clave) {
+        return Files.exists(getConversationPath(clave));
+    }
+
+    /**
+     * Indica si el diario de una conversación continúa la versión actual de su XML, es decir, si sus mensajes todavía
+     * no están incluidos en el XML.
+     * @param clave La clave de la conversación.
+     * @param generacion La generación del XML de la conversación.
+     * @return {@code true} si los mensajes del diario se deben añadir a los del XML.
+     * @throws IOException si no se puede leer el diario.
+     */
+    private boolean diarioVigente(String clave, String generacion) throws IOException {
+        return Objects.equals(generacion, diarioMensajes.leerBase(getDiarioPath(clave)));
+    }
+
+    /**
+     * Lee la generación del XML de una conversación sin leer sus mensajes.
+     * @param clave La clave de la conversación.
+     * @return La generación, o {@code null} si el XML se guardó sin ella.
+     * @throws IOException si no se puede leer el XML.
+     */
+    private String leerGeneracion(String clave) throws IOException {
+        return LectorXmlStream.leerAtributoRaiz(getConversationPath(clave), "generacion");
+    }
+
+    /**
+     * Lee una conversación combinando su XML con los mensajes de su diario.
+     * @param clave La clave de la conversación.
+     * @return La conversación completa, o {@link Optional#empty()} si no existe.
+     * @throws IOException si no se puede leer el diario.
+     */
+    @Override
+    public Optional<Conversacion> leer(String clave) throws IOException {
+        if (!existe(clave)) {
+            return Optional.empty();
+        }
+        Conversacion conversacion = XmlManager.readXML(new Conversacion(), getConversationPath(clave).toString());
+        if (conversacion != null && diarioVigente(clave, conversacion.getGeneracion())) {
+            conversacion.getMensajes().addAll(diarioMensajes.leer(getDiarioPath(clave)));
+        }
+        return Optional.ofNullable(conversacion);
+    }
+
+    /**
+     * Lee una conversación de la que sólo queda el diario (su XML se ha perdido, por ejemplo por una migración o una
+     * copia interrumpidas). Los participantes se toman del primer mensaje.
+     * @param clave La clave de la conversación.
+     * @return La conversación con los mensajes del diario, o {@link Optional#empty()} si el XML existe o el diario no
+     *         tiene mensajes.
+     * @throws IOException si no se puede leer el diario.
+     */
+    Optional<Conversacion> leerDiarioHuerfano(String clave) throws IOException {
+        if (existe(clave)) {
+            return Optional.empty();
+        }
+        List<Mensaje> mensajes = diarioMensajes.leer(getDiarioPath(clave));
+        if (mensajes.isEmpty()) {
+            return Optional.empty();
+        }
+        Conversacion conversacion = new Conversacion(mensajes.get(0).getRemitente(), mensajes.get(0).getDestinatario());
+        conversacion.getMensajes().addAll(mensajes);
+        return Optional.of(conversacion);
+    }
+
+    /**
+     * Abre un stream con los mensajes del XML seguidos de los del diario (si continúa este XML), leídos uno a uno con
+     * {@link LectorXmlStream}.
+     * @param clave La clave de la conversación.
+     * @return Un stream perezoso con los mensajes, vacío si la conversación no existe.
+     * @throws IOException si no se pueden abrir los archivos.
+     */
+    @Override
+    public Stream<Mensaje> streamMensajes(String clave) throws IOException {
+        if (!existe(clave)) {
+            return Stream.empty();
+        }
+        if (!diarioVigente(clave, leerGeneracion(clave))) {
+            return LectorXmlStream.stream(getConversationPath(clave), Mensaje.class, "mensaje");
+        }
+        LectorXmlStream<Mensaje> lectorXml = LectorXmlStream.abrir(getConversationPath(clave), Mensaje.class, "mensaje");
+        LectorXmlStream<Mensaje> lectorDiario;
+        try {
+            lectorDiario = diarioMensajes.abrir(getDiarioPath(clave));
+        } catch (IOException e) {
+            lectorXml.close();
+            throw e;
+        }
+        return Stream.concat(lectorXml.stream(), lectorDiario.stream());
+    }
+
+    /**
+     * Cuenta los mensajes de la conversación con los índices del XML y del diario.
+     * @param clave La clave de la conversación.
+     * @return El número de mensajes (0 si la conversación no existe), o vacío si el XML está comprimido.
+     * @throws IOException si no se pueden leer los índices ni reconstruirlos.
+     */
+    @Override
+    public OptionalInt contarMensajes(String clave) throws IOException {
+        if (!existe(clave)) {
+            return OptionalInt.of(0);
+        }
+        try (Indices indices = abrirIndices(clave)) {
+            return indices != null ? OptionalInt.of(indices.contar()) : OptionalInt.empty();
+        }
+    }
+
+    /**
+     * Abre un stream a partir de una posición: los índices indican en qué byte del XML o del diario empieza ese
+     * mensaje y la lectura empieza directamente ahí, sin leer los anteriores. Si el XML está comprimido se recorre
+     * desde el principio.
+     * @param clave La clave de la conversación.
+     * @param desde La posición del primer mensaje a devolver.
+     * @return Los mensajes desde esa posición, en orden cronológico.
+     * @throws IOException si no se pueden abrir los archivos o sus índices.
+     */
+    @Override
+    public Stream<Mensaje> streamMensajesDesde(String clave, int desde) throws IOException {
+        if (desde <= 0 || !existe(clave)) {
+            return streamMensajes(clave);
+        }
+        try (Indices indices = abrirIndices(clave)) {
+            if (indices == null) {
+                return ConversacionStore.super.streamMensajesDesde(clave, desde);
+            }
+            int enXml = indices.xml().contar();
+            if (desde < enXml) {
+                Stream<Mensaje> mensajesXml = abrirXmlDesde(getConversationPath(clave), indices.xml().getPosicion(desde)).stream();
+                if (indices.diario() == null) {
+                    return mensajesXml;
+                }
+                try {
+                    return Stream.concat(mensajesXml, diarioMensajes.abrir(getDiarioPath(clave)).stream());
+                } catch (IOException e) {
+                    mensajesXml.close();
+                    throw e;
+                }
+            }
+            if (indices.diario() == null || desde - enXml >= indices.diario().contar()) {
+                return Stream.empty();
+            }
+            return diarioMensajes.abrir(getDiarioPath(clave), indices.diario().getPosicion(desde - enXml)).stream();
+        }
+    }
+
+    /**
+     * Abre un lector sobre los mensajes de un XML sin comprimir a partir de la posición en bytes de uno de ellos.
+     * El resto del archivo termina cerrando {@code <mensajes>} y {@code <conversacion>}, así que basta con abrir esos
+     * elementos antes para que el lector vea un documento bien formado.
+     * @param xml El archivo XML de la conversación.
+     * @param posicion La posición donde empieza un elemento {@code <mensaje>}.
+     * @return Un lector que debe cerrarse al terminar.
+     * @throws IOException si no se puede abrir el archivo.
+     */
+    private static LectorXmlStream<Mensaje> abrirXmlDesde(Path xml, long posicion) throws IOException {
+        InputStream contenido = Files.newInputStream(xml);
+        try {
+            contenido.skipNBytes(posicion);
+        } catch (IOException e) {
+            contenido.close();
+            throw e;
+        }
+        InputStream entrada = new SequenceInputStream(
+                new ByteArrayInputStream(APERTURA_MENSAJES), new BufferedInputStream(contenido, 64 * 1024));
+        return new LectorXmlStream<>(entrada, Mensaje.class, "mensaje");
+    }
+
+    /**
+     * Busca el primer mensaje de una fecha o posterior con los índices del XML y del diario, mediante búsqueda binaria.
+     * @param clave La clave de la conversación.
+     * @param fecha La fecha buscada.
+     * @return La posición de ese mensaje (el número de mensajes si no hay ninguno), o vacío si el XML está comprimido.
+     * @throws IOException si no se pueden leer los índices ni reconstruirlos.
+     */
+    @Override
+    public OptionalInt buscarPosicionFecha(String clave, LocalDateTime fecha) throws IOException {
+        if (!existe(clave)) {
+            return OptionalInt.of(0);
+        }
+        try (Indices indices = abrirIndices(clave)) {
+            return indices != null ? OptionalInt.of(indices.buscarFecha(IndiceMensajes.aEpoch(fecha))) : OptionalInt.empty();
+        }
+    }
+
+    /**
+     * Añade mensajes a la conversación. En modo {@link ConversacionDAO.ModoAlmacenamiento#DIARIO} se añaden al diario
+     * (creando antes un XML vacío si la conversación es nueva, para registrar a los participantes, y descartando el
+     * diario anterior si ya estaba incluido en el XML); en modo
+     * {@link ConversacionDAO.ModoAlmacenamiento#REESCRITURA_COMPLETA} se reescribe el XML completo.
+     * @param clave La clave de la conversación.
+     * @param usuario1 El nombre de uno de los participantes.
+     * @param usuario2 El nombre del otro participante.
+     * @param mensajes Los mensajes a añadir.
+     * @throws IOException si no se pueden guardar.
+     */
+    @Override
+    public void anadirMensajes(String clave, String usuario1, String usuario2, List<Mensaje> mensajes) throws IOException {
+        if (modo == ConversacionDAO.ModoAlmacenamiento.DIARIO) {
+            if (!existe(clave)) {
+                guardar(clave, new Conversacion(usuario1, usuario2));
+            }
+            String generacion = leerGeneracion(clave);
+            if (!diarioVigente(clave, generacion)) {
+                eliminarDiario(clave);
+            }
+            Path diario = getDiarioPath(clave);
+            diarioMensajes.anadir(diario, generacion, mensajes, durabilidad);
+            long fin = Files.size(diario);
+            try {
+                // El índice se completa recorriendo sólo lo que se acaba de añadir
+                IndiceMensajes.anadir(diario, fin, new IndiceMensajes.Entradas(), fin, indexador(diario));
+            } catch (IOException e) {
+                System.err.println("Aviso: no se pudo actualizar el índice de " + diario + ", se reconstruirá: " + e.getMessage());
+                IndiceMensajes.eliminar(diario);
+            }
+            return;
+        }
+
+        // Busca la conversación o crea una nueva si no existe.
+        Conversacion conversacion = leer(clave).orElse(new Conversacion(usuario1, usuario2));
+
+        // Añade los nuevos mensajes al historial.
+        conversacion.getMensajes().addAll(mensajes);
+
+        // Guarda la conversación (actualizada o nueva) en su archivo; el diario ya incluido se descarta.
+        guardar(clave, conversacion);
+    }
+
+    /**
+     * Guarda la conversación completa en su XML, con una generación nueva. {@link XmlManager} sustituye el archivo de
+     * forma atómica, así que los lectores en streaming que lo tengan abierto nunca ven un XML a medio escribir.
+     * El índice del XML anterior se elimina antes de sustituirlo y, si el XML no se comprime, se genera uno nuevo.
+     * Como la conversación guardada ya está completa, después se elimina el diario; si no llega a eliminarse, deja de
+     * leerse porque continúa la generación anterior.
+     * @param clave La clave de la conversación.
+     * @param conversacion La conversación a guardar.
+     * @throws IOException si no se puede escribir el archivo.
+     */
+    @Override
+    public void guardar(String clave, Conversacion conversacion) throws IOException {
+        Path xml = getConversationPath(clave);
+        conversacion.setGeneracion(UUID.randomUUID().toString());
+        // Un índice del archivo anterior nunca debe quedar junto al archivo nuevo
+        IndiceMensajes.eliminar(xml);
+        try {
+            XmlManager.writeXML(conversacion, xml.toString(), durabilidad, comprimir);
+        } catch (RuntimeException e) {
+            throw new IOException("No se pudo guardar la conversación " + clave, e.getCause() != null ? e.getCause() : e);
+        }
+        if (!comprimir) {
+            try {
+                IndiceMensajes.Entradas entradas = new IndiceMensajes.Entradas();
+                long fin = indexarMensajes(xml, 0, Files.size(xml), entradas);
+                IndiceMensajes.escribir(xml, entradas, fin);
+            } catch (IOException e) {
+                System.err.println("Aviso: no se pudo escribir el índice de " + xml + ", se reconstruirá: " + e.getMessage());
+            }
+        }
+        eliminarDiario(clave);
+    }
+
+    /**
+     * Elimina el diario de una conversación junto con su índice (primero el índice, para que nunca quede un índice
+     * sin su diario que se pudiera confundir con el de un diario nuevo).
+     * @param clave La clave de la conversación.
+     * @throws IOException si no se pueden borrar.
+     */
+    private void eliminarDiario(String clave) throws IOException {
+        Path diario = getDiarioPath(clave);
+        IndiceMensajes.eliminar(diario);
+        Files.deleteIfExists(diario);
+        RegistroEscrituras.registrar(diario);
+    }
+
+    @Override
+    public boolean necesitaCompactacion(String clave) {
+        return diarioMensajes.tamano(getDiarioPath(clave)) > UMBRAL_COMPACTACION;
+    }
+
+    /**
+     * Fusiona el diario de una conversación con su archivo XML y elimina el diario.
+     * @param clave La clave de la conversación.
+     * @throws IOException si no se puede leer o escribir la conversación.
+     */
+    @Override
+    public void compactar(String clave) throws IOException {
+        Optional<Conversacion> conversacion = leer(clave);
+        if (conversacion.isPresent()) {
+            guardar(clave, conversacion.get());
+        }
+    }
+
+    /**
+     * Abre los índices del XML y, si continúa a este XML, del diario de una conversación, reconstruyéndolos si hace
+     * falta.
+     * @param clave La clave de la conversación, que debe existir.
+     * @return Los índices abiertos, o {@code null} si el XML está comprimido y no se puede leer desde una posición.
+     * @throws IOException si no se pueden leer los archivos.
+     */
+    private Indices abrirIndices(String clave) throws IOException {
+        Path xml = getConversationPath(clave);
+        if (CompresionArchivos.estaComprimido(xml)) {
+            return null;
+        }
+        Path diario = getDiarioPath(clave);
+        boolean conDiario = Files.exists(diario) && diarioVigente(clave, leerGeneracion(clave));
+        IndiceMensajes indiceXml = IndiceMensajes.abrir(xml, indexador(xml));
+        try {
+            return new Indices(indiceXml, conDiario ? IndiceMensajes.abrir(diario, indexador(diario)) : null);
+        } catch (IOException | RuntimeException e) {
+            indiceXml.close();
+            throw e;
+        }
+    }
+
+    private static IndiceMensajes.Indexador indexador(Path archivo) {
+        return (desde, hasta, destino) -> indexarMensajes(archivo, desde, hasta, destino);
+    }
+
+    /**
+     * Recorre los elementos {@code <mensaje>} de un XML sin comprimir (o de un diario) entre dos posiciones, anotando
+     * dónde empieza cada uno y su fecha sin llegar a deserializarlo. Como el texto de los mensajes va escapado, cada
+     * {@code <} del archivo empieza una etiqueta, así que basta con leer los nombres de las etiquetas.
+     * @param archivo El archivo XML o de diario.
+     * @param desde La posición donde empieza a recorrerse (el final de un mensaje, o 0 para empezar por el principio).
+     * @param hasta La posición donde se deja de recorrer; los mensajes que no terminan antes no se anotan.
+     * @param destino Donde se anotan los mensajes.
+     * @return La posición del final del último mensaje completo, o {@code desde} si no hay ninguno.
+     * @throws IOException si no se puede leer el archivo.
+     */
+    private static long indexarMensajes(Path archivo, long desde, long hasta, IndiceMensajes.Entradas destino) throws IOException {
+        long fin = desde;
+        try (EscanerEtiquetas escaner = new EscanerEtiquetas(archivo, desde, hasta)) {
+            long inicioMensaje = -1;
+            long fecha = IndiceMensajes.aEpoch(null);
+            String etiqueta;
+            while ((etiqueta = escaner.siguienteEtiqueta()) != null) {
+                switch (etiqueta) {
+                    case "mensaje" -> {
+                        inicioMensaje = escaner.inicioEtiqueta;
+                        fecha = IndiceMensajes.aEpoch(null);
+                    }
+                    case "fechaHora" -> fecha = leerFecha(escaner.leerTexto());
+                    case "/mensaje" -> {
+                        if (inicioMensaje >= 0) {
+                            destino.anadir(inicioMensaje, fecha);
+                            fin = escaner.posicion;
+                            inicioMensaje = -1;
+                        }
+                    }
+                    default -> {
+                        // Otras etiquetas (participantes, contenido, adjunto...) no se indexan
+                    }
+                }
+            }
+        }
+        return fin;
+    }
+
+    private static long leerFecha(String texto) {
+        try {
+            return IndiceMensajes.aEpoch(new AdaptadorLocalDateTimeXml().unmarshal(texto));
+        } catch (Exception e) {
+            return IndiceMensajes.aEpoch(null);
+        }
+    }
+
+    /**
+     * Lector de las etiquetas de un archivo XML que lleva la cuenta de la posición en bytes de cada una.
+     */
+    private static final class EscanerEtiquetas implements AutoCloseable {
+        /**
+         * Longitud máxima del nombre de etiqueta que se conserva; basta para distinguir las que se indexan.
+         */
+        private static final int LONGITUD_MAXIMA_NOMBRE = 16;
+
+        private final InputStream entrada;
+        private final long hasta;
+        private final StringBuilder nombre = new StringBuilder();
+        private long posicion;
+        private long inicioEtiqueta;
+        private boolean etiquetaEmpezada;
+
+        EscanerEtiquetas(Path archivo, long desde, long hasta) throws IOException {
+            this.entrada = new BufferedInputStream(Files.newInputStream(archivo), 64 * 1024);
+            this.hasta = hasta;
+            try {
+                entrada.skipNBytes(desde);
+            } catch (IOException e) {
+                entrada.close();
+                throw e;
+            }
+            this.posicion = desde;
+        }
+
+        private int leer() throws IOException {
+            if (posicion >= hasta) {
+                return -1;
+            }
+            int b = entrada.read();
+            if (b != -1) {
+                posicion++;
+            }
+            return b;
+        }
+
+        /**
+         * Avanza hasta la siguiente etiqueta y lee su nombre; su {@code <} queda en {@link #inicioEtiqueta}.
+         * @return El nombre de la etiqueta (con {@code /} delante si es de cierre), o {@code null} al llegar al final.
+         * @throws IOException si no se puede leer el archivo.
+         */
+        String siguienteEtiqueta() throws IOException {
+            int b;
+            if (!etiquetaEmpezada) {
+                do {
+                    b = leer();
+                } while (b != -1 && b != '<');
+                if (b == -1) {
+                    return null;
+                }
+                inicioEtiqueta = posicion - 1;
+            }
+            etiquetaEmpezada = false;
+            nombre.setLength(0);
+            while ((b = leer()) != -1 && b != '>' && !Character.isWhitespace(b)) {
+                if (nombre.length() < LONGITUD_MAXIMA_NOMBRE) {
+                    nombre.append((char) b);
+                }
+            }
+            return b == -1 ? null : nombre.toString();
+        }
+
+        /**
+         * Lee el texto que sigue a la etiqueta actual, hasta la siguiente etiqueta (que queda pendiente de leer).
+         * @return El texto leído.
+         * @throws IOException si no se puede leer el archivo.
+         */
+        String leerTexto() throws IOException {
+            ByteArrayOutputStream texto = new ByteArrayOutputStream(32);
+            int b;
+            while ((b = leer()) != -1 && b != '<') {
+                texto.write(b);
+            }
+            if (b == '<') {
+                inicioEtiqueta = posicion - 1;
+                etiquetaEmpezada = true;
+            }
+            return texto.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            entrada.close();
+        }
+    }
+
+    /**
+     * Índices del XML y del diario de una conversación, que juntos dan la posición de cada uno de sus mensajes.
+     * @param xml El índice del XML.
+     * @param diario El índice del diario, o {@code null} si no hay diario que continúe al XML.
+     */
+    private record Indices(IndiceMensajes xml, IndiceMensajes diario) implements AutoCloseable {
+        /**
+         * @return El número de mensajes de la conversación.
+         */
+        int contar() {
+            return xml.contar() + (diario != null ? diario.contar() : 0);
+        }
+
+        /**
+         * Busca el primer mensaje de una fecha o posterior, primero en el XML y, si no está, en el diario.
+         * @param fecha La fecha, en milisegundos desde la época (UTC).
+         * @return La posición del mensaje en la conversación, o {@link #contar()} si no hay ninguno.
+         * @throws IOException si no se pueden leer los índices.
+         */
+        int buscarFecha(long fecha) throws IOException {
+            int posicion = xml.buscarFecha(fecha);
+            if (posicion < xml.contar() || diario == null) {
+                return posicion;
+            }
+            return posicion + diario.buscarFecha(fecha);
+        }
+
+        @Override
+        public void close() {
+            xml.close();
+            if (diario != null) {
+                diario.close();
+            }
+        }
+    }
+}
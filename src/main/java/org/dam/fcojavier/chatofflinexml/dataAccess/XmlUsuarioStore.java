@@ -0,0 +1,167 @@
+package org.dam.fcojavier.chatofflinexml.dataAccess;
+
+import org.dam.fcojavier.chatofflinexml.model.Usuario;
+import org.dam.fcojavier.chatofflinexml.model.UsuariosLista;
+import org.dam.fcojavier.chatofflinexml.utils.CompresionArchivos;
+import org.dam.fcojavier.chatofflinexml.utils.ModoDurabilidad;
+import org.dam.fcojavier.chatofflinexml.utils.RegistroEscrituras;
+import org.dam.fcojavier.chatofflinexml.utils.XmlManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Almacenamiento de la lista de usuarios en un archivo XML (el formato original de la aplicación).
+ * El archivo se puede guardar comprimido con gzip (ver {@link CompresionArchivos}).
+ * <p>
+ * Los usuarios registrados o modificados no reescriben el XML: se añaden a un diario ({@code usuarios.diario}, sin
+ * comprimir) que se fusiona con el XML (un punto de control) cuando crece más que el propio XML. Así registrar un
+ * usuario cuesta lo mismo haya diez o decenas de miles, y la reescritura completa se reparte entre muchos registros.
+ * Al cargar se leen el XML y después el diario; cada usuario del diario sustituye al que tenga su mismo correo.
+ */
+public class XmlUsuarioStore implements UsuarioStore {
+    /**
+     * Ruta por defecto del archivo XML donde se almacenan los usuarios.
+     */
+    static final String USUARIOS_XML = "src/main/resources/data/usuarios.xml";
+    /**
+     * Extensión del diario de usuarios pendientes de fusionar con el XML.
+     */
+    private static final String EXTENSION_DIARIO = ".diario";
+    /**
+     * Tamaño mínimo del diario (en bytes) a partir del cual se fusiona con el XML.
+     */
+    private static final long UMBRAL_COMPACTACION = 256 * 1024;
+
+    private final DiarioXml<Usuario> diarioUsuarios = new DiarioXml<>(Usuario.class, "usuario");
+    private final Path archivo;
+    private final Path diario;
+    private final ModoDurabilidad durabilidad;
+    private final boolean comprimir;
+
+    /**
+     * Constructor de la clase XmlUsuarioStore sobre el archivo de usuarios de la aplicación.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     */
+    public XmlUsuarioStore(ModoDurabilidad durabilidad) {
+        this(Paths.get(USUARIOS_XML), durabilidad);
+    }
+
+    /**
+     * Constructor de la clase XmlUsuarioStore sobre un archivo concreto.
+     * El archivo se comprime según la propiedad {@value CompresionArchivos#PROPIEDAD_COMPRESION}.
+     * @param archivo El archivo XML de usuarios.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     */
+    public XmlUsuarioStore(Path archivo, ModoDurabilidad durabilidad) {
+        this(archivo, durabilidad, CompresionArchivos.compresionPorDefecto());
+    }
+
+    /**
+     * Constructor de la clase XmlUsuarioStore sobre un archivo concreto, indicando si se comprime.
+     * @param archivo El archivo XML de usuarios.
+     * @param durabilidad El modo de durabilidad de las escrituras.
+     * @param comprimir Si es {@code true}, el archivo se guarda comprimido con gzip.
+     */
+    public XmlUsuarioStore(Path archivo, ModoDurabilidad durabilidad, boolean comprimir) {
+        this.archivo = archivo;
+        this.diario = getRutaDiario(archivo);
+        this.durabilidad = durabilidad;
+        this.comprimir = comprimir;
+    }
+
+    /**
+     * Obtiene la ruta del diario de un archivo de usuarios ({@code usuarios.xml} -> {@code usuarios.diario}).
+     * @param archivo El archivo XML de usuarios.
+     * @return La ruta de su diario.
+     */
+    static Path getRutaDiario(Path archivo) {
+        String nombre = archivo.getFileName().toString();
+        return archivo.resolveSibling((nombre.endsWith(".xml") ? nombre.substring(0, nombre.length() - 4) : nombre)
+                + EXTENSION_DIARIO);
+    }
+
+    @Override
+    public Path getArchivo() {
+        return archivo;
+    }
+
+    @Override
+    public List<Path> getArchivos() {
+        return List.of(archivo, diario);
+    }
+
+    @Override
+    public UsuariosLista cargar() throws IOException {
+        UsuariosLista usuariosLista;
+        try {
+            usuariosLista = XmlManager.readXML(new UsuariosLista(), archivo.toString());
+        } catch (RuntimeException e) {
+            throw new IOException("No se pudo leer " + archivo, e.getCause() != null ? e.getCause() : e);
+        }
+        if (usuariosLista == null) {
+            usuariosLista = new UsuariosLista();
+        }
+        // Cada usuario del diario es su versión más reciente. Si un punto de control se interrumpió antes de borrar el
+        // diario, sus usuarios ya están así en el XML y sustituirlos no cambia nada
+        for (Usuario usuario : diarioUsuarios.leer(diario)) {
+            usuariosLista.removeUsuario(usuario);
+            usuariosLista.addUsuario(usuario);
+        }
+        return usuariosLista;
+    }
+
+    /**
+     * Guarda la lista completa en el XML y, como ya incluye los usuarios del diario, elimina el diario.
+     * @param usuariosLista La lista a guardar.
+     * @throws IOException si no se puede escribir.
+     */
+    @Override
+    public void guardar(UsuariosLista usuariosLista) throws IOException {
+        try {
+            XmlManager.writeXML(usuariosLista, archivo.toString(), durabilidad, comprimir);
+        } catch (RuntimeException e) {
+            throw new IOException("No se pudo guardar " + archivo, e.getCause() != null ? e.getCause() : e);
+        }
+        Files.deleteIfExists(diario);
+        RegistroEscrituras.registrar(diario);
+    }
+
+    /**
+     * Añade los usuarios nuevos al diario. Si el diario ha crecido más que el XML (y que
+     * {@value #UMBRAL_COMPACTACION} bytes), se hace un punto de control: se guarda la lista completa en el XML.
+     * @param usuariosLista La lista completa de usuarios, que ya incluye los nuevos.
+     * @param nuevos Los usuarios recién añadidos a la lista.
+     * @throws IOException si no se puede escribir.
+     */
+    @Override
+    public void anadir(UsuariosLista usuariosLista, List<Usuario> nuevos) throws IOException {
+        anotar(usuariosLista, nuevos);
+    }
+
+    /**
+     * Añade los usuarios modificados al diario, igual que los nuevos (ver {@link #anadir(UsuariosLista, List)}):
+     * al cargar sustituyen a la versión anterior del XML.
+     * @param usuariosLista La lista completa de usuarios, que ya incluye los cambios.
+     * @param modificados Los usuarios modificados.
+     * @throws IOException si no se puede escribir.
+     */
+    @Override
+    public void actualizar(UsuariosLista usuariosLista, List<Usuario> modificados) throws IOException {
+        anotar(usuariosLista, modificados);
+    }
+
+    private void anotar(UsuariosLista usuariosLista, List<Usuario> usuarios) throws IOException {
+        if (usuarios.isEmpty()) {
+            return;
+        }
+        diarioUsuarios.anadir(diario, usuarios, durabilidad);
+        long tamanoXml = Files.exists(archivo) ? Files.size(archivo) : 0;
+        if (diarioUsuarios.tamano(diario) > Math.max(UMBRAL_COMPACTACION, tamanoXml)) {
+            guardar(usuariosLista);
+        }
+    }
+}
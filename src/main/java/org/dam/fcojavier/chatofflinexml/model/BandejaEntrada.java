@@ -0,0 +1,98 @@
+package org.dam.fcojavier.chatofflinexml.model;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Clase que representa la bandeja de entrada de un usuario: un resumen de cada una de sus conversaciones
+ * (ver {@link EntradaBandeja}) que se mantiene al día con cada mensaje guardado, de modo que la lista de chats
+ * se puede ordenar y mostrar sin leer ninguna conversación.
+ */
+@XmlRootElement(name = "bandeja")
+@XmlType(propOrder = { "usuario", "conversaciones" })
+public class BandejaEntrada {
+
+    private String usuario;
+    private List<EntradaBandeja> conversaciones;
+
+    /**
+     * Constructor por defecto de la clase BandejaEntrada.
+     * Inicializa la lista de conversaciones.
+     */
+    public BandejaEntrada() {
+        this.conversaciones = new ArrayList<>();
+    }
+
+    /**
+     * Constructor para crear la bandeja vacía de un usuario.
+     * @param usuario El nombre del usuario propietario de la bandeja.
+     */
+    public BandejaEntrada(String usuario) {
+        this.usuario = usuario;
+        this.conversaciones = new ArrayList<>();
+    }
+
+    /**
+     * Obtiene el nombre del usuario propietario de la bandeja.
+     * @return El nombre del usuario.
+     */
+    @XmlElement
+    public String getUsuario() {
+        return usuario;
+    }
+
+    /**
+     * Establece el nombre del usuario propietario de la bandeja.
+     * @param usuario El nuevo nombre del usuario.
+     */
+    public void setUsuario(String usuario) {
+        this.usuario = usuario;
+    }
+
+    /**
+     * Obtiene la lista de conversaciones de la bandeja.
+     * @return La lista de entradas, una por contacto.
+     */
+    @XmlElementWrapper(name = "conversaciones")
+    @XmlElement(name = "conversacion")
+    public List<EntradaBandeja> getConversaciones() {
+        return conversaciones;
+    }
+
+    /**
+     * Establece la lista de conversaciones de la bandeja.
+     * @param conversaciones La nueva lista de entradas.
+     */
+    public void setConversaciones(List<EntradaBandeja> conversaciones) {
+        this.conversaciones = conversaciones;
+    }
+
+    /**
+     * Busca la entrada de la conversación con un contacto.
+     * @param contacto El nombre del contacto.
+     * @return Un {@link Optional} con la entrada, o vacío si no hay conversación con ese contacto.
+     */
+    public Optional<EntradaBandeja> buscarEntrada(String contacto) {
+        return conversaciones.stream()
+                .filter(entrada -> contacto.equals(entrada.getContacto()))
+                .findFirst();
+    }
+
+    /**
+     * Obtiene la entrada de la conversación con un contacto, creándola si todavía no existe.
+     * @param contacto El nombre del contacto.
+     * @return La entrada de la conversación con ese contacto.
+     */
+    public EntradaBandeja obtenerEntrada(String contacto) {
+        return buscarEntrada(contacto).orElseGet(() -> {
+            EntradaBandeja entrada = new EntradaBandeja(contacto);
+            conversaciones.add(entrada);
+            return entrada;
+        });
+    }
+}
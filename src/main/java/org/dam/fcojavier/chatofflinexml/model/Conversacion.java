@@ -1,5 +1,6 @@
 package org.dam.fcojavier.chatofflinexml.model;
 
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -20,6 +21,7 @@ public class Conversacion {
     private String usuario1;
     private String usuario2;
     private List<Mensaje> mensajes;
+    private String generacion;
 
     /**
      * Constructor por defecto de la clase Conversacion.
@@ -92,6 +94,25 @@ public class Conversacion {
         this.mensajes = mensajes;
     }
 
+    /**
+     * Obtiene el identificador de la versión guardada de la conversación.
+     * El almacenamiento XML lo cambia cada vez que reescribe el archivo, y lo usa para saber si su diario de mensajes
+     * continúa esta versión o ya está incluido en ella.
+     * @return El identificador, o {@code null} si la conversación se guardó sin él.
+     */
+    @XmlAttribute
+    public String getGeneracion() {
+        return generacion;
+    }
+
+    /**
+     * Establece el identificador de la versión guardada de la conversación.
+     * @param generacion El nuevo identificador.
+     */
+    public void setGeneracion(String generacion) {
+        this.generacion = generacion;
+    }
+
     /**
      * Agrega un mensaje a la conversación.
      * @param mensaje El mensaje a agregar.
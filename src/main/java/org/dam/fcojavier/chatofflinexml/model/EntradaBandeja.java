@@ -0,0 +1,193 @@
+package org.dam.fcojavier.chatofflinexml.model;
+
+import org.dam.fcojavier.chatofflinexml.utils.AdaptadorLocalDateTimeXml;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import java.time.LocalDateTime;
+
+/**
+ * Clase que representa el resumen de una conversación dentro de la bandeja de entrada de un usuario:
+ * el contacto, una vista previa del último mensaje, su fecha y los contadores de mensajes totales y no leídos.
+ */
+@XmlType(propOrder = { "contacto", "ultimoRemitente", "vistaPrevia", "fechaUltimoMensaje", "total", "noLeidos" })
+public class EntradaBandeja {
+    /**
+     * Longitud máxima de la vista previa del último mensaje.
+     */
+    private static final int LONGITUD_VISTA_PREVIA = 80;
+
+    private String contacto;
+    private String ultimoRemitente;
+    private String vistaPrevia;
+    private LocalDateTime fechaUltimoMensaje;
+    private int total;
+    private int noLeidos;
+
+    /**
+     * Constructor por defecto de la clase EntradaBandeja.
+     */
+    public EntradaBandeja() {
+    }
+
+    /**
+     * Constructor para crear la entrada de una conversación nueva, sin mensajes.
+     * @param contacto El nombre del otro participante de la conversación.
+     */
+    public EntradaBandeja(String contacto) {
+        this.contacto = contacto;
+    }
+
+    /**
+     * Obtiene el nombre del otro participante de la conversación.
+     * @return El nombre del contacto.
+     */
+    @XmlElement
+    public String getContacto() {
+        return contacto;
+    }
+
+    /**
+     * Establece el nombre del otro participante de la conversación.
+     * @param contacto El nuevo nombre del contacto.
+     */
+    public void setContacto(String contacto) {
+        this.contacto = contacto;
+    }
+
+    /**
+     * Obtiene el remitente del último mensaje.
+     * @return El nombre del remitente del último mensaje.
+     */
+    @XmlElement
+    public String getUltimoRemitente() {
+        return ultimoRemitente;
+    }
+
+    /**
+     * Establece el remitente del último mensaje.
+     * @param ultimoRemitente El nombre del remitente del último mensaje.
+     */
+    public void setUltimoRemitente(String ultimoRemitente) {
+        this.ultimoRemitente = ultimoRemitente;
+    }
+
+    /**
+     * Obtiene la vista previa (el principio del texto) del último mensaje.
+     * @return La vista previa del último mensaje.
+     */
+    @XmlElement
+    public String getVistaPrevia() {
+        return vistaPrevia;
+    }
+
+    /**
+     * Establece la vista previa del último mensaje.
+     * @param vistaPrevia La nueva vista previa.
+     */
+    public void setVistaPrevia(String vistaPrevia) {
+        this.vistaPrevia = vistaPrevia;
+    }
+
+    /**
+     * Obtiene la fecha y hora del último mensaje.
+     * @return La fecha y hora del último mensaje, o {@code null} si no hay mensajes.
+     */
+    @XmlElement
+    @XmlJavaTypeAdapter(value = AdaptadorLocalDateTimeXml.class)
+    public LocalDateTime getFechaUltimoMensaje() {
+        return fechaUltimoMensaje;
+    }
+
+    /**
+     * Establece la fecha y hora del último mensaje.
+     * @param fechaUltimoMensaje La nueva fecha y hora del último mensaje.
+     */
+    public void setFechaUltimoMensaje(LocalDateTime fechaUltimoMensaje) {
+        this.fechaUltimoMensaje = fechaUltimoMensaje;
+    }
+
+    /**
+     * Obtiene el número total de mensajes de la conversación.
+     * @return El número total de mensajes.
+     */
+    @XmlElement
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Establece el número total de mensajes de la conversación.
+     * @param total El nuevo número total de mensajes.
+     */
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    /**
+     * Obtiene el número de mensajes recibidos que el usuario todavía no ha leído.
+     * @return El número de mensajes no leídos.
+     */
+    @XmlElement
+    public int getNoLeidos() {
+        return noLeidos;
+    }
+
+    /**
+     * Establece el número de mensajes no leídos.
+     * @param noLeidos El nuevo número de mensajes no leídos.
+     */
+    public void setNoLeidos(int noLeidos) {
+        this.noLeidos = noLeidos;
+    }
+
+    /**
+     * Cuenta un mensaje nuevo de la conversación. Si es más reciente que el último conocido, pasa a ser el último
+     * (dos lotes de la misma conversación pueden registrarse desordenados).
+     * @param mensaje El mensaje guardado.
+     * @param noLeido {@code true} si el mensaje lo ha recibido el propietario de la bandeja y todavía no lo ha leído.
+     */
+    public void registrarMensaje(Mensaje mensaje, boolean noLeido) {
+        total++;
+        if (noLeido) {
+            noLeidos++;
+        }
+        if (fechaUltimoMensaje == null || mensaje.getFechaHora() == null
+                || !mensaje.getFechaHora().isBefore(fechaUltimoMensaje)) {
+            actualizarUltimoMensaje(mensaje);
+        }
+    }
+
+    /**
+     * Copia en la entrada los datos del último mensaje de la conversación: su remitente, su fecha y la vista previa
+     * (el principio del texto en una sola línea o, si sólo tiene un adjunto, el nombre del archivo).
+     * @param mensaje El último mensaje.
+     */
+    public void actualizarUltimoMensaje(Mensaje mensaje) {
+        this.ultimoRemitente = mensaje.getRemitente();
+        this.fechaUltimoMensaje = mensaje.getFechaHora();
+        String contenido = mensaje.getContenido();
+        if (contenido == null || contenido.isBlank()) {
+            this.vistaPrevia = mensaje.getAdjunto() != null ? "[Adjunto: " + mensaje.getAdjunto().getNombre() + "]" : "";
+        } else {
+            String texto = contenido.strip().replaceAll("\\s+", " ");
+            this.vistaPrevia = texto.length() <= LONGITUD_VISTA_PREVIA
+                    ? texto : texto.substring(0, LONGITUD_VISTA_PREVIA - 1) + "…";
+        }
+    }
+
+    /**
+     * Devuelve una representación en cadena del objeto EntradaBandeja.
+     * @return Una cadena con el contacto, la fecha del último mensaje y los contadores.
+     */
+    @Override
+    public String toString() {
+        return "EntradaBandeja{" +
+                "contacto='" + contacto + '\'' +
+                ", fechaUltimoMensaje=" + fechaUltimoMensaje +
+                ", total=" + total +
+                ", noLeidos=" + noLeidos +
+                '}';
+    }
+}
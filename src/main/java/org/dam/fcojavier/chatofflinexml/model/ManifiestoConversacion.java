@@ -0,0 +1,113 @@
+package org.dam.fcojavier.chatofflinexml.model;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clase que representa el manifiesto de una conversación segmentada.
+ * Contiene los nombres de los dos usuarios y la lista ordenada de segmentos (del más antiguo al más reciente).
+ */
+@XmlRootElement(name = "manifiesto")
+@XmlType(propOrder = { "usuario1", "usuario2", "segmentos" })
+public class ManifiestoConversacion {
+
+    private String usuario1;
+    private String usuario2;
+    private List<SegmentoConversacion> segmentos;
+
+    /**
+     * Constructor por defecto de la clase ManifiestoConversacion.
+     * Inicializa la lista de segmentos.
+     */
+    public ManifiestoConversacion() {
+        this.segmentos = new ArrayList<>();
+    }
+
+    /**
+     * Constructor para crear el manifiesto de una conversación nueva, sin segmentos.
+     * @param usuario1 El nombre del primer usuario.
+     * @param usuario2 El nombre del segundo usuario.
+     */
+    public ManifiestoConversacion(String usuario1, String usuario2) {
+        this.usuario1 = usuario1;
+        this.usuario2 = usuario2;
+        this.segmentos = new ArrayList<>();
+    }
+
+    /**
+     * Obtiene el nombre del primer usuario.
+     * @return El nombre del primer usuario.
+     */
+    @XmlElement
+    public String getUsuario1() {
+        return usuario1;
+    }
+
+    /**
+     * Establece el nombre del primer usuario.
+     * @param usuario1 El nuevo nombre del primer usuario.
+     */
+    public void setUsuario1(String usuario1) {
+        this.usuario1 = usuario1;
+    }
+
+    /**
+     * Obtiene el nombre del segundo usuario.
+     * @return El nombre del segundo usuario.
+     */
+    @XmlElement
+    public String getUsuario2() {
+        return usuario2;
+    }
+
+    /**
+     * Establece el nombre del segundo usuario.
+     * @param usuario2 El nuevo nombre del segundo usuario.
+     */
+    public void setUsuario2(String usuario2) {
+        this.usuario2 = usuario2;
+    }
+
+    /**
+     * Obtiene la lista de segmentos de la conversación.
+     * @return La lista de segmentos, del más antiguo al más reciente.
+     */
+    @XmlElementWrapper(name = "segmentos")
+    @XmlElement(name = "segmento")
+    public List<SegmentoConversacion> getSegmentos() {
+        return segmentos;
+    }
+
+    /**
+     * Establece la lista de segmentos de la conversación.
+     * @param segmentos La nueva lista de segmentos.
+     */
+    public void setSegmentos(List<SegmentoConversacion> segmentos) {
+        this.segmentos = segmentos;
+    }
+
+    /**
+     * Calcula el número total de mensajes de la conversación sumando los de todos sus segmentos.
+     * @return El número total de mensajes.
+     */
+    public int totalMensajes() {
+        return segmentos.stream().mapToInt(SegmentoConversacion::getMensajes).sum();
+    }
+
+    /**
+     * Devuelve una representación en cadena del objeto ManifiestoConversacion.
+     * @return Una cadena con los usuarios y los segmentos de la conversación.
+     */
+    @Override
+    public String toString() {
+        return "ManifiestoConversacion{" +
+                "usuario1=" + usuario1 +
+                ", usuario2=" + usuario2 +
+                ", segmentos=" + segmentos +
+                '}';
+    }
+}
@@ -0,0 +1,139 @@
+package org.dam.fcojavier.chatofflinexml.model;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import org.dam.fcojavier.chatofflinexml.utils.AdaptadorLocalDateTimeXml;
+import java.time.LocalDateTime;
+
+/**
+ * Clase que describe un segmento de una conversación segmentada dentro de su {@link ManifiestoConversacion}.
+ * Contiene el nombre del segmento, cuántos mensajes tiene, el rango de fechas de esos mensajes y su tamaño en disco.
+ */
+@XmlRootElement(name = "segmento")
+@XmlType(propOrder = { "nombre", "mensajes", "fechaInicio", "fechaFin", "bytes" })
+public class SegmentoConversacion {
+
+    private String nombre;
+    private int mensajes;
+    private LocalDateTime fechaInicio;
+    private LocalDateTime fechaFin;
+    private long bytes;
+
+    /**
+     * Constructor por defecto de la clase SegmentoConversacion.
+     */
+    public SegmentoConversacion() {
+    }
+
+    /**
+     * Constructor para crear un segmento nuevo, todavía vacío.
+     * @param nombre El nombre del segmento (también el nombre de sus archivos).
+     */
+    public SegmentoConversacion(String nombre) {
+        this.nombre = nombre;
+    }
+
+    /**
+     * Obtiene el nombre del segmento.
+     * @return El nombre del segmento.
+     */
+    @XmlElement
+    public String getNombre() {
+        return nombre;
+    }
+
+    /**
+     * Establece el nombre del segmento.
+     * @param nombre El nuevo nombre del segmento.
+     */
+    public void setNombre(String nombre) {
+        this.nombre = nombre;
+    }
+
+    /**
+     * Obtiene el número de mensajes del segmento.
+     * @return El número de mensajes.
+     */
+    @XmlElement
+    public int getMensajes() {
+        return mensajes;
+    }
+
+    /**
+     * Establece el número de mensajes del segmento.
+     * @param mensajes El nuevo número de mensajes.
+     */
+    public void setMensajes(int mensajes) {
+        this.mensajes = mensajes;
+    }
+
+    /**
+     * Obtiene la fecha del mensaje más antiguo del segmento.
+     * @return La fecha del primer mensaje, o null si el segmento está vacío.
+     */
+    @XmlElement
+    @XmlJavaTypeAdapter(value = AdaptadorLocalDateTimeXml.class)
+    public LocalDateTime getFechaInicio() {
+        return fechaInicio;
+    }
+
+    /**
+     * Establece la fecha del mensaje más antiguo del segmento.
+     * @param fechaInicio La nueva fecha de inicio.
+     */
+    public void setFechaInicio(LocalDateTime fechaInicio) {
+        this.fechaInicio = fechaInicio;
+    }
+
+    /**
+     * Obtiene la fecha del mensaje más reciente del segmento.
+     * @return La fecha del último mensaje, o null si el segmento está vacío.
+     */
+    @XmlElement
+    @XmlJavaTypeAdapter(value = AdaptadorLocalDateTimeXml.class)
+    public LocalDateTime getFechaFin() {
+        return fechaFin;
+    }
+
+    /**
+     * Establece la fecha del mensaje más reciente del segmento.
+     * @param fechaFin La nueva fecha de fin.
+     */
+    public void setFechaFin(LocalDateTime fechaFin) {
+        this.fechaFin = fechaFin;
+    }
+
+    /**
+     * Obtiene el tamaño en disco del segmento.
+     * @return El tamaño en bytes de los archivos del segmento.
+     */
+    @XmlElement
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Establece el tamaño en disco del segmento.
+     * @param bytes El nuevo tamaño en bytes.
+     */
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Devuelve una representación en cadena del objeto SegmentoConversacion.
+     * @return Una cadena con los datos del segmento.
+     */
+    @Override
+    public String toString() {
+        return "SegmentoConversacion{" +
+                "nombre=" + nombre +
+                ", mensajes=" + mensajes +
+                ", fechaInicio=" + fechaInicio +
+                ", fechaFin=" + fechaFin +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
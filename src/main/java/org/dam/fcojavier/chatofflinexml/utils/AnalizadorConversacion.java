@@ -10,10 +10,13 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Clase de utilidad para analizar los datos de una conversación usando Java Streams.
- * Todos los métodos son estáticos y reciben el objeto Conversacion a analizar.
+ * Todos los métodos son estáticos y reciben el objeto Conversacion a analizar, o directamente un
+ * {@link Stream} de mensajes (por ejemplo, leído en streaming desde el archivo) para no tener que cargar
+ * la conversación completa en memoria.
  */
 public class AnalizadorConversacion {
 
@@ -39,7 +42,16 @@ public class AnalizadorConversacion {
             return Collections.emptyMap(); // Devuelve un mapa vacío si no hay datos
         }
 
-        return conversacion.getMensajes().stream()
+        return contarMensajesPorUsuario(conversacion.getMensajes().stream());
+    }
+
+    /**
+     * Cuenta cuántos mensajes ha enviado cada participante a partir de un stream de mensajes.
+     * @param mensajes El stream de mensajes a analizar.
+     * @return Un Map donde la clave es el nombre del remitente y el valor es el número de mensajes enviados.
+     */
+    public static Map<String, Long> contarMensajesPorUsuario(Stream<Mensaje> mensajes) {
+        return mensajes
                 .collect(Collectors.groupingBy(
                         Mensaje::getRemitente,       // Agrupa por el remitente del mensaje
                         Collectors.counting()        // Cuenta las ocurrencias en cada grupo
@@ -57,7 +69,17 @@ public class AnalizadorConversacion {
             return Collections.emptyMap();
         }
 
-        return conversacion.getMensajes().stream() // 1. Stream de Mensajes
+        return encontrarPalabrasMasUsadas(conversacion.getMensajes().stream(), limite);
+    }
+
+    /**
+     * Encuentra las palabras más frecuentes a partir de un stream de mensajes.
+     * @param mensajes El stream de mensajes a analizar.
+     * @param limite El número de palabras a devolver (ej. 10 para el Top 10).
+     * @return Un Map ordenado con las palabras más usadas y su frecuencia.
+     */
+    public static Map<String, Long> encontrarPalabrasMasUsadas(Stream<Mensaje> mensajes, int limite) {
+        return mensajes // 1. Stream de Mensajes
                 .map(Mensaje::getContenido) // 2. Stream de Strings (contenido de cada mensaje)
                 .filter(Objects::nonNull) // <-- FIX: Ignora mensajes sin contenido de texto
                 .map(String::toLowerCase) // 3. Pasa todo a minúsculas
@@ -0,0 +1,187 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Clase de utilidad para bloquear archivos de datos durante una operación de lectura-modificación-escritura.
+ * Combina dos niveles de bloqueo:
+ * <ul>
+ *     <li>Un bloqueo en memoria, repartido en {@value #NUMERO_FRANJAS} franjas ({@link ReentrantLock}) según la ruta
+ *     del archivo, para los hilos de esta aplicación. Los archivos que caen en franjas distintas se pueden escribir
+ *     en paralelo y la memoria usada no crece con el número de archivos.</li>
+ *     <li>Un bloqueo de sistema ({@link FileChannel#lock()}) sobre un archivo auxiliar {@code <archivo>.lock},
+ *     para que otras instancias de la aplicación que comparten la carpeta de datos esperen su turno.</li>
+ * </ul>
+ */
+public final class BloqueoArchivos {
+    /**
+     * Número de franjas de bloqueo en memoria (potencia de dos).
+     */
+    private static final int NUMERO_FRANJAS = 64;
+    /**
+     * Extensión de los archivos auxiliares usados para el bloqueo entre procesos.
+     */
+    public static final String EXTENSION_BLOQUEO = ".lock";
+
+    private static final ReentrantLock[] franjas = new ReentrantLock[NUMERO_FRANJAS];
+
+    static {
+        for (int i = 0; i < NUMERO_FRANJAS; i++) {
+            franjas[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Constructor privado: clase de utilidad con métodos estáticos.
+     */
+    private BloqueoArchivos() {}
+
+    /**
+     * Bloquea un archivo, esperando si otro hilo u otra instancia de la aplicación lo tiene bloqueado.
+     * El bloqueo debe liberarse con {@link Bloqueo#close()}, normalmente mediante try-with-resources; como el cuerpo
+     * del try no suele usar el bloqueo, esos métodos se anotan con {@code @SuppressWarnings("try")}.
+     * No se debe volver a bloquear el mismo archivo desde el hilo que ya lo tiene bloqueado.
+     * Si el sistema de archivos no admite bloqueos, se avisa y sólo se aplica el bloqueo en memoria.
+     * @param archivo El archivo a bloquear.
+     * @return El bloqueo adquirido.
+     */
+    public static Bloqueo bloquear(Path archivo) {
+        Path ruta = archivo.toAbsolutePath().normalize();
+        ReentrantLock franja = getFranja(ruta);
+        franja.lock();
+        FileChannel canal = null;
+        try {
+            Path archivoBloqueo = ruta.resolveSibling(ruta.getFileName() + EXTENSION_BLOQUEO);
+            Files.createDirectories(archivoBloqueo.getParent());
+            canal = FileChannel.open(archivoBloqueo, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            return new Bloqueo(franja, canal, canal.lock());
+        } catch (IOException e) {
+            System.err.println("Aviso: no se pudo bloquear " + ruta + " entre procesos: " + e.getMessage());
+            cerrar(canal);
+            return new Bloqueo(franja, null, null);
+        } catch (RuntimeException | Error e) {
+            cerrar(canal);
+            franja.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Elimina los archivos de bloqueo cuyo archivo de datos ya no existe (por ejemplo, el de una conversación migrada a
+     * otro formato), recorriendo un directorio y sus subdirectorios.
+     * Los archivos de bloqueo de los datos que existen se conservan: si se borrara uno mientras otra instancia espera
+     * en él, esa instancia y la siguiente que lo creara de nuevo podrían entrar a la vez. Por la misma razón sólo debe
+     * llamarse con la aplicación cerrada; aun así, no se borra ningún archivo que alguien tenga bloqueado.
+     * @param directorio El directorio a limpiar.
+     * @return El número de archivos de bloqueo eliminados.
+     * @throws IOException si no se puede recorrer el directorio.
+     */
+    public static int eliminarBloqueosHuerfanos(Path directorio) throws IOException {
+        if (!Files.isDirectory(directorio)) {
+            return 0;
+        }
+        List<Path> huerfanos;
+        try (Stream<Path> archivos = Files.walk(directorio)) {
+            huerfanos = archivos.filter(archivo -> archivo.getFileName().toString().endsWith(EXTENSION_BLOQUEO))
+                    .filter(archivo -> !Files.exists(getArchivoProtegido(archivo)))
+                    .toList();
+        }
+        int eliminados = 0;
+        for (Path archivoBloqueo : huerfanos) {
+            Path protegido = getArchivoProtegido(archivoBloqueo).toAbsolutePath().normalize();
+            ReentrantLock franja = getFranja(protegido);
+            if (franja.isHeldByCurrentThread() || !franja.tryLock()) {
+                continue; // Esta aplicación lo está usando
+            }
+            try (FileChannel canal = FileChannel.open(archivoBloqueo, StandardOpenOption.WRITE);
+                 FileLock bloqueo = canal.tryLock()) {
+                if (bloqueo != null && !Files.exists(protegido)) {
+                    Files.delete(archivoBloqueo);
+                    eliminados++;
+                }
+            } catch (IOException | OverlappingFileLockException e) {
+                System.err.println("Aviso: no se pudo eliminar el bloqueo " + archivoBloqueo + ": " + e.getMessage());
+            } finally {
+                franja.unlock();
+            }
+        }
+        return eliminados;
+    }
+
+    /**
+     * Obtiene el archivo de datos que protege un archivo de bloqueo.
+     * @param archivoBloqueo El archivo {@code <archivo>.lock}.
+     * @return La ruta del archivo de datos.
+     */
+    private static Path getArchivoProtegido(Path archivoBloqueo) {
+        String nombre = archivoBloqueo.getFileName().toString();
+        return archivoBloqueo.resolveSibling(nombre.substring(0, nombre.length() - EXTENSION_BLOQUEO.length()));
+    }
+
+    /**
+     * Obtiene la franja de bloqueo que corresponde a un archivo.
+     * @param ruta La ruta absoluta del archivo.
+     * @return El cerrojo en memoria de su franja.
+     */
+    private static ReentrantLock getFranja(Path ruta) {
+        int hash = ruta.hashCode();
+        hash ^= (hash >>> 16); // Se mezclan los bits altos para repartir mejor las rutas parecidas
+        return franjas[hash & (NUMERO_FRANJAS - 1)];
+    }
+
+    private static void cerrar(FileChannel canal) {
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // Se ignora: el bloqueo se libera igualmente al cerrar el canal
+            }
+        }
+    }
+
+    /**
+     * Bloqueo adquirido sobre un archivo. Se libera al cerrarlo.
+     */
+    public static final class Bloqueo implements AutoCloseable {
+        private final ReentrantLock franja;
+        private final FileChannel canal;
+        private final FileLock bloqueoSistema;
+        private boolean liberado;
+
+        private Bloqueo(ReentrantLock franja, FileChannel canal, FileLock bloqueoSistema) {
+            this.franja = franja;
+            this.canal = canal;
+            this.bloqueoSistema = bloqueoSistema;
+        }
+
+        /**
+         * Libera primero el bloqueo entre procesos y después el bloqueo en memoria.
+         */
+        @Override
+        public void close() {
+            if (liberado) {
+                return;
+            }
+            liberado = true;
+            try {
+                if (bloqueoSistema != null) {
+                    bloqueoSistema.release();
+                }
+            } catch (IOException e) {
+                System.err.println("Aviso: error al liberar un bloqueo de archivo: " + e.getMessage());
+            } finally {
+                cerrar(canal);
+                franja.unlock();
+            }
+        }
+    }
+}
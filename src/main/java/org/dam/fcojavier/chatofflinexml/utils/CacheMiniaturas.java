@@ -0,0 +1,421 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Caché de las miniaturas de las imágenes adjuntas que se muestran en el chat.
+ * <p>
+ * Las miniaturas se identifican por la ruta del adjunto y su fecha de modificación, de modo que si el archivo cambia
+ * se vuelve a generar. Se decodifican en segundo plano y se guardan en memoria (las usadas más recientemente, hasta
+ * {@value #MAXIMO_BYTES_MEMORIA} bytes de píxeles) y en disco, como PNG en {@value #DIRECTORIO_MINIATURAS}: al volver a
+ * abrir un chat, incluso tras reiniciar la aplicación, no hay que volver a decodificar las imágenes originales.
+ * Las imágenes que no se pueden decodificar también se recuerdan (con un archivo vacío en disco), para no volver a
+ * intentarlo mientras no cambien.
+ * <p>
+ * El directorio en disco se limpia en segundo plano al empezar a usarse la caché y cada vez que se escriben
+ * bastantes miniaturas nuevas: se borran las que no se han usado en {@value #DIAS_MAXIMOS_DISCO} días y, si aun así
+ * ocupan más de {@value #MAXIMO_BYTES_DISCO} bytes, las usadas hace más tiempo.
+ * <p>
+ * Todos los métodos públicos se deben llamar desde el hilo de la interfaz, que es también donde se avisa de las
+ * miniaturas cargadas. Implementa el patrón Singleton para que toda la aplicación comparta la misma caché.
+ */
+public class CacheMiniaturas {
+    /**
+     * Ancho de las miniaturas, en píxeles.
+     */
+    public static final double ANCHO_MINIATURA = 200;
+    /**
+     * Directorio donde se guardan las miniaturas generadas.
+     */
+    static final String DIRECTORIO_MINIATURAS = "media/.miniaturas";
+    /**
+     * Memoria máxima ocupada por los píxeles de las miniaturas en memoria (4 bytes por píxel).
+     */
+    private static final long MAXIMO_BYTES_MEMORIA = 32L * 1024 * 1024;
+    /**
+     * Espacio máximo que ocupan las miniaturas en disco.
+     */
+    private static final long MAXIMO_BYTES_DISCO = 64L * 1024 * 1024;
+    /**
+     * Días sin usarse tras los que una miniatura se borra del disco.
+     */
+    private static final long DIAS_MAXIMOS_DISCO = 30;
+    /**
+     * Bytes escritos en disco desde la última limpieza a partir de los cuales se vuelve a limpiar.
+     */
+    private static final long BYTES_ENTRE_LIMPIEZAS = MAXIMO_BYTES_DISCO / 8;
+    /**
+     * Número máximo de imágenes que no se pudieron decodificar que se recuerdan en memoria.
+     */
+    private static final int MAXIMO_FALLIDAS = 1_024;
+    /**
+     * Extensión del archivo vacío que recuerda en disco que una imagen no se pudo decodificar.
+     */
+    private static final String EXTENSION_FALLO = ".fallo";
+    /**
+     * Número de hilos que decodifican imágenes a la vez.
+     */
+    private static final int HILOS = 2;
+
+    private static CacheMiniaturas instance;
+
+    private final Path directorio;
+    private final ExecutorService ejecutor = Executors.newFixedThreadPool(HILOS, runnable -> {
+        Thread hilo = new Thread(runnable, "miniaturas");
+        hilo.setDaemon(true);
+        hilo.setPriority(Thread.MIN_PRIORITY);
+        return hilo;
+    });
+    /**
+     * Miniaturas en memoria, de la usada hace más tiempo a la más reciente.
+     */
+    private final LinkedHashMap<Clave, Image> miniaturas = new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * Miniaturas que se están cargando, con las acciones que esperan a cada una.
+     */
+    private final Map<Clave, List<Consumer<Image>>> pendientes = new HashMap<>();
+    /**
+     * Imágenes que no se pudieron decodificar, para no volver a intentarlo (las más antiguas se olvidan).
+     */
+    private final Set<Clave> fallidas = Collections.newSetFromMap(new LinkedHashMap<>(64, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Clave, Boolean> mayor) {
+            return size() > MAXIMO_FALLIDAS;
+        }
+    });
+    private long bytesEnMemoria;
+    /**
+     * Bytes escritos en disco desde la última limpieza (se actualiza desde los hilos de carga).
+     */
+    private final AtomicLong bytesDesdeLimpieza = new AtomicLong();
+    private final AtomicBoolean limpiezaPendiente = new AtomicBoolean();
+    private boolean limpiezaInicial;
+
+    /**
+     * Constructor privado para implementar el patrón Singleton.
+     * @param directorio El directorio donde se guardan las miniaturas en disco.
+     */
+    private CacheMiniaturas(Path directorio) {
+        this.directorio = directorio;
+    }
+
+    /**
+     * Obtiene la única instancia de la caché, creándola si no existe.
+     * @return La instancia compartida de la caché.
+     */
+    public static synchronized CacheMiniaturas getInstance() {
+        if (instance == null) {
+            instance = new CacheMiniaturas(Paths.get(DIRECTORIO_MINIATURAS));
+        }
+        return instance;
+    }
+
+    /**
+     * Identifica la miniatura de una versión concreta de un archivo.
+     * @param ruta La ruta absoluta del archivo.
+     * @param modificado La fecha de modificación del archivo, en milisegundos.
+     */
+    private record Clave(Path ruta, long modificado) {
+        /**
+         * Nombre del archivo de la miniatura en disco, que no depende de dónde esté el directorio de la caché.
+         * @return El nombre del PNG de la miniatura.
+         */
+        String nombreArchivo() {
+            return nombreBase() + ".png";
+        }
+
+        /**
+         * Nombre del archivo vacío que indica que la imagen no se pudo decodificar.
+         * @return El nombre del archivo de fallo.
+         */
+        String nombreFallo() {
+            return nombreBase() + EXTENSION_FALLO;
+        }
+
+        private String nombreBase() {
+            return UUID.nameUUIDFromBytes((ruta + "|" + modificado).getBytes(StandardCharsets.UTF_8)).toString();
+        }
+    }
+
+    /**
+     * Obtiene la miniatura de una imagen. Si está en memoria se devuelve enseguida; si no, se carga en segundo plano
+     * (del disco si ya se generó, o decodificando la imagen original) y se avisa al terminar.
+     * @param archivo La ruta de la imagen.
+     * @param alCargar Acción que recibe la miniatura (o {@code null} si la imagen no se puede leer) cuando no estaba
+     *                 en memoria. Se ejecuta en el hilo de la interfaz.
+     * @return La miniatura si ya estaba en memoria, o {@code null} si se está cargando.
+     */
+    public Image obtener(Path archivo, Consumer<Image> alCargar) {
+        Clave clave;
+        try {
+            Path ruta = archivo.toAbsolutePath().normalize();
+            clave = new Clave(ruta, Files.getLastModifiedTime(ruta).toMillis());
+        } catch (IOException e) {
+            Platform.runLater(() -> alCargar.accept(null));
+            return null;
+        }
+
+        Image miniatura = miniaturas.get(clave);
+        if (miniatura != null) {
+            return miniatura;
+        }
+        if (fallidas.contains(clave)) {
+            Platform.runLater(() -> alCargar.accept(null));
+            return null;
+        }
+        if (!limpiezaInicial) {
+            limpiezaInicial = true;
+            programarLimpieza();
+        }
+        List<Consumer<Image>> esperando = pendientes.get(clave);
+        if (esperando != null) {
+            esperando.add(alCargar); // Ya se está cargando para otra celda
+            return null;
+        }
+        esperando = new ArrayList<>();
+        esperando.add(alCargar);
+        pendientes.put(clave, esperando);
+        ejecutor.execute(() -> {
+            Image cargada = cargar(clave);
+            Platform.runLater(() -> terminarCarga(clave, cargada));
+        });
+        return null;
+    }
+
+    /**
+     * Guarda en memoria una miniatura recién cargada y avisa a quienes la esperaban.
+     * @param clave La miniatura cargada.
+     * @param miniatura La imagen de la miniatura, o {@code null} si no se pudo cargar.
+     */
+    private void terminarCarga(Clave clave, Image miniatura) {
+        if (miniatura != null) {
+            guardarEnMemoria(clave, miniatura);
+        } else {
+            fallidas.add(clave);
+        }
+        List<Consumer<Image>> esperando = pendientes.remove(clave);
+        if (esperando != null) {
+            esperando.forEach(accion -> accion.accept(miniatura));
+        }
+    }
+
+    /**
+     * Añade una miniatura a la memoria y descarta las usadas hace más tiempo hasta volver al límite.
+     * @param clave La miniatura.
+     * @param miniatura Su imagen.
+     */
+    private void guardarEnMemoria(Clave clave, Image miniatura) {
+        Image anterior = miniaturas.put(clave, miniatura);
+        if (anterior != null) {
+            bytesEnMemoria -= bytes(anterior);
+        }
+        bytesEnMemoria += bytes(miniatura);
+        Iterator<Map.Entry<Clave, Image>> iterador = miniaturas.entrySet().iterator();
+        while (bytesEnMemoria > MAXIMO_BYTES_MEMORIA && miniaturas.size() > 1 && iterador.hasNext()) {
+            bytesEnMemoria -= bytes(iterador.next().getValue());
+            iterador.remove();
+        }
+    }
+
+    /**
+     * Calcula la memoria que ocupan los píxeles de una imagen.
+     * @param imagen La imagen.
+     * @return El número de bytes aproximado.
+     */
+    private static long bytes(Image imagen) {
+        return (long) imagen.getWidth() * (long) imagen.getHeight() * 4;
+    }
+
+    /**
+     * Carga una miniatura en segundo plano: la lee del disco si ya se generó o, si no, la genera a partir de la
+     * imagen original y la guarda en disco para la próxima vez.
+     * @param clave La miniatura a cargar.
+     * @return La miniatura, o {@code null} si la imagen no se puede leer.
+     */
+    private Image cargar(Clave clave) {
+        Path guardada = directorio.resolve(clave.nombreArchivo());
+        if (Files.exists(guardada)) {
+            Image miniatura = new Image(guardada.toUri().toString());
+            if (!miniatura.isError()) {
+                marcarUso(guardada);
+                return miniatura;
+            }
+        }
+        Path fallo = directorio.resolve(clave.nombreFallo());
+        if (Files.exists(fallo)) {
+            marcarUso(fallo);
+            return null;
+        }
+
+        Image miniatura = new Image(clave.ruta().toUri().toString(), ANCHO_MINIATURA, 0, true, true); // width, height (0=preserve ratio), preserveRatio, smooth
+        if (miniatura.isError()) {
+            System.err.println("Error al cargar la imagen " + clave.ruta() + ": "
+                    + (miniatura.getException() != null ? miniatura.getException().getMessage() : "formato no soportado"));
+            guardarFallo(fallo);
+            return null;
+        }
+        guardarEnDisco(miniatura, guardada);
+        return miniatura;
+    }
+
+    /**
+     * Actualiza la fecha de un archivo de la caché en disco al usarlo, para que la limpieza borre antes los que
+     * llevan más tiempo sin usarse.
+     * @param archivo El archivo de la caché.
+     */
+    private static void marcarUso(Path archivo) {
+        try {
+            Files.setLastModifiedTime(archivo, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Sólo afecta al orden en que se borrará
+        }
+    }
+
+    /**
+     * Recuerda en disco que una imagen no se pudo decodificar, con un archivo vacío.
+     * @param fallo El archivo de fallo de la imagen.
+     */
+    private void guardarFallo(Path fallo) {
+        try {
+            Files.createDirectories(directorio);
+            Files.createFile(fallo);
+        } catch (FileAlreadyExistsException e) {
+            // Otra carga ya lo ha anotado
+        } catch (IOException e) {
+            System.err.println("No se pudo anotar el fallo de la miniatura " + fallo + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Guarda una miniatura como PNG. Se escribe en un archivo temporal que después se renombra, para que nunca
+     * quede a medias una miniatura que se pueda leer. Si no se puede guardar, sólo se pierde la caché en disco.
+     * @param miniatura La miniatura.
+     * @param destino El archivo donde se guarda.
+     */
+    private void guardarEnDisco(Image miniatura, Path destino) {
+        Path temporal = null;
+        try {
+            Files.createDirectories(directorio);
+            temporal = Files.createTempFile(directorio, destino.getFileName().toString(), ".tmp");
+            if (!ImageIO.write(SwingFXUtils.fromFXImage(miniatura, null), "png", temporal.toFile())) {
+                throw new IOException("No hay codificador PNG disponible");
+            }
+            Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (bytesDesdeLimpieza.addAndGet(Files.size(destino)) >= BYTES_ENTRE_LIMPIEZAS) {
+                programarLimpieza();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("No se pudo guardar la miniatura " + destino + ": " + e.getMessage());
+            if (temporal != null) {
+                try {
+                    Files.deleteIfExists(temporal);
+                } catch (IOException ignorada) {
+                    // El temporal se quedará en el directorio de miniaturas, que no se lee
+                }
+            }
+        }
+    }
+
+    /**
+     * Programa una limpieza del directorio en disco en los hilos de carga, si no hay ya una pendiente.
+     */
+    private void programarLimpieza() {
+        if (limpiezaPendiente.compareAndSet(false, true)) {
+            ejecutor.execute(() -> {
+                try {
+                    limpiarDisco();
+                } finally {
+                    limpiezaPendiente.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Borra del directorio en disco los archivos que no se han usado en {@value #DIAS_MAXIMOS_DISCO} días (incluidos
+     * los temporales abandonados) y, si los demás ocupan más de {@value #MAXIMO_BYTES_DISCO} bytes, los usados hace
+     * más tiempo hasta quedar por debajo de tres cuartos del límite.
+     */
+    private void limpiarDisco() {
+        bytesDesdeLimpieza.set(0);
+        if (!Files.isDirectory(directorio)) {
+            return;
+        }
+        List<Path> archivos;
+        try (Stream<Path> listado = Files.list(directorio)) {
+            archivos = listado.filter(Files::isRegularFile).collect(Collectors.toCollection(ArrayList::new));
+        } catch (IOException e) {
+            System.err.println("No se pudo limpiar la caché de miniaturas: " + e.getMessage());
+            return;
+        }
+        long limiteAntiguedad = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(DIAS_MAXIMOS_DISCO);
+        List<ArchivoEnDisco> conservados = new ArrayList<>();
+        long total = 0;
+        for (Path archivo : archivos) {
+            try {
+                BasicFileAttributes atributos = Files.readAttributes(archivo, BasicFileAttributes.class);
+                if (atributos.lastModifiedTime().toMillis() < limiteAntiguedad) {
+                    Files.deleteIfExists(archivo);
+                } else {
+                    conservados.add(new ArchivoEnDisco(archivo, atributos.size(), atributos.lastModifiedTime().toMillis()));
+                    total += atributos.size();
+                }
+            } catch (IOException e) {
+                // Borrado mientras tanto, o no se puede borrar: se vuelve a intentar en la próxima limpieza
+            }
+        }
+        if (total <= MAXIMO_BYTES_DISCO) {
+            return;
+        }
+        conservados.sort(Comparator.comparingLong(ArchivoEnDisco::usado));
+        for (Iterator<ArchivoEnDisco> iterador = conservados.iterator(); iterador.hasNext() && total > MAXIMO_BYTES_DISCO / 4 * 3; ) {
+            ArchivoEnDisco archivo = iterador.next();
+            try {
+                Files.deleteIfExists(archivo.ruta());
+                total -= archivo.tamano();
+            } catch (IOException e) {
+                // Se vuelve a intentar en la próxima limpieza
+            }
+        }
+    }
+
+    /**
+     * Archivo del directorio de miniaturas que se conserva tras descartar los antiguos.
+     * @param ruta La ruta del archivo.
+     * @param tamano Su tamaño en bytes.
+     * @param usado La última vez que se usó, en milisegundos.
+     */
+    private record ArchivoEnDisco(Path ruta, long tamano, long usado) {
+    }
+}
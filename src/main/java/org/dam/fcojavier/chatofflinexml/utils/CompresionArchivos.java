@@ -0,0 +1,113 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Clase de utilidad para leer y escribir archivos de datos comprimidos con gzip de forma transparente.
+ * Los archivos comprimidos conservan su nombre ({@code .xml}); al leerlos se detecta si están comprimidos por sus
+ * primeros bytes, de modo que los archivos sin comprimir se siguen leyendo igual y se puede activar o desactivar
+ * la compresión sin convertir los datos existentes.
+ * La compresión se hace en streaming: nunca se guarda en memoria una copia completa del archivo.
+ */
+public final class CompresionArchivos {
+    /**
+     * Propiedad del sistema que activa la compresión de los archivos de datos ({@code true} o {@code false}).
+     */
+    public static final String PROPIEDAD_COMPRESION = "chatofflinexml.comprimir";
+    /**
+     * Tamaño de los buffers de lectura y escritura.
+     */
+    private static final int TAMANO_BUFFER = 64 * 1024;
+    /**
+     * Primeros bytes de todo archivo gzip.
+     */
+    private static final int MAGIA_GZIP_1 = 0x1f;
+    private static final int MAGIA_GZIP_2 = 0x8b;
+
+    /**
+     * Constructor privado: clase de utilidad con métodos estáticos.
+     */
+    private CompresionArchivos() {}
+
+    /**
+     * Indica si la compresión está activada por defecto mediante la propiedad {@value #PROPIEDAD_COMPRESION}.
+     * @return {@code true} si los archivos nuevos se deben comprimir.
+     */
+    public static boolean compresionPorDefecto() {
+        return Boolean.getBoolean(PROPIEDAD_COMPRESION);
+    }
+
+    /**
+     * Abre un archivo para leerlo, descomprimiéndolo al vuelo si está comprimido con gzip.
+     * @param archivo El archivo a leer.
+     * @return Un flujo con el contenido sin comprimir del archivo.
+     * @throws IOException si no se puede abrir el archivo.
+     */
+    public static InputStream abrirLectura(Path archivo) throws IOException {
+        InputStream entrada = new BufferedInputStream(Files.newInputStream(archivo), TAMANO_BUFFER);
+        try {
+            if (estaComprimido(entrada)) {
+                return new GZIPInputStream(entrada, TAMANO_BUFFER);
+            }
+            return entrada;
+        } catch (IOException e) {
+            entrada.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Indica si un archivo está comprimido con gzip (y, por tanto, no se puede leer empezando a mitad del archivo).
+     * @param archivo El archivo a comprobar.
+     * @return {@code true} si el contenido está comprimido con gzip.
+     * @throws IOException si no se puede leer el archivo.
+     */
+    public static boolean estaComprimido(Path archivo) throws IOException {
+        try (InputStream entrada = new BufferedInputStream(Files.newInputStream(archivo), 2)) {
+            return estaComprimido(entrada);
+        }
+    }
+
+    /**
+     * Abre un archivo para escribirlo (sustituyendo su contenido), comprimiendo al vuelo si se indica.
+     * Hay que cerrar el flujo para que se escriba el final del formato gzip.
+     * @param archivo El archivo a escribir.
+     * @param comprimir Si es {@code true}, el contenido se comprime con gzip.
+     * @return Un flujo de salida hacia el archivo.
+     * @throws IOException si no se puede abrir el archivo.
+     */
+    public static OutputStream abrirEscritura(Path archivo, boolean comprimir) throws IOException {
+        OutputStream salida = new BufferedOutputStream(Files.newOutputStream(archivo), TAMANO_BUFFER);
+        if (!comprimir) {
+            return salida;
+        }
+        try {
+            return new GZIPOutputStream(salida, TAMANO_BUFFER);
+        } catch (IOException e) {
+            salida.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Comprueba, sin consumirlos, si los primeros bytes del flujo son los de un archivo gzip.
+     * @param entrada Un flujo que admita {@link InputStream#mark(int)}.
+     * @return {@code true} si el contenido está comprimido con gzip.
+     * @throws IOException si no se puede leer el flujo.
+     */
+    private static boolean estaComprimido(InputStream entrada) throws IOException {
+        entrada.mark(2);
+        int primero = entrada.read();
+        int segundo = entrada.read();
+        entrada.reset();
+        return primero == MAGIA_GZIP_1 && segundo == MAGIA_GZIP_2;
+    }
+}
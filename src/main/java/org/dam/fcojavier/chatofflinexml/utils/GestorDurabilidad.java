@@ -0,0 +1,248 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Clase de utilidad que aplica los distintos {@link ModoDurabilidad} a las escrituras en disco.
+ * Se encarga de forzar los archivos a disco (fsync), de sustituir archivos de forma atómica y de la
+ * sincronización periódica del modo {@link ModoDurabilidad#SINCRONIZADO_POR_GRUPO}.
+ * También lleva contadores por modo (escrituras, sincronizaciones y tiempo dedicado a sincronizar) y anota cada
+ * archivo escrito en {@link RegistroEscrituras}.
+ */
+public class GestorDurabilidad {
+    /**
+     * Intervalo entre sincronizaciones del modo {@link ModoDurabilidad#SINCRONIZADO_POR_GRUPO}.
+     */
+    private static final long INTERVALO_SINCRONIZACION_MS = 1_000;
+
+    private static final Set<Path> pendientesDeSincronizar = ConcurrentHashMap.newKeySet();
+    /**
+     * Directorios de los archivos pendientes: se fuerzan después de ellos para que los renombrados y los archivos
+     * nuevos también lleguen a disco.
+     */
+    private static final Set<Path> directoriosPendientes = ConcurrentHashMap.newKeySet();
+    private static final Map<ModoDurabilidad, Contadores> contadores = new EnumMap<>(ModoDurabilidad.class);
+    private static ScheduledExecutorService sincronizador;
+
+    static {
+        for (ModoDurabilidad modo : ModoDurabilidad.values()) {
+            contadores.put(modo, new Contadores());
+        }
+    }
+
+    /**
+     * Constructor privado: clase de utilidad con métodos estáticos.
+     */
+    private GestorDurabilidad() {}
+
+    /**
+     * Crea un archivo temporal en el mismo directorio que el destino, para luego sustituirlo con
+     * {@link #reemplazar(Path, Path, ModoDurabilidad)}. Al estar en el mismo directorio el renombrado es atómico.
+     * @param destino El archivo que se va a sustituir.
+     * @return La ruta del archivo temporal creado.
+     * @throws IOException si no se puede crear el archivo temporal.
+     */
+    public static Path crearTemporal(Path destino) throws IOException {
+        Path directorio = destino.toAbsolutePath().getParent();
+        Files.createDirectories(directorio);
+        Path temporal = Files.createTempFile(directorio, destino.getFileName().toString(), ".tmp");
+        // El temporal se crea con permisos restringidos: se copian los del archivo original para conservarlos
+        if (Files.exists(destino)) {
+            try {
+                Files.setPosixFilePermissions(temporal, Files.getPosixFilePermissions(destino));
+            } catch (UnsupportedOperationException e) {
+                // Sistema de archivos sin permisos POSIX
+            }
+        }
+        return temporal;
+    }
+
+    /**
+     * Sustituye el archivo de destino por el temporal ya escrito, aplicando el modo de durabilidad.
+     * En modo {@link ModoDurabilidad#SEGURO} el temporal se fuerza a disco antes de renombrarlo y después
+     * se fuerza también el directorio, para que el renombrado sobreviva a un corte de luz.
+     * @param temporal El archivo temporal con el contenido nuevo.
+     * @param destino El archivo a sustituir.
+     * @param modo El modo de durabilidad a aplicar.
+     * @throws IOException si no se puede sincronizar o renombrar el archivo.
+     */
+    public static void reemplazar(Path temporal, Path destino, ModoDurabilidad modo) throws IOException {
+        if (modo == ModoDurabilidad.SEGURO) {
+            forzar(temporal, modo);
+        }
+        try {
+            Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING);
+        }
+        contadores.get(modo).escrituras.increment();
+        RegistroEscrituras.registrar(destino);
+        if (modo == ModoDurabilidad.SEGURO) {
+            forzarDirectorio(destino.toAbsolutePath().getParent(), modo);
+        } else if (modo == ModoDurabilidad.SINCRONIZADO_POR_GRUPO) {
+            programarSincronizacion(destino);
+        }
+    }
+
+    /**
+     * Aplica el modo de durabilidad a un archivo que se acaba de modificar en el sitio (por ejemplo, al
+     * añadir datos al final de un diario). Si el canal ya está abierto se puede usar
+     * {@link #despuesDeEscribir(FileChannel, Path, ModoDurabilidad)} para evitar volver a abrirlo.
+     * @param archivo El archivo modificado.
+     * @param modo El modo de durabilidad a aplicar.
+     * @throws IOException si no se puede sincronizar el archivo.
+     */
+    public static void despuesDeEscribir(Path archivo, ModoDurabilidad modo) throws IOException {
+        contadores.get(modo).escrituras.increment();
+        RegistroEscrituras.registrar(archivo);
+        if (modo == ModoDurabilidad.SEGURO) {
+            forzar(archivo, modo);
+        } else if (modo == ModoDurabilidad.SINCRONIZADO_POR_GRUPO) {
+            programarSincronizacion(archivo);
+        }
+    }
+
+    /**
+     * Aplica el modo de durabilidad a un archivo modificado a través de un canal todavía abierto.
+     * @param canal El canal abierto con el que se ha escrito.
+     * @param archivo La ruta del archivo (necesaria para la sincronización periódica).
+     * @param modo El modo de durabilidad a aplicar.
+     * @throws IOException si no se puede sincronizar el archivo.
+     */
+    public static void despuesDeEscribir(FileChannel canal, Path archivo, ModoDurabilidad modo) throws IOException {
+        contadores.get(modo).escrituras.increment();
+        RegistroEscrituras.registrar(archivo);
+        if (modo == ModoDurabilidad.SEGURO) {
+            long inicio = System.nanoTime();
+            canal.force(true);
+            registrarSincronizacion(modo, inicio);
+        } else if (modo == ModoDurabilidad.SINCRONIZADO_POR_GRUPO) {
+            programarSincronizacion(archivo);
+        }
+    }
+
+    /**
+     * Fuerza inmediatamente a disco todos los archivos pendientes de la sincronización periódica y, después, sus
+     * directorios. Se puede llamar antes de cerrar la aplicación.
+     */
+    public static void sincronizarPendientes() {
+        List<Path> archivos = new ArrayList<>(pendientesDeSincronizar);
+        for (Path archivo : archivos) {
+            pendientesDeSincronizar.remove(archivo);
+            try {
+                if (Files.exists(archivo)) {
+                    forzar(archivo, ModoDurabilidad.SINCRONIZADO_POR_GRUPO);
+                }
+            } catch (IOException e) {
+                System.err.println("Error al sincronizar " + archivo + " con el disco: " + e.getMessage());
+            }
+        }
+        List<Path> directorios = new ArrayList<>(directoriosPendientes);
+        for (Path directorio : directorios) {
+            directoriosPendientes.remove(directorio);
+            forzarDirectorio(directorio, ModoDurabilidad.SINCRONIZADO_POR_GRUPO);
+        }
+    }
+
+    /**
+     * Devuelve una instantánea de los contadores de cada modo de durabilidad.
+     * @return Un mapa (no modificable) con las estadísticas de cada modo.
+     */
+    public static Map<ModoDurabilidad, EstadisticasDurabilidad> getEstadisticas() {
+        Map<ModoDurabilidad, EstadisticasDurabilidad> resultado = new EnumMap<>(ModoDurabilidad.class);
+        contadores.forEach((modo, c) -> resultado.put(modo,
+                new EstadisticasDurabilidad(c.escrituras.sum(), c.sincronizaciones.sum(), c.nanosSincronizacion.sum())));
+        return Collections.unmodifiableMap(resultado);
+    }
+
+    /**
+     * Fuerza a disco el contenido de un archivo (fsync).
+     * @param archivo El archivo a sincronizar.
+     * @param modo El modo al que se imputa la sincronización en los contadores.
+     * @throws IOException si no se puede sincronizar el archivo.
+     */
+    private static void forzar(Path archivo, ModoDurabilidad modo) throws IOException {
+        long inicio = System.nanoTime();
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.WRITE)) {
+            canal.force(true);
+        }
+        registrarSincronizacion(modo, inicio);
+    }
+
+    /**
+     * Fuerza a disco la entrada de directorio (necesario para que un renombrado sea duradero en Linux).
+     * En sistemas que no permiten abrir directorios (Windows) no hace nada.
+     * @param directorio El directorio a sincronizar.
+     * @param modo El modo al que se imputa la sincronización en los contadores.
+     */
+    private static void forzarDirectorio(Path directorio, ModoDurabilidad modo) {
+        long inicio = System.nanoTime();
+        try (FileChannel canal = FileChannel.open(directorio, StandardOpenOption.READ)) {
+            canal.force(true);
+            registrarSincronizacion(modo, inicio);
+        } catch (IOException e) {
+            // No soportado en este sistema de archivos: el renombrado sigue siendo atómico
+        }
+    }
+
+    private static void registrarSincronizacion(ModoDurabilidad modo, long inicio) {
+        Contadores c = contadores.get(modo);
+        c.sincronizaciones.increment();
+        c.nanosSincronizacion.add(System.nanoTime() - inicio);
+    }
+
+    /**
+     * Marca un archivo (y su directorio, por si se ha creado o renombrado) para la próxima sincronización periódica,
+     * arrancando el hilo sincronizador si hace falta.
+     * @param archivo El archivo modificado.
+     */
+    private static synchronized void programarSincronizacion(Path archivo) {
+        pendientesDeSincronizar.add(archivo.toAbsolutePath());
+        directoriosPendientes.add(archivo.toAbsolutePath().getParent());
+        if (sincronizador == null) {
+            sincronizador = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread hilo = new Thread(runnable, "sincronizador-disco");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            sincronizador.scheduleWithFixedDelay(GestorDurabilidad::sincronizarPendientes,
+                    INTERVALO_SINCRONIZACION_MS, INTERVALO_SINCRONIZACION_MS, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(GestorDurabilidad::sincronizarPendientes, "cierre-sincronizador-disco"));
+        }
+    }
+
+    /**
+     * Estadísticas acumuladas de un modo de durabilidad.
+     * @param escrituras Número de escrituras realizadas con el modo.
+     * @param sincronizaciones Número de fsync realizados.
+     * @param nanosSincronizacion Tiempo total dedicado a los fsync.
+     */
+    public record EstadisticasDurabilidad(long escrituras, long sincronizaciones, long nanosSincronizacion) {
+    }
+
+    /**
+     * Contadores internos de un modo de durabilidad.
+     */
+    private static final class Contadores {
+        private final LongAdder escrituras = new LongAdder();
+        private final LongAdder sincronizaciones = new LongAdder();
+        private final LongAdder nanosSincronizacion = new LongAdder();
+    }
+}
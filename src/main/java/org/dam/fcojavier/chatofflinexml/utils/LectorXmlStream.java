@@ -0,0 +1,215 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lector en streaming (StAX) de los elementos repetidos de un documento XML.
+ * Recorre el documento y deserializa con JAXB sólo los elementos con el nombre indicado (por ejemplo cada
+ * {@code <mensaje>} dentro de {@code <conversacion><mensajes>}), uno a uno, de modo que el consumo de memoria
+ * no depende del tamaño del archivo.
+ * Se puede usar como {@link Iterator}, como {@link Stream} o mediante un visitante con {@link #recorrer}.
+ * @param <T> Tipo de los elementos leídos (clase anotada con JAXB).
+ */
+public class LectorXmlStream<T> implements Iterator<T>, AutoCloseable {
+    private static final XMLInputFactory FABRICA_STAX = XMLInputFactory.newFactory();
+
+    private final InputStream entrada;
+    private final XMLStreamReader lector;
+    private final Class<T> clase;
+    private final String nombreElemento;
+    private boolean toleraFinalIncompleto;
+    private boolean terminado;
+    private T siguiente;
+
+    /**
+     * Crea un lector sobre un flujo de entrada. El lector se hace cargo del flujo y lo cierra en {@link #close()}.
+     * @param entrada El flujo con el documento XML (en UTF-8).
+     * @param clase La clase de los elementos a deserializar.
+     * @param nombreElemento El nombre de los elementos XML que se deben deserializar.
+     * @throws IOException si no se puede iniciar la lectura del documento.
+     */
+    public LectorXmlStream(InputStream entrada, Class<T> clase, String nombreElemento) throws IOException {
+        this.entrada = entrada;
+        this.clase = clase;
+        this.nombreElemento = nombreElemento;
+        try {
+            this.lector = FABRICA_STAX.createXMLStreamReader(entrada, "UTF-8");
+        } catch (XMLStreamException e) {
+            entrada.close();
+            throw new IOException("No se pudo iniciar la lectura del XML", e);
+        }
+    }
+
+    /**
+     * Abre un lector sobre un archivo XML, descomprimiéndolo al vuelo si está comprimido con gzip.
+     * @param archivo La ruta del archivo.
+     * @param clase La clase de los elementos a deserializar.
+     * @param nombreElemento El nombre de los elementos XML que se deben deserializar.
+     * @param <T> Tipo de los elementos leídos.
+     * @return Un lector posicionado al principio del archivo.
+     * @throws IOException si no se puede abrir el archivo.
+     */
+    public static <T> LectorXmlStream<T> abrir(Path archivo, Class<T> clase, String nombreElemento) throws IOException {
+        return new LectorXmlStream<>(CompresionArchivos.abrirLectura(archivo), clase, nombreElemento);
+    }
+
+    /**
+     * Devuelve un {@link Stream} secuencial de los elementos de un archivo XML.
+     * El stream debe cerrarse (por ejemplo con try-with-resources) para liberar el archivo.
+     * @param archivo La ruta del archivo.
+     * @param clase La clase de los elementos a deserializar.
+     * @param nombreElemento El nombre de los elementos XML que se deben deserializar.
+     * @param <T> Tipo de los elementos leídos.
+     * @return Un stream perezoso con los elementos del archivo.
+     * @throws IOException si no se puede abrir el archivo.
+     */
+    public static <T> Stream<T> stream(Path archivo, Class<T> clase, String nombreElemento) throws IOException {
+        return abrir(archivo, clase, nombreElemento).stream();
+    }
+
+    /**
+     * Recorre todos los elementos de un archivo XML, pasándolos uno a uno al visitante.
+     * @param archivo La ruta del archivo.
+     * @param clase La clase de los elementos a deserializar.
+     * @param nombreElemento El nombre de los elementos XML que se deben deserializar.
+     * @param visitante La acción a ejecutar con cada elemento.
+     * @param <T> Tipo de los elementos leídos.
+     * @throws IOException si no se puede abrir o leer el archivo.
+     */
+    public static <T> void recorrer(Path archivo, Class<T> clase, String nombreElemento, Consumer<? super T> visitante) throws IOException {
+        try (LectorXmlStream<T> lector = abrir(archivo, clase, nombreElemento)) {
+            lector.forEachRemaining(visitante);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Lee un atributo del elemento raíz de un archivo XML sin recorrer el resto del documento.
+     * @param archivo La ruta del archivo (comprimido o no).
+     * @param atributo El nombre del atributo.
+     * @return El valor del atributo, o {@code null} si el elemento raíz no lo tiene.
+     * @throws IOException si no se puede abrir el archivo o no es un XML válido.
+     */
+    public static String leerAtributoRaiz(Path archivo, String atributo) throws IOException {
+        try (InputStream entrada = CompresionArchivos.abrirLectura(archivo)) {
+            XMLStreamReader lector = FABRICA_STAX.createXMLStreamReader(entrada, "UTF-8");
+            try {
+                lector.nextTag();
+                return lector.getAttributeValue(null, atributo);
+            } finally {
+                lector.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("No se pudo leer el elemento raíz de " + archivo, e);
+        }
+    }
+
+    /**
+     * Hace que un documento truncado (por ejemplo, un diario cuyo último fragmento quedó a medio escribir)
+     * se trate como el final de los datos en lugar de como un error.
+     * @return Este mismo lector.
+     */
+    public LectorXmlStream<T> toleraFinalIncompleto() {
+        this.toleraFinalIncompleto = true;
+        return this;
+    }
+
+    /**
+     * Convierte este lector en un {@link Stream} que cierra el lector al cerrarse.
+     * @return Un stream perezoso con los elementos restantes.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Indica si quedan elementos por leer.
+     * @return {@code true} si hay al menos un elemento más.
+     * @throws UncheckedIOException si el documento está mal formado.
+     */
+    @Override
+    public boolean hasNext() {
+        if (siguiente == null) {
+            siguiente = leerSiguiente();
+        }
+        return siguiente != null;
+    }
+
+    /**
+     * Devuelve el siguiente elemento del documento.
+     * @return El siguiente elemento deserializado.
+     * @throws NoSuchElementException si no quedan elementos.
+     */
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T elemento = siguiente;
+        siguiente = null;
+        return elemento;
+    }
+
+    /**
+     * Avanza hasta el siguiente elemento con el nombre buscado y lo deserializa.
+     * @return El elemento leído, o {@code null} si se ha llegado al final del documento.
+     */
+    private T leerSiguiente() {
+        if (terminado) {
+            return null;
+        }
+        try {
+            while (lector.getEventType() != XMLStreamConstants.END_DOCUMENT) {
+                if (lector.getEventType() == XMLStreamConstants.START_ELEMENT
+                        && nombreElemento.equals(lector.getLocalName())) {
+                    // Tras el unmarshal el lector queda justo después del elemento leído
+                    return MotorSerializacionXml.getInstance().leer(clase, lector);
+                }
+                lector.next();
+            }
+            terminado = true;
+            return null;
+        } catch (XMLStreamException | JAXBException e) {
+            terminado = true;
+            if (toleraFinalIncompleto) {
+                System.err.println("Aviso: el XML termina con un fragmento incompleto, se ignora: " + e.getMessage());
+                return null;
+            }
+            throw new UncheckedIOException(new IOException("Error al leer el XML en streaming", e));
+        }
+    }
+
+    /**
+     * Cierra el lector StAX y el flujo de entrada subyacente.
+     */
+    @Override
+    public void close() {
+        try {
+            lector.close();
+        } catch (XMLStreamException e) {
+            // Se ignora: el flujo subyacente se cierra igualmente
+        }
+        try {
+            entrada.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
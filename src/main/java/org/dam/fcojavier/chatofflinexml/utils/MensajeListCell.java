@@ -0,0 +1,224 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import javafx.geometry.Pos;
+import javafx.scene.Node;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ListCell;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+import org.dam.fcojavier.chatofflinexml.model.Adjunto;
+import org.dam.fcojavier.chatofflinexml.model.Mensaje;
+
+import java.awt.Desktop;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Celda personalizada para la ListView de mensajes del chat.
+ * Muestra cada mensaje como una burbuja con su texto, la previsualización del adjunto (si existe) y la hora, y marca
+ * los mensajes enviados que todavía no se han podido guardar.
+ * <p>
+ * La ListView sólo crea las celdas que caben en pantalla y las reutiliza al hacer scroll, así que el número de nodos
+ * no depende de la longitud de la conversación. Por eso cada celda crea sus nodos una sola vez y en
+ * {@link #updateItem(Mensaje, boolean)} sólo cambia su contenido.
+ */
+public final class MensajeListCell extends ListCell<Mensaje> {
+    /**
+     * Ancho máximo de una burbuja; el texto más largo se divide en varias líneas.
+     */
+    private static final double ANCHO_MAXIMO_BURBUJA = 350;
+
+    private final String usuarioLogueado;
+    private final Predicate<Mensaje> noEnviado;
+    private final DateTimeFormatter formatoHora = DateTimeFormatter.ofPattern("HH:mm");
+
+    private final HBox contenedor;
+    private final TextFlow burbuja;
+    private final Text textoContenido;
+    private final Text saltoLinea;
+    private final ImageView vistaImagen;
+    private final HBox vistaArchivo;
+    private final ImageView iconoArchivo;
+    private final Text nombreArchivo;
+    private final Text textoAviso;
+    private final Text textoHora;
+    private final Text textoNoEnviado;
+    /**
+     * Ruta del adjunto del mensaje mostrado, que se abre al hacer clic en su previsualización.
+     */
+    private Path rutaAdjunto;
+
+    /**
+     * Crea una celda de mensaje.
+     * @param usuarioLogueado El nombre del usuario logueado, para distinguir los mensajes enviados de los recibidos.
+     * @param noEnviado Indica si un mensaje enviado todavía no se ha podido guardar.
+     */
+    public MensajeListCell(String usuarioLogueado, Predicate<Mensaje> noEnviado) {
+        super();
+        this.usuarioLogueado = usuarioLogueado;
+        this.noEnviado = noEnviado;
+
+        textoContenido = new Text();
+        textoContenido.getStyleClass().add("chat-content");
+        saltoLinea = new Text("\n");
+
+        vistaImagen = new ImageView();
+        vistaImagen.setOnMouseClicked(event -> abrirAdjunto());
+
+        // Contenedor para el icono y el texto del archivo
+        iconoArchivo = new ImageView();
+        iconoArchivo.setFitWidth(24); // Tamaño del icono
+        iconoArchivo.setFitHeight(24);
+        nombreArchivo = new Text();
+        nombreArchivo.getStyleClass().add("chat-content");
+        nombreArchivo.setUnderline(true);
+        nombreArchivo.setStyle("-fx-cursor: hand;"); // Cursor de mano para indicar que es clickeable
+        vistaArchivo = new HBox(5, iconoArchivo, nombreArchivo); // Espacio de 5px entre elementos
+        vistaArchivo.setAlignment(Pos.CENTER_LEFT);
+        vistaArchivo.setOnMouseClicked(event -> abrirAdjunto());
+
+        textoAviso = new Text();
+        textoAviso.getStyleClass().add("chat-content");
+
+        textoHora = new Text();
+        textoHora.getStyleClass().add("chat-timestamp");
+
+        textoNoEnviado = new Text(" (no enviado)");
+        textoNoEnviado.getStyleClass().add("mensaje-no-enviado");
+
+        burbuja = new TextFlow();
+        burbuja.getStyleClass().add("chat-bubble");
+        burbuja.setMaxWidth(ANCHO_MAXIMO_BURBUJA);
+
+        contenedor = new HBox(burbuja);
+
+        // La celda ocupa el ancho de la lista, sin barra de scroll horizontal
+        setPrefWidth(0);
+    }
+
+    @Override
+    protected void updateItem(Mensaje mensaje, boolean empty) {
+        super.updateItem(mensaje, empty);
+        setText(null);
+        if (mensaje == null || empty) {
+            rutaAdjunto = null;
+            vistaImagen.setImage(null);
+            setGraphic(null);
+            return;
+        }
+        mostrar(mensaje);
+    }
+
+    /**
+     * Rellena los nodos de la celda con un mensaje.
+     * @param mensaje El mensaje a mostrar.
+     */
+    private void mostrar(Mensaje mensaje) {
+        // 1. Estilo y alineación de la burbuja según quién envió el mensaje
+        boolean enviado = mensaje.getRemitente().equals(usuarioLogueado);
+        burbuja.getStyleClass().removeAll("chat-bubble-sent", "chat-bubble-received");
+        burbuja.getStyleClass().add(enviado ? "chat-bubble-sent" : "chat-bubble-received");
+        contenedor.setAlignment(enviado ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+
+        List<Node> partes = new ArrayList<>(5);
+
+        // 2. El contenido del mensaje si existe
+        boolean conTexto = mensaje.getContenido() != null && !mensaje.getContenido().isBlank();
+        if (conTexto) {
+            textoContenido.setText(mensaje.getContenido());
+            partes.add(textoContenido);
+        }
+
+        // 3. La previsualización del adjunto si existe
+        rutaAdjunto = null;
+        vistaImagen.setImage(null);
+        if (mensaje.getAdjunto() != null) {
+            if (conTexto) {
+                partes.add(saltoLinea);
+            }
+            partes.add(crearPrevisualizacion(mensaje));
+        }
+
+        // 4. La hora del mensaje
+        textoHora.setText(" [" + mensaje.getFechaHora().format(formatoHora) + "]");
+        partes.add(textoHora);
+
+        // 5. El aviso si el mensaje todavía no se ha podido guardar
+        if (noEnviado.test(mensaje)) {
+            partes.add(textoNoEnviado);
+        }
+
+        burbuja.getChildren().setAll(partes);
+        setGraphic(contenedor);
+    }
+
+    /**
+     * Prepara la previsualización del adjunto de un mensaje: la miniatura si es una imagen, el icono y el nombre si es
+     * otro tipo de archivo, o un aviso si el archivo no existe.
+     * Las miniaturas se obtienen de {@link CacheMiniaturas}; mientras se cargan se muestra un aviso, y al terminar se
+     * vuelve a pintar la celda si sigue mostrando el mismo mensaje.
+     * @param mensaje El mensaje con el adjunto.
+     * @return El nodo de la previsualización.
+     */
+    private Node crearPrevisualizacion(Mensaje mensaje) {
+        Adjunto adjunto = mensaje.getAdjunto();
+        Path adjuntoPath = Paths.get(adjunto.getRuta());
+        textoAviso.getStyleClass().remove("adjunto-faltante");
+        if (!Files.exists(adjuntoPath)) {
+            textoAviso.setText("[Adjunto: " + adjunto.getNombre() + " (FALTA)]");
+            textoAviso.getStyleClass().add("adjunto-faltante");
+            return textoAviso;
+        }
+
+        rutaAdjunto = adjuntoPath;
+        if (adjunto.esImagen()) {
+            Image miniatura = CacheMiniaturas.getInstance().obtener(adjuntoPath, cargada -> {
+                if (getItem() != mensaje) {
+                    return; // La celda ya muestra otro mensaje
+                }
+                if (cargada != null) {
+                    mostrar(mensaje);
+                } else {
+                    textoAviso.setText("[Error al cargar imagen: " + adjunto.getNombre() + "]");
+                }
+            });
+            if (miniatura != null) {
+                vistaImagen.setImage(miniatura);
+                return vistaImagen;
+            }
+            textoAviso.setText("[Cargando imagen: " + adjunto.getNombre() + "...]");
+            return textoAviso;
+        }
+        iconoArchivo.setImage(RegistroImagenes.getInstance().obtenerIconoArchivo(adjunto.getExtension()));
+        nombreArchivo.setText(adjunto.getNombre());
+        return vistaArchivo;
+    }
+
+    /**
+     * Abre el adjunto del mensaje mostrado con la aplicación por defecto del sistema.
+     */
+    private void abrirAdjunto() {
+        if (rutaAdjunto == null) {
+            return;
+        }
+        try {
+            // Usar Desktop para abrir el archivo con la app por defecto del sistema
+            Desktop.getDesktop().open(rutaAdjunto.toFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+            new Alert(Alert.AlertType.ERROR, "No se pudo abrir el archivo: " + e.getMessage()).showAndWait();
+        } catch (UnsupportedOperationException e) {
+            e.printStackTrace();
+            new Alert(Alert.AlertType.ERROR, "La apertura de archivos no es soportada en este sistema.").showAndWait();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+/**
+ * Modos de durabilidad de las escrituras en disco.
+ * Permiten elegir, para cada almacén, entre velocidad y seguridad ante un cierre inesperado.
+ */
+public enum ModoDurabilidad {
+    /**
+     * No se fuerza la escritura a disco (sin fsync). Es el modo más rápido, pero un corte de luz puede
+     * perder las últimas escrituras.
+     */
+    RAPIDO,
+    /**
+     * Se escribe en un archivo temporal, se fuerza a disco (fsync) y se renombra de forma atómica sobre el original.
+     * El archivo nunca queda a medio escribir y lo escrito sobrevive a un corte de luz.
+     */
+    SEGURO,
+    /**
+     * Como {@link #RAPIDO}, pero un hilo en segundo plano fuerza a disco periódicamente todos los archivos
+     * modificados y sus directorios (para que también duren los renombrados y los archivos nuevos). Limita la pérdida
+     * a la ventana de sincronización sin pagar un fsync por escritura.
+     */
+    SINCRONIZADO_POR_GRUPO
+}
@@ -0,0 +1,300 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Motor de serialización JAXB utilizado por {@link XmlManager}.
+ * Crea un único {@link JAXBContext} por clase (su construcción es costosa porque analiza la clase por reflexión)
+ * y reutiliza los {@link Marshaller} y {@link Unmarshaller} mediante pequeños pools por clase.
+ * Los Marshaller/Unmarshaller no son thread-safe, por eso cada hilo toma uno del pool y lo devuelve al terminar.
+ * También lleva contadores de tiempo por clase para poder medir el coste de la serialización.
+ */
+public final class MotorSerializacionXml {
+    /**
+     * Número máximo de Marshallers/Unmarshallers que se conservan por clase.
+     */
+    private static final int TAMANO_MAXIMO_POOL = 8;
+
+    private static final MotorSerializacionXml instance = new MotorSerializacionXml();
+
+    private final ConcurrentHashMap<Class<?>, EntradaClase> entradas = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor privado, el motor se comparte en toda la aplicación.
+     */
+    private MotorSerializacionXml() {}
+
+    /**
+     * Obtiene la única instancia del motor de serialización.
+     * @return La instancia compartida del motor.
+     */
+    public static MotorSerializacionXml getInstance() {
+        return instance;
+    }
+
+    /**
+     * Obtiene el contexto JAXB de una clase, creándolo sólo la primera vez que se pide.
+     * @param clase La clase raíz que se quiere serializar.
+     * @return El {@link JAXBContext} asociado a la clase.
+     * @throws JAXBException si no se puede crear el contexto.
+     */
+    public JAXBContext getContexto(Class<?> clase) throws JAXBException {
+        return getEntrada(clase).contexto;
+    }
+
+    /**
+     * Serializa un objeto en el archivo indicado con formato legible y codificación UTF-8.
+     * @param objeto El objeto que se desea guardar.
+     * @param destino El archivo de destino.
+     * @throws JAXBException si ocurre un error durante el marshalling.
+     */
+    public void escribir(Object objeto, File destino) throws JAXBException {
+        EntradaClase entrada = getEntrada(objeto.getClass());
+        Marshaller marshaller = entrada.tomarMarshaller();
+        long inicio = System.nanoTime();
+        try {
+            marshaller.marshal(objeto, destino);
+        } finally {
+            entrada.escrituras.increment();
+            entrada.nanosEscritura.add(System.nanoTime() - inicio);
+            entrada.devolverMarshaller(marshaller);
+        }
+    }
+
+    /**
+     * Serializa un objeto como documento XML (formato legible, UTF-8) en un flujo de salida.
+     * Permite escribir a través de otro flujo, por ejemplo uno que comprima, sin pasar por un archivo intermedio.
+     * @param objeto El objeto que se desea guardar.
+     * @param salida El flujo donde se escribe el documento. No se cierra.
+     * @throws JAXBException si ocurre un error durante el marshalling.
+     */
+    public void escribir(Object objeto, OutputStream salida) throws JAXBException {
+        EntradaClase entrada = getEntrada(objeto.getClass());
+        Marshaller marshaller = entrada.tomarMarshaller();
+        long inicio = System.nanoTime();
+        try {
+            marshaller.marshal(objeto, salida);
+        } finally {
+            entrada.escrituras.increment();
+            entrada.nanosEscritura.add(System.nanoTime() - inicio);
+            entrada.devolverMarshaller(marshaller);
+        }
+    }
+
+    /**
+     * Serializa un objeto como fragmento XML (sin declaración ni saltos de línea) en un flujo de salida.
+     * Se utiliza para añadir elementos sueltos al final de un archivo sin reescribirlo.
+     * @param objeto El objeto que se desea serializar.
+     * @param salida El flujo donde se escribe el fragmento. No se cierra.
+     * @throws JAXBException si ocurre un error durante el marshalling.
+     */
+    public void escribirFragmento(Object objeto, OutputStream salida) throws JAXBException {
+        EntradaClase entrada = getEntrada(objeto.getClass());
+        Marshaller marshaller = entrada.tomarMarshaller();
+        long inicio = System.nanoTime();
+        try {
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+            marshaller.marshal(objeto, salida);
+        } finally {
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.FALSE);
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+            entrada.escrituras.increment();
+            entrada.nanosEscritura.add(System.nanoTime() - inicio);
+            entrada.devolverMarshaller(marshaller);
+        }
+    }
+
+    /**
+     * Deserializa el elemento en el que está posicionado un {@link XMLStreamReader}.
+     * Al terminar, el lector queda situado justo después del elemento leído.
+     * @param clase La clase del objeto esperado.
+     * @param lector El lector StAX, posicionado en el START_ELEMENT del objeto.
+     * @param <T> Tipo del objeto deserializado.
+     * @return El objeto leído.
+     * @throws JAXBException si ocurre un error durante el unmarshalling.
+     */
+    public <T> T leer(Class<T> clase, XMLStreamReader lector) throws JAXBException {
+        EntradaClase entrada = getEntrada(clase);
+        Unmarshaller unmarshaller = entrada.tomarUnmarshaller();
+        long inicio = System.nanoTime();
+        try {
+            return unmarshaller.unmarshal(lector, clase).getValue();
+        } finally {
+            entrada.lecturas.increment();
+            entrada.nanosLectura.add(System.nanoTime() - inicio);
+            entrada.devolverUnmarshaller(unmarshaller);
+        }
+    }
+
+    /**
+     * Deserializa un archivo XML en un objeto de la clase indicada.
+     * @param clase La clase del objeto esperado.
+     * @param origen El archivo XML a leer.
+     * @param <T> Tipo del objeto deserializado.
+     * @return El objeto leído del archivo.
+     * @throws JAXBException si ocurre un error durante el unmarshalling.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T leer(Class<T> clase, File origen) throws JAXBException {
+        EntradaClase entrada = getEntrada(clase);
+        Unmarshaller unmarshaller = entrada.tomarUnmarshaller();
+        long inicio = System.nanoTime();
+        try {
+            return (T) unmarshaller.unmarshal(origen);
+        } finally {
+            entrada.lecturas.increment();
+            entrada.nanosLectura.add(System.nanoTime() - inicio);
+            entrada.devolverUnmarshaller(unmarshaller);
+        }
+    }
+
+    /**
+     * Deserializa un documento XML leído de un flujo de entrada.
+     * @param clase La clase del objeto esperado.
+     * @param origen El flujo con el documento XML. No se cierra.
+     * @param <T> Tipo del objeto deserializado.
+     * @return El objeto leído.
+     * @throws JAXBException si ocurre un error durante el unmarshalling.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T leer(Class<T> clase, InputStream origen) throws JAXBException {
+        EntradaClase entrada = getEntrada(clase);
+        Unmarshaller unmarshaller = entrada.tomarUnmarshaller();
+        long inicio = System.nanoTime();
+        try {
+            return (T) unmarshaller.unmarshal(origen);
+        } finally {
+            entrada.lecturas.increment();
+            entrada.nanosLectura.add(System.nanoTime() - inicio);
+            entrada.devolverUnmarshaller(unmarshaller);
+        }
+    }
+
+    /**
+     * Devuelve una instantánea de los contadores de cada clase registrada en el motor.
+     * @return Un mapa (no modificable) con las estadísticas de cada clase.
+     */
+    public Map<Class<?>, EstadisticasClase> getEstadisticas() {
+        Map<Class<?>, EstadisticasClase> resultado = new LinkedHashMap<>();
+        entradas.forEach((clase, entrada) -> resultado.put(clase, entrada.estadisticas()));
+        return Collections.unmodifiableMap(resultado);
+    }
+
+    /**
+     * Obtiene (o crea) la entrada de una clase.
+     * @param clase La clase a serializar.
+     * @return La entrada con el contexto, los pools y los contadores de la clase.
+     * @throws JAXBException si no se puede crear el contexto de la clase.
+     */
+    private EntradaClase getEntrada(Class<?> clase) throws JAXBException {
+        EntradaClase entrada = entradas.get(clase);
+        if (entrada == null) {
+            try {
+                entrada = entradas.computeIfAbsent(clase, c -> {
+                    try {
+                        return new EntradaClase(c);
+                    } catch (JAXBException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                if (e.getCause() instanceof JAXBException jaxbException) {
+                    throw jaxbException;
+                }
+                throw e;
+            }
+        }
+        return entrada;
+    }
+
+    /**
+     * Estadísticas acumuladas de serialización para una clase.
+     * @param nanosCreacionContexto Tiempo que costó crear el contexto JAXB.
+     * @param escrituras Número de escrituras realizadas.
+     * @param nanosEscritura Tiempo total dedicado a escribir.
+     * @param lecturas Número de lecturas realizadas.
+     * @param nanosLectura Tiempo total dedicado a leer.
+     */
+    public record EstadisticasClase(long nanosCreacionContexto, long escrituras, long nanosEscritura,
+                                    long lecturas, long nanosLectura) {
+    }
+
+    /**
+     * Contexto, pools y contadores asociados a una clase concreta.
+     */
+    private static final class EntradaClase {
+        private final JAXBContext contexto;
+        private final long nanosCreacionContexto;
+        private final ConcurrentLinkedQueue<Marshaller> marshallers = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger marshallersLibres = new AtomicInteger();
+        private final AtomicInteger unmarshallersLibres = new AtomicInteger();
+        private final LongAdder escrituras = new LongAdder();
+        private final LongAdder nanosEscritura = new LongAdder();
+        private final LongAdder lecturas = new LongAdder();
+        private final LongAdder nanosLectura = new LongAdder();
+
+        private EntradaClase(Class<?> clase) throws JAXBException {
+            long inicio = System.nanoTime();
+            this.contexto = JAXBContext.newInstance(clase);
+            this.nanosCreacionContexto = System.nanoTime() - inicio;
+        }
+
+        private Marshaller tomarMarshaller() throws JAXBException {
+            Marshaller marshaller = marshallers.poll();
+            if (marshaller != null) {
+                marshallersLibres.decrementAndGet();
+                return marshaller;
+            }
+            marshaller = contexto.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+            marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+            return marshaller;
+        }
+
+        private void devolverMarshaller(Marshaller marshaller) {
+            if (marshallersLibres.incrementAndGet() <= TAMANO_MAXIMO_POOL) {
+                marshallers.offer(marshaller);
+            } else {
+                marshallersLibres.decrementAndGet();
+            }
+        }
+
+        private Unmarshaller tomarUnmarshaller() throws JAXBException {
+            Unmarshaller unmarshaller = unmarshallers.poll();
+            if (unmarshaller != null) {
+                unmarshallersLibres.decrementAndGet();
+                return unmarshaller;
+            }
+            return contexto.createUnmarshaller();
+        }
+
+        private void devolverUnmarshaller(Unmarshaller unmarshaller) {
+            if (unmarshallersLibres.incrementAndGet() <= TAMANO_MAXIMO_POOL) {
+                unmarshallers.offer(unmarshaller);
+            } else {
+                unmarshallersLibres.decrementAndGet();
+            }
+        }
+
+        private EstadisticasClase estadisticas() {
+            return new EstadisticasClase(nanosCreacionContexto, escrituras.sum(), nanosEscritura.sum(),
+                    lecturas.sum(), nanosLectura.sum());
+        }
+    }
+}
@@ -2,14 +2,93 @@ package org.dam.fcojavier.chatofflinexml.utils;
 
 import org.mindrot.jbcrypt.BCrypt;
 
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Utilidades para el hash y la verificación de contraseñas con BCrypt.
+ * <p>
+ * El coste de BCrypt (cada punto duplica el tiempo de cálculo) se calibra una vez en cada equipo para que verificar
+ * una contraseña tarde aproximadamente el tiempo indicado en la propiedad del sistema
+ * {@value #PROPIEDAD_TIEMPO_OBJETIVO} (en milisegundos), sin bajar nunca de {@value #COSTE_MINIMO}. Así el inicio de
+ * sesión tarda lo mismo en los equipos lentos y los hashes son más robustos en los rápidos. Los hashes guardados con
+ * un coste menor se rehacen al iniciar sesión (ver {@link #rehashSiHaceFaltaAsync(String, String)}); los de coste
+ * mayor se dejan como están.
+ * <p>
+ * El coste calibrado se guarda en las preferencias del usuario en este equipo (no en la carpeta de datos, que puede
+ * compartirse entre equipos distintos), junto con el tiempo objetivo con que se calibró: así no cambia de un
+ * arranque a otro por el ruido de la medición y sólo se vuelve a calibrar si cambia el objetivo.
+ */
 public class PasswordUtilidades {
     /**
-     * Genera un hash de la contraseña utilizando el algoritmo BCrypt.
+     * Propiedad del sistema con el tiempo objetivo, en milisegundos, de la verificación de una contraseña.
+     */
+    public static final String PROPIEDAD_TIEMPO_OBJETIVO = "chatofflinexml.bcrypt.ms";
+    /**
+     * Tiempo objetivo por defecto de la verificación de una contraseña, en milisegundos.
+     */
+    private static final int TIEMPO_OBJETIVO_POR_DEFECTO = 250;
+    /**
+     * Coste mínimo de BCrypt, el que se usaba antes de calibrarlo: en los equipos lentos no se baja de aquí.
+     */
+    public static final int COSTE_MINIMO = 10;
+    /**
+     * Coste máximo de BCrypt que se admite al calibrar.
+     */
+    private static final int COSTE_MAXIMO = 16;
+    /**
+     * Coste con el que se mide el equipo; el tiempo de los demás costes se extrapola a partir de él.
+     */
+    private static final int COSTE_MEDICION = 8;
+    /**
+     * Número de hilos que calculan hashes BCrypt a la vez. Cada cálculo ocupa un núcleo entero durante su coste,
+     * así que se deja al menos la mitad de los núcleos para la interfaz.
+     */
+    private static final int HILOS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+    /**
+     * Número máximo de cálculos en espera. Los que no caben se rechazan en lugar de acumular trabajo.
+     */
+    private static final int CAPACIDAD_COLA = 2;
+    /**
+     * Clave de las preferencias con el coste calibrado.
+     */
+    private static final String PREFERENCIA_COSTE = "bcrypt.coste";
+    /**
+     * Clave de las preferencias con el tiempo objetivo con que se calibró el coste guardado.
+     */
+    private static final String PREFERENCIA_OBJETIVO = "bcrypt.objetivo";
+
+    private static final ThreadPoolExecutor ejecutor = new ThreadPoolExecutor(HILOS, HILOS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(CAPACIDAD_COLA), runnable -> {
+                Thread hilo = new Thread(runnable, "bcrypt");
+                hilo.setDaemon(true);
+                return hilo;
+            }, new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * Coste calibrado para este equipo, o 0 si todavía no se ha calibrado.
+     */
+    private static volatile int costeCalibrado;
+
+    static {
+        ejecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Genera un hash de la contraseña utilizando el algoritmo BCrypt con el coste calibrado para este equipo.
      * @param password La contraseña en texto plano que se desea hashear.
      * @return El hash de la contraseña generado mediante BCrypt.
      */
     public static String hashPassword(String password) {
-        return BCrypt.hashpw(password, BCrypt.gensalt());
+        return BCrypt.hashpw(password, BCrypt.gensalt(getCoste()));
     }
     /**
      * Verifica si una contraseña en texto plano coincide con un hash almacenado.
@@ -20,4 +99,167 @@ public class PasswordUtilidades {
     public static boolean checkPassword(String password, String hashedPassword) {
         return BCrypt.checkpw(password, hashedPassword);
     }
+
+    /**
+     * Genera el hash de una contraseña en segundo plano, para no bloquear el hilo de la interfaz.
+     * @param password La contraseña en texto plano que se desea hashear.
+     * @return Un {@link CompletableFuture} con el hash. Si ya hay demasiados cálculos pendientes, se completa
+     *         enseguida con una {@link RejectedExecutionException} (ver {@link #esRechazo(Throwable)}).
+     */
+    public static CompletableFuture<String> hashPasswordAsync(String password) {
+        return enSegundoPlano(() -> hashPassword(password));
+    }
+
+    /**
+     * Verifica una contraseña en segundo plano, para no bloquear el hilo de la interfaz.
+     * @param password La contraseña en texto plano a verificar.
+     * @param hashedPassword El hash de la contraseña con el que se comparará.
+     * @return Un {@link CompletableFuture} con el resultado de la verificación. Si ya hay demasiados cálculos
+     *         pendientes, se completa enseguida con una {@link RejectedExecutionException}.
+     */
+    public static CompletableFuture<Boolean> checkPasswordAsync(String password, String hashedPassword) {
+        return enSegundoPlano(() -> checkPassword(password, hashedPassword));
+    }
+
+    /**
+     * Rehace en segundo plano el hash de una contraseña recién verificada si se guardó con un coste menor que el
+     * calibrado para este equipo. Se usa tras un inicio de sesión correcto, que es el único momento en que se
+     * conoce la contraseña en texto plano.
+     * @param password La contraseña en texto plano, ya verificada.
+     * @param hashedPassword El hash guardado de la contraseña.
+     * @return Un {@link CompletableFuture} con el nuevo hash, o vacío si el guardado ya tiene el coste calibrado.
+     *         Si ya hay demasiados cálculos pendientes, se completa enseguida con una {@link RejectedExecutionException}.
+     */
+    public static CompletableFuture<Optional<String>> rehashSiHaceFaltaAsync(String password, String hashedPassword) {
+        return enSegundoPlano(() -> necesitaRehash(hashedPassword)
+                ? Optional.of(hashPassword(password)) : Optional.<String>empty());
+    }
+
+    /**
+     * Indica si un hash se generó con un coste menor que el calibrado para este equipo. Un hash de coste mayor
+     * (por ejemplo, creado en un equipo más rápido) no se rehace, porque eso lo haría más débil.
+     * @param hashedPassword El hash de la contraseña.
+     * @return {@code true} si conviene volver a generar el hash.
+     */
+    public static boolean necesitaRehash(String hashedPassword) {
+        int coste = getCoste(hashedPassword);
+        return coste > 0 && coste < getCoste();
+    }
+
+    /**
+     * Obtiene el coste con el que se generó un hash de BCrypt ({@code $2a$10$...}).
+     * @param hashedPassword El hash de la contraseña.
+     * @return El coste del hash, o -1 si no tiene el formato de BCrypt.
+     */
+    public static int getCoste(String hashedPassword) {
+        if (hashedPassword == null || hashedPassword.length() < 7 || hashedPassword.charAt(0) != '$'
+                || hashedPassword.charAt(3) != '$' || hashedPassword.charAt(6) != '$') {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(hashedPassword.substring(4, 6));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Obtiene el coste calibrado para este equipo, calibrándolo si todavía no se ha hecho.
+     * @return El coste de BCrypt con el que se generan los hashes nuevos.
+     */
+    public static int getCoste() {
+        int coste = costeCalibrado;
+        return coste > 0 ? coste : calibrar();
+    }
+
+    /**
+     * Calibra el coste en segundo plano, para que el primer inicio de sesión no tenga que esperar a la calibración.
+     * Se llama al arrancar la aplicación.
+     */
+    public static void calibrarEnSegundoPlano() {
+        enSegundoPlano(PasswordUtilidades::calibrar);
+    }
+
+    /**
+     * Calibra el coste de BCrypt para este equipo: mide cuánto tarda un hash de coste {@value #COSTE_MEDICION} y elige
+     * el mayor coste cuyo tiempo estimado no supera el objetivo, entre {@value #COSTE_MINIMO} y {@value #COSTE_MAXIMO}.
+     * Si ya hay un coste guardado para el mismo objetivo, se usa sin medir.
+     * @return El coste calibrado.
+     */
+    private static synchronized int calibrar() {
+        if (costeCalibrado > 0) {
+            return costeCalibrado;
+        }
+        int objetivo = getTiempoObjetivo();
+        Preferences preferencias = Preferences.userNodeForPackage(PasswordUtilidades.class);
+        int guardado = preferencias.getInt(PREFERENCIA_COSTE, 0);
+        if (guardado >= COSTE_MINIMO && guardado <= COSTE_MAXIMO && preferencias.getInt(PREFERENCIA_OBJETIVO, 0) == objetivo) {
+            costeCalibrado = guardado;
+            return guardado;
+        }
+        long objetivoNanos = objetivo * 1_000_000L;
+
+        // Un primer cálculo para que la medición no incluya la carga de clases ni la compilación JIT
+        BCrypt.hashpw("calibracion", BCrypt.gensalt(COSTE_MEDICION));
+        long medicion = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long inicio = System.nanoTime();
+            BCrypt.hashpw("calibracion", BCrypt.gensalt(COSTE_MEDICION));
+            medicion = Math.min(medicion, System.nanoTime() - inicio);
+        }
+
+        int coste = COSTE_MINIMO;
+        while (coste < COSTE_MAXIMO && medicion << (coste + 1 - COSTE_MEDICION) <= objetivoNanos) {
+            coste++;
+        }
+        System.out.printf("Coste de BCrypt calibrado: %d (~%d ms por verificación, objetivo %d ms)%n", coste,
+                (medicion << (coste - COSTE_MEDICION)) / 1_000_000, objetivoNanos / 1_000_000);
+        costeCalibrado = coste;
+        preferencias.putInt(PREFERENCIA_COSTE, coste);
+        preferencias.putInt(PREFERENCIA_OBJETIVO, objetivo);
+        try {
+            preferencias.flush();
+        } catch (BackingStoreException e) {
+            // Se vuelve a calibrar en el próximo arranque
+            System.err.println("No se pudo guardar el coste de BCrypt calibrado: " + e.getMessage());
+        }
+        return coste;
+    }
+
+    /**
+     * Obtiene el tiempo objetivo de verificación según la propiedad {@value #PROPIEDAD_TIEMPO_OBJETIVO}.
+     * @return El tiempo objetivo en milisegundos.
+     */
+    private static int getTiempoObjetivo() {
+        try {
+            return Math.max(1, Integer.parseInt(System.getProperty(PROPIEDAD_TIEMPO_OBJETIVO,
+                    String.valueOf(TIEMPO_OBJETIVO_POR_DEFECTO)).trim()));
+        } catch (NumberFormatException e) {
+            return TIEMPO_OBJETIVO_POR_DEFECTO;
+        }
+    }
+
+    /**
+     * Indica si un error de {@link #hashPasswordAsync(String)} o {@link #checkPasswordAsync(String, String)} se debe
+     * a que el cálculo se rechazó por haber demasiados pendientes.
+     * @param error El error con el que se completó el cálculo.
+     * @return {@code true} si el cálculo se rechazó sin llegar a hacerse.
+     */
+    public static boolean esRechazo(Throwable error) {
+        Throwable causa = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return causa instanceof RejectedExecutionException;
+    }
+
+    /**
+     * Ejecuta un cálculo en el grupo de hilos de BCrypt, o lo rechaza si la cola está llena.
+     * @param calculo El cálculo a ejecutar.
+     * @return Un {@link CompletableFuture} con el resultado del cálculo.
+     */
+    private static <T> CompletableFuture<T> enSegundoPlano(Supplier<T> calculo) {
+        try {
+            return CompletableFuture.supplyAsync(calculo, ejecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
@@ -0,0 +1,98 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de los archivos que ha escrito, sustituido o borrado este proceso, con el estado en que los dejó
+ * (tamaño, fecha de modificación e identificador del archivo en el sistema de archivos).
+ * Sirve para que quien observa la carpeta de datos distinga sus propias escrituras de las de otras instancias de la
+ * aplicación: si un archivo sigue exactamente como lo dejó este proceso, el cambio es propio.
+ * {@link GestorDurabilidad} registra automáticamente las escrituras que pasan por él; los borrados se registran
+ * donde se hacen.
+ */
+public final class RegistroEscrituras {
+    /**
+     * Número de archivos a partir del cual se olvidan los registros antiguos.
+     */
+    private static final int MAXIMO_REGISTROS = 4_096;
+    /**
+     * Antigüedad a partir de la cual un registro se puede olvidar (mucho más que lo que tarda en llegar el aviso
+     * de un cambio).
+     */
+    private static final long VIGENCIA_MS = 60_000;
+
+    private static final Map<Path, Estado> registros = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor privado: clase de utilidad con métodos estáticos.
+     */
+    private RegistroEscrituras() {}
+
+    /**
+     * Anota el estado actual de un archivo (o que no existe) justo después de que este proceso lo haya escrito,
+     * sustituido o borrado.
+     * @param archivo El archivo modificado.
+     */
+    public static void registrar(Path archivo) {
+        if (registros.size() >= MAXIMO_REGISTROS) {
+            long limite = System.currentTimeMillis() - VIGENCIA_MS;
+            registros.values().removeIf(estado -> estado.registrado() < limite);
+        }
+        registros.put(archivo.toAbsolutePath(), leerEstado(archivo));
+    }
+
+    /**
+     * Indica si un archivo sigue tal como lo dejó la última escritura o borrado de este proceso.
+     * De las carpetas sólo se compara que existan, porque su fecha cambia con cualquier archivo que contengan.
+     * @param archivo El archivo a comprobar.
+     * @return {@code true} si el cambio observado en el archivo es propio; {@code false} si no se registró ninguno o
+     *         el archivo ha cambiado desde entonces.
+     */
+    public static boolean esPropio(Path archivo) {
+        Estado registrado = registros.get(archivo.toAbsolutePath());
+        if (registrado == null) {
+            return false;
+        }
+        Estado actual = leerEstado(archivo);
+        if (registrado.carpeta() || actual.carpeta()) {
+            return registrado.carpeta() == actual.carpeta() && registrado.existe() == actual.existe();
+        }
+        return registrado.mismoContenido(actual);
+    }
+
+    private static Estado leerEstado(Path archivo) {
+        long ahora = System.currentTimeMillis();
+        try {
+            BasicFileAttributes atributos = Files.readAttributes(archivo, BasicFileAttributes.class);
+            return new Estado(true, atributos.isDirectory(), atributos.size(), atributos.lastModifiedTime(),
+                    atributos.fileKey(), ahora);
+        } catch (IOException e) {
+            return new Estado(false, false, 0, null, null, ahora);
+        }
+    }
+
+    /**
+     * Estado de un archivo en el momento de registrarlo.
+     * @param existe Si el archivo existía.
+     * @param carpeta Si es una carpeta.
+     * @param tamano El tamaño en bytes.
+     * @param modificado La fecha de la última modificación.
+     * @param identificador El identificador del archivo en el sistema de archivos (cambia si otro proceso lo
+     *                      sustituye), o {@code null} si el sistema no lo proporciona.
+     * @param registrado El instante del registro, para olvidar los antiguos.
+     */
+    private record Estado(boolean existe, boolean carpeta, long tamano, FileTime modificado, Object identificador,
+                          long registrado) {
+        boolean mismoContenido(Estado otro) {
+            return existe == otro.existe && tamano == otro.tamano && Objects.equals(modificado, otro.modificado)
+                    && Objects.equals(identificador, otro.identificador);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.dam.fcojavier.chatofflinexml.utils;
+
+import javafx.scene.image.Image;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de las imágenes de la aplicación (iconos de archivo, avatares...) que se muestran en muchos sitios a la vez.
+ * Cada recurso se lee y decodifica una sola vez, y todas las celdas comparten la misma instancia de {@link Image}
+ * (una imagen se puede mostrar en tantos {@link javafx.scene.image.ImageView} como se quiera), de modo que hacer scroll
+ * por las listas no vuelve a leer nada del classpath.
+ * <p>
+ * Los avatares se piden por el nombre del usuario: de momento todos usan el avatar genérico, pero se puede registrar
+ * uno propio para cada usuario con {@link #registrarAvatar(String, Image)}.
+ * Implementa el patrón Singleton para que toda la aplicación comparta las mismas imágenes.
+ */
+public class RegistroImagenes {
+    /**
+     * Recurso del avatar genérico de los usuarios.
+     */
+    public static final String AVATAR_POR_DEFECTO = "/images/usuario.png";
+
+    private static RegistroImagenes instance;
+
+    /**
+     * Imágenes ya leídas, por la ruta del recurso. Los recursos que no se pueden leer se guardan vacíos para no
+     * volver a intentarlo.
+     */
+    private final Map<String, Optional<Image>> recursos = new ConcurrentHashMap<>();
+    /**
+     * Avatares propios de los usuarios, por su nombre.
+     */
+    private final Map<String, Image> avatares = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor privado para implementar el patrón Singleton.
+     */
+    private RegistroImagenes() {
+    }
+
+    /**
+     * Obtiene la única instancia del registro, creándola si no existe.
+     * @return La instancia compartida del registro.
+     */
+    public static synchronized RegistroImagenes getInstance() {
+        if (instance == null) {
+            instance = new RegistroImagenes();
+        }
+        return instance;
+    }
+
+    /**
+     * Obtiene la imagen de un recurso del classpath, leyéndola sólo la primera vez.
+     * @param recurso La ruta del recurso (por ejemplo, {@code /images/pdf.png}).
+     * @return La imagen compartida, o {@code null} si el recurso no existe o no se puede leer.
+     */
+    public Image obtener(String recurso) {
+        return recursos.computeIfAbsent(recurso, this::leer).orElse(null);
+    }
+
+    /**
+     * Obtiene el avatar de un usuario: el suyo propio si se ha registrado o, si no, el genérico.
+     * @param nombreUsuario El nombre del usuario.
+     * @return La imagen del avatar.
+     */
+    public Image obtenerAvatar(String nombreUsuario) {
+        Image avatar = nombreUsuario != null ? avatares.get(nombreUsuario) : null;
+        return avatar != null ? avatar : obtener(AVATAR_POR_DEFECTO);
+    }
+
+    /**
+     * Registra el avatar propio de un usuario, que sustituye al genérico en toda la aplicación.
+     * @param nombreUsuario El nombre del usuario.
+     * @param avatar La imagen del avatar, o {@code null} para volver al genérico.
+     */
+    public void registrarAvatar(String nombreUsuario, Image avatar) {
+        if (avatar == null) {
+            avatares.remove(nombreUsuario);
+        } else {
+            avatares.put(nombreUsuario, avatar);
+        }
+    }
+
+    /**
+     * Obtiene el icono de un tipo de archivo a partir de su extensión.
+     * @param extension La extensión del archivo (ej. "pdf", "docx").
+     * @return La imagen del icono correspondiente, o {@code null} si no se puede cargar.
+     */
+    public Image obtenerIconoArchivo(String extension) {
+        String iconPath;
+        switch (extension.toLowerCase()) {
+            case "pdf":
+                iconPath = "/images/pdf.png";
+                break;
+            case "doc":
+            case "docx":
+                iconPath = "/images/doc.png";
+                break;
+            case "txt":
+                iconPath = "/images/txt.png";
+                break;
+            case "zip":
+            case "rar":
+                iconPath = "/images/comprimir.png";
+                break;
+            default:
+                iconPath = "/images/doc.png"; // Usar un icono genérico de documento por defecto
+                break;
+        }
+        return obtener(iconPath);
+    }
+
+    /**
+     * Lee y decodifica un recurso del classpath.
+     * @param recurso La ruta del recurso.
+     * @return La imagen, o vacío si el recurso no existe o no se puede leer.
+     */
+    private Optional<Image> leer(String recurso) {
+        try (InputStream entrada = RegistroImagenes.class.getResourceAsStream(recurso)) {
+            if (entrada == null) {
+                System.err.println("No se encontró la imagen " + recurso);
+                return Optional.empty();
+            }
+            Image imagen = new Image(entrada);
+            if (imagen.isError()) {
+                System.err.println("Error al cargar la imagen " + recurso + ": " + imagen.getException().getMessage());
+                return Optional.empty();
+            }
+            return Optional.of(imagen);
+        } catch (Exception e) {
+            System.err.println("Error al cargar la imagen " + recurso + ", " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+}
@@ -3,24 +3,45 @@ package org.dam.fcojavier.chatofflinexml.utils;
 import javafx.geometry.Pos;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
+import org.dam.fcojavier.chatofflinexml.model.EntradaBandeja;
 import org.dam.fcojavier.chatofflinexml.model.Usuario;
 
+import java.util.function.Function;
+
 /**
  * Celda personalizada para la ListView de usuarios.
- * Muestra un ícono de avatar y el nombre del usuario.
+ * Muestra un ícono de avatar y el nombre del usuario y, si se conoce el resumen de la conversación con él
+ * (su {@link EntradaBandeja}), la vista previa del último mensaje y el número de mensajes no leídos.
  */
 public class UsuarioListCell extends ListCell<Usuario> {
 
     private final HBox content;
     private final ImageView avatarImageView;
     private final Label nameLabel;
+    private final Label previewLabel;
+    private final Label badgeLabel;
+    private final Function<String, EntradaBandeja> resumenes;
 
+    /**
+     * Crea una celda que sólo muestra el avatar y el nombre del usuario.
+     */
     public UsuarioListCell() {
+        this(nombre -> null);
+    }
+
+    /**
+     * Crea una celda que muestra además el resumen de la conversación con cada usuario.
+     * @param resumenes Función que devuelve la entrada de la bandeja de entrada de un contacto a partir de su nombre,
+     *                  o {@code null} si no hay conversación con él.
+     */
+    public UsuarioListCell(Function<String, EntradaBandeja> resumenes) {
         super();
+        this.resumenes = resumenes;
         avatarImageView = new ImageView();
         avatarImageView.setFitHeight(32);
         avatarImageView.setFitWidth(32);
@@ -28,10 +49,20 @@ public class UsuarioListCell extends ListCell<Usuario> {
         nameLabel = new Label();
         nameLabel.getStyleClass().add("user-list-cell-label");
 
-        VBox vBox = new VBox(nameLabel);
+        previewLabel = new Label();
+        previewLabel.getStyleClass().add("user-list-cell-preview");
+        previewLabel.setMaxWidth(180);
+
+        badgeLabel = new Label();
+        badgeLabel.getStyleClass().add("user-list-cell-badge");
+
+        VBox vBox = new VBox(nameLabel, previewLabel);
         vBox.setAlignment(Pos.CENTER_LEFT);
 
-        content = new HBox(avatarImageView, vBox);
+        Region espacio = new Region();
+        HBox.setHgrow(espacio, Priority.ALWAYS);
+
+        content = new HBox(avatarImageView, vBox, espacio, badgeLabel);
         content.setSpacing(10);
         content.setAlignment(Pos.CENTER_LEFT);
     }
@@ -41,8 +72,18 @@ public class UsuarioListCell extends ListCell<Usuario> {
         super.updateItem(user, empty);
         if (user != null && !empty) {
             nameLabel.setText(user.getNombre() + " " + user.getApellido());
-            // Usamos un ícono genérico, pero esto podría extenderse para avatares personalizados
-            avatarImageView.setImage(new Image(getClass().getResourceAsStream("/images/usuario.png")));
+            // El avatar es una imagen compartida: actualizar la celda no vuelve a leerlo del classpath
+            avatarImageView.setImage(RegistroImagenes.getInstance().obtenerAvatar(user.getNombre()));
+
+            EntradaBandeja resumen = resumenes.apply(user.getNombre());
+            boolean conVistaPrevia = resumen != null && resumen.getVistaPrevia() != null;
+            previewLabel.setText(conVistaPrevia ? resumen.getVistaPrevia() : "");
+            previewLabel.setVisible(conVistaPrevia);
+            previewLabel.setManaged(conVistaPrevia);
+
+            boolean conNoLeidos = resumen != null && resumen.getNoLeidos() > 0;
+            badgeLabel.setText(conNoLeidos ? String.valueOf(resumen.getNoLeidos()) : "");
+            badgeLabel.setVisible(conNoLeidos);
             setGraphic(content);
         } else {
             setGraphic(null);
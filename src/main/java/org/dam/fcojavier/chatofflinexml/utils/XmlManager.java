@@ -1,34 +1,72 @@
 package org.dam.fcojavier.chatofflinexml.utils;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
+/**
+ * Clase de utilidad para guardar y cargar objetos en archivos XML.
+ * La serialización se delega en {@link MotorSerializacionXml}, que reutiliza los contextos JAXB entre llamadas.
+ * Los archivos se pueden guardar comprimidos con gzip; al leerlos se detecta automáticamente (ver {@link CompresionArchivos}).
+ */
 public class XmlManager {
     /**
-     * Guarda un objeto en un archivo XML.
+     * Guarda un objeto en un archivo XML con el modo de durabilidad {@link ModoDurabilidad#RAPIDO}.
      * @param objeto   El objeto que se desea guardar en formato XML.
      * @param fileName El nombre del archivo XML donde se guardará el objeto.
      * @param <T>      Tipo genérico que representa el objeto a serializar.
      * @return true si el proceso de guardado fue exitoso, false en caso contrario.
      */
     public static <T> boolean writeXML(T objeto, String fileName) {
+        return writeXML(objeto, fileName, ModoDurabilidad.RAPIDO);
+    }
+
+    /**
+     * Guarda un objeto en un archivo XML con el modo de durabilidad indicado.
+     * El XML se escribe siempre en un archivo temporal que después sustituye al original mediante un renombrado
+     * atómico, de modo que el archivo nunca queda a medio escribir aunque la aplicación se cierre durante la escritura.
+     * @param objeto   El objeto que se desea guardar en formato XML.
+     * @param fileName El nombre del archivo XML donde se guardará el objeto.
+     * @param modo     El modo de durabilidad (sin fsync, fsync en cada escritura o fsync periódico).
+     * @param <T>      Tipo genérico que representa el objeto a serializar.
+     * @return true si el proceso de guardado fue exitoso, false en caso contrario.
+     */
+    public static <T> boolean writeXML(T objeto, String fileName, ModoDurabilidad modo) {
+        return writeXML(objeto, fileName, modo, false);
+    }
+
+    /**
+     * Guarda un objeto en un archivo XML con el modo de durabilidad indicado, comprimiéndolo con gzip si se pide.
+     * La compresión se hace en streaming mientras se serializa el objeto, sin copias intermedias en memoria.
+     * @param objeto    El objeto que se desea guardar en formato XML.
+     * @param fileName  El nombre del archivo XML donde se guardará el objeto.
+     * @param modo      El modo de durabilidad (sin fsync, fsync en cada escritura o fsync periódico).
+     * @param comprimir Si es {@code true}, el archivo se guarda comprimido con gzip.
+     * @param <T>       Tipo genérico que representa el objeto a serializar.
+     * @return true si el proceso de guardado fue exitoso, false en caso contrario.
+     */
+    public static <T> boolean writeXML(T objeto, String fileName, ModoDurabilidad modo, boolean comprimir) {
         boolean result = false;
+        Path destino = Paths.get(fileName);
         try {
-            //Paso 1: Crear el contexto de JaxB para la clase que queremos serializar
-            JAXBContext context = JAXBContext.newInstance(objeto.getClass());
-
-            //Paso 2: proceso Marshalling: convertir objeto en XML
-            Marshaller marshaller = context.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-            marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
-            marshaller.marshal(objeto,new File(fileName));
+            Path temporal = GestorDurabilidad.crearTemporal(destino);
+            try {
+                //Marshalling: convertir objeto en XML reutilizando el contexto JAXB de su clase
+                try (OutputStream salida = CompresionArchivos.abrirEscritura(temporal, comprimir)) {
+                    MotorSerializacionXml.getInstance().escribir(objeto, salida);
+                }
+                GestorDurabilidad.reemplazar(temporal, destino, modo);
+            } finally {
+                Files.deleteIfExists(temporal);
+            }
             result = true;
 
-        } catch (JAXBException e) {
+        } catch (JAXBException | IOException e) {
             throw new RuntimeException(e);
         }
 
@@ -36,12 +74,13 @@ public class XmlManager {
     }
 
     /**
-     * Lee un archivo XML y lo convierte en un objeto Java.
+     * Lee un archivo XML (comprimido o no) y lo convierte en un objeto Java.
      * @param objeto   Una instancia del tipo de objeto esperado (se usa para obtener la clase).
      * @param fileName El nombre del archivo XML desde donde se cargará el objeto.
      * @param <T>      Tipo genérico que representa el objeto a deserializar.
      * @return El objeto deserializado desde el XML, o null si hubo un error.
      */
+    @SuppressWarnings("unchecked")
     public static <T> T readXML(T objeto, String fileName) {
         T result = null;
         File file = new File(fileName);
@@ -54,16 +93,11 @@ public class XmlManager {
             }
         }
 
-        try {
-            //Paso 1: Crear el contexto de JaxB para la clase que queremos serializar
-            JAXBContext context = JAXBContext.newInstance(objeto.getClass());
-
-            //Paso 2: Unmarshaling: leer XML y convertirlo a un objeto
-            Unmarshaller unmarshaller = context.createUnmarshaller();
-            result = (T) unmarshaller.unmarshal(new File(fileName));
-
+        try (InputStream entrada = CompresionArchivos.abrirLectura(Paths.get(fileName))) {
+            //Unmarshaling: leer XML y convertirlo a un objeto reutilizando el contexto JAXB de su clase
+            result = (T) MotorSerializacionXml.getInstance().leer(objeto.getClass(), entrada);
 
-        } catch (JAXBException e) {
+        } catch (JAXBException | IOException e) {
             throw new RuntimeException(e);
         }
 